@@ -0,0 +1,227 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Host-side counterpart of the controller scan filters built from {@link DeviceProfile}s. Walks
+ * the raw advertisement structures and compares them against byte patterns and masks compiled
+ * once up front, so matching does not allocate. Used when the controller cannot filter on its
+ * own, and to drop results that slip through anyway. Not thread safe.
+ */
+public final class AdvertisementMatcher {
+
+    // Advertising data types, Bluetooth Core Specification Supplement, Part A.
+    private static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    private static final int TYPE_UUID16_COMPLETE = 0x03;
+    private static final int TYPE_UUID32_INCOMPLETE = 0x04;
+    private static final int TYPE_UUID32_COMPLETE = 0x05;
+    private static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    private static final int TYPE_UUID128_COMPLETE = 0x07;
+    private static final int TYPE_MANUFACTURER_DATA = 0xff;
+
+    // 0000xxxx-0000-1000-8000-00805f9b34fb in advertisement (little endian) order; 16 and 32 bit
+    // UUIDs replace bytes 12 to 15.
+    private static final byte[] BASE_UUID = {
+            (byte) 0xfb, 0x34, (byte) 0x9b, 0x5f, (byte) 0x80, 0x00, 0x00, (byte) 0x80,
+            0x00, 0x10, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
+
+    private final DeviceProfile[] mProfiles;
+    // Per profile, the little endian UUID patterns and masks, 16 bytes per rule.
+    private final byte[][] mUuidPatterns;
+    private final byte[][] mUuidMasks;
+    // Per profile and rule, the company id, and the data pattern and mask.
+    private final int[][] mCompanyIds;
+    private final byte[][][] mDataPatterns;
+    private final byte[][][] mDataMasks;
+    private final byte[] mScratchUuid = new byte[16];
+
+    public AdvertisementMatcher(List<DeviceProfile> profiles) {
+        final int count = profiles.size();
+        mProfiles = profiles.toArray(new DeviceProfile[count]);
+        mUuidPatterns = new byte[count][];
+        mUuidMasks = new byte[count][];
+        mCompanyIds = new int[count][];
+        mDataPatterns = new byte[count][][];
+        mDataMasks = new byte[count][][];
+        for (int p = 0; p < count; p++) {
+            final List<DeviceProfile.ServiceRule> services = mProfiles[p].getServiceRules();
+            mUuidPatterns[p] = new byte[services.size() * 16];
+            mUuidMasks[p] = new byte[services.size() * 16];
+            for (int r = 0; r < services.size(); r++) {
+                final DeviceProfile.ServiceRule rule = services.get(r);
+                final UUID mask = rule.getMask();
+                writeUuid(rule.getUuid(), mUuidPatterns[p], r * 16);
+                if (mask == null) {
+                    for (int i = 0; i < 16; i++) {
+                        mUuidMasks[p][r * 16 + i] = (byte) 0xff;
+                    }
+                } else {
+                    writeUuid(mask, mUuidMasks[p], r * 16);
+                }
+                for (int i = 0; i < 16; i++) {
+                    mUuidPatterns[p][r * 16 + i] &= mUuidMasks[p][r * 16 + i];
+                }
+            }
+            final List<DeviceProfile.ManufacturerRule> manufacturers =
+                    mProfiles[p].getManufacturerRules();
+            mCompanyIds[p] = new int[manufacturers.size()];
+            mDataPatterns[p] = new byte[manufacturers.size()][];
+            mDataMasks[p] = new byte[manufacturers.size()][];
+            for (int r = 0; r < manufacturers.size(); r++) {
+                final DeviceProfile.ManufacturerRule rule = manufacturers.get(r);
+                final byte[] data = rule.getData();
+                byte[] mask = rule.getMask();
+                if (mask == null) {
+                    mask = new byte[data.length];
+                    for (int i = 0; i < mask.length; i++) {
+                        mask[i] = (byte) 0xff;
+                    }
+                }
+                for (int i = 0; i < data.length; i++) {
+                    data[i] &= mask[i];
+                }
+                mCompanyIds[p][r] = rule.getCompanyId();
+                mDataPatterns[p][r] = data;
+                mDataMasks[p][r] = mask;
+            }
+        }
+    }
+
+    public int getProfileCount() {
+        return mProfiles.length;
+    }
+
+    public DeviceProfile getProfile(int index) {
+        return mProfiles[index];
+    }
+
+    /**
+     * @param advertisement The raw advertisement, as returned by {@code ScanRecord.getBytes()}.
+     * @return The index of the first matching profile, or -1.
+     */
+    public int match(byte[] advertisement) {
+        return advertisement == null ? -1 : match(advertisement, 0, advertisement.length);
+    }
+
+    /**
+     * Matches the advertisement structures in {@code data[offset, offset + length)}. A malformed
+     * structure ends the walk, structures before it still count.
+     *
+     * @return The index of the first matching profile, or -1.
+     */
+    public int match(byte[] data, int offset, int length) {
+        for (int p = 0; p < mProfiles.length; p++) {
+            if (matchesProfile(p, data, offset, offset + length)) {
+                return p;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matchesProfile(int profile, byte[] data, int position, int end) {
+        while (position < end) {
+            final int length = data[position] & 0xff;
+            if (length == 0) {
+                // Padding, some stacks pad the advertisement to 31 bytes before the scan
+                // response.
+                position++;
+                continue;
+            }
+            final int start = position + 2;
+            final int next = position + 1 + length;
+            if (next > end) {
+                break;
+            }
+            switch (data[position + 1] & 0xff) {
+                case TYPE_UUID16_INCOMPLETE:
+                case TYPE_UUID16_COMPLETE:
+                    for (int i = start; i + 2 <= next; i += 2) {
+                        if (matchesShortUuid(profile, data, i, 2)) {
+                            return true;
+                        }
+                    }
+                    break;
+                case TYPE_UUID32_INCOMPLETE:
+                case TYPE_UUID32_COMPLETE:
+                    for (int i = start; i + 4 <= next; i += 4) {
+                        if (matchesShortUuid(profile, data, i, 4)) {
+                            return true;
+                        }
+                    }
+                    break;
+                case TYPE_UUID128_INCOMPLETE:
+                case TYPE_UUID128_COMPLETE:
+                    for (int i = start; i + 16 <= next; i += 16) {
+                        if (matchesUuid(profile, data, i)) {
+                            return true;
+                        }
+                    }
+                    break;
+                case TYPE_MANUFACTURER_DATA:
+                    if (next - start >= 2 && matchesManufacturerData(profile, data, start, next)) {
+                        return true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            position = next;
+        }
+        return false;
+    }
+
+    private boolean matchesShortUuid(int profile, byte[] data, int offset, int size) {
+        System.arraycopy(BASE_UUID, 0, mScratchUuid, 0, 16);
+        System.arraycopy(data, offset, mScratchUuid, 12, size);
+        return matchesUuid(profile, mScratchUuid, 0);
+    }
+
+    private boolean matchesUuid(int profile, byte[] data, int offset) {
+        final byte[] patterns = mUuidPatterns[profile];
+        final byte[] masks = mUuidMasks[profile];
+        for (int rule = 0; rule < patterns.length; rule += 16) {
+            int i = 0;
+            while (i < 16 && (data[offset + i] & masks[rule + i]) == patterns[rule + i]) {
+                i++;
+            }
+            if (i == 16) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matchesManufacturerData(int profile, byte[] data, int start, int end) {
+        final int companyId = (data[start] & 0xff) | (data[start + 1] & 0xff) << 8;
+        final int[] companyIds = mCompanyIds[profile];
+        for (int rule = 0; rule < companyIds.length; rule++) {
+            if (companyIds[rule] != companyId) {
+                continue;
+            }
+            final byte[] pattern = mDataPatterns[profile][rule];
+            final byte[] mask = mDataMasks[profile][rule];
+            if (end - start - 2 < pattern.length) {
+                continue;
+            }
+            int i = 0;
+            while (i < pattern.length && (data[start + 2 + i] & mask[i]) == pattern[i]) {
+                i++;
+            }
+            if (i == pattern.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Writes the UUID in advertisement byte order, least significant byte first.
+    private static void writeUuid(UUID uuid, byte[] target, int offset) {
+        final long lsb = uuid.getLeastSignificantBits();
+        final long msb = uuid.getMostSignificantBits();
+        for (int i = 0; i < 8; i++) {
+            target[offset + i] = (byte) (lsb >>> (8 * i));
+            target[offset + 8 + i] = (byte) (msb >>> (8 * i));
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads sensor values straight out of advertisements, so a device can be sampled without
+ * connecting to it. Understands the Sensirion manufacturer data format: company id 0x06D5, an
+ * advertising type, a sample type, a two byte device id and the samples as little-endian
+ * ticks. The advertisement is read in place from the scan record's array, nothing is copied or
+ * allocated. Not thread safe.
+ */
+public final class AdvertisementParser {
+
+    private static final int TYPE_MANUFACTURER_DATA = 0xff;
+
+    // Offsets into the manufacturer data, after the company id.
+    private static final int OFFSET_ADVERTISING_TYPE = 0;
+    private static final int OFFSET_SAMPLE_TYPE = 1;
+    private static final int OFFSET_SAMPLES = 4;
+
+    static final int ADVERTISING_TYPE_SAMPLES = 0x00;
+    // Temperature and humidity ticks, two bytes each.
+    static final int SAMPLE_TYPE_TEMPERATURE_HUMIDITY = 0x04;
+
+    private final SampleListener mListener;
+    private long mAdvertisementCount;
+    private long mSampleCount;
+    private long mUnknownCount;
+    // Holds the advertisements of buffers without an accessible array. Grown, never shrunk.
+    private byte[] mScratch = new byte[0];
+
+    /**
+     * @param listener Receives the samples, on the thread that calls {@link #parse}.
+     */
+    public AdvertisementParser(SampleListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Parses the advertisement structures between the position and the limit of {@code data},
+     * which may also hold the scan response. The position is not changed.
+     *
+     * @param timestampNanos When the advertisement was received, in elapsed realtime.
+     * @return The number of samples handed to the listener.
+     */
+    public int parse(String deviceAddress, long timestampNanos, ByteBuffer data) {
+        if (data.hasArray()) {
+            return parse(deviceAddress, timestampNanos, data.array(),
+                    data.arrayOffset() + data.position(), data.remaining());
+        }
+        final int position = data.position();
+        final int length = data.remaining();
+        if (mScratch.length < length) {
+            mScratch = new byte[length];
+        }
+        for (int i = 0; i < length; i++) {
+            mScratch[i] = data.get(position + i);
+        }
+        return parse(deviceAddress, timestampNanos, mScratch, 0, length);
+    }
+
+    /**
+     * Parses the advertisement structures of a whole scan record, as
+     * {@code ScanRecord.getBytes()} returns it.
+     */
+    public int parse(String deviceAddress, long timestampNanos, byte[] data) {
+        return parse(deviceAddress, timestampNanos, data, 0, data.length);
+    }
+
+    /**
+     * Parses the advertisement structures in {@code length} bytes of {@code data} from
+     * {@code offset}, which may also hold the scan response.
+     *
+     * @param timestampNanos When the advertisement was received, in elapsed realtime.
+     * @return The number of samples handed to the listener.
+     */
+    public int parse(String deviceAddress, long timestampNanos, byte[] data, int offset,
+                     int length) {
+        mAdvertisementCount++;
+        final int end = offset + length;
+        int position = offset;
+        int samples = 0;
+        while (position < end) {
+            final int structureLength = data[position] & 0xff;
+            if (structureLength == 0) {
+                // Padding, some stacks pad the advertisement to 31 bytes before the scan
+                // response.
+                position++;
+                continue;
+            }
+            final int next = position + 1 + structureLength;
+            if (next > end) {
+                break;
+            }
+            if ((data[position + 1] & 0xff) == TYPE_MANUFACTURER_DATA && structureLength >= 3
+                    && LittleEndian.getUnsignedShort(data, position + 2)
+                    == SensirionSHT31UUIDS.SENSIRION_COMPANY_ID) {
+                samples += parseSensirion(deviceAddress, timestampNanos, data, position + 4,
+                        next);
+            }
+            position = next;
+        }
+        mSampleCount += samples;
+        return samples;
+    }
+
+    private int parseSensirion(String deviceAddress, long timestampNanos, byte[] data,
+                               int start, int end) {
+        if (end - start < OFFSET_SAMPLES
+                || data[start + OFFSET_ADVERTISING_TYPE] != ADVERTISING_TYPE_SAMPLES) {
+            mUnknownCount++;
+            return 0;
+        }
+        final int samples = start + OFFSET_SAMPLES;
+        switch (data[start + OFFSET_SAMPLE_TYPE] & 0xff) {
+            case SAMPLE_TYPE_TEMPERATURE_HUMIDITY:
+                if (end - samples < 4) {
+                    break;
+                }
+                mListener.onSample(deviceAddress, SensirionSHT31UUIDS.CHARACTERISTIC_TEMPERATURE,
+                        timestampNanos,
+                        temperatureFromTicks(LittleEndian.getUnsignedShort(data, samples)));
+                mListener.onSample(deviceAddress, SensirionSHT31UUIDS.CHARACTERISTIC_HUMIDITY,
+                        timestampNanos,
+                        humidityFromTicks(LittleEndian.getUnsignedShort(data, samples + 2)));
+                return 2;
+            default:
+                break;
+        }
+        mUnknownCount++;
+        return 0;
+    }
+
+    /**
+     * @return The temperature in degrees Celsius, from the SHT3x datasheet.
+     */
+    static float temperatureFromTicks(int ticks) {
+        return -45f + 175f * ticks / 65535f;
+    }
+
+    /**
+     * @return The relative humidity in percent, from the SHT3x datasheet.
+     */
+    static float humidityFromTicks(int ticks) {
+        return 100f * ticks / 65535f;
+    }
+
+    public long getAdvertisementCount() {
+        return mAdvertisementCount;
+    }
+
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * @return How many Sensirion advertisements had a type this parser does not know.
+     */
+    public long getUnknownCount() {
+        return mUnknownCount;
+    }
+}
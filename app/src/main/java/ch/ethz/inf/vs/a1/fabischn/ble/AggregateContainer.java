@@ -0,0 +1,31 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+public interface AggregateContainer {
+
+    int STAT_MIN = 0;
+    int STAT_MAX = 1;
+    int STAT_MEAN = 2;
+    int STAT_STDDEV = 3;
+    int STAT_COUNT = 4;
+
+    /**
+     * @return The number of rolling windows, they are indexed from the shortest one.
+     */
+    int getWindowCount();
+
+    /**
+     * @return The length of a window.
+     */
+    long getWindowMillis(int window);
+
+    /**
+     * Get a rolling statistic of a series, as of its latest sample.
+     *
+     * @param series The series, numbered like those of {@link GraphContainer#getValues()}.
+     * @param window The window index.
+     * @param statistic One of the {@code STAT_*} constants.
+     * @return The statistic, NaN if the window holds no samples.
+     */
+    float getAggregate(int series, int window, int statistic);
+
+}
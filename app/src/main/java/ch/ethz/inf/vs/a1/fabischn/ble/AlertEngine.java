@@ -0,0 +1,333 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Evaluates alert rules against the live samples: thresholds with hysteresis, rate of change and
+ * sensor silence. Rules are defined through a {@link Builder} and compiled into flat primitive
+ * arrays, sorted by device and characteristic, so a sample only visits the rules of its own
+ * stream: one map lookup and a contiguous range, however many rules and devices there are.
+ * Evaluation does not allocate. The listener hears about transitions only, not about every
+ * sample that keeps an alert active. All methods are thread safe.
+ */
+public final class AlertEngine {
+
+    public static final int RULE_ABOVE = 0;
+    public static final int RULE_BELOW = 1;
+    public static final int RULE_RATE = 2;
+    public static final int RULE_SILENCE = 3;
+
+    /**
+     * Hears when an alert becomes active or clears. Called with the engine locked, on the thread
+     * that delivered the sample or the tick.
+     */
+    public interface Listener {
+        /**
+         * @param ruleId The id the rule got from the {@link Builder}.
+         * @param value The value that changed the state. For rate rules the rate per minute,
+         *              for silence rules the silent time in milliseconds.
+         */
+        void onAlert(int ruleId, String deviceAddress, int characteristicId, boolean active,
+                     long timestampMillis, float value);
+    }
+
+    /**
+     * Collects rules. Not thread safe.
+     */
+    public static final class Builder {
+        private final ArrayList<String> mAddresses = new ArrayList<String>();
+        // Per rule: type, device index, characteristic and span.
+        private final ArrayList<long[]> mRules = new ArrayList<long[]>();
+        private final ArrayList<float[]> mParameters = new ArrayList<float[]>();
+
+        /**
+         * Alerts while a value is above the threshold. It clears once the value is at or below
+         * the threshold minus the hysteresis.
+         *
+         * @return The id of the rule.
+         */
+        public int addAbove(String address, int characteristicId, float threshold,
+                            float hysteresis) {
+            return add(RULE_ABOVE, address, characteristicId, threshold, hysteresis, 0);
+        }
+
+        /**
+         * Alerts while a value is below the threshold. It clears once the value is at or above
+         * the threshold plus the hysteresis.
+         */
+        public int addBelow(String address, int characteristicId, float threshold,
+                            float hysteresis) {
+            return add(RULE_BELOW, address, characteristicId, threshold, hysteresis, 0);
+        }
+
+        /**
+         * Alerts while a value changes faster than the limit, in either direction. The rate is
+         * measured over spans of at least {@code spanMillis}, so noise between two samples does
+         * not trigger it.
+         *
+         * @param maxPerMinute The largest allowed change per minute.
+         */
+        public int addRateOfChange(String address, int characteristicId, float maxPerMinute,
+                                   float hysteresis, long spanMillis) {
+            if (spanMillis <= 0) {
+                throw new IllegalArgumentException("spanMillis must be positive: " + spanMillis);
+            }
+            return add(RULE_RATE, address, characteristicId, maxPerMinute, hysteresis,
+                    spanMillis);
+        }
+
+        /**
+         * Alerts when the stream has not delivered a sample for longer than the timeout. Checked
+         * by {@link AlertEngine#tick(long)}; clears with the next sample.
+         */
+        public int addSilence(String address, int characteristicId, long timeoutMillis) {
+            if (timeoutMillis <= 0) {
+                throw new IllegalArgumentException(
+                        "timeoutMillis must be positive: " + timeoutMillis);
+            }
+            return add(RULE_SILENCE, address, characteristicId, 0, 0, timeoutMillis);
+        }
+
+        public AlertEngine build(Listener listener) {
+            return new AlertEngine(this, listener);
+        }
+
+        private int add(int type, String address, int characteristicId, float threshold,
+                        float hysteresis, long spanMillis) {
+            if (characteristicId < 0) {
+                throw new IllegalArgumentException("Invalid characteristic " + characteristicId);
+            }
+            if (hysteresis < 0) {
+                throw new IllegalArgumentException("hysteresis must not be negative");
+            }
+            int device = mAddresses.indexOf(address);
+            if (device < 0) {
+                device = mAddresses.size();
+                mAddresses.add(address);
+            }
+            mRules.add(new long[]{type, device, characteristicId, spanMillis});
+            mParameters.add(new float[]{threshold, hysteresis});
+            return mRules.size() - 1;
+        }
+    }
+
+    private final Listener mListener;
+    private final HashMap<String, Integer> mDevices = new HashMap<String, Integer>();
+    private final String[] mAddresses;
+    // The rules of device d and characteristic c are [mRangeStarts[k], mRangeStarts[k + 1])
+    // with k = d * mCharacteristicSpan + c.
+    private final int mCharacteristicSpan;
+    private final int[] mRangeStarts;
+
+    // The compiled rules, in range order.
+    private final int[] mIds;
+    private final int[] mTypes;
+    private final int[] mCharacteristics;
+    private final int[] mDeviceIndices;
+    private final float[] mThresholds;
+    private final float[] mHysteresis;
+    private final long[] mSpans;
+    // Rule state.
+    private final boolean[] mActive;
+    private final float[] mReferenceValues;
+    private final long[] mReferenceTimes;
+    private final long[] mLastSeen;
+    private final int[] mSilenceRules;
+
+    private long mEvaluatedCount;
+    private long mTriggeredCount;
+
+    private AlertEngine(Builder builder, Listener listener) {
+        mListener = listener;
+        mAddresses = builder.mAddresses.toArray(new String[builder.mAddresses.size()]);
+        for (int i = 0; i < mAddresses.length; i++) {
+            mDevices.put(mAddresses[i], i);
+        }
+        final int count = builder.mRules.size();
+        int span = 1;
+        for (long[] rule : builder.mRules) {
+            span = Math.max(span, (int) rule[2] + 1);
+        }
+        mCharacteristicSpan = span;
+
+        // Counting sort by range key.
+        final int keys = mAddresses.length * span;
+        mRangeStarts = new int[keys + 1];
+        for (long[] rule : builder.mRules) {
+            mRangeStarts[(int) rule[1] * span + (int) rule[2] + 1]++;
+        }
+        for (int k = 0; k < keys; k++) {
+            mRangeStarts[k + 1] += mRangeStarts[k];
+        }
+        final int[] next = Arrays.copyOf(mRangeStarts, keys);
+        mIds = new int[count];
+        mTypes = new int[count];
+        mCharacteristics = new int[count];
+        mDeviceIndices = new int[count];
+        mThresholds = new float[count];
+        mHysteresis = new float[count];
+        mSpans = new long[count];
+        int silenceCount = 0;
+        for (int id = 0; id < count; id++) {
+            final long[] rule = builder.mRules.get(id);
+            final float[] parameters = builder.mParameters.get(id);
+            final int i = next[(int) rule[1] * span + (int) rule[2]]++;
+            mIds[i] = id;
+            mTypes[i] = (int) rule[0];
+            mDeviceIndices[i] = (int) rule[1];
+            mCharacteristics[i] = (int) rule[2];
+            mSpans[i] = rule[3];
+            mThresholds[i] = parameters[0];
+            mHysteresis[i] = parameters[1];
+            if (rule[0] == RULE_SILENCE) {
+                silenceCount++;
+            }
+        }
+        mSilenceRules = new int[silenceCount];
+        for (int i = 0, s = 0; i < count; i++) {
+            if (mTypes[i] == RULE_SILENCE) {
+                mSilenceRules[s++] = i;
+            }
+        }
+        mActive = new boolean[count];
+        mReferenceValues = new float[count];
+        mReferenceTimes = new long[count];
+        mLastSeen = new long[count];
+        Arrays.fill(mReferenceTimes, -1);
+        Arrays.fill(mLastSeen, -1);
+    }
+
+    /**
+     * Evaluates the rules of the sample's stream.
+     */
+    public synchronized void onSample(String address, int characteristicId,
+                                      long timestampMillis, float value) {
+        if (characteristicId < 0 || characteristicId >= mCharacteristicSpan
+                || Float.isNaN(value)) {
+            return;
+        }
+        final Integer device = mDevices.get(address);
+        if (device == null) {
+            return;
+        }
+        final int key = device * mCharacteristicSpan + characteristicId;
+        final int end = mRangeStarts[key + 1];
+        for (int i = mRangeStarts[key]; i < end; i++) {
+            mEvaluatedCount++;
+            switch (mTypes[i]) {
+                case RULE_ABOVE:
+                    if (mActive[i] ? value <= mThresholds[i] - mHysteresis[i]
+                            : value > mThresholds[i]) {
+                        toggle(i, timestampMillis, value);
+                    }
+                    break;
+                case RULE_BELOW:
+                    if (mActive[i] ? value >= mThresholds[i] + mHysteresis[i]
+                            : value < mThresholds[i]) {
+                        toggle(i, timestampMillis, value);
+                    }
+                    break;
+                case RULE_RATE:
+                    evaluateRate(i, timestampMillis, value);
+                    break;
+                case RULE_SILENCE:
+                    mLastSeen[i] = timestampMillis;
+                    if (mActive[i]) {
+                        toggle(i, timestampMillis, value);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Checks the silence rules. To be called periodically, at about the resolution the
+     * timeouts need. A stream that never delivered a sample is silent from the first tick on.
+     */
+    public synchronized void tick(long nowMillis) {
+        for (int s = 0; s < mSilenceRules.length; s++) {
+            final int i = mSilenceRules[s];
+            if (mLastSeen[i] < 0) {
+                mLastSeen[i] = nowMillis;
+            }
+            final long silent = nowMillis - mLastSeen[i];
+            if (!mActive[i] && silent > mSpans[i]) {
+                toggle(i, nowMillis, silent);
+            }
+        }
+    }
+
+    /**
+     * @return Whether the rule's alert is active.
+     */
+    public synchronized boolean isActive(int ruleId) {
+        for (int i = 0; i < mIds.length; i++) {
+            if (mIds[i] == ruleId) {
+                return mActive[i];
+            }
+        }
+        throw new IllegalArgumentException("Unknown rule " + ruleId);
+    }
+
+    /**
+     * @return The number of active alerts.
+     */
+    public synchronized int getActiveCount() {
+        int active = 0;
+        for (boolean a : mActive) {
+            if (a) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    public int getRuleCount() {
+        return mIds.length;
+    }
+
+    /**
+     * @return The number of rule evaluations so far.
+     */
+    public synchronized long getEvaluatedCount() {
+        return mEvaluatedCount;
+    }
+
+    /**
+     * @return The number of times an alert became active.
+     */
+    public synchronized long getTriggeredCount() {
+        return mTriggeredCount;
+    }
+
+    private void evaluateRate(int i, long timestampMillis, float value) {
+        if (mReferenceTimes[i] < 0) {
+            mReferenceTimes[i] = timestampMillis;
+            mReferenceValues[i] = value;
+            return;
+        }
+        final long elapsed = timestampMillis - mReferenceTimes[i];
+        if (elapsed < mSpans[i]) {
+            return;
+        }
+        final float rate = Math.abs(value - mReferenceValues[i]) * 60000f / elapsed;
+        mReferenceTimes[i] = timestampMillis;
+        mReferenceValues[i] = value;
+        if (mActive[i] ? rate <= mThresholds[i] - mHysteresis[i] : rate > mThresholds[i]) {
+            toggle(i, timestampMillis, rate);
+        }
+    }
+
+    private void toggle(int i, long timestampMillis, float value) {
+        mActive[i] = !mActive[i];
+        if (mActive[i]) {
+            mTriggeredCount++;
+        }
+        mListener.onAlert(mIds[i], mAddresses[mDeviceIndices[i]], mCharacteristics[i],
+                mActive[i], timestampMillis, value);
+    }
+}
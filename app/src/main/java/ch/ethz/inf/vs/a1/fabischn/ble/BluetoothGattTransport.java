@@ -0,0 +1,271 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link GattTransport} of the Android stack. Keeps one {@code BluetoothGatt} per address,
+ * opened by the first {@link #connect} and reused by later ones until {@link #close}, and
+ * translates between UUIDs and the stack's attribute objects. Callbacks arrive on the stack's
+ * Binder threads, notifications are stamped with the elapsed realtime they arrived at.
+ */
+public final class BluetoothGattTransport implements GattTransport {
+    private final static String TAG = BluetoothGattTransport.class.getSimpleName();
+
+    private static final GattHandleTable EMPTY_HANDLE_TABLE = new GattHandleTable.Builder().build();
+
+    private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ConcurrentHashMap<String, BluetoothGatt> mGatts =
+            new ConcurrentHashMap<String, BluetoothGatt>();
+    private volatile BluetoothAdapter mAdapter;
+    private volatile Callback mCallback;
+
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED
+                    || newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mCallback.onConnectionStateChange(gatt.getDevice().getAddress(), status,
+                        newState == BluetoothProfile.STATE_CONNECTED);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            mCallback.onServicesDiscovered(gatt.getDevice().getAddress(), status);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         int status) {
+            mCallback.onCharacteristicRead(gatt.getDevice().getAddress(),
+                    characteristic.getUuid(), characteristic.getValue(), status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            mCallback.onCharacteristicWrite(gatt.getDevice().getAddress(),
+                    characteristic.getUuid(), status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            mCallback.onDescriptorWrite(gatt.getDevice().getAddress(),
+                    descriptor.getCharacteristic().getUuid(), status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            mCallback.onMtuChanged(gatt.getDevice().getAddress(), mtu, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            mCallback.onCharacteristicChanged(gatt.getDevice().getAddress(),
+                    characteristic.getUuid(), characteristic.getInstanceId(),
+                    SystemClock.elapsedRealtimeNanos(), characteristic.getValue());
+        }
+    };
+
+    /**
+     * @param context Opens the connections.
+     */
+    public BluetoothGattTransport(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Sets the adapter connections are opened on. Nothing connects before it is set.
+     */
+    public void setAdapter(BluetoothAdapter adapter) {
+        mAdapter = adapter;
+    }
+
+    /**
+     * @return The connection to the device, or null if there is none.
+     */
+    public BluetoothGatt getGatt(String address) {
+        return mGatts.get(address);
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public boolean connect(String address) {
+        final BluetoothGatt existing = mGatts.get(address);
+        if (existing != null) {
+            Log.d(TAG, "Trying to use an existing BluetoothGatt for connection.");
+            return existing.connect();
+        }
+        final BluetoothAdapter adapter = mAdapter;
+        final BluetoothDevice device = adapter == null ? null : adapter.getRemoteDevice(address);
+        if (device == null) {
+            Log.w(TAG, "Device not found.  Unable to connect.");
+            return false;
+        }
+        // We want to directly connect to the device, so we are setting the autoConnect
+        // parameter to false.
+        Log.d(TAG, "Trying to create a new connection to " + address);
+        final BluetoothGatt gatt = device.connectGatt(mContext, false, mGattCallback);
+        if (gatt == null) {
+            return false;
+        }
+        mGatts.put(address, gatt);
+        return true;
+    }
+
+    @Override
+    public void disconnect(String address) {
+        final BluetoothGatt gatt = mGatts.get(address);
+        if (gatt != null) {
+            gatt.disconnect();
+        }
+    }
+
+    @Override
+    public void close(String address) {
+        final BluetoothGatt gatt = mGatts.remove(address);
+        if (gatt != null) {
+            gatt.close();
+        }
+    }
+
+    @Override
+    public boolean discoverServices(String address) {
+        final BluetoothGatt gatt = mGatts.get(address);
+        return gatt != null && gatt.discoverServices();
+    }
+
+    @Override
+    public List<UUID> getServices(String address) {
+        final BluetoothGatt gatt = mGatts.get(address);
+        if (gatt == null) {
+            return Collections.emptyList();
+        }
+        final List<BluetoothGattService> services = gatt.getServices();
+        final ArrayList<UUID> uuids = new ArrayList<UUID>(services.size());
+        for (BluetoothGattService service : services) {
+            uuids.add(service.getUuid());
+        }
+        return uuids;
+    }
+
+    @Override
+    public GattHandleTable getHandleTable(String address) {
+        final BluetoothGatt gatt = mGatts.get(address);
+        if (gatt == null) {
+            return EMPTY_HANDLE_TABLE;
+        }
+        final GattHandleTable.Builder builder = new GattHandleTable.Builder();
+        for (BluetoothGattService service : gatt.getServices()) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                builder.add(service.getUuid(), service.getInstanceId(),
+                        characteristic.getUuid(), characteristic.getInstanceId());
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public byte[] getValue(String address, UUID uuid) {
+        final BluetoothGattCharacteristic characteristic =
+                findCharacteristic(mGatts.get(address), uuid);
+        return characteristic == null ? null : characteristic.getValue();
+    }
+
+    @Override
+    public boolean readCharacteristic(String address, UUID uuid) {
+        final BluetoothGatt gatt = mGatts.get(address);
+        final BluetoothGattCharacteristic characteristic = findCharacteristic(gatt, uuid);
+        return characteristic != null && gatt.readCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean writeCharacteristic(String address, UUID uuid, byte[] value) {
+        final BluetoothGatt gatt = mGatts.get(address);
+        final BluetoothGattCharacteristic characteristic = findCharacteristic(gatt, uuid);
+        if (characteristic == null) {
+            return false;
+        }
+        characteristic.setValue(value);
+        return gatt.writeCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(final String address, final UUID uuid,
+                                                 boolean enabled) {
+        final BluetoothGatt gatt = mGatts.get(address);
+        final BluetoothGattCharacteristic characteristic = findCharacteristic(gatt, uuid);
+        if (characteristic == null) {
+            return false;
+        }
+        gatt.setCharacteristicNotification(characteristic, enabled);
+        final BluetoothGattDescriptor descriptor =
+                characteristic.getDescriptor(SensirionSHT31UUIDS.NOTIFICATION_DESCRIPTOR_UUID);
+        if (descriptor == null) {
+            // Nothing to write, the local registration is all there is. Reported like a write,
+            // but never within this call.
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onDescriptorWrite(address, uuid, BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+        descriptor.setValue(enabled ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        return gatt.writeDescriptor(descriptor);
+    }
+
+    @Override
+    public boolean requestMtu(String address, int mtu) {
+        final BluetoothGatt gatt = mGatts.get(address);
+        return gatt != null && gatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean requestConnectionPriority(String address, int priority) {
+        final BluetoothGatt gatt = mGatts.get(address);
+        return gatt != null && gatt.requestConnectionPriority(priority);
+    }
+
+    private static BluetoothGattCharacteristic findCharacteristic(BluetoothGatt gatt, UUID uuid) {
+        if (gatt == null) {
+            return null;
+        }
+        for (BluetoothGattService service : gatt.getServices()) {
+            final BluetoothGattCharacteristic characteristic = service.getCharacteristic(uuid);
+            if (characteristic != null) {
+                return characteristic;
+            }
+        }
+        return null;
+    }
+}
@@ -16,42 +16,57 @@
 
 package ch.ethz.inf.vs.a1.fabischn.ble;
 
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.UUID;
 
 /**
- * Service for managing connection and data communication with a GATT server hosted on a
- * given Bluetooth LE device.
+ * Service for managing connections and data communication with the GATT servers hosted on
+ * Bluetooth LE devices. Any number of devices can be connected, up to the configured limit.
+ *
+ * <p>The service owns the connections. While any device is connected it runs as a started
+ * foreground service, so it keeps sampling and storing with the screen off, and activities only
+ * bind to it to observe. Unbinding, for example on rotation, does not close any link.
+ *
+ * <p>The connections and the sample path are run by a {@link GattClient} on a
+ * {@link BluetoothGattTransport}, on the main thread; the service adds what needs Android: the
+ * broadcasts, the foreground notification and the devices to restore after a restart.
  */
 public class BluetoothLeService extends Service {
     private final static String TAG = BluetoothLeService.class.getSimpleName();
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
 
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+    private static final String SAMPLE_STORE_DIRECTORY = "samples";
+    private static final int NOTIFICATION_ID = 1;
+    // The devices being acquired, so a restart by the system can connect them again.
+    private static final String PREFERENCES = "acquisition";
+    private static final String PREF_ADDRESSES = "addresses";
 
     public final static String ACTION_GATT_CONNECTED =
             "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
@@ -59,83 +74,328 @@ public class BluetoothLeService extends Service {
             "com.example.bluetooth.le.ACTION_GATT_DISCONNECTED";
     public final static String ACTION_GATT_SERVICES_DISCOVERED =
             "com.example.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
-    public final static String ACTION_DATA_AVAILABLE =
-            "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
-    public final static String EXTRA_DATA =
-            "com.example.bluetooth.le.EXTRA_DATA";
-
-    // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    public final static String ACTION_LOG_SYNC_FINISHED =
+            "ch.ethz.inf.vs.a1.fabischn.ble.ACTION_LOG_SYNC_FINISHED";
+    public final static String ACTION_STOP_ACQUISITION =
+            "ch.ethz.inf.vs.a1.fabischn.ble.ACTION_STOP_ACQUISITION";
+    public final static String ACTION_ALERT =
+            "ch.ethz.inf.vs.a1.fabischn.ble.ACTION_ALERT";
+    public final static String EXTRA_ADDRESS =
+            "com.example.bluetooth.le.EXTRA_ADDRESS";
+    public final static String EXTRA_RULE_ID =
+            "ch.ethz.inf.vs.a1.fabischn.ble.EXTRA_RULE_ID";
+    public final static String EXTRA_ALERT_ACTIVE =
+            "ch.ethz.inf.vs.a1.fabischn.ble.EXTRA_ALERT_ACTIVE";
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final GattOperationQueue.Scheduler mOperationScheduler =
+            new GattOperationQueue.Scheduler() {
+                @Override
+                public long nowNanos() {
+                    return SystemClock.elapsedRealtimeNanos();
+                }
+
+                @Override
+                public void postDelayed(Runnable runnable, long delayMillis) {
+                    mMainHandler.postDelayed(runnable, delayMillis);
+                }
+
+                @Override
+                public void cancel(Runnable runnable) {
+                    mMainHandler.removeCallbacks(runnable);
+                }
+            };
+
+    // Turns the events of the client into broadcasts and log lines.
+    private final GattClient.Listener mClientListener = new GattClient.Listener() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
-            }
+        public void onConnected(String address) {
+            broadcastUpdate(ACTION_GATT_CONNECTED, address);
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-            } else {
-                Log.w(TAG, "onServicesDiscovered received: " + status);
-            }
+        public void onDisconnected(String address) {
+            broadcastUpdate(ACTION_GATT_DISCONNECTED, address);
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-            }
+        public void onServicesDiscovered(String address) {
+            broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED, address);
+        }
+
+        @Override
+        public void onLogSyncFinished(String address) {
+            broadcastUpdate(ACTION_LOG_SYNC_FINISHED, address);
+        }
+
+        @Override
+        public void onLog(int priority, String message, Throwable error) {
+            Log.println(priority, TAG,
+                    error == null ? message : message + '\n' + Log.getStackTraceString(error));
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-            Log.w("Updated Data!",Float.toString(convertRawValue(characteristic.getValue())));
+        public void onAlert(int ruleId, String deviceAddress, int characteristicId,
+                            boolean active, long timestampMillis, float value) {
+            Log.w(TAG, "Alert " + ruleId + (active ? " raised" : " cleared") + " by "
+                    + deviceAddress + "/" + characteristicId + ": " + value);
+            final Intent intent = new Intent(ACTION_ALERT);
+            intent.putExtra(EXTRA_ADDRESS, deviceAddress);
+            intent.putExtra(EXTRA_RULE_ID, ruleId);
+            intent.putExtra(EXTRA_ALERT_ACTIVE, active);
+            sendBroadcast(intent);
         }
     };
 
-    private void broadcastUpdate(final String action) {
+    // Whether the service is started and in the foreground. Only touched on the main thread.
+    private boolean mAcquiring;
+
+    private BluetoothGattTransport mTransport;
+    private GattClient mClient;
+    private SampleStore mSampleStore;
+
+    private void broadcastUpdate(final String action, final String address) {
         final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, address);
         sendBroadcast(intent);
     }
 
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
-            // For all other profiles, writes the data formatted in HEX.
+    /**
+     * See {@link GattClient#setLinkProfile}.
+     */
+    public void setLinkProfile(String address, LinkProfile profile) {
+        mClient.setLinkProfile(address, profile);
+    }
+
+    /**
+     * See {@link GattClient#getLinkProfile}.
+     */
+    public LinkProfile getLinkProfile(String address) {
+        return mClient.getLinkProfile(address);
+    }
+
+    /**
+     * See {@link GattClient#setDefaultLinkProfile}.
+     */
+    public void setDefaultLinkProfile(LinkProfile profile) {
+        mClient.setDefaultLinkProfile(profile);
+    }
+
+    /**
+     * See {@link GattClient#getLinkStats}.
+     */
+    public LinkStats getLinkStats(String address) {
+        return mClient.getLinkStats(address);
+    }
+
+    /**
+     * See {@link GattClient#startLogSync}. The end is broadcast as
+     * {@link #ACTION_LOG_SYNC_FINISHED}.
+     */
+    public boolean startLogSync(String address) {
+        return mClient.startLogSync(address);
+    }
+
+    /**
+     * See {@link GattClient#stopLogSync}.
+     */
+    public void stopLogSync(String address) {
+        mClient.stopLogSync(address);
+    }
+
+    /**
+     * See {@link GattClient#getLogSync}.
+     */
+    public LogSync getLogSync(String address) {
+        return mClient.getLogSync(address);
+    }
+
+    /**
+     * See {@link GattClient#registerDecoder}.
+     */
+    public void registerDecoder(UUID uuid, SampleDecoder decoder, int... characteristicIds) {
+        mClient.registerDecoder(uuid, decoder, characteristicIds);
+    }
+
+    /**
+     * See {@link GattClient#getOperationQueue}.
+     */
+    public GattOperationQueue getOperationQueue(String address) {
+        return mClient.getOperationQueue(address);
+    }
+
+    /**
+     * See {@link GattClient#getReconnectSupervisor}.
+     */
+    public ReconnectSupervisor getReconnectSupervisor() {
+        return mClient.getReconnectSupervisor();
+    }
+
+    /**
+     * See {@link GattClient#getSampleSink}. Must be called on the main thread.
+     */
+    public SampleListener getSampleSink() {
+        return mClient.getSampleSink();
+    }
+
+    /**
+     * See {@link GattClient#getNotificationRing}.
+     */
+    public NotificationRing<?> getNotificationRing() {
+        return mClient.getNotificationRing();
+    }
+
+    /**
+     * See {@link GattClient#getAggregator}. Kept over elapsed realtime milliseconds.
+     */
+    public SensorAggregator getAggregator(String address) {
+        return mClient.getAggregator(address);
+    }
+
+    /**
+     * See {@link GattClient#setAlertRules}. Alerts are logged and broadcast as
+     * {@link #ACTION_ALERT}. Timestamps are elapsed realtime milliseconds. Must be called on the
+     * main thread.
+     */
+    public AlertEngine setAlertRules(AlertEngine.Builder rules) {
+        return mClient.setAlertRules(rules);
+    }
+
+    public AlertEngine getAlertEngine() {
+        return mClient.getAlertEngine();
+    }
+
+    /**
+     * See {@link GattClient#startRecording}.
+     */
+    public boolean startRecording(File file) {
+        return mClient.startRecording(file);
+    }
+
+    public void stopRecording() {
+        mClient.stopRecording();
+    }
+
+    /**
+     * See {@link GattClient#replaySession}. Must be called on the main thread.
+     */
+    public boolean replaySession(File file) {
+        return mClient.replaySession(file);
+    }
+
+    /**
+     * See {@link GattClient#stopReplay}. Must be called on the main thread.
+     */
+    public void stopReplay() {
+        mClient.stopReplay();
+    }
+
+    /**
+     * See {@link GattClient#getPipelineStats}.
+     */
+    public PipelineStats getPipelineStats() {
+        return mClient.getPipelineStats();
+    }
+
+    /**
+     * See {@link GattClient#getDiagnostics}. Thread safe.
+     */
+    public String getDiagnostics() {
+        return mClient.getDiagnostics();
+    }
 
-        final byte[] data = characteristic.getValue();
-        if (data != null && data.length > 0) {
-            final StringBuilder stringBuilder = new StringBuilder(data.length);
-            stringBuilder.append(convertRawValue(data));
-            intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
+    /**
+     * Writes the diagnostics, see {@code adb shell dumpsys activity service
+     * ch.ethz.inf.vs.a1.fabischn.ble/.BluetoothLeService}. The arguments {@code on},
+     * {@code off} and {@code reset} switch the pipeline stats first, {@code trace} writes the
+     * trace of a debug build instead.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && args.length > 0) {
+            if ("trace".equals(args[0])) {
+                final TraceRing trace = mClient.getTrace();
+                writer.print(trace != null ? trace.dump(new StringBuilder()).toString()
+                        : "No trace in release builds\n");
+                return;
+            } else if ("on".equals(args[0])) {
+                mClient.getPipelineStats().setEnabled(true);
+            } else if ("off".equals(args[0])) {
+                mClient.getPipelineStats().setEnabled(false);
+            } else if ("reset".equals(args[0])) {
+                mClient.getPipelineStats().reset();
+            }
         }
-        sendBroadcast(intent);
+        writer.print(getDiagnostics());
+    }
+
+    /**
+     * @return The store all received samples are persisted to.
+     */
+    public SampleStore getSampleStore() {
+        return mSampleStore;
     }
 
     public class LocalBinder extends Binder {
         BluetoothLeService getService() {
             return BluetoothLeService.this;
         }
+
+        /**
+         * Registers a listener for decoded samples. Must be called on the main thread.
+         */
+        public void addSampleListener(SampleListener listener) {
+            mClient.addSampleListener(listener);
+        }
+
+        /**
+         * Unregisters a listener added with {@link #addSampleListener}. Must be called on the
+         * main thread.
+         */
+        public void removeSampleListener(SampleListener listener) {
+            mClient.removeSampleListener(listener);
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mSampleStore = new SampleStore(new File(getFilesDir(), SAMPLE_STORE_DIRECTORY));
+        mTransport = new BluetoothGattTransport(this);
+        // Converts the elapsed realtime of samples to the wall-clock time they are stored with.
+        mClient = new GattClient(mTransport, mOperationScheduler, mSampleStore,
+                System.currentTimeMillis() - SystemClock.elapsedRealtime(), mClientListener);
+        mClient.start();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent == null) {
+            // Restarted by the system after it killed the process.
+            restoreAcquisition();
+        } else if (ACTION_STOP_ACQUISITION.equals(intent.getAction())) {
+            close();
+            return START_NOT_STICKY;
+        }
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // Only reached when nothing is acquired or the system gives up on the service.
+        close();
+        setAlertRules(null);
+        stopRecording();
+        stopReplay();
+        // Delivers what is left before the store is closed.
+        mClient.stop();
+        try {
+            mSampleStore.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close the sample store.", e);
+        }
     }
 
     @Override
@@ -145,11 +405,71 @@ public class BluetoothLeService extends Service {
 
     @Override
     public boolean onUnbind(Intent intent) {
-        // After using a given device, you should make sure that BluetoothGatt.close() is called
-        // such that resources are cleaned up properly.  In this particular example, close() is
-        // invoked when the UI is disconnected from the Service.
-        close();
-        return super.onUnbind(intent);
+        // The links belong to the service, not to the activities bound to it. While devices are
+        // acquired the service is started and keeps them; otherwise only handles of
+        // disconnected devices are left, which can be released.
+        if (!mAcquiring) {
+            close();
+        }
+        // Have onRebind called, the activities come and go.
+        return true;
+    }
+
+    // Runs the service as a started foreground service while any device is acquired, so it
+    // outlives the activities and is not killed in the background, and remembers the devices.
+    // Called on the main thread whenever the user connects or releases a device.
+    private void updateAcquisition() {
+        final List<String> addresses = mClient.getWatched();
+        getSharedPreferences(PREFERENCES, MODE_PRIVATE).edit()
+                .putStringSet(PREF_ADDRESSES, new HashSet<String>(addresses)).apply();
+        if (addresses.isEmpty()) {
+            if (mAcquiring) {
+                mAcquiring = false;
+                stopForeground(true);
+                // Destroyed once the last activity unbinds.
+                stopSelf();
+            }
+            return;
+        }
+        final Notification notification = buildNotification(addresses.size());
+        if (mAcquiring) {
+            ((NotificationManager) getSystemService(NOTIFICATION_SERVICE))
+                    .notify(NOTIFICATION_ID, notification);
+            return;
+        }
+        mAcquiring = true;
+        startService(new Intent(this, BluetoothLeService.class));
+        startForeground(NOTIFICATION_ID, notification);
+    }
+
+    private Notification buildNotification(int deviceCount) {
+        final PendingIntent open = PendingIntent.getActivity(this, 0,
+                new Intent(this, MainActivity.class), 0);
+        final PendingIntent stop = PendingIntent.getService(this, 0,
+                new Intent(this, BluetoothLeService.class).setAction(ACTION_STOP_ACQUISITION), 0);
+        return new Notification.Builder(this)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.acquisition_running, deviceCount))
+                .setOngoing(true)
+                .setContentIntent(open)
+                .addAction(0, getString(R.string.acquisition_stop), stop)
+                .build();
+    }
+
+    // Connects the devices that were acquired before the process died.
+    private void restoreAcquisition() {
+        final SharedPreferences preferences = getSharedPreferences(PREFERENCES, MODE_PRIVATE);
+        final ArrayList<String> addresses = new ArrayList<String>(
+                preferences.getStringSet(PREF_ADDRESSES, new HashSet<String>()));
+        if (addresses.isEmpty() || !initialize()) {
+            stopSelf();
+            return;
+        }
+        Log.i(TAG, "Restoring the acquisition of " + addresses);
+        for (String address : addresses) {
+            connect(address);
+        }
     }
 
     private final IBinder mBinder = new LocalBinder();
@@ -175,129 +495,125 @@ public class BluetoothLeService extends Service {
             Log.e(TAG, "Unable to obtain a BluetoothAdapter.");
             return false;
         }
+        mTransport.setAdapter(mBluetoothAdapter);
 
         return true;
     }
 
+    /**
+     * See {@link GattClient#setMaxConnections}.
+     */
+    public void setMaxConnections(int maxConnections) {
+        mClient.setMaxConnections(maxConnections);
+    }
+
     /**
      * Connects to the GATT server hosted on the Bluetooth LE device.
      *
      * @param address The device address of the destination device.
      *
-     * @return Return true if the connection is initiated successfully. The connection result
-     *         is reported asynchronously through the
-     *         {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     *         callback.
+     * @return Return true if the connection is initiated or queued successfully. The connection
+     *         result is broadcast as {@link #ACTION_GATT_CONNECTED}.
      */
     public boolean connect(final String address) {
         if (mBluetoothAdapter == null || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
-
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
-                Log.w(TAG, "Couldn't Connect to GATT Server");
-                return false;
-            }
-        }
-
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
+        // Reconnects whenever the link drops, until the user disconnects.
+        if (!mClient.connect(address)) {
             return false;
         }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
+        updateAcquisition();
         return true;
     }
 
+    /**
+     * See {@link GattClient#getConnectionState}.
+     */
+    public int getConnectionState(String address) {
+        return mClient.getConnectionState(address);
+    }
+
     /**
      * Disconnects an existing connection or cancel a pending connection. The disconnection result
-     * is reported asynchronously through the
-     * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     * callback.
+     * is broadcast as {@link #ACTION_GATT_DISCONNECTED}.
+     *
+     * @param address The device address of the device to disconnect.
      */
-    public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public void disconnect(final String address) {
+        if (mBluetoothAdapter == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        mClient.disconnect(address);
+        updateAcquisition();
     }
 
     /**
      * After using a given BLE device, the app must call this method to ensure resources are
      * released properly.
+     *
+     * @param address The device address of the device to release.
+     */
+    public void close(final String address) {
+        mClient.close(address);
+        updateAcquisition();
+    }
+
+    /**
+     * Releases the resources of all devices.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
-            return;
-        }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        mClient.close();
+        updateAcquisition();
     }
 
     /**
-     * Request a read on a given {@code BluetoothGattCharacteristic}. The read result is reported
-     * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
-     * callback.
+     * Request a read on a given {@code BluetoothGattCharacteristic}. A value with a decoder is
+     * delivered like a notification. The read is queued behind any other operation on the
+     * device.
      *
+     * @param address The device address of the device to read from.
      * @param characteristic The characteristic to read from.
      */
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
-        }
-        mBluetoothGatt.readCharacteristic(characteristic);
+    public void readCharacteristic(String address, BluetoothGattCharacteristic characteristic) {
+        mClient.readCharacteristic(address, characteristic.getUuid());
     }
 
     /**
-     * Enables or disables notification on a give characteristic.
+     * Enables or disables notification on a give characteristic. The descriptor write is queued
+     * behind any other operation on the device. Enabled notifications are restored whenever the
+     * device reconnects.
      *
+     * @param address The device address of the device to act on.
      * @param characteristic Characteristic to act on.
      * @param enabled If true, enable notification.  False otherwise.
      */
-    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+    public void setCharacteristicNotification(String address,
+                                              BluetoothGattCharacteristic characteristic,
                                               boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
-        }
-        // TODO is this the right way? At least it works...
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
-        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(SensirionSHT31UUIDS.NOTIFICATION_DESCRIPTOR_UUID);
-        if (descriptor != null) {
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
-        }
+        mClient.setCharacteristicNotification(address, characteristic.getUuid(), enabled);
     }
 
     /**
      * Retrieves a list of supported GATT services on the connected device. This should be
      * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
      *
+     * @param address The device address of the connected device.
      * @return A {@code List} of supported services.
      */
-    public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+    public List<BluetoothGattService> getSupportedGattServices(String address) {
+        final BluetoothGatt gatt = mTransport.getGatt(address);
+        if (gatt == null) return null;
 
-        return mBluetoothGatt.getServices();
+        return gatt.getServices();
     }
 
-    private float convertRawValue(byte[] raw){
-        ByteBuffer wrapper = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
-        return wrapper.getFloat();
+    // The SHT31 characteristics hold a little-endian IEEE 754 float. Assembled by hand instead
+    // of through a ByteBuffer so the notification path does not allocate. Notifications go
+    // through the DecoderRegistry, which uses the same float32 decoding.
+    static float convertRawValue(byte[] raw){
+        return LittleEndian.getFloat(raw, 0);
     }
 }
@@ -0,0 +1,36 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * Schedules {@link CoalescingDispatcher} flushes on the main thread's {@link Choreographer}, so
+ * they run once per vsync, right before the frame is drawn. Must be created on the main thread.
+ */
+final class ChoreographerFrameScheduler implements CoalescingDispatcher.FrameScheduler {
+
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public void scheduleFrame(final Runnable frame) {
+        final Choreographer.FrameCallback callback = new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                frame.run();
+            }
+        };
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            mChoreographer.postFrameCallback(callback);
+        } else {
+            // The Choreographer may only be used from its own thread.
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mChoreographer.postFrameCallback(callback);
+                }
+            });
+        }
+    }
+}
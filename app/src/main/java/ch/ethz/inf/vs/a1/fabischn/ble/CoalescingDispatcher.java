@@ -0,0 +1,169 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Buffers events posted from any thread and hands them to the UI at most once per display frame,
+ * as one batch. Events are keyed; a newer event for a key that is still pending replaces the
+ * older one, so the UI only ever sees the latest state of every key. When {@code maxPending}
+ * distinct keys are pending, events for new keys are dropped until the next frame.
+ *
+ * <p>{@link #post} is thread safe. {@link #flush} is meant to run on the UI thread, which is
+ * where the {@link FrameScheduler} calls it.
+ *
+ * @param <K> The key events are coalesced by, for example a device address.
+ * @param <V> The event.
+ */
+public final class CoalescingDispatcher<K, V> {
+
+    /**
+     * Runs a callback on the UI thread at the start of the next display frame.
+     */
+    public interface FrameScheduler {
+        void scheduleFrame(Runnable frame);
+    }
+
+    /**
+     * Receives the events of one frame, oldest key first. The map is reused after the call
+     * returns, so it must not be kept or modified.
+     */
+    public interface Receiver<K, V> {
+        void onBatch(Map<K, V> batch);
+    }
+
+    private final FrameScheduler mScheduler;
+    private final Receiver<K, V> mReceiver;
+    private final int mMaxPending;
+    // Filled by post(). Swapped with mDelivering on flush, so neither is reallocated.
+    private LinkedHashMap<K, V> mPending = new LinkedHashMap<K, V>();
+    private LinkedHashMap<K, V> mDelivering = new LinkedHashMap<K, V>();
+    private boolean mFrameScheduled;
+
+    private long mPostedCount;
+    private long mMergedCount;
+    private long mDroppedCount;
+    private long mDeliveredCount;
+    private long mFlushCount;
+    private int mMaxBatchSize;
+
+    private final Runnable mFrame = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param maxPending The number of distinct keys buffered per frame.
+     */
+    public CoalescingDispatcher(FrameScheduler scheduler, Receiver<K, V> receiver,
+                                int maxPending) {
+        if (maxPending <= 0) {
+            throw new IllegalArgumentException("maxPending must be positive: " + maxPending);
+        }
+        mScheduler = scheduler;
+        mReceiver = receiver;
+        mMaxPending = maxPending;
+    }
+
+    /**
+     * Buffers an event for the next frame.
+     *
+     * @return false if the event was dropped because too many keys are pending.
+     */
+    public boolean post(K key, V value) {
+        synchronized (this) {
+            mPostedCount++;
+            if (mPending.containsKey(key)) {
+                mPending.put(key, value);
+                mMergedCount++;
+                return true;
+            }
+            if (mPending.size() >= mMaxPending) {
+                mDroppedCount++;
+                return false;
+            }
+            mPending.put(key, value);
+            if (mFrameScheduled) {
+                return true;
+            }
+            mFrameScheduled = true;
+        }
+        mScheduler.scheduleFrame(mFrame);
+        return true;
+    }
+
+    /**
+     * Delivers the pending events right away. Must be called on the UI thread.
+     */
+    public void flush() {
+        final LinkedHashMap<K, V> batch;
+        synchronized (this) {
+            mFrameScheduled = false;
+            if (mPending.isEmpty()) {
+                return;
+            }
+            batch = mPending;
+            mPending = mDelivering;
+            mDelivering = batch;
+            mFlushCount++;
+            mDeliveredCount += batch.size();
+            mMaxBatchSize = Math.max(mMaxBatchSize, batch.size());
+        }
+        try {
+            mReceiver.onBatch(batch);
+        } finally {
+            batch.clear();
+        }
+    }
+
+    /**
+     * Discards the pending events, for example when the UI goes away.
+     */
+    public synchronized void clear() {
+        mDroppedCount += mPending.size();
+        mPending.clear();
+    }
+
+    public synchronized long getPostedCount() {
+        return mPostedCount;
+    }
+
+    /**
+     * @return The number of events replaced by a newer one for the same key before delivery.
+     */
+    public synchronized long getMergedCount() {
+        return mMergedCount;
+    }
+
+    /**
+     * @return The number of events dropped because too many keys were pending, or discarded by
+     *         {@link #clear}.
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public synchronized long getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    /**
+     * @return The number of batches delivered.
+     */
+    public synchronized long getFlushCount() {
+        return mFlushCount;
+    }
+
+    public synchronized int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "posted=" + mPostedCount + " merged=" + mMergedCount + " dropped=" + mDroppedCount
+                + " delivered=" + mDeliveredCount + " batches=" + mFlushCount
+                + " maxBatch=" + mMaxBatchSize;
+    }
+}
@@ -0,0 +1,171 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A sample stream compressed with {@link GorillaCodec}, cut into blocks of
+ * {@link #BLOCK_SAMPLES} samples. Every block is encoded on its own and the first timestamp of
+ * each block is kept in an index, so a range query only decodes the blocks it overlaps.
+ *
+ * <p>Timestamps are expected to be non-decreasing. Not thread safe.
+ */
+public final class CompressedSeries {
+
+    static final int BLOCK_SAMPLES = 1024;
+    private static final int FORMAT_VERSION = 1;
+
+    private final ArrayList<byte[]> mBlocks = new ArrayList<byte[]>();
+    private long[] mBlockFirstTimestamps = new long[16];
+    private int[] mBlockCounts = new int[16];
+    private final GorillaCodec.Encoder mOpen = new GorillaCodec.Encoder(BLOCK_SAMPLES * 2);
+    private long mOpenFirstTimestamp;
+    private final GorillaCodec.Decoder mDecoder = new GorillaCodec.Decoder();
+    private int mSize;
+    private long mSealedBytes;
+
+    public void append(long timestamp, float value) {
+        if (mOpen.getCount() == 0) {
+            mOpenFirstTimestamp = timestamp;
+        }
+        mOpen.append(timestamp, value);
+        mSize++;
+        if (mOpen.getCount() == BLOCK_SAMPLES) {
+            seal();
+        }
+    }
+
+    /**
+     * Hands the samples with {@code fromMillis <= timestamp <= toMillis} to the visitor, oldest
+     * first.
+     *
+     * @return The number of samples visited.
+     */
+    public int read(long fromMillis, long toMillis, SampleStore.Visitor visitor) {
+        final int sealed = mBlocks.size();
+        // The last block starting at or before fromMillis may still hold matching samples.
+        int first = 0;
+        int low = 0;
+        int high = sealed - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (mBlockFirstTimestamps[mid] <= fromMillis) {
+                first = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int visited = 0;
+        for (int i = first; i < sealed; i++) {
+            if (mBlockFirstTimestamps[i] > toMillis) {
+                return visited;
+            }
+            mDecoder.reset(mBlocks.get(i), 0, mBlockCounts[i]);
+            visited += visit(fromMillis, toMillis, visitor);
+        }
+        if (mOpen.getCount() > 0 && mOpenFirstTimestamp <= toMillis) {
+            mDecoder.reset(mOpen.getBuffer(), 0, mOpen.getCount());
+            visited += visit(fromMillis, toMillis, visitor);
+        }
+        return visited;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return The number of encoded bytes, without the block index.
+     */
+    public long getByteSize() {
+        return mSealedBytes + mOpen.getByteLength();
+    }
+
+    /**
+     * Writes the series in a form {@link #readFrom} understands. The open block is written as a
+     * short block, appending after reading back starts a new one.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        final int openCount = mOpen.getCount();
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(mBlocks.size() + (openCount > 0 ? 1 : 0));
+        for (int i = 0; i < mBlocks.size(); i++) {
+            writeBlock(out, mBlockFirstTimestamps[i], mBlockCounts[i], mBlocks.get(i),
+                    mBlocks.get(i).length);
+        }
+        if (openCount > 0) {
+            writeBlock(out, mOpenFirstTimestamp, openCount, mOpen.getBuffer(),
+                    mOpen.getByteLength());
+        }
+    }
+
+    public static CompressedSeries readFrom(DataInput in) throws IOException {
+        final int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unknown format version " + version);
+        }
+        final int blocks = in.readInt();
+        if (blocks < 0) {
+            throw new IOException("Corrupt block count " + blocks);
+        }
+        final CompressedSeries series = new CompressedSeries();
+        for (int i = 0; i < blocks; i++) {
+            final long firstTimestamp = in.readLong();
+            final int count = in.readInt();
+            final int length = in.readInt();
+            if (count <= 0 || length <= 0) {
+                throw new IOException("Corrupt block " + i);
+            }
+            final byte[] block = new byte[length];
+            in.readFully(block);
+            series.addBlock(firstTimestamp, count, block);
+        }
+        return series;
+    }
+
+    private static void writeBlock(DataOutput out, long firstTimestamp, int count, byte[] data,
+                                   int length) throws IOException {
+        out.writeLong(firstTimestamp);
+        out.writeInt(count);
+        out.writeInt(length);
+        out.write(data, 0, length);
+    }
+
+    private void seal() {
+        addBlock(mOpenFirstTimestamp, mOpen.getCount(), mOpen.toByteArray());
+        mSize -= mOpen.getCount();
+        mOpen.reset();
+    }
+
+    private void addBlock(long firstTimestamp, int count, byte[] data) {
+        final int index = mBlocks.size();
+        if (index == mBlockCounts.length) {
+            mBlockFirstTimestamps = Arrays.copyOf(mBlockFirstTimestamps, index * 2);
+            mBlockCounts = Arrays.copyOf(mBlockCounts, index * 2);
+        }
+        mBlocks.add(data);
+        mBlockFirstTimestamps[index] = firstTimestamp;
+        mBlockCounts[index] = count;
+        mSize += count;
+        mSealedBytes += data.length;
+    }
+
+    private int visit(long fromMillis, long toMillis, SampleStore.Visitor visitor) {
+        int visited = 0;
+        while (mDecoder.next()) {
+            final long timestamp = mDecoder.timestamp();
+            if (timestamp > toMillis) {
+                break;
+            }
+            if (timestamp >= fromMillis) {
+                visitor.onSample(timestamp, mDecoder.value());
+                visited++;
+            }
+        }
+        return visited;
+    }
+}
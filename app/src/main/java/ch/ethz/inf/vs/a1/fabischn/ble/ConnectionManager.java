@@ -0,0 +1,296 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one connection per device address, each with its own state machine, and limits how many
+ * links are open at once. Connect requests beyond the limit are queued and served in the order
+ * they were made. Only one connect attempt is handed to the transport at a time, since the
+ * controller serializes connection establishment anyway and parallel attempts just starve each
+ * other.
+ *
+ * <p>The manager does not talk to Bluetooth itself; it drives a {@link Transport}, so it can be
+ * exercised on the JVM with a fake one. All methods are thread safe. State changes are
+ * serialized, while {@link #getState(String)} and {@link #getHandle(String)} read the published
+ * state without locking, so they can be called from GATT callbacks.
+ *
+ * @param <G> The transport's handle type, {@code BluetoothGatt} on a device.
+ */
+public final class ConnectionManager<G> {
+
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_QUEUED = 1;
+    public static final int STATE_CONNECTING = 2;
+    public static final int STATE_CONNECTED = 3;
+    public static final int STATE_DISCONNECTING = 4;
+
+    /**
+     * Opens and closes the actual links. Results are reported back through
+     * {@link #onConnected(String)} and {@link #onDisconnected(String)}.
+     */
+    public interface Transport<G> {
+
+        /**
+         * Starts a new connection to the device.
+         *
+         * @return The handle for the new link, or null if the attempt could not be started.
+         */
+        G connect(String address);
+
+        /**
+         * Starts connecting again on a handle that was connected before.
+         *
+         * @return true if the attempt was started.
+         */
+        boolean reconnect(G handle);
+
+        void disconnect(G handle);
+
+        void close(G handle);
+    }
+
+    // The per-address entry of the connection table.
+    private static final class Connection<G> {
+        final String address;
+        volatile int mState = STATE_DISCONNECTED;
+        volatile G mHandle;
+
+        Connection(String address) {
+            this.address = address;
+        }
+    }
+
+    private final Transport<G> mTransport;
+    private final LinkedHashMap<String, Connection<G>> mConnections =
+            new LinkedHashMap<String, Connection<G>>();
+    // The same entries, for the lock-free reads.
+    private final ConcurrentHashMap<String, Connection<G>> mPublished =
+            new ConcurrentHashMap<String, Connection<G>>();
+    private final ArrayDeque<Connection<G>> mQueue = new ArrayDeque<Connection<G>>();
+    private int mMaxConnections;
+
+    /**
+     * @param transport The transport that opens the links.
+     * @param maxConnections How many links may be open or opening at the same time.
+     */
+    public ConnectionManager(Transport<G> transport, int maxConnections) {
+        mTransport = transport;
+        setMaxConnections(maxConnections);
+    }
+
+    /**
+     * Changes the link limit. Lowering it does not drop existing links, it only holds back new
+     * ones until enough of them are gone.
+     */
+    public synchronized void setMaxConnections(int maxConnections) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("maxConnections must be positive: " + maxConnections);
+        }
+        mMaxConnections = maxConnections;
+        scheduleNext();
+    }
+
+    public synchronized int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    /**
+     * Requests a connection to the device. If the device is already connected, connecting or
+     * queued, this does nothing.
+     *
+     * @return false if the transport refused to start the attempt.
+     */
+    public synchronized boolean connect(String address) {
+        Connection<G> connection = mConnections.get(address);
+        if (connection == null) {
+            connection = new Connection<G>(address);
+            mConnections.put(address, connection);
+            mPublished.put(address, connection);
+        }
+        if (connection.mState != STATE_DISCONNECTED) {
+            return true;
+        }
+        connection.mState = STATE_QUEUED;
+        mQueue.addLast(connection);
+        scheduleNext();
+        return connection.mState != STATE_DISCONNECTED;
+    }
+
+    /**
+     * Disconnects the device or withdraws a queued connect request. The handle is kept so a
+     * later {@link #connect(String)} can reuse it.
+     */
+    public synchronized void disconnect(String address) {
+        Connection<G> connection = mConnections.get(address);
+        if (connection == null) {
+            return;
+        }
+        switch (connection.mState) {
+            case STATE_QUEUED:
+                mQueue.remove(connection);
+                connection.mState = STATE_DISCONNECTED;
+                break;
+            case STATE_CONNECTING:
+            case STATE_CONNECTED:
+                connection.mState = STATE_DISCONNECTING;
+                mTransport.disconnect(connection.mHandle);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Releases the device's handle and forgets about it. Any link is torn down without waiting
+     * for the transport to report the disconnect.
+     */
+    public synchronized void close(String address) {
+        Connection<G> connection = mConnections.remove(address);
+        if (connection == null) {
+            return;
+        }
+        mPublished.remove(address);
+        mQueue.remove(connection);
+        connection.mState = STATE_DISCONNECTED;
+        if (connection.mHandle != null) {
+            mTransport.close(connection.mHandle);
+            connection.mHandle = null;
+        }
+        scheduleNext();
+    }
+
+    /**
+     * Releases all handles.
+     */
+    public synchronized void closeAll() {
+        mQueue.clear();
+        for (Connection<G> connection : mConnections.values()) {
+            connection.mState = STATE_DISCONNECTED;
+            if (connection.mHandle != null) {
+                mTransport.close(connection.mHandle);
+                connection.mHandle = null;
+            }
+        }
+        mConnections.clear();
+        mPublished.clear();
+    }
+
+    /**
+     * To be called by the transport when the link to the device is up.
+     */
+    public synchronized void onConnected(String address) {
+        Connection<G> connection = mConnections.get(address);
+        if (connection == null) {
+            return;
+        }
+        if (connection.mState == STATE_DISCONNECTING) {
+            // The user gave up on this link while it was being established.
+            mTransport.disconnect(connection.mHandle);
+            return;
+        }
+        if (connection.mState != STATE_CONNECTING) {
+            return;
+        }
+        connection.mState = STATE_CONNECTED;
+        scheduleNext();
+    }
+
+    /**
+     * To be called by the transport when the link to the device is down, whether it was
+     * requested, a connect attempt failed or the link was lost.
+     */
+    public synchronized void onDisconnected(String address) {
+        Connection<G> connection = mConnections.get(address);
+        if (connection == null) {
+            return;
+        }
+        connection.mState = STATE_DISCONNECTED;
+        scheduleNext();
+    }
+
+    public int getState(String address) {
+        Connection<G> connection = mPublished.get(address);
+        return connection == null ? STATE_DISCONNECTED : connection.mState;
+    }
+
+    /**
+     * @return The handle of the device, or null if it has none.
+     */
+    public G getHandle(String address) {
+        Connection<G> connection = mPublished.get(address);
+        return connection == null ? null : connection.mHandle;
+    }
+
+    /**
+     * @return The addresses of all devices currently in the given state.
+     */
+    public synchronized List<String> getAddresses(int state) {
+        ArrayList<String> addresses = new ArrayList<String>();
+        for (Connection<G> connection : mConnections.values()) {
+            if (connection.mState == state) {
+                addresses.add(connection.address);
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * @return The number of links that are connecting, connected or disconnecting.
+     */
+    public synchronized int getActiveCount() {
+        int active = 0;
+        for (Connection<G> connection : mConnections.values()) {
+            if (isActive(connection.mState)) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    public synchronized int getQueuedCount() {
+        return mQueue.size();
+    }
+
+    private static boolean isActive(int state) {
+        return state == STATE_CONNECTING || state == STATE_CONNECTED
+                || state == STATE_DISCONNECTING;
+    }
+
+    // Starts the oldest queued connect if a slot is free and no other attempt is in flight.
+    private void scheduleNext() {
+        while (!mQueue.isEmpty()) {
+            int active = 0;
+            for (Connection<G> connection : mConnections.values()) {
+                if (connection.mState == STATE_CONNECTING) {
+                    return;
+                }
+                if (isActive(connection.mState)) {
+                    active++;
+                }
+            }
+            if (active >= mMaxConnections) {
+                return;
+            }
+            Connection<G> next = mQueue.pollFirst();
+            if (next.mHandle != null && mTransport.reconnect(next.mHandle)) {
+                next.mState = STATE_CONNECTING;
+                return;
+            }
+            if (next.mHandle != null) {
+                // The old handle is unusable, start over with a fresh one.
+                mTransport.close(next.mHandle);
+                next.mHandle = null;
+            }
+            next.mHandle = mTransport.connect(next.address);
+            if (next.mHandle != null) {
+                next.mState = STATE_CONNECTING;
+                return;
+            }
+            next.mState = STATE_DISCONNECTED;
+        }
+    }
+}
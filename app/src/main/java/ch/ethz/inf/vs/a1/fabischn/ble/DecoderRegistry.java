@@ -0,0 +1,113 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Maps characteristic UUIDs to the {@link SampleDecoder} of their format and the
+ * {@code SensirionSHT31UUIDS.CHARACTERISTIC_*} ids of the values they carry. Resolving is meant
+ * to happen once per characteristic, at service discovery; the resulting {@link Binding} is
+ * then used for every notification without another lookup. Thread safe.
+ */
+public final class DecoderRegistry {
+
+    /**
+     * A decoder together with the ids its values are published under.
+     */
+    public static final class Binding {
+        private final UUID mUuid;
+        private final SampleDecoder mDecoder;
+        private final int[] mCharacteristicIds;
+
+        Binding(UUID uuid, SampleDecoder decoder, int[] characteristicIds) {
+            mUuid = uuid;
+            mDecoder = decoder;
+            mCharacteristicIds = characteristicIds;
+        }
+
+        public UUID getUuid() {
+            return mUuid;
+        }
+
+        public SampleDecoder getDecoder() {
+            return mDecoder;
+        }
+
+        public int getValueCount() {
+            return mCharacteristicIds.length;
+        }
+
+        /**
+         * @return The id the value at {@code index} of a decoded payload is published under.
+         */
+        public int getCharacteristicId(int index) {
+            return mCharacteristicIds[index];
+        }
+
+        /**
+         * Decodes a whole characteristic value.
+         *
+         * @param out Receives the values, needs room for {@link #getValueCount()} of them.
+         * @return The number of values written, 0 if the payload is too short.
+         */
+        public int decode(byte[] data, float[] out) {
+            return data == null ? 0 : decode(data, data.length, out);
+        }
+
+        /**
+         * Decodes a characteristic value held in the first {@code length} bytes of a buffer.
+         */
+        public int decode(byte[] data, int length, float[] out) {
+            if (length < mDecoder.getSize() || !mDecoder.decode(data, 0, out, 0)) {
+                return 0;
+            }
+            return mCharacteristicIds.length;
+        }
+    }
+
+    private final HashMap<UUID, Binding> mBindings = new HashMap<UUID, Binding>();
+
+    /**
+     * @return A registry that knows the SHT31 humidity and temperature characteristics.
+     */
+    public static DecoderRegistry createDefault() {
+        final DecoderRegistry registry = new DecoderRegistry();
+        registry.register(SensirionSHT31UUIDS.UUID_HUMIDITY_CHARACTERISTIC,
+                SampleDecoders.float32(), SensirionSHT31UUIDS.CHARACTERISTIC_HUMIDITY);
+        registry.register(SensirionSHT31UUIDS.UUID_TEMPERATURE_CHARACTERISTIC,
+                SampleDecoders.float32(), SensirionSHT31UUIDS.CHARACTERISTIC_TEMPERATURE);
+        return registry;
+    }
+
+    /**
+     * Registers or replaces the decoder of a characteristic.
+     *
+     * @param characteristicIds One id per value the decoder produces.
+     */
+    public synchronized void register(UUID uuid, SampleDecoder decoder,
+                                      int... characteristicIds) {
+        if (decoder.getValueCount() != characteristicIds.length) {
+            throw new IllegalArgumentException("Expected " + decoder.getValueCount()
+                    + " ids, got " + characteristicIds.length);
+        }
+        mBindings.put(uuid, new Binding(uuid, decoder, characteristicIds.clone()));
+    }
+
+    /**
+     * @return The binding of the characteristic, or null if there is no decoder for it.
+     */
+    public synchronized Binding resolve(UUID uuid) {
+        return mBindings.get(uuid);
+    }
+
+    /**
+     * @return The largest number of values any registered decoder produces.
+     */
+    public synchronized int getMaxValueCount() {
+        int max = 0;
+        for (Binding binding : mBindings.values()) {
+            max = Math.max(max, binding.getValueCount());
+        }
+        return max;
+    }
+}
@@ -27,6 +27,7 @@ import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -36,11 +37,20 @@ import android.widget.SimpleExpandableListAdapter;
 import android.widget.TextView;
 
 import com.jjoe64.graphview.GraphView;
-import com.jjoe64.graphview.series.Series;
+import com.jjoe64.graphview.series.DataPoint;
+import com.jjoe64.graphview.series.LineGraphSeries;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * For a given BLE device, this Activity provides the user interface to connect, display data,
@@ -48,20 +58,57 @@ import java.util.List;
  * communicates with {@code BluetoothLeService}, which in turn interacts with the
  * Bluetooth LE API.
  */
-public class DeviceControlActivity extends Activity implements GraphContainer{
+public class DeviceControlActivity extends Activity implements GraphContainer,
+        AggregateContainer {
     private final static String TAG = DeviceControlActivity.class.getSimpleName();
 
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
 
+    // One day of history at 1 Hz.
+    private static final int GRAPH_CAPACITY = 24 * 60 * 60;
+    // Stored samples are read in slices of this length, so appends do not wait for a long read.
+    private static final long STORE_READ_SLICE_MILLIS = 10 * 60 * 1000;
+    // Used until the GraphView has been laid out.
+    private static final int DEFAULT_GRAPH_WIDTH_PX = 500;
+    private static final int SERIES_HUMIDITY = 0;
+    private static final int SERIES_TEMPERATURE = 1;
+    // One pending display update per series.
+    private static final int MAX_PENDING_UPDATES = 4;
+    // The keys of the display updates, boxed once so posting a sample does not allocate.
+    private static final Integer[] SERIES_KEYS = {SERIES_HUMIDITY, SERIES_TEMPERATURE};
+    private static final AggregateContainer EMPTY_AGGREGATES = new SensorAggregator();
+    // Loads and saves the graph snapshots. A single thread, so a recreated activity loads the
+    // snapshot its predecessor saved.
+    private static final ThreadPoolExecutor GRAPH_IO = new ThreadPoolExecutor(1, 1,
+            10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        GRAPH_IO.allowCoreThreadTimeOut(true);
+    }
 
     private TextView mConnectionState;
     private TextView mDataField;
     private String mDeviceName;
     private String mDeviceAddress;
     private GraphView mGraphView;
+    // Replaced once the stored history is loaded, see resumeGraph.
+    private Graph mGraph = new Graph();
+    // True while the stored history is loaded in the background. Samples only update the
+    // displayed value meanwhile, the loaded graph picks them up from the store.
+    private boolean mResuming;
+    private double[] mPlotX = new double[0];
+    private float[] mPlotY = new float[0];
+    private final LineGraphSeries<DataPoint> mHumiditySeries = new LineGraphSeries<DataPoint>();
+    private final LineGraphSeries<DataPoint> mTemperatureSeries = new LineGraphSeries<DataPoint>();
+    // Converts the elapsed realtime of samples to wall-clock time.
+    private long mWallClockOffsetMillis;
+    // Redraws the value and the graph once per frame, however many samples arrived. Only the
+    // series that changed are posted, the values are read from the graph when drawing.
+    private CoalescingDispatcher<Integer, Integer> mDisplayDispatcher;
     private ExpandableListView mGattServicesList;
     private BluetoothLeService mBluetoothLeService;
+    private BluetoothLeService.LocalBinder mBinder;
     private ArrayList<ArrayList<BluetoothGattCharacteristic>> mGattCharacteristics =
             new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
     private boolean mConnected = false;
@@ -75,11 +122,23 @@ public class DeviceControlActivity extends Activity implements GraphContainer{
 
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder service) {
-            mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
+            mBinder = (BluetoothLeService.LocalBinder) service;
+            mBluetoothLeService = mBinder.getService();
             if (!mBluetoothLeService.initialize()) {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
+            resumeGraph();
+            mBinder.addSampleListener(mSampleListener);
+            // The service keeps the link across activities, so pick up its current state.
+            if (mBluetoothLeService.getConnectionState(mDeviceAddress)
+                    == ConnectionManager.STATE_CONNECTED) {
+                mConnected = true;
+                updateConnectionState(R.string.connected);
+                invalidateOptionsMenu();
+                displayGattServices(
+                        mBluetoothLeService.getSupportedGattServices(mDeviceAddress));
+            }
             // Automatically connects to the device upon successful start-up initialization.
             mBluetoothLeService.connect(mDeviceAddress);
         }
@@ -87,6 +146,46 @@ public class DeviceControlActivity extends Activity implements GraphContainer{
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
             mBluetoothLeService = null;
+            mBinder = null;
+        }
+    };
+
+    // Receives the decoded samples of the characteristic we are subscribed to. Called on the
+    // main thread.
+    private final SampleListener mSampleListener = new SampleListener() {
+        @Override
+        public void onSample(String deviceAddress, int characteristicId, long timestampNanos,
+                             float value) {
+            if (!deviceAddress.equals(mDeviceAddress)) {
+                return;
+            }
+            final int series;
+            if (characteristicId == SensirionSHT31UUIDS.CHARACTERISTIC_HUMIDITY) {
+                series = SERIES_HUMIDITY;
+            } else if (characteristicId == SensirionSHT31UUIDS.CHARACTERISTIC_TEMPERATURE) {
+                series = SERIES_TEMPERATURE;
+            } else {
+                return;
+            }
+            final long timestampMillis = timestampNanos / 1000000 + mWallClockOffsetMillis;
+            mGraph.latestValues[series] = value;
+            // Samples up to caughtUpMillis were read from the store already.
+            if (!mResuming && timestampMillis > mGraph.caughtUpMillis) {
+                mGraph.add(timestampMillis);
+            }
+            mDisplayDispatcher.post(SERIES_KEYS[series], SERIES_KEYS[series]);
+        }
+    };
+
+    private final CoalescingDispatcher.Receiver<Integer, Integer> mDisplayReceiver =
+            new CoalescingDispatcher.Receiver<Integer, Integer>() {
+        @Override
+        public void onBatch(Map<Integer, Integer> batch) {
+            // The graph already holds every sample, only the drawing is coalesced.
+            for (Integer series : batch.values()) {
+                displayData(mGraph.latestValues[series]);
+            }
+            updateGraph();
         }
     };
 
@@ -94,26 +193,30 @@ public class DeviceControlActivity extends Activity implements GraphContainer{
     // ACTION_GATT_CONNECTED: connected to a GATT server.
     // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
     // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-    // ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-    //                        or notification operations.
+    // Data read from the device does not come through here, see mSampleListener.
     private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
+            if (!mDeviceAddress.equals(intent.getStringExtra(BluetoothLeService.EXTRA_ADDRESS))) {
+                // The service may be connected to other devices as well.
+                return;
+            }
             if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
                 mConnected = true;
                 updateConnectionState(R.string.connected);
                 invalidateOptionsMenu();
             } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
                 mConnected = false;
-                updateConnectionState(R.string.disconnected);
+                // The service brings the link back unless the user disconnected.
+                updateConnectionState(mBluetoothLeService != null
+                        && mBluetoothLeService.getReconnectSupervisor().isWatched(mDeviceAddress)
+                        ? R.string.reconnecting : R.string.disconnected);
                 invalidateOptionsMenu();
                 clearUI();
             } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
                 // Show all the supported services and characteristics on the user interface.
-                displayGattServices(mBluetoothLeService.getSupportedGattServices());
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                displayData(intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
+                displayGattServices(mBluetoothLeService.getSupportedGattServices(mDeviceAddress));
             }
         }
     };
@@ -130,24 +233,23 @@ public class DeviceControlActivity extends Activity implements GraphContainer{
                     if (mGattCharacteristics != null) {
                         final BluetoothGattCharacteristic characteristic =
                                 mGattCharacteristics.get(groupPosition).get(childPosition);
-                        String uuid = characteristic.getUuid().toString();
-                        mGraphView.setTitle(
-                                SensirionSHT31UUIDS.lookup(uuid, getResources().getString(R.string.unknown_characteristic)));
+                        mGraphView.setTitle(SensirionSHT31UUIDS.lookup(characteristic.getUuid(),
+                                getResources().getString(R.string.unknown_characteristic)));
                         final int charaProp = characteristic.getProperties();
                         if ((charaProp | BluetoothGattCharacteristic.PROPERTY_READ) > 0) {
                             // If there is an active notification on a characteristic, clear
                             // it first so it doesn't update the data field on the user interface.
                             if (mNotifyCharacteristic != null) {
                                 mBluetoothLeService.setCharacteristicNotification(
-                                        mNotifyCharacteristic, false);
+                                        mDeviceAddress, mNotifyCharacteristic, false);
                                 mNotifyCharacteristic = null;
                             }
-                            mBluetoothLeService.readCharacteristic(characteristic);
+                            mBluetoothLeService.readCharacteristic(mDeviceAddress, characteristic);
                         }
                         if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
                             mNotifyCharacteristic = characteristic;
                             mBluetoothLeService.setCharacteristicNotification(
-                                    characteristic, true);
+                                    mDeviceAddress, characteristic, true);
                         }
                         return true;
                     }
@@ -168,6 +270,9 @@ public class DeviceControlActivity extends Activity implements GraphContainer{
         final Intent intent = getIntent();
         mDeviceName = intent.getStringExtra(EXTRAS_DEVICE_NAME);
         mDeviceAddress = intent.getStringExtra(EXTRAS_DEVICE_ADDRESS);
+        mWallClockOffsetMillis = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        mDisplayDispatcher = new CoalescingDispatcher<Integer, Integer>(
+                new ChoreographerFrameScheduler(), mDisplayReceiver, MAX_PENDING_UPDATES);
 
         // Sets up UI references.
         ((TextView) findViewById(R.id.device_address)).setText(mDeviceAddress);
@@ -177,6 +282,10 @@ public class DeviceControlActivity extends Activity implements GraphContainer{
         mDataField = (TextView) findViewById(R.id.data_value);
         mGraphView = (GraphView) findViewById(R.id.graphview);
         mGraphView.setTitle("nothing");
+        mHumiditySeries.setTitle(getResources().getString(R.string.series_humidity));
+        mTemperatureSeries.setTitle(getResources().getString(R.string.series_temperature));
+        mGraphView.addSeries(mHumiditySeries);
+        mGraphView.addSeries(mTemperatureSeries);
 
         getActionBar().setTitle(mDeviceName);
         getActionBar().setDisplayHomeAsUpEnabled(true);
@@ -198,11 +307,29 @@ public class DeviceControlActivity extends Activity implements GraphContainer{
     protected void onPause() {
         super.onPause();
         unregisterReceiver(mGattUpdateReceiver);
+        if (mBluetoothLeService != null) {
+            Log.d(TAG, "Link: " + mBluetoothLeService.getLinkStats(mDeviceAddress)
+                    .toString(SystemClock.elapsedRealtimeNanos()));
+            Log.d(TAG, "Reconnects: " + mBluetoothLeService.getReconnectSupervisor());
+            Log.d(TAG, "Notifications dropped: "
+                    + mBluetoothLeService.getNotificationRing().getDroppedCount());
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        saveGraph();
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mBinder != null) {
+            mBinder.removeSampleListener(mSampleListener);
+            mBinder = null;
+        }
+        mDisplayDispatcher.clear();
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
     }
@@ -217,6 +344,20 @@ public class DeviceControlActivity extends Activity implements GraphContainer{
             menu.findItem(R.id.menu_connect).setVisible(true);
             menu.findItem(R.id.menu_disconnect).setVisible(false);
         }
+        menu.findItem(R.id.menu_log_sync).setEnabled(mConnected);
+        if (mBluetoothLeService != null) {
+            switch (mBluetoothLeService.getLinkProfile(mDeviceAddress).getId()) {
+                case LinkProfile.ID_HIGH_THROUGHPUT:
+                    menu.findItem(R.id.menu_link_high_throughput).setChecked(true);
+                    break;
+                case LinkProfile.ID_LOW_POWER:
+                    menu.findItem(R.id.menu_link_low_power).setChecked(true);
+                    break;
+                default:
+                    menu.findItem(R.id.menu_link_balanced).setChecked(true);
+                    break;
+            }
+        }
         return true;
     }
 
@@ -227,7 +368,24 @@ public class DeviceControlActivity extends Activity implements GraphContainer{
                 mBluetoothLeService.connect(mDeviceAddress);
                 return true;
             case R.id.menu_disconnect:
-                mBluetoothLeService.disconnect();
+                mBluetoothLeService.disconnect(mDeviceAddress);
+                return true;
+            case R.id.menu_log_sync:
+                if (!mBluetoothLeService.startLogSync(mDeviceAddress)) {
+                    Log.w(TAG, "Unable to download the log of " + mDeviceAddress);
+                }
+                return true;
+            case R.id.menu_link_high_throughput:
+                setLinkProfile(LinkProfile.HIGH_THROUGHPUT);
+                return true;
+            case R.id.menu_link_balanced:
+                setLinkProfile(LinkProfile.BALANCED);
+                return true;
+            case R.id.menu_link_low_power:
+                setLinkProfile(LinkProfile.LOW_POWER);
+                return true;
+            case R.id.menu_diagnostics:
+                startActivity(new Intent(this, DiagnosticsActivity.class));
                 return true;
             case android.R.id.home:
                 onBackPressed();
@@ -236,6 +394,16 @@ public class DeviceControlActivity extends Activity implements GraphContainer{
         return super.onOptionsItemSelected(item);
     }
 
+    private void setLinkProfile(LinkProfile profile) {
+        if (mBluetoothLeService == null) {
+            return;
+        }
+        Log.d(TAG, "Link: " + mBluetoothLeService.getLinkStats(mDeviceAddress)
+                .toString(SystemClock.elapsedRealtimeNanos()));
+        mBluetoothLeService.setLinkProfile(mDeviceAddress, profile);
+        invalidateOptionsMenu();
+    }
+
     private void updateConnectionState(final int resourceId) {
         runOnUiThread(new Runnable() {
             @Override
@@ -245,11 +413,256 @@ public class DeviceControlActivity extends Activity implements GraphContainer{
         });
     }
 
-    private void displayData(String data) {
-        if (data != null) {
-            mDataField.setText(data);
-//            mGraphView.addSeries();
+    private void displayData(float value) {
+        mDataField.setText(Float.toString(value));
+    }
+
+    // The rolling statistics of the device, kept by the service so they outlive the activity.
+    // Empty until the service is bound.
+    private AggregateContainer getAggregates() {
+        return mBluetoothLeService == null ? EMPTY_AGGREGATES
+                : mBluetoothLeService.getAggregator(mDeviceAddress);
+    }
+
+    @Override
+    public int getWindowCount() {
+        return getAggregates().getWindowCount();
+    }
+
+    @Override
+    public long getWindowMillis(int window) {
+        return getAggregates().getWindowMillis(window);
+    }
+
+    @Override
+    public float getAggregate(int series, int window, int statistic) {
+        return getAggregates().getAggregate(series, window, statistic);
+    }
+
+    // The graph of the device: its points, their level-of-detail caches and the values the next
+    // point repeats. Built in the background while resuming, only used on the main thread after.
+    private static final class Graph {
+        final SampleSeriesBuffer buffer = new SampleSeriesBuffer(2, GRAPH_CAPACITY);
+        final MinMaxDownsampler humidityLod = new MinMaxDownsampler(buffer, SERIES_HUMIDITY);
+        final MinMaxDownsampler temperatureLod =
+                new MinMaxDownsampler(buffer, SERIES_TEMPERATURE);
+        // The latest value of each series. A sample only updates its own series, the others
+        // repeat their last value.
+        final float[] latestValues = {Float.NaN, Float.NaN};
+        // Wall-clock time of x = 0, -1 until the first point is added.
+        long originMillis = -1;
+        // Wall-clock time of the newest point, -1 while there is none.
+        long lastMillis = -1;
+        // The stored samples up to this wall-clock time are in the graph.
+        long caughtUpMillis = -1;
+
+        void add(long timestampMillis) {
+            if (originMillis < 0) {
+                originMillis = timestampMillis;
+            }
+            buffer.addValues((timestampMillis - originMillis) / 1000.0, latestValues);
+            lastMillis = timestampMillis;
+        }
+
+        // Takes over the points of a snapshot that was read into the buffer.
+        void restore(GraphSnapshot snapshot) {
+            originMillis = snapshot.getOriginMillis();
+            lastMillis = snapshot.getLastMillis();
+            final int newest = buffer.size() - 1;
+            for (int series = 0; series < latestValues.length; series++) {
+                latestValues[series] = buffer.getY(series, newest);
+            }
         }
+
+        // Adds the stored samples of the device in the range, merging both streams by time the
+        // same way live samples are combined.
+        void addStored(SampleStore store, String address, long fromMillis, long toMillis)
+                throws IOException {
+            final StoredSamples humidity = new StoredSamples();
+            final StoredSamples temperature = new StoredSamples();
+            for (long from = fromMillis; from <= toMillis; from += STORE_READ_SLICE_MILLIS) {
+                final long to = Math.min(toMillis, from + STORE_READ_SLICE_MILLIS - 1);
+                humidity.count = 0;
+                temperature.count = 0;
+                store.read(address, SensirionSHT31UUIDS.UUID_HUMIDITY_CHARACTERISTIC,
+                        from, to, humidity);
+                store.read(address, SensirionSHT31UUIDS.UUID_TEMPERATURE_CHARACTERISTIC,
+                        from, to, temperature);
+                merge(humidity, temperature);
+            }
+            caughtUpMillis = toMillis;
+        }
+
+        private void merge(StoredSamples humidity, StoredSamples temperature) {
+            int h = 0;
+            int t = 0;
+            while (h < humidity.count || t < temperature.count) {
+                final long timestamp;
+                if (t >= temperature.count || (h < humidity.count
+                        && humidity.timestamps[h] <= temperature.timestamps[t])) {
+                    timestamp = humidity.timestamps[h];
+                    latestValues[SERIES_HUMIDITY] = humidity.values[h++];
+                } else {
+                    timestamp = temperature.timestamps[t];
+                    latestValues[SERIES_TEMPERATURE] = temperature.values[t++];
+                }
+                add(timestamp);
+            }
+        }
+    }
+
+    // Collects the samples of one stream read from the SampleStore.
+    private static final class StoredSamples implements SampleStore.Visitor {
+        long[] timestamps = new long[256];
+        float[] values = new float[256];
+        int count;
+
+        @Override
+        public void onSample(long timestampMillis, float value) {
+            if (count == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, count * 2);
+                values = Arrays.copyOf(values, count * 2);
+            }
+            timestamps[count] = timestampMillis;
+            values[count] = value;
+            count++;
+        }
+    }
+
+    private static File getSnapshotFile(SampleStore store, String address) {
+        return new File(store.getDeviceDirectory(address), GraphSnapshot.FILE_NAME);
+    }
+
+    // Brings back the graph the device had before the activity was recreated. The snapshot the
+    // last activity saved and the samples stored since are loaded in the background, then the
+    // loaded graph replaces the empty one.
+    private void resumeGraph() {
+        final SampleStore store = mBluetoothLeService.getSampleStore();
+        if (store == null || mResuming || mGraph.buffer.size() > 0) {
+            return;
+        }
+        mResuming = true;
+        final String address = mDeviceAddress;
+        GRAPH_IO.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Graph graph = loadGraph(store, address);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        finishResume(store, graph);
+                    }
+                });
+            }
+        });
+    }
+
+    // Runs on GRAPH_IO. Without a usable snapshot, the last day of stored samples is replayed.
+    private static Graph loadGraph(SampleStore store, String address) {
+        final long toMillis = System.currentTimeMillis();
+        long fromMillis = toMillis - GRAPH_CAPACITY * 1000L;
+        Graph graph = new Graph();
+        try {
+            final GraphSnapshot snapshot = GraphSnapshot.read(getSnapshotFile(store, address),
+                    graph.buffer);
+            if (snapshot != null && snapshot.getLastMillis() >= fromMillis) {
+                graph.restore(snapshot);
+                fromMillis = snapshot.getLastMillis() + 1;
+            } else if (snapshot != null) {
+                graph = new Graph();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read the graph snapshot.", e);
+            graph = new Graph();
+        }
+        try {
+            graph.addStored(store, address, fromMillis, toMillis);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read stored samples.", e);
+        }
+        graph.humidityLod.update();
+        graph.temperatureLod.update();
+        return graph;
+    }
+
+    private void finishResume(SampleStore store, Graph graph) {
+        mResuming = false;
+        if (mBluetoothLeService == null) {
+            // Destroyed while loading.
+            return;
+        }
+        // Only the samples stored while the graph was loading are left, a few at most.
+        try {
+            graph.addStored(store, mDeviceAddress, graph.caughtUpMillis + 1,
+                    System.currentTimeMillis());
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read stored samples.", e);
+        }
+        for (int series = 0; series < graph.latestValues.length; series++) {
+            if (Float.isNaN(graph.latestValues[series])) {
+                graph.latestValues[series] = mGraph.latestValues[series];
+            }
+        }
+        mGraph = graph;
+        updateGraph();
+    }
+
+    // Saves the graph next to the stored samples for the next activity. The points are copied
+    // here and written on GRAPH_IO.
+    private void saveGraph() {
+        if (mBluetoothLeService == null || mResuming || mGraph.buffer.size() == 0) {
+            return;
+        }
+        final SampleStore store = mBluetoothLeService.getSampleStore();
+        if (store == null) {
+            return;
+        }
+        final File file = getSnapshotFile(store, mDeviceAddress);
+        final ByteBuffer snapshot =
+                GraphSnapshot.encode(mGraph.buffer, mGraph.originMillis, mGraph.lastMillis);
+        GRAPH_IO.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    file.getParentFile().mkdirs();
+                    GraphSnapshot.write(file, snapshot);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to save the graph snapshot.", e);
+                }
+            }
+        });
+    }
+
+    // Hands the history to the GraphView, reduced to about two points per pixel. The number of
+    // DataPoints built per update depends on the width of the graph, not on the history length.
+    private void updateGraph() {
+        final SampleSeriesBuffer buffer = mGraph.buffer;
+        if (buffer.size() == 0) {
+            return;
+        }
+        int width = mGraphView.getWidth();
+        if (width <= 0) {
+            width = DEFAULT_GRAPH_WIDTH_PX;
+        }
+        final int maxPoints = 2 * width;
+        if (mPlotX.length < maxPoints) {
+            mPlotX = new double[maxPoints];
+            mPlotY = new float[maxPoints];
+        }
+        final double fromX = buffer.getX(0);
+        final double toX = buffer.getX(buffer.size() - 1);
+        mHumiditySeries.resetData(toDataPoints(
+                mGraph.humidityLod.downsample(fromX, toX, maxPoints, mPlotX, mPlotY)));
+        mTemperatureSeries.resetData(toDataPoints(
+                mGraph.temperatureLod.downsample(fromX, toX, maxPoints, mPlotX, mPlotY)));
+    }
+
+    private DataPoint[] toDataPoints(int count) {
+        final DataPoint[] points = new DataPoint[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = new DataPoint(mPlotX[i], mPlotY[i]);
+        }
+        return points;
     }
 
 
@@ -274,7 +687,8 @@ public class DeviceControlActivity extends Activity implements GraphContainer{
             HashMap<String, String> currentServiceData = new HashMap<String, String>();
             uuid = gattService.getUuid().toString();
             currentServiceData.put(
-                    LIST_NAME, SensirionSHT31UUIDS.lookup(uuid,unknownServiceString));
+                    LIST_NAME, SensirionSHT31UUIDS.lookup(gattService.getUuid(),
+                            unknownServiceString));
             currentServiceData.put(LIST_UUID, uuid);
             gattServiceData.add(currentServiceData);
 
@@ -291,7 +705,8 @@ public class DeviceControlActivity extends Activity implements GraphContainer{
                 HashMap<String, String> currentCharaData = new HashMap<String, String>();
                 uuid = gattCharacteristic.getUuid().toString();
                 currentCharaData.put(
-                        LIST_NAME, SensirionSHT31UUIDS.lookup(uuid, unknownCharaString));
+                        LIST_NAME, SensirionSHT31UUIDS.lookup(gattCharacteristic.getUuid(),
+                                unknownCharaString));
                 currentCharaData.put(LIST_UUID, uuid);
                 gattCharacteristicGroupData.add(currentCharaData);
             }
@@ -318,17 +733,16 @@ public class DeviceControlActivity extends Activity implements GraphContainer{
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
         return intentFilter;
     }
 
     @Override
     public void addValues(double xIndex, float[] values) {
-
+        mGraph.buffer.addValues(xIndex, values);
     }
 
     @Override
     public float[][] getValues() {
-        return new float[0][];
+        return mGraph.buffer.getValues();
     }
 }
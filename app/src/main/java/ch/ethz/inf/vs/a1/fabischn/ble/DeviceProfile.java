@@ -0,0 +1,159 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Describes how a kind of device can be recognized from its advertisements: the services it
+ * advertises and its manufacturer specific data. A device matches a profile if it matches any of
+ * its rules. Profiles are turned into controller scan filters by {@code ScanFilterFactory} and
+ * into a host-side {@link AdvertisementMatcher}.
+ */
+public final class DeviceProfile {
+
+    /**
+     * Matches a service UUID in the advertised service lists.
+     */
+    public static final class ServiceRule {
+        private final UUID mUuid;
+        private final UUID mMask;
+
+        ServiceRule(UUID uuid, UUID mask) {
+            mUuid = uuid;
+            mMask = mask;
+        }
+
+        public UUID getUuid() {
+            return mUuid;
+        }
+
+        /**
+         * @return The bits of the UUID that have to match, or null if all of them do.
+         */
+        public UUID getMask() {
+            return mMask;
+        }
+    }
+
+    /**
+     * Matches the start of the manufacturer specific data of a company. The data does not
+     * include the company id, as on Android.
+     */
+    public static final class ManufacturerRule {
+        private final int mCompanyId;
+        private final byte[] mData;
+        private final byte[] mMask;
+
+        ManufacturerRule(int companyId, byte[] data, byte[] mask) {
+            mCompanyId = companyId;
+            mData = data;
+            mMask = mask;
+        }
+
+        public int getCompanyId() {
+            return mCompanyId;
+        }
+
+        public byte[] getData() {
+            return mData.clone();
+        }
+
+        /**
+         * @return The bits of the data that have to match, or null if all of them do.
+         */
+        public byte[] getMask() {
+            return mMask == null ? null : mMask.clone();
+        }
+    }
+
+    public static final class Builder {
+        private final String mName;
+        private final ArrayList<ServiceRule> mServiceRules = new ArrayList<ServiceRule>();
+        private final ArrayList<ManufacturerRule> mManufacturerRules =
+                new ArrayList<ManufacturerRule>();
+
+        public Builder(String name) {
+            mName = name;
+        }
+
+        public Builder addServiceUuid(UUID uuid) {
+            return addServiceUuid(uuid, null);
+        }
+
+        public Builder addServiceUuid(UUID uuid, UUID mask) {
+            if (uuid == null) {
+                throw new IllegalArgumentException("uuid must not be null");
+            }
+            mServiceRules.add(new ServiceRule(uuid, mask));
+            return this;
+        }
+
+        /**
+         * Matches any manufacturer data of the company.
+         */
+        public Builder addManufacturerData(int companyId) {
+            return addManufacturerData(companyId, new byte[0], null);
+        }
+
+        public Builder addManufacturerData(int companyId, byte[] data, byte[] mask) {
+            if (companyId < 0 || companyId > 0xffff) {
+                throw new IllegalArgumentException("Invalid company id " + companyId);
+            }
+            if (mask != null && mask.length != data.length) {
+                throw new IllegalArgumentException("mask and data differ in length");
+            }
+            mManufacturerRules.add(new ManufacturerRule(companyId, data.clone(),
+                    mask == null ? null : mask.clone()));
+            return this;
+        }
+
+        public DeviceProfile build() {
+            if (mServiceRules.isEmpty() && mManufacturerRules.isEmpty()) {
+                throw new IllegalArgumentException("A profile needs at least one rule");
+            }
+            return new DeviceProfile(this);
+        }
+    }
+
+    /**
+     * The Sensirion SHT31 Smart Humigadget: advertises Sensirion manufacturer data, and the
+     * humidity and temperature services.
+     */
+    public static final DeviceProfile SHT31 = new Builder("Sensirion SHT31")
+            .addManufacturerData(SensirionSHT31UUIDS.SENSIRION_COMPANY_ID)
+            .addServiceUuid(SensirionSHT31UUIDS.UUID_HUMIDITY_SERVICE)
+            .addServiceUuid(SensirionSHT31UUIDS.UUID_TEMPERATURE_SERVICE)
+            .build();
+
+    private final String mName;
+    private final List<ServiceRule> mServiceRules;
+    private final List<ManufacturerRule> mManufacturerRules;
+
+    private DeviceProfile(Builder builder) {
+        mName = builder.mName;
+        mServiceRules = Collections.unmodifiableList(
+                Arrays.asList(builder.mServiceRules.toArray(new ServiceRule[0])));
+        mManufacturerRules = Collections.unmodifiableList(
+                Arrays.asList(builder.mManufacturerRules.toArray(new ManufacturerRule[0])));
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public List<ServiceRule> getServiceRules() {
+        return mServiceRules;
+    }
+
+    public List<ManufacturerRule> getManufacturerRules() {
+        return mManufacturerRules;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
@@ -0,0 +1,143 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The devices heard while scanning, in the order they were first seen. Lookups by address go
+ * through a hash index, so a scan result costs O(1) however many devices are around. Every
+ * device keeps a stable id for the list adapter, its latest RSSI, when it was last seen and its
+ * name, which is cached so it is not fetched again for every row that is drawn.
+ *
+ * <p>{@link #update} tells which of the shown fields changed, so only rows that really changed
+ * need to be redrawn. Not thread safe, meant to be used on the main thread.
+ *
+ * @param <D> The platform handle of a device, for example a {@code BluetoothDevice}.
+ */
+public final class DeviceRegistry<D> {
+
+    public static final int CHANGE_NONE = 0;
+    public static final int CHANGE_ADDED = 1;
+    public static final int CHANGE_NAME = 2;
+    public static final int CHANGE_RSSI = 4;
+
+    /**
+     * A known device. Read-only for everyone but the registry.
+     */
+    public static final class Entry<D> {
+        private final long mId;
+        private final String mAddress;
+        private final D mDevice;
+        private int mPosition;
+        private String mName;
+        private int mRssi;
+        private long mLastSeenNanos;
+        private long mSeenCount;
+
+        Entry(long id, String address, D device) {
+            mId = id;
+            mAddress = address;
+            mDevice = device;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public D getDevice() {
+            return mDevice;
+        }
+
+        /**
+         * @return The name the device advertised, or null if it has not sent one yet.
+         */
+        public String getName() {
+            return mName;
+        }
+
+        public int getRssi() {
+            return mRssi;
+        }
+
+        public long getLastSeenNanos() {
+            return mLastSeenNanos;
+        }
+
+        /**
+         * @return The number of scan results received from the device.
+         */
+        public long getSeenCount() {
+            return mSeenCount;
+        }
+    }
+
+    private final HashMap<String, Entry<D>> mByAddress = new HashMap<String, Entry<D>>();
+    private final ArrayList<Entry<D>> mEntries = new ArrayList<Entry<D>>();
+    // Not reset by clear(), so an id is never reused for another device.
+    private long mNextId;
+
+    /**
+     * Records a scan result.
+     *
+     * @param device The platform handle, only kept the first time the device is seen.
+     * @param name The advertised name, or null if the result did not carry one. A known name is
+     *             kept until a different one is advertised.
+     * @param rssi The signal strength in dBm.
+     * @param timestampNanos When the result was received.
+     * @return A combination of the {@code CHANGE_*} flags.
+     */
+    public int update(String address, D device, String name, int rssi, long timestampNanos) {
+        Entry<D> entry = mByAddress.get(address);
+        int changes = CHANGE_NONE;
+        if (entry == null) {
+            entry = new Entry<D>(mNextId++, address, device);
+            entry.mPosition = mEntries.size();
+            entry.mRssi = rssi;
+            mByAddress.put(address, entry);
+            mEntries.add(entry);
+            changes = CHANGE_ADDED;
+        } else if (entry.mRssi != rssi) {
+            entry.mRssi = rssi;
+            changes = CHANGE_RSSI;
+        }
+        if (name != null && !name.equals(entry.mName)) {
+            entry.mName = name;
+            changes |= CHANGE_NAME;
+        }
+        entry.mLastSeenNanos = timestampNanos;
+        entry.mSeenCount++;
+        return changes;
+    }
+
+    /**
+     * @return The list position of the device, or -1 if it is unknown.
+     */
+    public int indexOf(String address) {
+        final Entry<D> entry = mByAddress.get(address);
+        return entry == null ? -1 : entry.mPosition;
+    }
+
+    public Entry<D> get(int position) {
+        return mEntries.get(position);
+    }
+
+    /**
+     * @return The device, or null if it is unknown.
+     */
+    public Entry<D> get(String address) {
+        return mByAddress.get(address);
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public void clear() {
+        mByAddress.clear();
+        mEntries.clear();
+    }
+}
@@ -0,0 +1,117 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+/**
+ * Shows the diagnostics of {@code BluetoothLeService}, the latencies of every stage of the
+ * sample path among them, refreshed every second. The latencies are only measured while
+ * switched on from the menu.
+ */
+public class DiagnosticsActivity extends Activity {
+
+    private static final long REFRESH_MILLIS = 1000;
+
+    private TextView mText;
+    private BluetoothLeService mBluetoothLeService;
+    private final Handler mHandler = new Handler();
+    private boolean mResumed;
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder service) {
+            mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
+            invalidateOptionsMenu();
+            if (mResumed) {
+                mHandler.removeCallbacks(mRefresh);
+                mRefresh.run();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mBluetoothLeService = null;
+        }
+    };
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            if (mBluetoothLeService != null) {
+                mText.setText(mBluetoothLeService.getDiagnostics());
+            }
+            mHandler.postDelayed(this, REFRESH_MILLIS);
+        }
+    };
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.diagnostics);
+        mText = (TextView) findViewById(R.id.diagnostics_text);
+        getActionBar().setDisplayHomeAsUpEnabled(true);
+        bindService(new Intent(this, BluetoothLeService.class), mServiceConnection,
+                BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mResumed = true;
+        mRefresh.run();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mResumed = false;
+        mHandler.removeCallbacks(mRefresh);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        unbindService(mServiceConnection);
+        mBluetoothLeService = null;
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.diagnostics, menu);
+        final MenuItem stats = menu.findItem(R.id.menu_pipeline_stats);
+        stats.setEnabled(mBluetoothLeService != null);
+        stats.setChecked(mBluetoothLeService != null
+                && mBluetoothLeService.getPipelineStats().isEnabled());
+        menu.findItem(R.id.menu_reset_stats).setEnabled(mBluetoothLeService != null);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.menu_pipeline_stats:
+                mBluetoothLeService.getPipelineStats().setEnabled(!item.isChecked());
+                invalidateOptionsMenu();
+                mHandler.removeCallbacks(mRefresh);
+                mRefresh.run();
+                return true;
+            case R.id.menu_reset_stats:
+                mBluetoothLeService.getPipelineStats().reset();
+                mHandler.removeCallbacks(mRefresh);
+                mRefresh.run();
+                return true;
+            case android.R.id.home:
+                onBackPressed();
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+}
@@ -0,0 +1,1397 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The GATT client of all devices and the sample path behind it, on top of a
+ * {@link GattTransport}: it connects and reconnects the devices, discovers their services or
+ * resumes a session on the services a link still holds, restores subscriptions, applies link
+ * profiles and downloads logs. Notifications are decoded on a processing thread, stored and
+ * handed to the {@link SampleListener}s on the scheduler's thread.
+ *
+ * <p>{@code BluetoothLeService} runs it on the Android stack through
+ * {@link BluetoothGattTransport}; on the JVM it runs just the same on
+ * {@link SimulatedGattTransport}. Transport callbacks may arrive on any thread. The other
+ * methods are thread safe unless they say otherwise.
+ */
+public final class GattClient implements GattTransport.Callback {
+
+    // Most controllers handle about seven simultaneous LE links.
+    static final int DEFAULT_MAX_CONNECTIONS = 7;
+    private static final int SAMPLE_RING_CAPACITY = 1024;
+    private static final int NOTIFICATION_RING_CAPACITY = 1024;
+    // The longest notification: the largest MTU we ask for, less the ATT header.
+    private static final int MAX_NOTIFICATION_LENGTH = LinkProfile.HIGH_THROUGHPUT.getMtu() - 3;
+    // Debug builds keep the latest events of the sample path in a TraceRing instead of logging
+    // them. A compile-time constant, so release builds drop the trace calls altogether.
+    private static final boolean TRACE = BuildConfig.DEBUG;
+    private static final int TRACE_CAPACITY = 4096;
+    // Silence rules are checked this often, on the scheduler's thread.
+    private static final long ALERT_TICK_MILLIS = 1000;
+    // A discovery or descriptor write the device answers with a GATT error is retried this
+    // often before the device is left without it.
+    private static final int MAX_RETRIES = 3;
+
+    // The priorities of Listener.onLog, the values of android.util.Log.
+    public static final int LOG_INFO = 4;
+    public static final int LOG_WARN = 5;
+    public static final int LOG_ERROR = 6;
+
+    // A discovered characteristic of a device with everything the sample path needs of it. It
+    // travels through the notification ring with each value, so the processing thread looks
+    // nothing up.
+    private static final class Channel {
+        final String address;
+        final UUID uuid;
+        final int characteristicId;
+        // Null if there is no decoder for the characteristic.
+        final DecoderRegistry.Binding binding;
+        final PipelineStats.Device stats;
+
+        Channel(String address, UUID uuid, DecoderRegistry.Binding binding,
+                PipelineStats.Device stats) {
+            this.address = address;
+            this.uuid = uuid;
+            this.characteristicId = SensirionSHT31UUIDS.characteristicId(uuid);
+            this.binding = binding;
+            this.stats = stats;
+        }
+    }
+
+    /**
+     * Receives the events the app shows to the user. Connection events arrive on the thread of
+     * the transport callback, the others on the scheduler's thread.
+     */
+    public interface Listener extends AlertEngine.Listener {
+        void onConnected(String address);
+
+        void onDisconnected(String address);
+
+        void onServicesDiscovered(String address);
+
+        void onLogSyncFinished(String address);
+
+        /**
+         * Reports something worth logging.
+         *
+         * @param priority One of the {@code LOG_*} constants.
+         * @param error The cause, or null.
+         */
+        void onLog(int priority, String message, Throwable error);
+    }
+
+    private final GattTransport mTransport;
+    private final GattOperationQueue.Scheduler mScheduler;
+    private final SampleStore mSampleStore;
+    // Converts the scheduler's clock to the wall-clock time samples are stored with.
+    private final long mWallClockOffsetMillis;
+    private final Listener mListener;
+
+    private final ConnectionManager<String> mConnections;
+    // Brings back the links of the devices the user connected to when they drop.
+    private final ReconnectSupervisor mReconnects;
+
+    // The attribute layout of every device as discovered, so a reconnect on the same link can
+    // skip the discovery, and the characteristics the user subscribed to, which are restored
+    // after a reconnect. Both guarded by themselves.
+    private final HashMap<String, GattHandleTable> mHandleTables =
+            new HashMap<String, GattHandleTable>();
+    private final HashMap<String, LinkedHashSet<UUID>> mSubscriptions =
+            new HashMap<String, LinkedHashSet<UUID>>();
+
+    // One operation queue per device address. Guarded by itself.
+    private final HashMap<String, GattOperationQueue> mOperationQueues =
+            new HashMap<String, GattOperationQueue>();
+
+    // The transport callbacks only copy characteristic values into this ring. The processing
+    // thread decodes them, stores the samples and passes them on.
+    private final NotificationRing.Consumer<Channel> mNotificationConsumer =
+            new NotificationRing.Consumer<Channel>() {
+                @Override
+                public void onNotification(String deviceAddress, Channel channel,
+                                           long timestampNanos, byte[] data, int length) {
+                    // Taking a value ends the decode of the one before.
+                    final long nowNanos = channel.stats.recordSince(
+                            PipelineStats.STAGE_DISPATCH, timestampNanos);
+                    endDecode(nowNanos);
+                    mDecodeStats = channel.stats;
+                    mDecodeStartNanos = nowNanos;
+                    processValue(deviceAddress, channel, timestampNanos, data, length);
+                }
+            };
+    // The last value of a drained batch ends its decode here, one clock read per batch.
+    private final Runnable mEndBatch = new Runnable() {
+        @Override
+        public void run() {
+            endDecode(mPipelineStats.startNanos());
+        }
+    };
+    private final NotificationProcessor<Channel> mProcessor = new NotificationProcessor<Channel>(
+            new NotificationRing<Channel>(NOTIFICATION_RING_CAPACITY, MAX_NOTIFICATION_LENGTH),
+            mNotificationConsumer, mEndBatch, "GattProcessor");
+    // The value being decoded and when the processing thread took it, 0 if not timed. Only
+    // touched by the processing thread.
+    private PipelineStats.Device mDecodeStats;
+    private long mDecodeStartNanos;
+
+    // Samples are not broadcast. The processing thread puts them into this ring and they are
+    // handed to the registered SampleListeners on the scheduler's thread.
+    private final SampleRing mSampleRing = new SampleRing(SAMPLE_RING_CAPACITY);
+    private final ArrayList<SampleListener> mSampleListeners = new ArrayList<SampleListener>();
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+
+    // The channels of every device, indexed by the instance id of their characteristic and
+    // resolved once at service discovery. The array of a device is replaced, never changed, so
+    // the transport's threads can read it.
+    private final DecoderRegistry mDecoders = DecoderRegistry.createDefault();
+    private final ConcurrentHashMap<String, Channel[]> mChannels =
+            new ConcurrentHashMap<String, Channel[]>();
+    // Decoded values of one notification, only touched by the processing thread. Grown when
+    // decoders are bound.
+    private volatile float[] mDecodedValues = new float[1];
+
+    // The link profile of every device, applied whenever its services are discovered, and
+    // what the link delivered under it. Both guarded by themselves.
+    private final HashMap<String, LinkProfile> mLinkProfiles = new HashMap<String, LinkProfile>();
+    private final HashMap<String, LinkStats> mLinkStats = new HashMap<String, LinkStats>();
+    private volatile LinkProfile mDefaultLinkProfile = LinkProfile.BALANCED;
+
+    // Latencies of every stage from the connection to the UI, off until the diagnostics
+    // screen or dumpsys turns them on.
+    private final PipelineStats mPipelineStats;
+    // Null in release builds.
+    private final TraceRing mTrace = TRACE ? new TraceRing(TRACE_CAPACITY) : null;
+
+    // Log downloads in progress, by device address. While one runs, the live samples of the
+    // device are not stored, the store only takes samples in order.
+    private final ConcurrentHashMap<String, LogSync> mLogSyncs =
+            new ConcurrentHashMap<String, LogSync>();
+
+    private final LogSync.Listener mLogSyncListener = new LogSync.Listener() {
+        @Override
+        public void onFinished(LogSync sync, boolean complete) {
+            final String address = sync.getAddress();
+            mLogSyncs.remove(address, sync);
+            log(LOG_INFO, sync + (complete ? "" : ", incomplete"));
+            if (mConnections.getState(address) == ConnectionManager.STATE_CONNECTED) {
+                applyLinkProfile(address, getLinkProfile(address));
+            }
+            mListener.onLogSyncFinished(address);
+        }
+    };
+
+    // Rolling statistics of every device, updated with each live sample.
+    private final ConcurrentHashMap<String, SensorAggregator> mAggregators =
+            new ConcurrentHashMap<String, SensorAggregator>();
+
+    // The alert rules checked against every sample, none by default.
+    private volatile AlertEngine mAlertEngine;
+
+    private final Runnable mAlertTick = new Runnable() {
+        @Override
+        public void run() {
+            final AlertEngine engine = mAlertEngine;
+            if (engine != null) {
+                engine.tick(mScheduler.nowNanos() / 1000000);
+                mScheduler.postDelayed(this, ALERT_TICK_MILLIS);
+            }
+        }
+    };
+
+    // Hands samples to the listeners, on the scheduler's thread. They are already stored.
+    private final SampleListener mSampleFanOut = new SampleListener() {
+        @Override
+        public void onSample(String deviceAddress, int characteristicId, long timestampNanos,
+                             float value) {
+            for (int i = 0; i < mSampleListeners.size(); i++) {
+                mSampleListeners.get(i).onSample(deviceAddress, characteristicId, timestampNanos,
+                        value);
+            }
+        }
+    };
+
+    // Stores samples that do not come through the processing thread and passes them on.
+    private final SampleListener mSampleSink = new SampleListener() {
+        @Override
+        public void onSample(String deviceAddress, int characteristicId, long timestampNanos,
+                             float value) {
+            persistSample(deviceAddress, characteristicId, timestampNanos, value);
+            mReplaySink.onSample(deviceAddress, characteristicId, timestampNanos, value);
+        }
+    };
+
+    // Like the sample sink, but does not store the samples, so a replayed session does not mix
+    // with the recorded data.
+    private final SampleListener mReplaySink = new SampleListener() {
+        @Override
+        public void onSample(String deviceAddress, int characteristicId, long timestampNanos,
+                             float value) {
+            getAggregator(deviceAddress).onSample(characteristicId, timestampNanos / 1000000,
+                    value);
+            final AlertEngine engine = mAlertEngine;
+            if (engine != null) {
+                engine.onSample(deviceAddress, characteristicId, timestampNanos / 1000000, value);
+            }
+            mSampleFanOut.onSample(deviceAddress, characteristicId, timestampNanos, value);
+        }
+    };
+
+    // Records the GATT events of all connections while set, see startRecording.
+    private volatile GattSessionRecorder mRecorder;
+    // The replay in progress. Only touched on the scheduler's thread.
+    private GattSessionReplayer mReplayer;
+
+    // Takes the samples of the processing thread on the scheduler's thread and passes them on.
+    private final SampleListener mDrainedSamples = new SampleListener() {
+        @Override
+        public void onSample(String deviceAddress, int characteristicId, long timestampNanos,
+                             float value) {
+            mPipelineStats.recordSince(deviceAddress, PipelineStats.STAGE_UI_DELIVERY,
+                    timestampNanos);
+            mSampleFanOut.onSample(deviceAddress, characteristicId, timestampNanos, value);
+        }
+    };
+
+    private final Runnable mDrainSamples = new Runnable() {
+        @Override
+        public void run() {
+            // Clear the flag before draining, so a sample offered while we drain schedules
+            // another run instead of getting stuck in the ring.
+            mDrainScheduled.set(false);
+            mSampleRing.drain(mDrainedSamples);
+        }
+    };
+
+    /**
+     * @param scheduler Runs the operation queues, the reconnects and the sample delivery. Its
+     *                  clock is the one notifications are stamped with.
+     * @param store Receives every live sample, or null to store nothing.
+     * @param wallClockOffsetMillis Converts the scheduler's clock to wall-clock time.
+     */
+    public GattClient(GattTransport transport, GattOperationQueue.Scheduler scheduler,
+                      SampleStore store, long wallClockOffsetMillis, Listener listener) {
+        this(transport, scheduler, store, wallClockOffsetMillis, listener, new Random());
+    }
+
+    // @param random Spreads the reconnects.
+    GattClient(GattTransport transport, GattOperationQueue.Scheduler scheduler, SampleStore store,
+               long wallClockOffsetMillis, Listener listener, Random random) {
+        mTransport = transport;
+        mScheduler = scheduler;
+        mSampleStore = store;
+        mWallClockOffsetMillis = wallClockOffsetMillis;
+        mListener = listener;
+        mPipelineStats = new PipelineStats(scheduler);
+        mConnections = new ConnectionManager<String>(new ConnectionManager.Transport<String>() {
+            @Override
+            public String connect(String address) {
+                mPipelineStats.begin(address, PipelineStats.STAGE_CONNECT);
+                return mTransport.connect(address) ? address : null;
+            }
+
+            @Override
+            public boolean reconnect(String address) {
+                mPipelineStats.begin(address, PipelineStats.STAGE_CONNECT);
+                return mTransport.connect(address);
+            }
+
+            @Override
+            public void disconnect(String address) {
+                mTransport.disconnect(address);
+            }
+
+            @Override
+            public void close(String address) {
+                mChannels.remove(address);
+                mTransport.close(address);
+            }
+        }, DEFAULT_MAX_CONNECTIONS);
+        mReconnects = new ReconnectSupervisor(scheduler, new ReconnectSupervisor.Connector() {
+            @Override
+            public boolean reconnect(String address) {
+                final int attempt = mReconnects.getAttempts(address);
+                log(LOG_INFO, "Reconnecting to " + address + ", attempt " + attempt);
+                if (TRACE) {
+                    trace(TraceRing.EVENT_RECONNECT, address, attempt, 0);
+                }
+                return mConnections.connect(address);
+            }
+        }, random);
+        transport.setCallback(this);
+    }
+
+    /**
+     * Starts the processing thread. Notifications that arrive before are kept in the ring.
+     */
+    public void start() {
+        mProcessor.start();
+    }
+
+    /**
+     * Stops the processing thread after it handled the notifications in the ring.
+     */
+    public void stop() {
+        mProcessor.stop();
+    }
+
+    /**
+     * Handles the notifications in the ring on the calling thread instead of the processing
+     * thread, for tests that run everything on one thread. The client must not be started.
+     *
+     * @return The number of notifications handled.
+     */
+    int processNotifications() {
+        final int count = mProcessor.getRing().drain(mNotificationConsumer);
+        if (count > 0) {
+            mEndBatch.run();
+        }
+        return count;
+    }
+
+    @Override
+    public void onConnectionStateChange(String address, int status, boolean connected) {
+        final GattSessionRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.onConnectionStateChange(address, status, connected);
+        }
+        if (status != GattOperationQueue.STATUS_SUCCESS) {
+            mPipelineStats.increment(address, PipelineStats.COUNTER_GATT_ERRORS);
+        }
+        if (TRACE) {
+            trace(TraceRing.EVENT_CONNECTION_STATE, address, status, connected ? 1 : 0);
+        }
+        if (connected) {
+            mPipelineStats.end(address, PipelineStats.STAGE_CONNECT);
+            mPipelineStats.increment(address, PipelineStats.COUNTER_CONNECTS);
+            mConnections.onConnected(address);
+            mReconnects.onConnected(address);
+            mListener.onConnected(address);
+            log(LOG_INFO, "Connected to GATT server " + address);
+            if (!resumeSession(address)) {
+                // Attempts to discover services after successful connection.
+                log(LOG_INFO, "Attempting to start service discovery.");
+                discoverServices(address);
+            }
+        } else {
+            mConnections.onDisconnected(address);
+            // Schedules a reconnect, unless the user asked for the disconnect.
+            mReconnects.onDisconnected(address);
+            getOperationQueue(address).clear();
+            stopLogSync(address);
+            // The bindings are kept, notifications that arrived before the drop may still be
+            // in the ring. They are replaced when the session starts again.
+            getLinkStats(address).onDisconnected(mScheduler.nowNanos());
+            mPipelineStats.cancel(address);
+            mPipelineStats.increment(address, PipelineStats.COUNTER_DISCONNECTS);
+            log(LOG_INFO, "Disconnected from GATT server " + address);
+            mListener.onDisconnected(address);
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(String address, int status) {
+        final GattSessionRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.onServicesDiscovered(address, status);
+        }
+        getOperationQueue(address).complete(GattOperationQueue.OP_DISCOVER_SERVICES, null, status);
+        mPipelineStats.end(address, PipelineStats.STAGE_DISCOVERY);
+        if (TRACE) {
+            trace(TraceRing.EVENT_SERVICES_DISCOVERED, address, status, 0);
+        }
+        if (status == GattOperationQueue.STATUS_SUCCESS) {
+            final GattHandleTable table = mTransport.getHandleTable(address);
+            synchronized (mHandleTables) {
+                mHandleTables.put(address, table);
+            }
+            startSession(address, false);
+        } else {
+            log(LOG_WARN, "onServicesDiscovered received: " + status);
+            mPipelineStats.increment(address, PipelineStats.COUNTER_GATT_ERRORS);
+            invalidateHandleTable(address);
+        }
+    }
+
+    @Override
+    public void onCharacteristicRead(String address, UUID characteristic, byte[] value,
+                                     int status) {
+        final GattSessionRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.onCharacteristicRead(address, characteristic, value, status);
+        }
+        if (TRACE) {
+            trace(TraceRing.EVENT_OPERATION, address, GattOperationQueue.OP_READ_CHARACTERISTIC,
+                    status);
+        }
+        if (status == GattOperationQueue.STATUS_SUCCESS) {
+            final Channel channel =
+                    getChannel(address, characteristic, GattTransport.INSTANCE_UNKNOWN);
+            if (channel != null && channel.binding != null) {
+                offerValue(channel, mScheduler.nowNanos(), value);
+            }
+        } else {
+            mPipelineStats.increment(address, PipelineStats.COUNTER_GATT_ERRORS);
+        }
+        getOperationQueue(address).complete(GattOperationQueue.OP_READ_CHARACTERISTIC,
+                characteristic, status);
+    }
+
+    @Override
+    public void onCharacteristicWrite(String address, UUID characteristic, int status) {
+        final GattSessionRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.onCharacteristicWrite(address, characteristic, status);
+        }
+        if (TRACE) {
+            trace(TraceRing.EVENT_OPERATION, address, GattOperationQueue.OP_WRITE_CHARACTERISTIC,
+                    status);
+        }
+        if (status != GattOperationQueue.STATUS_SUCCESS) {
+            log(LOG_WARN, "onCharacteristicWrite received: " + status);
+            mPipelineStats.increment(address, PipelineStats.COUNTER_GATT_ERRORS);
+        }
+        getOperationQueue(address).complete(GattOperationQueue.OP_WRITE_CHARACTERISTIC,
+                characteristic, status);
+    }
+
+    @Override
+    public void onDescriptorWrite(String address, UUID characteristic, int status) {
+        final GattSessionRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.onDescriptorWrite(address, characteristic, status);
+        }
+        mPipelineStats.end(address, PipelineStats.STAGE_DESCRIPTOR_WRITE);
+        if (TRACE) {
+            trace(TraceRing.EVENT_OPERATION, address, GattOperationQueue.OP_WRITE_DESCRIPTOR,
+                    status);
+        }
+        if (status != GattOperationQueue.STATUS_SUCCESS) {
+            log(LOG_WARN, "onDescriptorWrite received: " + status);
+            mPipelineStats.increment(address, PipelineStats.COUNTER_GATT_ERRORS);
+        }
+        getOperationQueue(address).complete(GattOperationQueue.OP_WRITE_DESCRIPTOR,
+                characteristic, status);
+    }
+
+    @Override
+    public void onMtuChanged(String address, int mtu, int status) {
+        final GattSessionRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.onMtuChanged(address, mtu, status);
+        }
+        if (TRACE) {
+            trace(TraceRing.EVENT_OPERATION, address, GattOperationQueue.OP_REQUEST_MTU, status);
+        }
+        if (status == GattOperationQueue.STATUS_SUCCESS) {
+            log(LOG_INFO, "MTU of " + address + " is " + mtu);
+            getLinkStats(address).onMtuChanged(mtu);
+        } else {
+            log(LOG_WARN, "onMtuChanged received: " + status);
+            mPipelineStats.increment(address, PipelineStats.COUNTER_GATT_ERRORS);
+        }
+        getOperationQueue(address).complete(GattOperationQueue.OP_REQUEST_MTU, null, status);
+    }
+
+    // Characteristic values are only handed to the processing thread, so the transport's
+    // threads return right away.
+    @Override
+    public void onCharacteristicChanged(String address, UUID characteristic, int instanceId,
+                                        long timestampNanos, byte[] value) {
+        final GattSessionRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.onCharacteristicChanged(address, characteristic, instanceId,
+                    timestampNanos, value);
+        }
+        final Channel channel = getChannel(address, characteristic, instanceId);
+        // Values of characteristics that were not discovered look their device up.
+        final PipelineStats.Device stats =
+                channel != null ? channel.stats : mPipelineStats.getDevice(address);
+        stats.mark(PipelineStats.STAGE_INTER_ARRIVAL);
+        stats.increment(PipelineStats.COUNTER_NOTIFICATIONS);
+        if (TRACE) {
+            trace(TraceRing.EVENT_NOTIFICATION, address,
+                    channel == null ? SensirionSHT31UUIDS.CHARACTERISTIC_UNKNOWN
+                            : channel.characteristicId,
+                    value == null ? 0 : value.length);
+        }
+        if (channel != null) {
+            offerValue(channel, timestampNanos, value);
+        }
+    }
+
+    // Called on the transport's thread for every read and notification. Copies the value, which
+    // the stack overwrites with the next one, and returns; must not block or allocate.
+    private void offerValue(Channel channel, long timestampNanos, byte[] value) {
+        // A dropped value is counted by the ring, logging here would only slow the stack down.
+        final boolean offered = mProcessor.offer(channel.address, channel, timestampNanos, value);
+        if (TRACE && !offered) {
+            trace(TraceRing.EVENT_DROPPED, channel.address, channel.characteristicId, 0);
+        }
+    }
+
+    // Records the decode of the value the processing thread took last, if it was timed.
+    private void endDecode(long nowNanos) {
+        final PipelineStats.Device stats = mDecodeStats;
+        if (stats != null && mDecodeStartNanos != 0 && nowNanos != 0) {
+            stats.record(PipelineStats.STAGE_DECODE, nowNanos - mDecodeStartNanos);
+        }
+        mDecodeStats = null;
+    }
+
+    // Only called behind TRACE, so release builds neither make the call nor hold the ring.
+    private void trace(int event, String address, long first, long second) {
+        mTrace.record(mScheduler.nowNanos(), event, address, first, second);
+    }
+
+    private void log(int priority, String message) {
+        mListener.onLog(priority, message, null);
+    }
+
+    // Runs on the processing thread: log packets go to the download in progress, everything
+    // else is decoded, stored and passed on.
+    private void processValue(String address, Channel channel, long timestampNanos,
+                              byte[] data, int length) {
+        final LogSync sync = mLogSyncs.get(address);
+        if (sync != null && sync.onPacket(channel.characteristicId, data, length)) {
+            return;
+        }
+        final DecoderRegistry.Binding binding = channel.binding;
+        if (binding == null) {
+            // No decoder for this characteristic.
+            return;
+        }
+        final float[] values = mDecodedValues;
+        final int count = binding.decode(data, length, values);
+        if (count > 0) {
+            getLinkStats(address).onSample(timestampNanos);
+            final long recoveryNanos = mReconnects.onSample(address, timestampNanos);
+            if (recoveryNanos > 0) {
+                log(LOG_INFO, "First sample of " + address + " " + recoveryNanos / 1000000
+                        + " ms after the dropout, " + mReconnects);
+            }
+        }
+        final SensorAggregator aggregator = count > 0 ? getAggregator(address) : null;
+        final AlertEngine engine = mAlertEngine;
+        boolean offered = false;
+        for (int i = 0; i < count; i++) {
+            aggregator.onSample(binding.getCharacteristicId(i), timestampNanos / 1000000,
+                    values[i]);
+            if (engine != null) {
+                engine.onSample(address, binding.getCharacteristicId(i), timestampNanos / 1000000,
+                        values[i]);
+            }
+            persistSample(address, binding.getCharacteristicId(i), timestampNanos, values[i]);
+            channel.stats.increment(PipelineStats.COUNTER_SAMPLES);
+            if (TRACE) {
+                trace(TraceRing.EVENT_SAMPLE, address, binding.getCharacteristicId(i),
+                        Float.floatToRawIntBits(values[i]));
+            }
+            offered |= mSampleRing.offer(address, binding.getCharacteristicId(i), timestampNanos,
+                    values[i]);
+        }
+        if (offered && mDrainScheduled.compareAndSet(false, true)) {
+            mScheduler.postDelayed(mDrainSamples, 0);
+        }
+    }
+
+    // Notifications name their characteristic by its instance id, one array access. Reads and
+    // replayed notifications don't, they are matched by UUID.
+    private Channel getChannel(String address, UUID characteristic, int instanceId) {
+        final Channel[] channels = mChannels.get(address);
+        if (channels == null) {
+            return null;
+        }
+        if (instanceId >= 0 && instanceId < channels.length) {
+            final Channel channel = channels[instanceId];
+            // The id is only trusted for the characteristic it was discovered with.
+            if (channel != null && channel.uuid.equals(characteristic)) {
+                return channel;
+            }
+        }
+        for (Channel channel : channels) {
+            if (channel != null && channel.uuid.equals(characteristic)) {
+                return channel;
+            }
+        }
+        return null;
+    }
+
+    // Binds the decoders, applies the link profile and restores the subscriptions of a device
+    // whose services are known.
+    private void startSession(String address, boolean resumed) {
+        bindDecoders(address);
+        applyLinkProfile(address, getLinkProfile(address));
+        restoreSubscriptions(address, resumed);
+        mListener.onServicesDiscovered(address);
+    }
+
+    // Picks up where a dropped link left off if the link still holds the services that were
+    // discovered on it, which saves the discovery round trips.
+    private boolean resumeSession(String address) {
+        final GattHandleTable cached;
+        synchronized (mHandleTables) {
+            cached = mHandleTables.get(address);
+        }
+        if (cached == null || !cached.equals(mTransport.getHandleTable(address))) {
+            return false;
+        }
+        log(LOG_INFO, "Skipping service discovery of " + address + ", reusing " + cached);
+        startSession(address, true);
+        return true;
+    }
+
+    // @return false if there was no table to invalidate.
+    private boolean invalidateHandleTable(String address) {
+        synchronized (mHandleTables) {
+            return mHandleTables.remove(address) != null;
+        }
+    }
+
+    // Enables the notifications the user had on before the link dropped. If the session was
+    // resumed without a discovery and a write fails, the device's attribute database changed,
+    // so the services are discovered again, which restores the subscriptions once more.
+    private void restoreSubscriptions(String address, boolean resumed) {
+        final ArrayList<UUID> uuids;
+        synchronized (mSubscriptions) {
+            final LinkedHashSet<UUID> subscriptions = mSubscriptions.get(address);
+            if (subscriptions == null || subscriptions.isEmpty()) {
+                return;
+            }
+            uuids = new ArrayList<UUID>(subscriptions);
+        }
+        final GattHandleTable table = mTransport.getHandleTable(address);
+        for (UUID uuid : uuids) {
+            if (table.indexOf(uuid) < 0) {
+                log(LOG_WARN, "Unable to restore notifications of " + uuid + " on " + address);
+                continue;
+            }
+            writeNotification(address, uuid, true, resumed, 0);
+        }
+    }
+
+    // Resolves the decoders of all discovered characteristics into the device's channels, so a
+    // notification only needs the lookup of its device.
+    private void bindDecoders(String address) {
+        final GattHandleTable table = mTransport.getHandleTable(address);
+        int size = 0;
+        for (int i = 0; i < table.size(); i++) {
+            size = Math.max(size, table.getCharacteristicInstanceId(i) + 1);
+        }
+        final Channel[] channels = new Channel[size];
+        final PipelineStats.Device stats = mPipelineStats.getDevice(address);
+        for (int i = 0; i < table.size(); i++) {
+            final int instanceId = table.getCharacteristicInstanceId(i);
+            if (instanceId < 0) {
+                continue;
+            }
+            final UUID uuid = table.getCharacteristicUuid(i);
+            final DecoderRegistry.Binding binding = mDecoders.resolve(uuid);
+            if (binding != null && binding.getValueCount() > mDecodedValues.length) {
+                // Replaced, not written to, the processing thread may be using it.
+                mDecodedValues = new float[binding.getValueCount()];
+            }
+            channels[instanceId] = new Channel(address, uuid, binding, stats);
+        }
+        mChannels.put(address, channels);
+    }
+
+    /**
+     * Sets the link profile of a device. It is applied right away if the device is connected,
+     * and again whenever its services are discovered.
+     */
+    public void setLinkProfile(String address, LinkProfile profile) {
+        synchronized (mLinkProfiles) {
+            mLinkProfiles.put(address, profile);
+        }
+        if (mConnections.getState(address) == ConnectionManager.STATE_CONNECTED) {
+            applyLinkProfile(address, profile);
+        }
+    }
+
+    /**
+     * @return The link profile of the device, the default one if none was set.
+     */
+    public LinkProfile getLinkProfile(String address) {
+        synchronized (mLinkProfiles) {
+            final LinkProfile profile = mLinkProfiles.get(address);
+            return profile == null ? mDefaultLinkProfile : profile;
+        }
+    }
+
+    /**
+     * Sets the link profile of the devices that do not have one of their own.
+     */
+    public void setDefaultLinkProfile(LinkProfile profile) {
+        mDefaultLinkProfile = profile;
+    }
+
+    /**
+     * @return The sample rate and notification gaps of a device, per link profile.
+     */
+    public LinkStats getLinkStats(String address) {
+        synchronized (mLinkStats) {
+            LinkStats stats = mLinkStats.get(address);
+            if (stats == null) {
+                stats = new LinkStats();
+                mLinkStats.put(address, stats);
+            }
+            return stats;
+        }
+    }
+
+    // Requests the MTU and connection interval of the profile, through the operation queue so
+    // they do not collide with other requests.
+    private void applyLinkProfile(final String address, final LinkProfile profile) {
+        final LinkStats stats = getLinkStats(address);
+        final GattOperationQueue queue = getOperationQueue(address);
+        stats.onProfileRequested(profile, mScheduler.nowNanos());
+        if (profile.getMtu() > 0) {
+            queue.enqueue(new GattOperationQueue.Operation(GattOperationQueue.OP_REQUEST_MTU,
+                    null) {
+                @Override
+                protected boolean execute() {
+                    return mTransport.requestMtu(address, profile.getMtu());
+                }
+            });
+        }
+        queue.enqueue(new GattOperationQueue.Operation(
+                GattOperationQueue.OP_REQUEST_CONNECTION_PRIORITY, null) {
+            @Override
+            protected boolean execute() {
+                return mTransport.requestConnectionPriority(address,
+                        profile.getConnectionPriority());
+            }
+
+            @Override
+            protected boolean completesOnExecute() {
+                return true;
+            }
+
+            @Override
+            protected void onComplete(int status) {
+                if (status == GattOperationQueue.STATUS_SUCCESS) {
+                    stats.onProfileApplied(mScheduler.nowNanos());
+                    log(LOG_INFO, "Link profile of " + address + " is " + profile);
+                } else {
+                    log(LOG_WARN, "Unable to apply link profile " + profile + ": " + status);
+                }
+            }
+        });
+    }
+
+    /**
+     * Downloads what the device logged after the last stored sample into the sample store, with
+     * the high throughput link profile. The device must be connected and its services
+     * discovered. Live samples of the device are still delivered but not stored while the
+     * download runs. The end is reported to {@link Listener#onLogSyncFinished}.
+     *
+     * @return false if the device has no logger or is already downloading.
+     */
+    public boolean startLogSync(final String address) {
+        if (mConnections.getState(address) != ConnectionManager.STATE_CONNECTED
+                || mSampleStore == null) {
+            return false;
+        }
+        final List<UUID> services = mTransport.getServices(address);
+        if (!services.contains(SensirionSHT31UUIDS.UUID_LOGGER_SERVICE)
+                || !services.contains(SensirionSHT31UUIDS.UUID_HUMIDITY_SERVICE)
+                || !services.contains(SensirionSHT31UUIDS.UUID_TEMPERATURE_SERVICE)) {
+            log(LOG_WARN, "No logger on " + address);
+            return false;
+        }
+        final GattHandleTable table = mTransport.getHandleTable(address);
+        if (table.indexOf(SensirionSHT31UUIDS.UUID_LOGGER_SYNC_TIME) < 0
+                || table.indexOf(SensirionSHT31UUIDS.UUID_LOGGER_OLDEST) < 0
+                || table.indexOf(SensirionSHT31UUIDS.UUID_LOGGER_NEWEST) < 0
+                || table.indexOf(SensirionSHT31UUIDS.UUID_LOGGER_START) < 0
+                || table.indexOf(SensirionSHT31UUIDS.UUID_LOGGER_INTERVAL) < 0) {
+            log(LOG_WARN, "Incomplete logger on " + address);
+            return false;
+        }
+        final LogSync sync = new LogSync(mScheduler, new LogSync.Peripheral() {
+            @Override
+            public boolean requestRange(long oldestMillis, long newestMillis) {
+                writeCharacteristic(address, SensirionSHT31UUIDS.UUID_LOGGER_OLDEST,
+                        LittleEndian.fromLong(oldestMillis));
+                writeCharacteristic(address, SensirionSHT31UUIDS.UUID_LOGGER_NEWEST,
+                        LittleEndian.fromLong(newestMillis));
+                writeCharacteristic(address, SensirionSHT31UUIDS.UUID_LOGGER_START,
+                        new byte[]{1});
+                return true;
+            }
+        }, mSampleStore, address, mLogSyncListener);
+        if (mLogSyncs.putIfAbsent(address, sync) != null) {
+            return false;
+        }
+
+        applyLinkProfile(address, LinkProfile.HIGH_THROUGHPUT);
+        // The logged timestamps follow the device clock, so set it to ours first.
+        writeCharacteristic(address, SensirionSHT31UUIDS.UUID_LOGGER_SYNC_TIME,
+                LittleEndian.fromLong(mScheduler.nowNanos() / 1000000 + mWallClockOffsetMillis));
+        readCharacteristic(address, SensirionSHT31UUIDS.UUID_LOGGER_INTERVAL);
+        readCharacteristic(address, SensirionSHT31UUIDS.UUID_LOGGER_OLDEST);
+        // The log arrives as notifications of the live characteristics.
+        setCharacteristicNotification(address, SensirionSHT31UUIDS.UUID_HUMIDITY_CHARACTERISTIC,
+                true);
+        setCharacteristicNotification(address,
+                SensirionSHT31UUIDS.UUID_TEMPERATURE_CHARACTERISTIC, true);
+        getOperationQueue(address).enqueue(new GattOperationQueue.Operation(
+                GattOperationQueue.OP_READ_CHARACTERISTIC, SensirionSHT31UUIDS.UUID_LOGGER_NEWEST) {
+            @Override
+            protected boolean execute() {
+                return mTransport.readCharacteristic(address,
+                        SensirionSHT31UUIDS.UUID_LOGGER_NEWEST);
+            }
+
+            @Override
+            protected void onComplete(int status) {
+                final byte[] oldest =
+                        mTransport.getValue(address, SensirionSHT31UUIDS.UUID_LOGGER_OLDEST);
+                final byte[] newest =
+                        mTransport.getValue(address, SensirionSHT31UUIDS.UUID_LOGGER_NEWEST);
+                final byte[] interval =
+                        mTransport.getValue(address, SensirionSHT31UUIDS.UUID_LOGGER_INTERVAL);
+                if (status != GattOperationQueue.STATUS_SUCCESS || oldest == null
+                        || newest == null || interval == null) {
+                    log(LOG_WARN, "Unable to read the logger state of " + address);
+                    sync.stop();
+                    return;
+                }
+                try {
+                    sync.start(LittleEndian.getLong(oldest, 0), LittleEndian.getLong(newest, 0),
+                            LittleEndian.getInt(interval, 0) & 0xffffffffL);
+                } catch (IOException e) {
+                    mListener.onLog(LOG_ERROR, "Unable to read the checkpoint of " + address, e);
+                    sync.stop();
+                } catch (IllegalArgumentException e) {
+                    mListener.onLog(LOG_WARN, "Logger of " + address + " is not running", e);
+                    sync.stop();
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Stops the log download of a device. What was downloaded so far stays in the store, the
+     * next download resumes after it.
+     */
+    public void stopLogSync(String address) {
+        final LogSync sync = mLogSyncs.get(address);
+        if (sync != null) {
+            sync.stop();
+        }
+    }
+
+    /**
+     * @return The log download of the device in progress, or null.
+     */
+    public LogSync getLogSync(String address) {
+        return mLogSyncs.get(address);
+    }
+
+    private void writeCharacteristic(final String address, final UUID characteristic,
+                                     final byte[] value) {
+        getOperationQueue(address).enqueue(new GattOperationQueue.Operation(
+                GattOperationQueue.OP_WRITE_CHARACTERISTIC, characteristic) {
+            @Override
+            protected boolean execute() {
+                return mTransport.writeCharacteristic(address, characteristic, value);
+            }
+        });
+    }
+
+    /**
+     * Registers the decoder for a characteristic that is not built in. Takes effect for the
+     * devices whose services are discovered afterwards.
+     *
+     * @param characteristicIds The ids the decoded values are published under, one per value.
+     */
+    public void registerDecoder(UUID uuid, SampleDecoder decoder, int... characteristicIds) {
+        mDecoders.register(uuid, decoder, characteristicIds);
+    }
+
+    /**
+     * Returns the GATT operation queue of a device, creating it if needed. Callers outside the
+     * client should only use it for its statistics.
+     *
+     * @param address The device address.
+     */
+    public GattOperationQueue getOperationQueue(String address) {
+        synchronized (mOperationQueues) {
+            GattOperationQueue queue = mOperationQueues.get(address);
+            if (queue == null) {
+                queue = new GattOperationQueue(mScheduler);
+                mOperationQueues.put(address, queue);
+            }
+            return queue;
+        }
+    }
+
+    /**
+     * @return The reconnects of all devices, with the time it took to get a sample again.
+     */
+    public ReconnectSupervisor getReconnectSupervisor() {
+        return mReconnects;
+    }
+
+    /**
+     * @return The connections of all devices.
+     */
+    public ConnectionManager<String> getConnections() {
+        return mConnections;
+    }
+
+    private void discoverServices(String address) {
+        discoverServices(address, 0);
+    }
+
+    private void discoverServices(final String address, final int attempt) {
+        getOperationQueue(address).enqueue(
+                new GattOperationQueue.Operation(GattOperationQueue.OP_DISCOVER_SERVICES, null) {
+                    @Override
+                    protected boolean execute() {
+                        mPipelineStats.begin(address, PipelineStats.STAGE_DISCOVERY);
+                        return mTransport.discoverServices(address);
+                    }
+
+                    @Override
+                    protected void onComplete(int status) {
+                        if (status > 0 && attempt < MAX_RETRIES) {
+                            log(LOG_WARN, "Retrying service discovery of " + address);
+                            discoverServices(address, attempt + 1);
+                        }
+                    }
+                });
+    }
+
+    private void persistSample(String deviceAddress, int characteristicId, long timestampNanos,
+                               float value) {
+        final UUID characteristic =
+                SensirionSHT31UUIDS.characteristicUuid(characteristicId);
+        if (mSampleStore == null || characteristic == null
+                || mLogSyncs.containsKey(deviceAddress)) {
+            return;
+        }
+        try {
+            mSampleStore.append(deviceAddress, characteristic,
+                    timestampNanos / 1000000 + mWallClockOffsetMillis, value);
+        } catch (IOException e) {
+            mListener.onLog(LOG_ERROR, "Unable to store sample.", e);
+        }
+    }
+
+    /**
+     * Returns the entry of the sample path behind the processing thread: samples handed to it
+     * are stored and passed to the sample listeners, like notifications. Used for samples that
+     * do not come from a connection, such as those read from advertisements. Must be called on
+     * the scheduler's thread.
+     */
+    public SampleListener getSampleSink() {
+        return mSampleSink;
+    }
+
+    /**
+     * Registers a listener for decoded samples. Must be called on the scheduler's thread.
+     */
+    public void addSampleListener(SampleListener listener) {
+        if (!mSampleListeners.contains(listener)) {
+            mSampleListeners.add(listener);
+        }
+    }
+
+    /**
+     * Unregisters a listener added with {@link #addSampleListener}. Must be called on the
+     * scheduler's thread.
+     */
+    public void removeSampleListener(SampleListener listener) {
+        mSampleListeners.remove(listener);
+    }
+
+    /**
+     * @return The ring between the transport callbacks and the processing thread, for its
+     *         statistics.
+     */
+    public NotificationRing<?> getNotificationRing() {
+        return mProcessor.getRing();
+    }
+
+    /**
+     * @return The ring between the processing thread and the sample listeners, for its
+     *         statistics.
+     */
+    public SampleRing getSampleRing() {
+        return mSampleRing;
+    }
+
+    /**
+     * Returns the rolling statistics of a device, creating them if needed. They are kept over
+     * the milliseconds of the scheduler's clock, also when the device reconnects.
+     */
+    public SensorAggregator getAggregator(String address) {
+        SensorAggregator aggregator = mAggregators.get(address);
+        if (aggregator == null) {
+            aggregator = new SensorAggregator();
+            final SensorAggregator existing = mAggregators.putIfAbsent(address, aggregator);
+            if (existing != null) {
+                aggregator = existing;
+            }
+        }
+        return aggregator;
+    }
+
+    /**
+     * Replaces the alert rules, or removes them if the builder is null. Alerts go to the
+     * listener. Timestamps are milliseconds of the scheduler's clock. Must be called on the
+     * scheduler's thread.
+     *
+     * @return The new engine, or null.
+     */
+    public AlertEngine setAlertRules(AlertEngine.Builder rules) {
+        mScheduler.cancel(mAlertTick);
+        mAlertEngine = rules == null ? null : rules.build(mListener);
+        if (mAlertEngine != null) {
+            mScheduler.postDelayed(mAlertTick, ALERT_TICK_MILLIS);
+        }
+        return mAlertEngine;
+    }
+
+    public AlertEngine getAlertEngine() {
+        return mAlertEngine;
+    }
+
+    /**
+     * Starts recording the GATT events of all connections into a file, for replaying them
+     * later without the devices. Recording costs a buffered write per event on the transport's
+     * threads, so it is meant for capturing sessions, not for normal use.
+     *
+     * @return false if the file could not be created.
+     */
+    public boolean startRecording(File file) {
+        stopRecording();
+        try {
+            mRecorder = new GattSessionRecorder(new FileOutputStream(file), mScheduler, null);
+            log(LOG_INFO, "Recording GATT events to " + file);
+            return true;
+        } catch (IOException e) {
+            mListener.onLog(LOG_ERROR, "Unable to record to " + file, e);
+            return false;
+        }
+    }
+
+    public void stopRecording() {
+        final GattSessionRecorder recorder = mRecorder;
+        if (recorder == null) {
+            return;
+        }
+        mRecorder = null;
+        try {
+            recorder.close();
+        } catch (IOException e) {
+            mListener.onLog(LOG_ERROR, "Unable to finish the recording.", e);
+        }
+        if (recorder.getError() != null) {
+            mListener.onLog(LOG_ERROR, "Recording cut short.", recorder.getError());
+        }
+        log(LOG_INFO, "Recorded " + recorder.getEventCount() + " GATT events");
+    }
+
+    /**
+     * Replays a session recorded with {@link #startRecording} at its original pace. Its samples
+     * reach the listeners, statistics and alerts like live ones, but are not stored. Must be
+     * called on the scheduler's thread.
+     *
+     * @return false if the file is not a recording.
+     */
+    public boolean replaySession(File file) {
+        stopReplay();
+        final SampleExtractor extractor =
+                new SampleExtractor(mDecoders, mScheduler, mReplaySink);
+        try {
+            mReplayer = new GattSessionReplayer(new FileInputStream(file), mScheduler, extractor);
+        } catch (IOException e) {
+            mListener.onLog(LOG_ERROR, "Unable to replay " + file, e);
+            return false;
+        }
+        mReplayer.start(new GattSessionReplayer.Listener() {
+            @Override
+            public void onReplayFinished(GattSessionReplayer replayer, IOException error) {
+                if (error != null) {
+                    mListener.onLog(LOG_ERROR, "Replay cut short.", error);
+                }
+                log(LOG_INFO, "Replayed " + replayer.getEventCount() + " GATT events, "
+                        + extractor.getSampleCount() + " samples");
+                if (mReplayer == replayer) {
+                    stopReplay();
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Stops the replay in progress, if any. Must be called on the scheduler's thread.
+     */
+    public void stopReplay() {
+        final GattSessionReplayer replayer = mReplayer;
+        if (replayer == null) {
+            return;
+        }
+        mReplayer = null;
+        try {
+            replayer.close();
+        } catch (IOException e) {
+            mListener.onLog(LOG_WARN, "Unable to close the replay.", e);
+        }
+    }
+
+    /**
+     * @return The latencies and counters of every device, off until enabled.
+     */
+    public PipelineStats getPipelineStats() {
+        return mPipelineStats;
+    }
+
+    /**
+     * @return The latest events of the sample path, or null in release builds.
+     */
+    public TraceRing getTrace() {
+        return mTrace;
+    }
+
+    /**
+     * Describes the state of the sample path: the pipeline stats, the link of every device,
+     * the reconnects and what the rings dropped.
+     */
+    public String getDiagnostics() {
+        final StringBuilder builder = mPipelineStats.dump(new StringBuilder());
+        final long now = mScheduler.nowNanos();
+        synchronized (mLinkStats) {
+            for (Map.Entry<String, LinkStats> entry : mLinkStats.entrySet()) {
+                builder.append("link ").append(entry.getKey()).append(' ')
+                        .append(entry.getValue().toString(now)).append('\n');
+            }
+        }
+        synchronized (mOperationQueues) {
+            for (Map.Entry<String, GattOperationQueue> entry : mOperationQueues.entrySet()) {
+                final GattOperationQueue queue = entry.getValue();
+                builder.append("queue ").append(entry.getKey())
+                        .append(" completed=").append(queue.getCompletedCount())
+                        .append(" failed=").append(queue.getFailedCount())
+                        .append(" timeouts=").append(queue.getTimeoutCount())
+                        .append(" mean=").append(LatencyHistogram.formatNanos(
+                                queue.getMeanLatencyNanos()))
+                        .append(" max=").append(LatencyHistogram.formatNanos(
+                                queue.getMaxLatencyNanos())).append('\n');
+            }
+        }
+        builder.append("reconnects ").append(mReconnects).append('\n');
+        builder.append("notification ring dropped=").append(mProcessor.getRing().getDroppedCount())
+                .append(" oversized=").append(mProcessor.getRing().getOversizedCount())
+                .append('\n');
+        builder.append("sample ring dropped=").append(mSampleRing.getDroppedCount()).append('\n');
+        if (TRACE) {
+            builder.append("trace records=").append(mTrace.getRecordCount()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Sets how many devices may be connected or connecting at the same time. Further connect
+     * requests are queued until a link is free.
+     */
+    public void setMaxConnections(int maxConnections) {
+        mConnections.setMaxConnections(maxConnections);
+    }
+
+    /**
+     * Connects to the device, and reconnects whenever the link drops until
+     * {@link #disconnect} or {@link #close}.
+     *
+     * @return true if the connection is initiated or queued successfully. The result is
+     *         reported to {@link Listener#onConnected}.
+     */
+    public boolean connect(String address) {
+        if (!mConnections.connect(address)) {
+            log(LOG_WARN, "Couldn't Connect to GATT Server " + address);
+            return false;
+        }
+        mReconnects.watch(address);
+        return true;
+    }
+
+    /**
+     * @return The connection state of the device, one of the
+     *         {@code ConnectionManager.STATE_*} constants.
+     */
+    public int getConnectionState(String address) {
+        return mConnections.getState(address);
+    }
+
+    /**
+     * Disconnects an existing connection or cancels a pending one, and forgets the
+     * subscriptions of the device.
+     */
+    public void disconnect(String address) {
+        mReconnects.unwatch(address);
+        synchronized (mSubscriptions) {
+            mSubscriptions.remove(address);
+        }
+        mConnections.disconnect(address);
+    }
+
+    /**
+     * Releases the link to the device and everything known about it.
+     */
+    public void close(String address) {
+        mReconnects.unwatch(address);
+        invalidateHandleTable(address);
+        synchronized (mSubscriptions) {
+            mSubscriptions.remove(address);
+        }
+        mConnections.close(address);
+        final GattOperationQueue queue;
+        synchronized (mOperationQueues) {
+            queue = mOperationQueues.remove(address);
+        }
+        if (queue != null) {
+            queue.clear();
+        }
+    }
+
+    /**
+     * Releases the links of all devices.
+     */
+    public void close() {
+        mReconnects.unwatchAll();
+        synchronized (mHandleTables) {
+            mHandleTables.clear();
+        }
+        synchronized (mSubscriptions) {
+            mSubscriptions.clear();
+        }
+        mConnections.closeAll();
+        final ArrayList<GattOperationQueue> queues;
+        synchronized (mOperationQueues) {
+            queues = new ArrayList<GattOperationQueue>(mOperationQueues.values());
+            mOperationQueues.clear();
+        }
+        for (GattOperationQueue queue : queues) {
+            queue.clear();
+        }
+    }
+
+    /**
+     * @return The devices that are reconnected when their link drops.
+     */
+    public List<String> getWatched() {
+        return mReconnects.getWatched();
+    }
+
+    /**
+     * Requests a read of a characteristic, queued behind any other operation on the device. A
+     * value with a decoder is handled like a notification.
+     *
+     * @return false if the device is not connected.
+     */
+    public boolean readCharacteristic(final String address, final UUID characteristic) {
+        if (mConnections.getState(address) != ConnectionManager.STATE_CONNECTED) {
+            log(LOG_WARN, "Unable to read " + characteristic + ", " + address
+                    + " is not connected");
+            return false;
+        }
+        getOperationQueue(address).enqueue(new GattOperationQueue.Operation(
+                GattOperationQueue.OP_READ_CHARACTERISTIC, characteristic) {
+            @Override
+            protected boolean execute() {
+                return mTransport.readCharacteristic(address, characteristic);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Enables or disables notifications of a characteristic. The descriptor write is queued
+     * behind any other operation on the device. Enabled notifications are restored whenever the
+     * device reconnects.
+     *
+     * @return false if the device is not connected.
+     */
+    public boolean setCharacteristicNotification(String address, UUID characteristic,
+                                                 boolean enabled) {
+        if (mConnections.getState(address) != ConnectionManager.STATE_CONNECTED) {
+            log(LOG_WARN, "Unable to subscribe to " + characteristic + ", " + address
+                    + " is not connected");
+            return false;
+        }
+        synchronized (mSubscriptions) {
+            LinkedHashSet<UUID> subscriptions = mSubscriptions.get(address);
+            if (subscriptions == null) {
+                subscriptions = new LinkedHashSet<UUID>();
+                mSubscriptions.put(address, subscriptions);
+            }
+            if (enabled) {
+                subscriptions.add(characteristic);
+            } else {
+                subscriptions.remove(characteristic);
+            }
+        }
+        writeNotification(address, characteristic, enabled, false, 0);
+        return true;
+    }
+
+    private boolean isSubscribed(String address, UUID characteristic) {
+        synchronized (mSubscriptions) {
+            final LinkedHashSet<UUID> subscriptions = mSubscriptions.get(address);
+            return subscriptions != null && subscriptions.contains(characteristic);
+        }
+    }
+
+    // @param verify Whether a failed write means the cached attribute layout is stale.
+    // @param attempt The number of times the write failed before.
+    private void writeNotification(final String address, final UUID characteristic,
+                                   final boolean enabled, final boolean verify,
+                                   final int attempt) {
+        getOperationQueue(address).enqueue(new GattOperationQueue.Operation(
+                GattOperationQueue.OP_WRITE_DESCRIPTOR, characteristic) {
+            @Override
+            protected boolean execute() {
+                mPipelineStats.begin(address, PipelineStats.STAGE_DESCRIPTOR_WRITE);
+                return mTransport.setCharacteristicNotification(address, characteristic,
+                        enabled);
+            }
+
+            @Override
+            protected void onComplete(int status) {
+                if (status == GattOperationQueue.STATUS_SUCCESS
+                        || status == GattOperationQueue.STATUS_CANCELLED) {
+                    return;
+                }
+                if (verify) {
+                    // The discovery restores the subscriptions once more.
+                    if (invalidateHandleTable(address)) {
+                        log(LOG_WARN, "Attribute layout of " + address + " changed: " + status);
+                        discoverServices(address);
+                    }
+                } else if (status > 0 && attempt < MAX_RETRIES
+                        && isSubscribed(address, characteristic) == enabled) {
+                    log(LOG_WARN, "Retrying notifications of " + characteristic + " on "
+                            + address);
+                    writeNotification(address, characteristic, enabled, false, attempt + 1);
+                }
+            }
+        });
+    }
+}
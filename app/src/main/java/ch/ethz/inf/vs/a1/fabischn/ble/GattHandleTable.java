@@ -0,0 +1,112 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * The layout of a device's attribute database as it was discovered: every characteristic with
+ * its service and the instance ids the stack addresses them by. Kept per device so a reconnect
+ * can tell whether the services it still holds are the ones that were discovered, and skip the
+ * discovery if they are. Immutable.
+ */
+public final class GattHandleTable {
+
+    private final long[] mUuids;
+    private final int[] mInstanceIds;
+    private final int mHash;
+
+    private GattHandleTable(long[] uuids, int[] instanceIds) {
+        mUuids = uuids;
+        mInstanceIds = instanceIds;
+        mHash = 31 * Arrays.hashCode(uuids) + Arrays.hashCode(instanceIds);
+    }
+
+    /**
+     * Collects the entries of a table in discovery order.
+     */
+    public static final class Builder {
+        private long[] mUuids = new long[32];
+        private int[] mInstanceIds = new int[16];
+        private int mCount;
+
+        public Builder add(UUID service, int serviceInstanceId, UUID characteristic,
+                           int characteristicInstanceId) {
+            if (mCount * 2 == mInstanceIds.length) {
+                mUuids = Arrays.copyOf(mUuids, mUuids.length * 2);
+                mInstanceIds = Arrays.copyOf(mInstanceIds, mInstanceIds.length * 2);
+            }
+            mUuids[mCount * 4] = service.getMostSignificantBits();
+            mUuids[mCount * 4 + 1] = service.getLeastSignificantBits();
+            mUuids[mCount * 4 + 2] = characteristic.getMostSignificantBits();
+            mUuids[mCount * 4 + 3] = characteristic.getLeastSignificantBits();
+            mInstanceIds[mCount * 2] = serviceInstanceId;
+            mInstanceIds[mCount * 2 + 1] = characteristicInstanceId;
+            mCount++;
+            return this;
+        }
+
+        public GattHandleTable build() {
+            return new GattHandleTable(Arrays.copyOf(mUuids, mCount * 4),
+                    Arrays.copyOf(mInstanceIds, mCount * 2));
+        }
+    }
+
+    /**
+     * @return The number of characteristics in the table.
+     */
+    public int size() {
+        return mInstanceIds.length / 2;
+    }
+
+    public UUID getServiceUuid(int index) {
+        return new UUID(mUuids[index * 4], mUuids[index * 4 + 1]);
+    }
+
+    public UUID getCharacteristicUuid(int index) {
+        return new UUID(mUuids[index * 4 + 2], mUuids[index * 4 + 3]);
+    }
+
+    /**
+     * @return The instance id the stack addresses the characteristic by, unique on the device.
+     */
+    public int getCharacteristicInstanceId(int index) {
+        return mInstanceIds[index * 2 + 1];
+    }
+
+    /**
+     * @return The index of the first characteristic with the UUID, or -1.
+     */
+    public int indexOf(UUID characteristic) {
+        final long most = characteristic.getMostSignificantBits();
+        final long least = characteristic.getLeastSignificantBits();
+        for (int i = 0; i < size(); i++) {
+            if (mUuids[i * 4 + 2] == most && mUuids[i * 4 + 3] == least) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof GattHandleTable)) {
+            return false;
+        }
+        final GattHandleTable table = (GattHandleTable) other;
+        return mHash == table.mHash && Arrays.equals(mUuids, table.mUuids)
+                && Arrays.equals(mInstanceIds, table.mInstanceIds);
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    @Override
+    public String toString() {
+        return size() + " characteristics";
+    }
+}
@@ -0,0 +1,315 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.ArrayDeque;
+
+/**
+ * Serializes the GATT operations of one connection. Android only allows a single operation in
+ * flight per {@code BluetoothGatt}; anything issued while another one is pending is silently
+ * dropped. Operations are therefore queued here and the next one is started straight from the
+ * callback that completes the previous one, so the link never idles between them.
+ *
+ * <p>Every operation has a timeout. An operation that times out, or that the stack refuses to
+ * start, is retried a limited number of times before it is failed. All methods are thread safe.
+ */
+public final class GattOperationQueue {
+
+    public static final int OP_DISCOVER_SERVICES = 0;
+    public static final int OP_READ_CHARACTERISTIC = 1;
+    public static final int OP_WRITE_DESCRIPTOR = 2;
+    public static final int OP_REQUEST_MTU = 3;
+    // Has no callback, see Operation#completesOnExecute.
+    public static final int OP_REQUEST_CONNECTION_PRIORITY = 4;
+    public static final int OP_WRITE_CHARACTERISTIC = 5;
+
+    // BluetoothGatt.GATT_SUCCESS, reported for operations that complete on execute.
+    public static final int STATUS_SUCCESS = 0;
+
+    // Status reported to Operation.onComplete when the operation did not get a GATT status.
+    public static final int STATUS_TIMEOUT = -1;
+    public static final int STATUS_NOT_STARTED = -2;
+    public static final int STATUS_CANCELLED = -3;
+
+    private static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+    private static final long RETRY_DELAY_MILLIS = 50;
+    private static final int DEFAULT_MAX_RETRIES = 2;
+
+    /**
+     * Time source and timer for the queue, so it can run on a {@code Handler} on the device and
+     * on a simulated clock in tests.
+     */
+    public interface Scheduler {
+        long nowNanos();
+
+        void postDelayed(Runnable runnable, long delayMillis);
+
+        void cancel(Runnable runnable);
+    }
+
+    /**
+     * A single GATT request.
+     */
+    public static abstract class Operation {
+        final int type;
+        final Object target;
+        final long timeoutMillis;
+        int retries;
+        long enqueuedAtNanos;
+
+        /**
+         * @param type One of the {@code OP_*} constants.
+         * @param target The attribute the operation acts on, used to match the completing
+         *               callback. May be null for operations on the whole connection.
+         */
+        protected Operation(int type, Object target) {
+            this(type, target, DEFAULT_TIMEOUT_MILLIS);
+        }
+
+        protected Operation(int type, Object target, long timeoutMillis) {
+            this.type = type;
+            this.target = target;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        /**
+         * Issues the request to the stack.
+         *
+         * @return false if the stack refused it.
+         */
+        protected abstract boolean execute();
+
+        /**
+         * @return true if the stack reports no callback for this operation, so it is done as
+         *         soon as {@link #execute()} succeeds.
+         */
+        protected boolean completesOnExecute() {
+            return false;
+        }
+
+        /**
+         * Called once when the operation is done, with the GATT status of the completing
+         * callback or one of the {@code STATUS_*} constants.
+         */
+        protected void onComplete(int status) {
+        }
+    }
+
+    private final Scheduler mScheduler;
+    private final int mMaxRetries;
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<Operation>();
+    private Operation mCurrent;
+    // Incremented whenever mCurrent changes. A timeout or retry that was already dispatched when
+    // its operation finished sees a different generation and does nothing.
+    private int mGeneration;
+    private int mArmedGeneration;
+
+    private long mEnqueuedCount;
+    private long mCompletedCount;
+    private long mFailedCount;
+    private long mTimeoutCount;
+    private long mRetryCount;
+    private int mMaxDepth;
+    private long mTotalLatencyNanos;
+    private long mMaxLatencyNanos;
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+
+    private final Runnable mRetry = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GattOperationQueue.this) {
+                if (mCurrent != null && mArmedGeneration == mGeneration) {
+                    start(mCurrent);
+                }
+            }
+        }
+    };
+
+    public GattOperationQueue(Scheduler scheduler) {
+        this(scheduler, DEFAULT_MAX_RETRIES);
+    }
+
+    public GattOperationQueue(Scheduler scheduler, int maxRetries) {
+        mScheduler = scheduler;
+        mMaxRetries = maxRetries;
+    }
+
+    /**
+     * Queues an operation. It is started right away if nothing else is in flight.
+     */
+    public synchronized void enqueue(Operation operation) {
+        operation.enqueuedAtNanos = mScheduler.nowNanos();
+        operation.retries = 0;
+        mEnqueuedCount++;
+        if (mCurrent == null && mPending.isEmpty()) {
+            mCurrent = operation;
+            mGeneration++;
+            start(operation);
+        } else {
+            mPending.addLast(operation);
+        }
+        mMaxDepth = Math.max(mMaxDepth, getDepth());
+    }
+
+    /**
+     * Completes the operation in flight if it matches the callback.
+     *
+     * @param type The {@code OP_*} type of the callback.
+     * @param target The attribute the callback reports on, or null.
+     * @param status The GATT status of the callback.
+     * @return true if the callback completed the operation in flight.
+     */
+    public synchronized boolean complete(int type, Object target, int status) {
+        final Operation operation = mCurrent;
+        if (operation == null || operation.type != type
+                || (operation.target != null && !operation.target.equals(target))) {
+            return false;
+        }
+        finish(operation, status);
+        return true;
+    }
+
+    /**
+     * Fails the operation in flight and everything queued behind it, for example after the
+     * link was lost.
+     */
+    public synchronized void clear() {
+        mScheduler.cancel(mTimeout);
+        mScheduler.cancel(mRetry);
+        final Operation current = mCurrent;
+        mCurrent = null;
+        mGeneration++;
+        if (current != null) {
+            mFailedCount++;
+            current.onComplete(STATUS_CANCELLED);
+        }
+        Operation operation;
+        while ((operation = mPending.pollFirst()) != null) {
+            mFailedCount++;
+            operation.onComplete(STATUS_CANCELLED);
+        }
+    }
+
+    /**
+     * @return The number of operations in flight or waiting.
+     */
+    public synchronized int getDepth() {
+        return mPending.size() + (mCurrent == null ? 0 : 1);
+    }
+
+    public synchronized int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    public synchronized long getEnqueuedCount() {
+        return mEnqueuedCount;
+    }
+
+    /**
+     * @return The number of operations completed by a callback, whatever their GATT status.
+     */
+    public synchronized long getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    /**
+     * @return The number of operations that timed out, could not be started or were cancelled.
+     */
+    public synchronized long getFailedCount() {
+        return mFailedCount;
+    }
+
+    public synchronized long getTimeoutCount() {
+        return mTimeoutCount;
+    }
+
+    public synchronized long getRetryCount() {
+        return mRetryCount;
+    }
+
+    /**
+     * @return The mean time from enqueue to completion of the completed operations.
+     */
+    public synchronized long getMeanLatencyNanos() {
+        return mCompletedCount == 0 ? 0 : mTotalLatencyNanos / mCompletedCount;
+    }
+
+    public synchronized long getMaxLatencyNanos() {
+        return mMaxLatencyNanos;
+    }
+
+    private void start(Operation operation) {
+        mArmedGeneration = mGeneration;
+        final boolean started;
+        try {
+            started = operation.execute();
+        } catch (RuntimeException e) {
+            fail(operation, STATUS_NOT_STARTED);
+            return;
+        }
+        if (started && operation.completesOnExecute()) {
+            finish(operation, STATUS_SUCCESS);
+        } else if (started) {
+            mScheduler.postDelayed(mTimeout, operation.timeoutMillis);
+        } else if (operation.retries < mMaxRetries) {
+            // Usually the stack is still busy with something we did not issue ourselves.
+            operation.retries++;
+            mRetryCount++;
+            mScheduler.postDelayed(mRetry, RETRY_DELAY_MILLIS);
+        } else {
+            fail(operation, STATUS_NOT_STARTED);
+        }
+    }
+
+    private synchronized void onTimeout() {
+        final Operation operation = mCurrent;
+        if (operation == null || mArmedGeneration != mGeneration) {
+            return;
+        }
+        mTimeoutCount++;
+        if (operation.retries < mMaxRetries) {
+            operation.retries++;
+            mRetryCount++;
+            start(operation);
+        } else {
+            fail(operation, STATUS_TIMEOUT);
+        }
+    }
+
+    private void finish(Operation operation, int status) {
+        mScheduler.cancel(mTimeout);
+        mScheduler.cancel(mRetry);
+        final long latency = mScheduler.nowNanos() - operation.enqueuedAtNanos;
+        mCompletedCount++;
+        mTotalLatencyNanos += latency;
+        mMaxLatencyNanos = Math.max(mMaxLatencyNanos, latency);
+        next(operation, status);
+    }
+
+    private void fail(Operation operation, int status) {
+        mScheduler.cancel(mTimeout);
+        mScheduler.cancel(mRetry);
+        mFailedCount++;
+        next(operation, status);
+    }
+
+    private void next(Operation done, int status) {
+        mCurrent = null;
+        mGeneration++;
+        done.onComplete(status);
+        // onComplete may have started a new operation itself.
+        if (mCurrent != null) {
+            return;
+        }
+        final Operation next = mPending.pollFirst();
+        if (next != null) {
+            mCurrent = next;
+            mGeneration++;
+            start(next);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Records the events of GATT sessions, so a session with real devices can be replayed later by
+ * {@link GattSessionReplayer}. Sits between a transport and its callback and passes every event
+ * on unchanged.
+ *
+ * <p>The recording is a header followed by one record per event: its type, its time in
+ * nanoseconds since the recording started, the device address and the arguments of the event.
+ * Writes are buffered, but still cost a little on the thread that delivers the event. The first
+ * write error ends the recording, see {@link #getError()}. All methods are thread safe.
+ */
+public final class GattSessionRecorder implements GattTransport.Callback, Closeable {
+
+    static final int MAGIC = 0x47415454;
+    static final int VERSION = 1;
+
+    static final int EVENT_CONNECTION_STATE = 0;
+    static final int EVENT_SERVICES_DISCOVERED = 1;
+    static final int EVENT_CHARACTERISTIC_READ = 2;
+    static final int EVENT_CHARACTERISTIC_WRITE = 3;
+    static final int EVENT_CHARACTERISTIC_CHANGED = 4;
+    static final int EVENT_DESCRIPTOR_WRITE = 5;
+    static final int EVENT_MTU_CHANGED = 6;
+
+    private final DataOutputStream mOut;
+    private final GattOperationQueue.Scheduler mClock;
+    private final GattTransport.Callback mDelegate;
+    private final long mStartNanos;
+    private long mEventCount;
+    private IOException mError;
+    private boolean mClosed;
+
+    /**
+     * @param clock Timestamps the events, on the clock notification timestamps are taken on.
+     * @param delegate Receives the events, may be null.
+     */
+    public GattSessionRecorder(OutputStream out, GattOperationQueue.Scheduler clock,
+                               GattTransport.Callback delegate) throws IOException {
+        mOut = new DataOutputStream(new BufferedOutputStream(out));
+        mClock = clock;
+        mDelegate = delegate;
+        mStartNanos = clock.nowNanos();
+        mOut.writeInt(MAGIC);
+        mOut.writeInt(VERSION);
+    }
+
+    @Override
+    public void onConnectionStateChange(String address, int status, boolean connected) {
+        synchronized (this) {
+            if (begin(EVENT_CONNECTION_STATE, mClock.nowNanos(), address)) {
+                try {
+                    mOut.writeInt(status);
+                    mOut.writeBoolean(connected);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+        if (mDelegate != null) {
+            mDelegate.onConnectionStateChange(address, status, connected);
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(String address, int status) {
+        synchronized (this) {
+            if (begin(EVENT_SERVICES_DISCOVERED, mClock.nowNanos(), address)) {
+                try {
+                    mOut.writeInt(status);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+        if (mDelegate != null) {
+            mDelegate.onServicesDiscovered(address, status);
+        }
+    }
+
+    @Override
+    public void onCharacteristicRead(String address, UUID characteristic, byte[] value,
+                                     int status) {
+        synchronized (this) {
+            if (begin(EVENT_CHARACTERISTIC_READ, mClock.nowNanos(), address)) {
+                try {
+                    writeUuid(characteristic);
+                    mOut.writeInt(status);
+                    writeValue(value);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+        if (mDelegate != null) {
+            mDelegate.onCharacteristicRead(address, characteristic, value, status);
+        }
+    }
+
+    @Override
+    public void onCharacteristicWrite(String address, UUID characteristic, int status) {
+        synchronized (this) {
+            if (begin(EVENT_CHARACTERISTIC_WRITE, mClock.nowNanos(), address)) {
+                try {
+                    writeUuid(characteristic);
+                    mOut.writeInt(status);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+        if (mDelegate != null) {
+            mDelegate.onCharacteristicWrite(address, characteristic, status);
+        }
+    }
+
+    @Override
+    public void onCharacteristicChanged(String address, UUID characteristic, int instanceId,
+                                        long timestampNanos, byte[] value) {
+        synchronized (this) {
+            if (begin(EVENT_CHARACTERISTIC_CHANGED, timestampNanos, address)) {
+                try {
+                    writeUuid(characteristic);
+                    writeValue(value);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+        if (mDelegate != null) {
+            mDelegate.onCharacteristicChanged(address, characteristic, instanceId,
+                    timestampNanos, value);
+        }
+    }
+
+    @Override
+    public void onDescriptorWrite(String address, UUID characteristic, int status) {
+        synchronized (this) {
+            if (begin(EVENT_DESCRIPTOR_WRITE, mClock.nowNanos(), address)) {
+                try {
+                    writeUuid(characteristic);
+                    mOut.writeInt(status);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+        if (mDelegate != null) {
+            mDelegate.onDescriptorWrite(address, characteristic, status);
+        }
+    }
+
+    @Override
+    public void onMtuChanged(String address, int mtu, int status) {
+        synchronized (this) {
+            if (begin(EVENT_MTU_CHANGED, mClock.nowNanos(), address)) {
+                try {
+                    mOut.writeInt(mtu);
+                    mOut.writeInt(status);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+        if (mDelegate != null) {
+            mDelegate.onMtuChanged(address, mtu, status);
+        }
+    }
+
+    /**
+     * @return The number of events recorded.
+     */
+    public synchronized long getEventCount() {
+        return mEventCount;
+    }
+
+    /**
+     * @return The error that ended the recording, or null.
+     */
+    public synchronized IOException getError() {
+        return mError;
+    }
+
+    /**
+     * Ends the recording. Events delivered afterwards are only passed on.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mOut.close();
+    }
+
+    // Writes the common part of a record, returns false if the recording has ended.
+    private boolean begin(int type, long timestampNanos, String address) {
+        if (mClosed || mError != null) {
+            return false;
+        }
+        try {
+            mOut.writeByte(type);
+            mOut.writeLong(timestampNanos - mStartNanos);
+            mOut.writeUTF(address);
+            mEventCount++;
+            return true;
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        }
+    }
+
+    private void writeUuid(UUID uuid) throws IOException {
+        mOut.writeLong(uuid.getMostSignificantBits());
+        mOut.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private void writeValue(byte[] value) throws IOException {
+        if (value == null) {
+            mOut.writeInt(-1);
+        } else {
+            mOut.writeInt(value.length);
+            mOut.write(value);
+        }
+    }
+
+    private void fail(IOException e) {
+        mError = e;
+    }
+}
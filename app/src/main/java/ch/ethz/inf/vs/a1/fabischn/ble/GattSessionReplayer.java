@@ -0,0 +1,240 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
+
+/**
+ * Plays a recording of {@link GattSessionRecorder} back into a callback, either at the pace it
+ * was recorded or all at once. Notification timestamps are shifted so the recording appears to
+ * start when the replay does. Must be used on the thread the scheduler runs on.
+ */
+public final class GattSessionReplayer implements Closeable {
+
+    /**
+     * Hears when a timed replay ends.
+     */
+    public interface Listener {
+        /**
+         * @param error The error that cut the replay short, or null if it reached the end.
+         */
+        void onReplayFinished(GattSessionReplayer replayer, IOException error);
+    }
+
+    private final DataInputStream mIn;
+    private final GattOperationQueue.Scheduler mScheduler;
+    private final GattTransport.Callback mCallback;
+    private long mStartNanos;
+    private long mEventCount;
+    private boolean mRunning;
+    private boolean mFinished;
+    private Listener mListener;
+
+    // The record read ahead during a timed replay, see #step.
+    private int mType = -1;
+    private long mOffsetNanos;
+    private String mAddress;
+
+    private final Runnable mStep = new Runnable() {
+        @Override
+        public void run() {
+            step();
+        }
+    };
+
+    public GattSessionReplayer(InputStream in, GattOperationQueue.Scheduler scheduler,
+                               GattTransport.Callback callback) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(in));
+        mScheduler = scheduler;
+        mCallback = callback;
+        if (mIn.readInt() != GattSessionRecorder.MAGIC) {
+            throw new IOException("Not a GATT session recording");
+        }
+        final int version = mIn.readInt();
+        if (version != GattSessionRecorder.VERSION) {
+            throw new IOException("Unsupported recording version " + version);
+        }
+    }
+
+    /**
+     * Delivers the whole recording right away.
+     *
+     * @return The number of events delivered.
+     */
+    public long replayAll() throws IOException {
+        if (mRunning || mFinished) {
+            throw new IllegalStateException("Already replayed");
+        }
+        mStartNanos = mScheduler.nowNanos();
+        while (readHeader()) {
+            deliver();
+        }
+        mFinished = true;
+        return mEventCount;
+    }
+
+    /**
+     * Starts delivering the recording at the pace it was recorded.
+     *
+     * @param listener Hears when the replay ends, may be null.
+     */
+    public void start(Listener listener) {
+        if (mRunning || mFinished) {
+            throw new IllegalStateException("Already replayed");
+        }
+        mListener = listener;
+        mRunning = true;
+        mStartNanos = mScheduler.nowNanos();
+        step();
+    }
+
+    /**
+     * Stops a timed replay. The listener is not called.
+     */
+    public void stop() {
+        if (mRunning) {
+            mRunning = false;
+            mFinished = true;
+            mScheduler.cancel(mStep);
+        }
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return The number of events delivered so far.
+     */
+    public long getEventCount() {
+        return mEventCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        stop();
+        mIn.close();
+    }
+
+    // Delivers the events that are due and schedules the next step.
+    private void step() {
+        if (!mRunning) {
+            return;
+        }
+        IOException error = null;
+        try {
+            while (true) {
+                if (mType < 0 && !readHeader()) {
+                    finish(null);
+                    return;
+                }
+                final long wait = mStartNanos + mOffsetNanos - mScheduler.nowNanos();
+                if (wait > 0) {
+                    // Rounded up, so the event is never early.
+                    mScheduler.postDelayed(mStep, (wait + 999999) / 1000000);
+                    return;
+                }
+                deliver();
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+        finish(error);
+    }
+
+    private void finish(IOException error) {
+        mRunning = false;
+        mFinished = true;
+        if (mListener != null) {
+            mListener.onReplayFinished(this, error);
+        }
+    }
+
+    // Reads the common part of the next record, returns false at the end of the recording.
+    private boolean readHeader() throws IOException {
+        final int type = mIn.read();
+        if (type < 0) {
+            return false;
+        }
+        try {
+            mOffsetNanos = mIn.readLong();
+            mAddress = mIn.readUTF();
+        } catch (EOFException e) {
+            throw new IOException("Truncated recording", e);
+        }
+        mType = type;
+        return true;
+    }
+
+    // Reads the arguments of the record whose header was read and hands it to the callback.
+    private void deliver() throws IOException {
+        final int type = mType;
+        final String address = mAddress;
+        mType = -1;
+        try {
+            switch (type) {
+                case GattSessionRecorder.EVENT_CONNECTION_STATE: {
+                    final int status = mIn.readInt();
+                    mCallback.onConnectionStateChange(address, status, mIn.readBoolean());
+                    break;
+                }
+                case GattSessionRecorder.EVENT_SERVICES_DISCOVERED:
+                    mCallback.onServicesDiscovered(address, mIn.readInt());
+                    break;
+                case GattSessionRecorder.EVENT_CHARACTERISTIC_READ: {
+                    final UUID characteristic = readUuid();
+                    final int status = mIn.readInt();
+                    mCallback.onCharacteristicRead(address, characteristic, readValue(), status);
+                    break;
+                }
+                case GattSessionRecorder.EVENT_CHARACTERISTIC_WRITE: {
+                    final UUID characteristic = readUuid();
+                    mCallback.onCharacteristicWrite(address, characteristic, mIn.readInt());
+                    break;
+                }
+                case GattSessionRecorder.EVENT_CHARACTERISTIC_CHANGED: {
+                    final UUID characteristic = readUuid();
+                    // The instance ids are not recorded, they are only valid on the link.
+                    mCallback.onCharacteristicChanged(address, characteristic,
+                            GattTransport.INSTANCE_UNKNOWN, mStartNanos + mOffsetNanos,
+                            readValue());
+                    break;
+                }
+                case GattSessionRecorder.EVENT_DESCRIPTOR_WRITE: {
+                    final UUID characteristic = readUuid();
+                    mCallback.onDescriptorWrite(address, characteristic, mIn.readInt());
+                    break;
+                }
+                case GattSessionRecorder.EVENT_MTU_CHANGED: {
+                    final int mtu = mIn.readInt();
+                    mCallback.onMtuChanged(address, mtu, mIn.readInt());
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown event type " + type);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated recording", e);
+        }
+        mEventCount++;
+    }
+
+    private UUID readUuid() throws IOException {
+        final long most = mIn.readLong();
+        return new UUID(most, mIn.readLong());
+    }
+
+    private byte[] readValue() throws IOException {
+        final int length = mIn.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] value = new byte[length];
+        mIn.readFully(value);
+        return value;
+    }
+}
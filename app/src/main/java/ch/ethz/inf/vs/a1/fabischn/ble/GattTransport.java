@@ -0,0 +1,96 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The GATT client operations the app issues, keyed by device address and attribute UUID instead
+ * of the Android objects, so a session can be simulated, recorded and replayed on the JVM. The
+ * calls follow {@code BluetoothGatt}: each one only starts a request and returns false if it
+ * could not be started, and the result arrives later through the {@link Callback}.
+ *
+ * <p>The service runs its {@link GattClient} on {@link BluetoothGattTransport}, tests run the
+ * same client on {@link SimulatedGattTransport}.
+ */
+public interface GattTransport {
+
+    /**
+     * The instance id of a notification that does not come from a link, such as a replayed one.
+     */
+    int INSTANCE_UNKNOWN = -1;
+
+    /**
+     * Receives the results, in the shape of {@code BluetoothGattCallback}. Statuses are GATT
+     * statuses, {@link GattOperationQueue#STATUS_SUCCESS} on success.
+     */
+    interface Callback {
+        void onConnectionStateChange(String address, int status, boolean connected);
+
+        void onServicesDiscovered(String address, int status);
+
+        void onCharacteristicRead(String address, UUID characteristic, byte[] value, int status);
+
+        void onCharacteristicWrite(String address, UUID characteristic, int status);
+
+        /**
+         * @param instanceId The instance id of the characteristic, as in the
+         *                   {@link #getHandleTable handle table}, or {@link #INSTANCE_UNKNOWN}.
+         * @param timestampNanos When the notification arrived, on the transport's clock.
+         */
+        void onCharacteristicChanged(String address, UUID characteristic, int instanceId,
+                                     long timestampNanos, byte[] value);
+
+        /**
+         * Reports the write of the client configuration descriptor of a characteristic.
+         */
+        void onDescriptorWrite(String address, UUID characteristic, int status);
+
+        void onMtuChanged(String address, int mtu, int status);
+    }
+
+    void setCallback(Callback callback);
+
+    boolean connect(String address);
+
+    void disconnect(String address);
+
+    /**
+     * Releases the link. No callbacks follow for the device.
+     */
+    void close(String address);
+
+    boolean discoverServices(String address);
+
+    /**
+     * @return The UUIDs of the discovered services, empty before the discovery.
+     */
+    List<UUID> getServices(String address);
+
+    /**
+     * @return The layout of the services the link holds, an empty table before the discovery.
+     */
+    GattHandleTable getHandleTable(String address);
+
+    /**
+     * @return The value last read from the characteristic, or null if there is none.
+     */
+    byte[] getValue(String address, UUID characteristic);
+
+    boolean readCharacteristic(String address, UUID characteristic);
+
+    boolean writeCharacteristic(String address, UUID characteristic, byte[] value);
+
+    /**
+     * Writes the client configuration descriptor of a characteristic.
+     */
+    boolean setCharacteristicNotification(String address, UUID characteristic,
+                                          boolean enabled);
+
+    boolean requestMtu(String address, int mtu);
+
+    /**
+     * Requests one of the {@code BluetoothGatt.CONNECTION_PRIORITY_*} values. There is no
+     * callback, the request is done once the call returns true.
+     */
+    boolean requestConnectionPriority(String address, int priority);
+}
@@ -0,0 +1,257 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.Arrays;
+
+/**
+ * Bit-level codec for (timestamp, float) sample streams, after Facebook's Gorilla time-series
+ * compression. Timestamps are stored as delta-of-deltas, which is a single bit for samples that
+ * arrive at a regular interval. Values are XORed with their predecessor and only the
+ * meaningful bits of the result are stored, which is a single bit for a repeated value and a
+ * handful for a slowly changing one.
+ *
+ * <p>A stream starts with its first timestamp and value in full, so every encoded block can be
+ * decoded on its own.
+ */
+public final class GorillaCodec {
+
+    private GorillaCodec() {
+    }
+
+    /**
+     * Encodes samples into a growing byte array. Not thread safe.
+     */
+    public static final class Encoder {
+        private byte[] mBuffer;
+        private long mBitLength;
+        private int mCount;
+        private long mPreviousTimestamp;
+        private long mPreviousDelta;
+        private int mPreviousBits;
+        private int mPreviousLeading = -1;
+        private int mPreviousTrailing;
+
+        public Encoder(int initialCapacity) {
+            mBuffer = new byte[Math.max(16, initialCapacity)];
+        }
+
+        /**
+         * Appends a sample. Timestamps should be non-decreasing, although any order can be
+         * encoded.
+         */
+        public void append(long timestamp, float value) {
+            final int bits = Float.floatToRawIntBits(value);
+            if (mCount == 0) {
+                writeBits(timestamp, 64);
+                writeBits(bits, 32);
+            } else {
+                final long delta = timestamp - mPreviousTimestamp;
+                writeDeltaOfDelta(delta - mPreviousDelta);
+                mPreviousDelta = delta;
+                writeValue(bits);
+            }
+            mPreviousTimestamp = timestamp;
+            mPreviousBits = bits;
+            mCount++;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public int getByteLength() {
+            return (int) ((mBitLength + 7) >>> 3);
+        }
+
+        /**
+         * @return The encoded bytes. Only the first {@link #getByteLength()} are valid, and the
+         *         array is reused after {@link #reset()}.
+         */
+        public byte[] getBuffer() {
+            return mBuffer;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(mBuffer, getByteLength());
+        }
+
+        public void reset() {
+            Arrays.fill(mBuffer, 0, getByteLength(), (byte) 0);
+            mBitLength = 0;
+            mCount = 0;
+            mPreviousDelta = 0;
+            mPreviousLeading = -1;
+        }
+
+        private void writeDeltaOfDelta(long deltaOfDelta) {
+            if (deltaOfDelta == 0) {
+                writeBits(0, 1);
+            } else if (deltaOfDelta >= -64 && deltaOfDelta <= 63) {
+                writeBits(0x2, 2);
+                writeBits(deltaOfDelta, 7);
+            } else if (deltaOfDelta >= -256 && deltaOfDelta <= 255) {
+                writeBits(0x6, 3);
+                writeBits(deltaOfDelta, 9);
+            } else if (deltaOfDelta >= -2048 && deltaOfDelta <= 2047) {
+                writeBits(0xe, 4);
+                writeBits(deltaOfDelta, 12);
+            } else if (deltaOfDelta >= Integer.MIN_VALUE && deltaOfDelta <= Integer.MAX_VALUE) {
+                writeBits(0x1e, 5);
+                writeBits(deltaOfDelta, 32);
+            } else {
+                writeBits(0x1f, 5);
+                writeBits(deltaOfDelta, 64);
+            }
+        }
+
+        private void writeValue(int bits) {
+            final int xor = bits ^ mPreviousBits;
+            if (xor == 0) {
+                writeBits(0, 1);
+                return;
+            }
+            writeBits(1, 1);
+            // At most 31 leading zeros, so the count fits in 5 bits.
+            final int leading = Math.min(Integer.numberOfLeadingZeros(xor), 31);
+            final int trailing = Integer.numberOfTrailingZeros(xor);
+            if (mPreviousLeading >= 0 && leading >= mPreviousLeading
+                    && trailing >= mPreviousTrailing) {
+                // The meaningful bits fit in the previous window.
+                writeBits(0, 1);
+                writeBits(xor >>> mPreviousTrailing, 32 - mPreviousLeading - mPreviousTrailing);
+            } else {
+                final int significant = 32 - leading - trailing;
+                writeBits(1, 1);
+                writeBits(leading, 5);
+                // 1 to 32 significant bits, stored as 0 to 31.
+                writeBits(significant - 1, 5);
+                writeBits(xor >>> trailing, significant);
+                mPreviousLeading = leading;
+                mPreviousTrailing = trailing;
+            }
+        }
+
+        // Writes the low `count` bits of `value`, most significant first.
+        private void writeBits(long value, int count) {
+            final long needed = (mBitLength + count + 7) >>> 3;
+            if (needed > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, (int) Math.max(needed, mBuffer.length * 2L));
+            }
+            while (count > 0) {
+                final int index = (int) (mBitLength >>> 3);
+                final int free = 8 - (int) (mBitLength & 7);
+                final int take = Math.min(free, count);
+                final int chunk = (int) (value >>> (count - take)) & ((1 << take) - 1);
+                mBuffer[index] |= (byte) (chunk << (free - take));
+                mBitLength += take;
+                count -= take;
+            }
+        }
+    }
+
+    /**
+     * Decodes a stream written by {@link Encoder}. Not thread safe, but can be reused for any
+     * number of streams.
+     */
+    public static final class Decoder {
+        private byte[] mData;
+        private long mBitPosition;
+        private int mRemaining;
+        private boolean mFirst;
+        private long mTimestamp;
+        private long mDelta;
+        private int mBits;
+        private int mLeading;
+        private int mTrailing;
+
+        /**
+         * Starts decoding a stream.
+         *
+         * @param data The encoded bytes.
+         * @param offset Where the stream starts in {@code data}.
+         * @param count The number of samples in the stream.
+         */
+        public void reset(byte[] data, int offset, int count) {
+            mData = data;
+            mBitPosition = (long) offset << 3;
+            mRemaining = count;
+            mFirst = true;
+            mDelta = 0;
+            mLeading = 0;
+            mTrailing = 0;
+        }
+
+        /**
+         * Decodes the next sample.
+         *
+         * @return false if the stream has no more samples.
+         */
+        public boolean next() {
+            if (mRemaining == 0) {
+                return false;
+            }
+            mRemaining--;
+            if (mFirst) {
+                mFirst = false;
+                mTimestamp = readBits(64);
+                mBits = (int) readBits(32);
+                return true;
+            }
+            mDelta += readDeltaOfDelta();
+            mTimestamp += mDelta;
+            if (readBits(1) != 0) {
+                if (readBits(1) != 0) {
+                    mLeading = (int) readBits(5);
+                    mTrailing = 32 - mLeading - ((int) readBits(5) + 1);
+                }
+                final int significant = 32 - mLeading - mTrailing;
+                mBits ^= (int) readBits(significant) << mTrailing;
+            }
+            return true;
+        }
+
+        public long timestamp() {
+            return mTimestamp;
+        }
+
+        public float value() {
+            return Float.intBitsToFloat(mBits);
+        }
+
+        private long readDeltaOfDelta() {
+            if (readBits(1) == 0) {
+                return 0;
+            }
+            if (readBits(1) == 0) {
+                return signExtend(readBits(7), 7);
+            }
+            if (readBits(1) == 0) {
+                return signExtend(readBits(9), 9);
+            }
+            if (readBits(1) == 0) {
+                return signExtend(readBits(12), 12);
+            }
+            if (readBits(1) == 0) {
+                return signExtend(readBits(32), 32);
+            }
+            return readBits(64);
+        }
+
+        private static long signExtend(long value, int bits) {
+            return (value << (64 - bits)) >> (64 - bits);
+        }
+
+        private long readBits(int count) {
+            long value = 0;
+            while (count > 0) {
+                final int index = (int) (mBitPosition >>> 3);
+                final int available = 8 - (int) (mBitPosition & 7);
+                final int take = Math.min(available, count);
+                final int chunk = ((mData[index] & 0xff) >>> (available - take)) & ((1 << take) - 1);
+                value = (value << take) | chunk;
+                mBitPosition += take;
+                count -= take;
+            }
+            return value;
+        }
+    }
+}
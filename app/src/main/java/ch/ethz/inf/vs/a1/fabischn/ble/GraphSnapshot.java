@@ -0,0 +1,138 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A copy of the graph of a device on disk, kept next to its streams in the {@link SampleStore}.
+ * Restoring it brings a new activity's graph back without reading and replaying the raw
+ * samples, only the samples stored after the snapshot was taken have to be added.
+ *
+ * <p>The file holds a 32 byte header followed by the points of a {@link SampleSeriesBuffer},
+ * oldest first: the x value and one float per series. The header records the wall-clock time of
+ * x = 0 and of the newest point.
+ */
+final class GraphSnapshot {
+
+    private static final int MAGIC = 0x53485450; // "SHTP"
+    private static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final String FILE_NAME = "graph.snap";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final long mOriginMillis;
+    private final long mLastMillis;
+
+    private GraphSnapshot(long originMillis, long lastMillis) {
+        mOriginMillis = originMillis;
+        mLastMillis = lastMillis;
+    }
+
+    /**
+     * @return The wall-clock time of x = 0.
+     */
+    public long getOriginMillis() {
+        return mOriginMillis;
+    }
+
+    /**
+     * @return The wall-clock time of the newest point.
+     */
+    public long getLastMillis() {
+        return mLastMillis;
+    }
+
+    /**
+     * Copies the points of the buffer, so the copy can be written while the buffer moves on.
+     *
+     * @param originMillis The wall-clock time of x = 0.
+     * @param lastMillis The wall-clock time of the newest point.
+     * @return The snapshot, ready for {@link #write}.
+     */
+    static ByteBuffer encode(SampleSeriesBuffer buffer, long originMillis, long lastMillis) {
+        final int seriesCount = buffer.seriesCount();
+        final int size = buffer.size();
+        final ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + size * (8 + 4 * seriesCount))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC).putInt(VERSION).putInt(seriesCount).putInt(size);
+        out.putLong(originMillis).putLong(lastMillis);
+        for (int i = 0; i < size; i++) {
+            out.putDouble(buffer.getX(i));
+            for (int series = 0; series < seriesCount; series++) {
+                out.putFloat(buffer.getY(series, i));
+            }
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Replaces {@code file} with an encoded snapshot. A reader sees either the old or the new
+     * snapshot, never a partial one.
+     */
+    static void write(File file, ByteBuffer snapshot) throws IOException {
+        final File temp = new File(file.getPath() + TEMP_SUFFIX);
+        final FileOutputStream out = new FileOutputStream(temp);
+        try {
+            final FileChannel channel = out.getChannel();
+            while (snapshot.hasRemaining()) {
+                channel.write(snapshot);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    /**
+     * Appends the points of a snapshot to {@code buffer}. If the snapshot holds more points than
+     * the buffer, only the newest are kept.
+     *
+     * @return The snapshot's times, or null if there is no snapshot.
+     * @throws IOException If the file cannot be read or is no snapshot for this buffer.
+     */
+    static GraphSnapshot read(File file, SampleSeriesBuffer buffer) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = in.getChannel();
+            final long length = channel.size();
+            if (length < HEADER_SIZE) {
+                throw new IOException("Truncated graph snapshot " + file);
+            }
+            final ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (data.getInt() != MAGIC || data.getInt() != VERSION) {
+                throw new IOException("Not a graph snapshot: " + file);
+            }
+            final int seriesCount = data.getInt();
+            final int size = data.getInt();
+            if (seriesCount != buffer.seriesCount()
+                    || length != HEADER_SIZE + (long) size * (8 + 4 * seriesCount)) {
+                throw new IOException("Graph snapshot " + file + " does not match the buffer");
+            }
+            final GraphSnapshot snapshot = new GraphSnapshot(data.getLong(), data.getLong());
+            final float[] values = new float[seriesCount];
+            for (int i = 0; i < size; i++) {
+                final double x = data.getDouble();
+                for (int series = 0; series < seriesCount; series++) {
+                    values[series] = data.getFloat();
+                }
+                buffer.addValues(x, values);
+            }
+            return snapshot;
+        } finally {
+            in.close();
+        }
+    }
+}
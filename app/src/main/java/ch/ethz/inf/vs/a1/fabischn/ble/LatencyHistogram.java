@@ -0,0 +1,183 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in fixed buckets, like HdrHistogram: every power of two is split into
+ * {@code 2^SUB_BUCKET_BITS} equal buckets, so a bucket is never wider than 1/16 of the values it
+ * holds, from nanoseconds up to about half an hour. Longer durations count towards the last
+ * bucket, negative ones towards the first.
+ *
+ * <p>{@link #record} is lock-free and does not allocate: one atomic increment of a bucket. It may
+ * be called from any number of threads; {@link #recordSingleWriter} is cheaper for a histogram
+ * only one thread records to at a time. There is no separate total, the mean is taken from the
+ * buckets. Reads are not atomic as a whole; taken while values are recorded, they may be off by
+ * the values recorded meanwhile.
+ */
+public final class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // The highest bit of the longest duration kept apart, 2^41 ns is about 37 minutes.
+    private static final int MAX_EXPONENT = 40;
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * Counts one duration.
+     */
+    public void record(long nanos) {
+        mCounts.incrementAndGet(bucketOf(Math.max(0, nanos)));
+    }
+
+    /**
+     * Counts one duration with a plain read and an ordered write instead of an atomic increment.
+     * Only for a histogram that one thread at a time records to: concurrent calls lose counts.
+     */
+    public void recordSingleWriter(long nanos) {
+        final int bucket = bucketOf(Math.max(0, nanos));
+        mCounts.lazySet(bucket, mCounts.get(bucket) + 1);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return The mean of the recorded durations, each taken as the middle of its bucket, so
+     *         within 1/32 of the exact mean. 0 if nothing was recorded.
+     */
+    public long getMeanNanos() {
+        long count = 0;
+        double total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            final long n = mCounts.get(i);
+            if (n != 0) {
+                count += n;
+                total += (double) n * middleOf(i);
+            }
+        }
+        return count == 0 ? 0 : Math.round(total / count);
+    }
+
+    /**
+     * Returns the duration that {@code percentile} percent of the recorded durations do not
+     * exceed, rounded up to the end of its bucket.
+     *
+     * @param percentile Between 0 and 100.
+     * @return 0 if nothing was recorded.
+     */
+    public long getPercentileNanos(double percentile) {
+        final long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(
+                Math.min(100, Math.max(0, percentile)) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(BUCKET_COUNT - 1);
+    }
+
+    /**
+     * @return The longest recorded duration, rounded up to the end of its bucket, or 0.
+     */
+    public long getMaxNanos() {
+        for (int i = BUCKET_COUNT - 1; i >= 0; i--) {
+            if (mCounts.get(i) != 0) {
+                return upperBoundOf(i);
+            }
+        }
+        return 0;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+    }
+
+    /**
+     * Appends the count, mean, median, 90th and 99th percentile and maximum.
+     */
+    public StringBuilder appendTo(StringBuilder builder) {
+        return builder.append("n=").append(getCount())
+                .append(" mean=").append(formatNanos(getMeanNanos()))
+                .append(" p50=").append(formatNanos(getPercentileNanos(50)))
+                .append(" p90=").append(formatNanos(getPercentileNanos(90)))
+                .append(" p99=").append(formatNanos(getPercentileNanos(99)))
+                .append(" max=").append(formatNanos(getMaxNanos()));
+    }
+
+    @Override
+    public String toString() {
+        return appendTo(new StringBuilder()).toString();
+    }
+
+    /**
+     * Formats a duration with three significant digits, in the largest unit it fills.
+     */
+    static String formatNanos(long nanos) {
+        if (nanos < 1000) {
+            return nanos + "ns";
+        } else if (nanos < 1000000) {
+            return format(nanos / 1e3) + "us";
+        } else if (nanos < 1000000000) {
+            return format(nanos / 1e6) + "ms";
+        }
+        return format(nanos / 1e9) + "s";
+    }
+
+    private static String format(double value) {
+        return String.format(value < 10 ? "%.2f" : value < 100 ? "%.1f" : "%.0f", value);
+    }
+
+    // Durations below 2 * SUB_BUCKETS get a bucket each. Above, the bucket is picked by the
+    // position of the highest bit and the SUB_BUCKET_BITS bits below it.
+    static int bucketOf(long nanos) {
+        final int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent <= SUB_BUCKET_BITS) {
+            return (int) nanos;
+        }
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        final int shift = exponent - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) (nanos >>> shift) - SUB_BUCKETS;
+    }
+
+    static long lowerBoundOf(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+        return (long) ((bucket & (SUB_BUCKETS - 1)) + SUB_BUCKETS) << shift;
+    }
+
+    static long upperBoundOf(int bucket) {
+        return lowerBoundOf(bucket + 1) - 1;
+    }
+
+    // The last bucket has no end, its durations are taken as its lower bound.
+    private static long middleOf(int bucket) {
+        if (bucket == BUCKET_COUNT - 1) {
+            return lowerBoundOf(bucket);
+        }
+        return (lowerBoundOf(bucket) + upperBoundOf(bucket)) / 2;
+    }
+}
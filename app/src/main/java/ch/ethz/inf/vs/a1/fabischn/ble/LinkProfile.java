@@ -0,0 +1,91 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+/**
+ * Connection parameters requested from a device once its services are discovered: the
+ * connection interval, through the connection priority, and the ATT MTU. Live streaming and log
+ * downloads want the short interval and large packets, idle monitoring the long interval.
+ */
+public final class LinkProfile {
+
+    // The values of BluetoothGatt.CONNECTION_PRIORITY_*.
+    static final int PRIORITY_BALANCED = 0;
+    static final int PRIORITY_HIGH = 1;
+    static final int PRIORITY_LOW_POWER = 2;
+
+    // The ATT MTU every link starts with, 20 bytes of payload per notification.
+    public static final int DEFAULT_MTU = 23;
+    // Requested MTU of 0 keeps what the link has.
+    private static final int KEEP_MTU = 0;
+
+    public static final int ID_HIGH_THROUGHPUT = 0;
+    public static final int ID_BALANCED = 1;
+    public static final int ID_LOW_POWER = 2;
+    public static final int COUNT = 3;
+
+    /**
+     * 7.5 ms to 15 ms interval and the largest MTU most stacks accept.
+     */
+    public static final LinkProfile HIGH_THROUGHPUT =
+            new LinkProfile(ID_HIGH_THROUGHPUT, "high throughput", PRIORITY_HIGH, 247);
+    /**
+     * 30 ms to 50 ms interval, the Android default.
+     */
+    public static final LinkProfile BALANCED =
+            new LinkProfile(ID_BALANCED, "balanced", PRIORITY_BALANCED, KEEP_MTU);
+    /**
+     * 100 ms to 125 ms interval, for devices that only report now and then.
+     */
+    public static final LinkProfile LOW_POWER =
+            new LinkProfile(ID_LOW_POWER, "low power", PRIORITY_LOW_POWER, KEEP_MTU);
+
+    private static final LinkProfile[] PROFILES = {HIGH_THROUGHPUT, BALANCED, LOW_POWER};
+
+    private final int mId;
+    private final String mName;
+    private final int mConnectionPriority;
+    private final int mMtu;
+
+    private LinkProfile(int id, String name, int connectionPriority, int mtu) {
+        mId = id;
+        mName = name;
+        mConnectionPriority = connectionPriority;
+        mMtu = mtu;
+    }
+
+    /**
+     * @param id One of the {@code ID_*} constants.
+     */
+    public static LinkProfile fromId(int id) {
+        if (id < 0 || id >= PROFILES.length) {
+            throw new IllegalArgumentException("Unknown link profile " + id);
+        }
+        return PROFILES[id];
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return One of the {@code BluetoothGatt.CONNECTION_PRIORITY_*} values.
+     */
+    public int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    /**
+     * @return The MTU to request, or 0 to keep the current one.
+     */
+    public int getMtu() {
+        return mMtu;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
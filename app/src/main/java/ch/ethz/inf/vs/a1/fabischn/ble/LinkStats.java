@@ -0,0 +1,138 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+/**
+ * What a link delivered under each {@link LinkProfile}: the sample rate, and the gaps between
+ * notifications, which follow the connection interval. Time only counts towards the profile
+ * that was applied at the time. All methods are thread safe.
+ */
+public final class LinkStats {
+
+    private final long[] mSamples = new long[LinkProfile.COUNT];
+    private final long[] mActiveNanos = new long[LinkProfile.COUNT];
+    private final long[] mGapCount = new long[LinkProfile.COUNT];
+    private final long[] mTotalGapNanos = new long[LinkProfile.COUNT];
+    private final long[] mMaxGapNanos = new long[LinkProfile.COUNT];
+    private final long[] mSetupNanos = new long[LinkProfile.COUNT];
+
+    private int mProfile = -1;
+    private long mProfileSinceNanos;
+    private long mRequestedAtNanos;
+    private long mLastSampleNanos;
+    private int mMtu = LinkProfile.DEFAULT_MTU;
+
+    /**
+     * Called when the parameters of a profile are requested.
+     */
+    public synchronized void onProfileRequested(LinkProfile profile, long nowNanos) {
+        closeInterval(nowNanos);
+        mProfile = profile.getId();
+        mProfileSinceNanos = nowNanos;
+        mRequestedAtNanos = nowNanos;
+        mLastSampleNanos = 0;
+    }
+
+    /**
+     * Called once the stack accepted the last request of the profile.
+     */
+    public synchronized void onProfileApplied(long nowNanos) {
+        if (mProfile >= 0) {
+            mSetupNanos[mProfile] = nowNanos - mRequestedAtNanos;
+        }
+    }
+
+    public synchronized void onMtuChanged(int mtu) {
+        mMtu = mtu;
+    }
+
+    /**
+     * Counts a sample. Does not allocate.
+     */
+    public synchronized void onSample(long nowNanos) {
+        if (mProfile < 0) {
+            return;
+        }
+        mSamples[mProfile]++;
+        if (mLastSampleNanos != 0) {
+            final long gap = nowNanos - mLastSampleNanos;
+            mGapCount[mProfile]++;
+            mTotalGapNanos[mProfile] += gap;
+            mMaxGapNanos[mProfile] = Math.max(mMaxGapNanos[mProfile], gap);
+        }
+        mLastSampleNanos = nowNanos;
+    }
+
+    /**
+     * Stops counting time, for example on disconnect. The next profile request starts it again.
+     */
+    public synchronized void onDisconnected(long nowNanos) {
+        closeInterval(nowNanos);
+        mProfile = -1;
+        mMtu = LinkProfile.DEFAULT_MTU;
+    }
+
+    /**
+     * @return The current profile, or null if none is applied.
+     */
+    public synchronized LinkProfile getProfile() {
+        return mProfile < 0 ? null : LinkProfile.fromId(mProfile);
+    }
+
+    public synchronized int getMtu() {
+        return mMtu;
+    }
+
+    public synchronized long getSampleCount(LinkProfile profile) {
+        return mSamples[profile.getId()];
+    }
+
+    public synchronized double getSamplesPerSecond(LinkProfile profile, long nowNanos) {
+        final long active = getActiveNanos(profile.getId(), nowNanos);
+        return active <= 0 ? 0 : mSamples[profile.getId()] * 1e9 / active;
+    }
+
+    /**
+     * @return The mean time between two samples under the profile.
+     */
+    public synchronized long getMeanGapNanos(LinkProfile profile) {
+        final int id = profile.getId();
+        return mGapCount[id] == 0 ? 0 : mTotalGapNanos[id] / mGapCount[id];
+    }
+
+    public synchronized long getMaxGapNanos(LinkProfile profile) {
+        return mMaxGapNanos[profile.getId()];
+    }
+
+    /**
+     * @return How long the stack took to accept the profile the last time it was requested.
+     */
+    public synchronized long getSetupNanos(LinkProfile profile) {
+        return mSetupNanos[profile.getId()];
+    }
+
+    public synchronized String toString(long nowNanos) {
+        final StringBuilder builder = new StringBuilder("mtu=").append(mMtu);
+        for (int id = 0; id < LinkProfile.COUNT; id++) {
+            final LinkProfile profile = LinkProfile.fromId(id);
+            if (mSamples[id] == 0 && id != mProfile) {
+                continue;
+            }
+            builder.append(' ').append(profile.getName().replace(' ', '_'))
+                    .append(": samples=").append(mSamples[id])
+                    .append(String.format(" rate=%.2f/s", getSamplesPerSecond(profile, nowNanos)))
+                    .append(" gap=").append(getMeanGapNanos(profile) / 1000000)
+                    .append("ms max=").append(mMaxGapNanos[id] / 1000000)
+                    .append("ms setup=").append(mSetupNanos[id] / 1000000).append("ms");
+        }
+        return builder.toString();
+    }
+
+    private long getActiveNanos(int id, long nowNanos) {
+        return mActiveNanos[id] + (id == mProfile ? nowNanos - mProfileSinceNanos : 0);
+    }
+
+    private void closeInterval(long nowNanos) {
+        if (mProfile >= 0) {
+            mActiveNanos[mProfile] += nowNanos - mProfileSinceNanos;
+        }
+    }
+}
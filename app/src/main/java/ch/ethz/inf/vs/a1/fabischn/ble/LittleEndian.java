@@ -0,0 +1,77 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Little-endian reads, as used by Bluetooth, from byte arrays and from {@link ByteBuffer} views.
+ * Values are assembled byte by byte, so the order of a buffer does not matter and nothing is
+ * allocated.
+ */
+public final class LittleEndian {
+
+    private LittleEndian() {
+    }
+
+    public static int getUnsignedShort(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8;
+    }
+
+    public static int getInt(byte[] data, int offset) {
+        return (data[offset] & 0xff)
+                | (data[offset + 1] & 0xff) << 8
+                | (data[offset + 2] & 0xff) << 16
+                | (data[offset + 3] & 0xff) << 24;
+    }
+
+    public static long getLong(byte[] data, int offset) {
+        return (getInt(data, offset) & 0xffffffffL) | (long) getInt(data, offset + 4) << 32;
+    }
+
+    /**
+     * @return The IEEE 754 float at {@code offset}.
+     */
+    public static float getFloat(byte[] data, int offset) {
+        return Float.intBitsToFloat(getInt(data, offset));
+    }
+
+    public static byte[] fromInt(int value) {
+        return new byte[]{(byte) value, (byte) (value >>> 8), (byte) (value >>> 16),
+                (byte) (value >>> 24)};
+    }
+
+    public static byte[] fromFloat(float value) {
+        return fromInt(Float.floatToIntBits(value));
+    }
+
+    public static byte[] fromLong(long value) {
+        final byte[] data = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            data[i] = (byte) (value >>> (8 * i));
+        }
+        return data;
+    }
+
+    /**
+     * Reads at an absolute index, the position of the buffer is left alone.
+     */
+    public static int getUnsignedShort(ByteBuffer buffer, int index) {
+        return (buffer.get(index) & 0xff) | (buffer.get(index + 1) & 0xff) << 8;
+    }
+
+    /**
+     * Reads at an absolute index, the position of the buffer is left alone.
+     */
+    public static int getInt(ByteBuffer buffer, int index) {
+        return (buffer.get(index) & 0xff)
+                | (buffer.get(index + 1) & 0xff) << 8
+                | (buffer.get(index + 2) & 0xff) << 16
+                | (buffer.get(index + 3) & 0xff) << 24;
+    }
+
+    /**
+     * Reads at an absolute index, the position of the buffer is left alone.
+     */
+    public static float getFloat(ByteBuffer buffer, int index) {
+        return Float.intBitsToFloat(getInt(buffer, index));
+    }
+}
@@ -0,0 +1,374 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Downloads the history a Smart Humigadget logged while nobody was listening, and appends it to
+ * the {@link SampleStore}.
+ *
+ * <p>The logger keeps a sample every interval, on a grid that ends at its newest timestamp.
+ * Asked for a time range, it sends the humidity and the temperature samples in it as
+ * notifications on the two characteristics, newest first: a little-endian uint32 sequence
+ * number, counted from the newest sample of the range, followed by as many floats as the MTU
+ * allows. The download is cut into chunks that are fetched oldest first. A chunk is only
+ * written to the store once both streams are complete, so the last timestamp in the store is
+ * the checkpoint: an interrupted download resumes after it. Samples lost on the way are asked
+ * for again, one run of holes at a time. Packets carry no request id, so a new request is only
+ * issued once the previous one has been sent in full or the link went quiet.
+ *
+ * <p>All methods are thread safe, notifications may arrive on any thread.
+ */
+public final class LogSync {
+
+    static final int CHUNK_SAMPLES = 4096;
+    static final long IDLE_TIMEOUT_MILLIS = 1000;
+    // Requests in a row that brought nothing new before the download gives up.
+    static final int MAX_STALLED_REQUESTS = 8;
+    // Holes at most this far apart are asked for in one request.
+    private static final int MERGE_GAP = 16;
+    private static final int HEADER_SIZE = 4;
+    private static final int CHANNELS = 2;
+
+    /**
+     * The logger of the device.
+     */
+    public interface Peripheral {
+        /**
+         * Asks for the logged samples with timestamps in {@code [oldestMillis, newestMillis]}.
+         *
+         * @return false if the request could not be issued.
+         */
+        boolean requestRange(long oldestMillis, long newestMillis);
+    }
+
+    public interface Listener {
+        /**
+         * Called once when the download ends.
+         *
+         * @param complete false if it was stopped or gave up, it can be resumed later.
+         */
+        void onFinished(LogSync sync, boolean complete);
+    }
+
+    private final GattOperationQueue.Scheduler mScheduler;
+    private final Peripheral mPeripheral;
+    private final SampleStore mStore;
+    private final String mAddress;
+    private final Listener mListener;
+
+    private boolean mRunning;
+    private boolean mFinished;
+    private long mIntervalMillis;
+    private long mNewestMillis;
+    // Grid index, counted back from mNewestMillis, of the oldest sample still to download.
+    private long mRemainingIndex;
+    private long mTotalCount;
+    private long mCommittedCount;
+
+    // The chunk being downloaded: mChunkCount samples, the newest at mChunkNewestMillis.
+    private long mChunkNewestMillis;
+    private int mChunkCount;
+    private final float[][] mValues = new float[CHANNELS][CHUNK_SAMPLES];
+    private final boolean[][] mReceived = new boolean[CHANNELS][CHUNK_SAMPLES];
+    private int mReceivedCount;
+    // Chunk indices of sequence number 0 and of the last sample of the request in flight.
+    private int mRequestOffset;
+    private int mRequestOldest;
+    private int mReceivedSinceRequest;
+    private int mStalledRequests;
+    // Whether the last packet of the request in flight arrived, per stream.
+    private final boolean[] mRequestDone = new boolean[CHANNELS];
+    // The chunk is complete, but the rest of its request is still on the way.
+    private boolean mDraining;
+
+    private long mPacketCount;
+    private long mDuplicateCount;
+    private long mRetryCount;
+
+    private final Runnable mIdleTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onIdle();
+        }
+    };
+
+    public LogSync(GattOperationQueue.Scheduler scheduler, Peripheral peripheral,
+                   SampleStore store, String address, Listener listener) {
+        mScheduler = scheduler;
+        mPeripheral = peripheral;
+        mStore = store;
+        mAddress = address;
+        mListener = listener;
+    }
+
+    /**
+     * Starts downloading everything the logger holds after the checkpoint in the store.
+     *
+     * @param oldestMillis The timestamp of the oldest sample the logger holds.
+     * @param newestMillis The timestamp of the newest sample the logger holds.
+     * @param intervalMillis The logging interval.
+     */
+    public synchronized void start(long oldestMillis, long newestMillis, long intervalMillis)
+            throws IOException {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Invalid interval " + intervalMillis);
+        }
+        if (mRunning || mFinished) {
+            throw new IllegalStateException("Already started");
+        }
+        final long checkpoint = Math.min(
+                mStore.getLastTimestamp(mAddress, SensirionSHT31UUIDS.UUID_HUMIDITY_CHARACTERISTIC),
+                mStore.getLastTimestamp(mAddress,
+                        SensirionSHT31UUIDS.UUID_TEMPERATURE_CHARACTERISTIC));
+        final long from = Math.max(oldestMillis, checkpoint + 1);
+        mIntervalMillis = intervalMillis;
+        mNewestMillis = newestMillis;
+        mRemainingIndex = from > newestMillis ? -1 : (newestMillis - from) / intervalMillis;
+        mTotalCount = mRemainingIndex + 1;
+        mCommittedCount = 0;
+        mRunning = true;
+        nextChunk();
+    }
+
+    /**
+     * Stops the download, or cancels it if it did not start yet. Complete chunks stay in the
+     * store.
+     */
+    public void stop() {
+        finish(false);
+    }
+
+    /**
+     * Hands a notification of one of the SHT31 characteristics to the download.
+     *
+     * @param characteristicId One of the {@code SensirionSHT31UUIDS.CHARACTERISTIC_*} ids.
+     * @return false if the notification is not a log packet, for example a live value.
+     */
+    public boolean onPacket(int characteristicId, byte[] data) {
+        return onPacket(characteristicId, data, data == null ? 0 : data.length);
+    }
+
+    /**
+     * Like {@link #onPacket(int, byte[])}, for a packet held in the first {@code length} bytes
+     * of a buffer.
+     */
+    public synchronized boolean onPacket(int characteristicId, byte[] data, int length) {
+        if (!mRunning || data == null || length < HEADER_SIZE + 4
+                || characteristicId < 0 || characteristicId >= CHANNELS) {
+            return false;
+        }
+        mPacketCount++;
+        final long sequence = LittleEndian.getInt(data, 0) & 0xffffffffL;
+        final int values = (length - HEADER_SIZE) / 4;
+        if (mRequestOffset + sequence + values - 1 >= mRequestOldest) {
+            mRequestDone[characteristicId] = true;
+        }
+        if (mDraining) {
+            mDuplicateCount += values;
+            if (isRequestDone()) {
+                mDraining = false;
+                nextChunk();
+            }
+            return true;
+        }
+        final float[] target = mValues[characteristicId];
+        final boolean[] received = mReceived[characteristicId];
+        for (int i = 0; i < values; i++) {
+            final long index = mRequestOffset + sequence + i;
+            if (index >= mChunkCount) {
+                break;
+            }
+            if (received[(int) index]) {
+                mDuplicateCount++;
+                continue;
+            }
+            received[(int) index] = true;
+            target[(int) index] = LittleEndian.getFloat(data, HEADER_SIZE + 4 * i);
+            mReceivedCount++;
+            mReceivedSinceRequest++;
+        }
+        if (mReceivedCount == CHANNELS * mChunkCount) {
+            commitChunk();
+        } else if (isRequestDone()) {
+            // No need to wait for the link to go quiet.
+            requestHoles();
+        } else {
+            mScheduler.cancel(mIdleTimeout);
+            mScheduler.postDelayed(mIdleTimeout, IDLE_TIMEOUT_MILLIS);
+        }
+        return true;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return The number of samples per stream this download started out with.
+     */
+    public synchronized long getTotalCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * @return The number of samples per stream written to the store so far.
+     */
+    public synchronized long getCommittedCount() {
+        return mCommittedCount;
+    }
+
+    public synchronized long getPacketCount() {
+        return mPacketCount;
+    }
+
+    public synchronized long getDuplicateCount() {
+        return mDuplicateCount;
+    }
+
+    /**
+     * @return How often missing samples had to be asked for again.
+     */
+    public synchronized long getRetryCount() {
+        return mRetryCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LogSync " + mAddress + ": " + mCommittedCount + "/" + mTotalCount + " samples, "
+                + mPacketCount + " packets, " + mRetryCount + " retries, " + mDuplicateCount
+                + " duplicates";
+    }
+
+    private void nextChunk() {
+        if (mRemainingIndex < 0) {
+            finish(true);
+            return;
+        }
+        mChunkCount = (int) Math.min(CHUNK_SAMPLES, mRemainingIndex + 1);
+        // The oldest chunk first, so the store only ever grows forward in time.
+        final long chunkNewestIndex = mRemainingIndex - mChunkCount + 1;
+        mChunkNewestMillis = mNewestMillis - chunkNewestIndex * mIntervalMillis;
+        mReceivedCount = 0;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            Arrays.fill(mReceived[channel], 0, mChunkCount, false);
+        }
+        mStalledRequests = 0;
+        request(0, mChunkCount - 1);
+    }
+
+    // Requests the chunk samples from index `newest` back to index `oldest`.
+    private void request(int newest, int oldest) {
+        mReceivedSinceRequest = 0;
+        mRequestOffset = newest;
+        mRequestOldest = oldest;
+        Arrays.fill(mRequestDone, false);
+        mScheduler.cancel(mIdleTimeout);
+        mScheduler.postDelayed(mIdleTimeout, IDLE_TIMEOUT_MILLIS);
+        if (!mPeripheral.requestRange(mChunkNewestMillis - oldest * mIntervalMillis,
+                mChunkNewestMillis - newest * mIntervalMillis)) {
+            finish(false);
+        }
+    }
+
+    private synchronized void onIdle() {
+        if (!mRunning) {
+            return;
+        }
+        if (mDraining) {
+            // The tail of the request got lost.
+            mDraining = false;
+            nextChunk();
+            return;
+        }
+        requestHoles();
+    }
+
+    // Asks again for the first run of holes, holes close to each other are merged.
+    private void requestHoles() {
+        mStalledRequests = mReceivedSinceRequest == 0 ? mStalledRequests + 1 : 0;
+        if (mStalledRequests >= MAX_STALLED_REQUESTS) {
+            finish(false);
+            return;
+        }
+        int newest = 0;
+        while (!isHole(newest)) {
+            newest++;
+        }
+        int oldest = newest;
+        for (int i = newest + 1; i < mChunkCount && i - oldest <= MERGE_GAP; i++) {
+            if (isHole(i)) {
+                oldest = i;
+            }
+        }
+        mRetryCount++;
+        request(newest, oldest);
+    }
+
+    private boolean isHole(int index) {
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if (!mReceived[channel][index]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void commitChunk() {
+        mScheduler.cancel(mIdleTimeout);
+        try {
+            for (int i = mChunkCount - 1; i >= 0; i--) {
+                final long timestamp = mChunkNewestMillis - i * mIntervalMillis;
+                append(SensirionSHT31UUIDS.UUID_HUMIDITY_CHARACTERISTIC, timestamp,
+                        mValues[SensirionSHT31UUIDS.CHARACTERISTIC_HUMIDITY][i]);
+                append(SensirionSHT31UUIDS.UUID_TEMPERATURE_CHARACTERISTIC, timestamp,
+                        mValues[SensirionSHT31UUIDS.CHARACTERISTIC_TEMPERATURE][i]);
+            }
+            mStore.flush();
+        } catch (IOException e) {
+            finish(false);
+            return;
+        }
+        mCommittedCount += mChunkCount;
+        mRemainingIndex -= mChunkCount;
+        if (isRequestDone()) {
+            nextChunk();
+        } else {
+            mDraining = true;
+            mScheduler.postDelayed(mIdleTimeout, IDLE_TIMEOUT_MILLIS);
+        }
+    }
+
+    private boolean isRequestDone() {
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if (!mRequestDone[channel]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void append(UUID characteristic, long timestamp, float value) throws IOException {
+        mStore.append(mAddress, characteristic, timestamp, value);
+    }
+
+    private void finish(boolean complete) {
+        synchronized (this) {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+            mRunning = false;
+            mDraining = false;
+            mScheduler.cancel(mIdleTimeout);
+        }
+        if (mListener != null) {
+            mListener.onFinished(this, complete);
+        }
+    }
+}
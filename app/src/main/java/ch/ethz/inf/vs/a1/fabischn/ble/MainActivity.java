@@ -21,17 +21,17 @@ import android.app.ListActivity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.le.BluetoothLeScanner;
-import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
-import android.bluetooth.le.ScanSettings;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
-import android.os.Handler;
 import android.support.v4.app.ActivityCompat;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -44,30 +44,57 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
-import java.util.List;
+import java.util.Map;
 
 public class MainActivity extends ListActivity {
+    private final static String TAG = MainActivity.class.getSimpleName();
 
     private BluetoothAdapter mBluetoothAdapter;
-    private BluetoothLeScanner mBluetoothLeScanner;
-    private ScanFilter mScanFilter;
-    private ArrayList<ScanFilter> mScanFilters;
-    private ScanSettings mScanSettings;
     private final static int REQUEST_ENABLE_BT = 1;
-    private static final long SCAN_PERIOD = 10000;
+    // Distinct devices buffered between two frames.
+    private static final int MAX_PENDING_SCAN_RESULTS = 256;
 
     private LeDeviceListAdapter mLeDeviceListAdapter;
-    private boolean mScanning;
-    private Handler mHandler;
+    // Scanning and the devices found, kept across configuration changes.
+    private ScanSession mScanSession;
+    // Hands scan results to the list once per frame, the latest result of every device.
+    private CoalescingDispatcher<String, ScanResult> mScanResultDispatcher;
+    // Scratch space for the rows changed by one batch of scan results.
+    private int[] mChangedPositions = new int[0];
+    // Bound while the activity exists. The samples read from advertisements in passive mode go
+    // through the service, and the devices whose link it lost are scanned for.
+    private BluetoothLeService mBluetoothLeService;
+    private boolean mServiceBound;
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder service) {
+            mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
+            updateAdvertisementParser();
+            updateScanTargets();
+        }
 
-    // Stops scanning after 10 seconds.
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mBluetoothLeService = null;
+            mScanSession.setAdvertisementParser(null);
+        }
+    };
 
+    // Links coming and going change which of the supervised devices are missing.
+    private final BroadcastReceiver mConnectionReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            updateScanTargets();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         getActionBar().setTitle(R.string.title_devices);
-        mHandler = new Handler();
+        mScanResultDispatcher = new CoalescingDispatcher<String, ScanResult>(
+                new ChoreographerFrameScheduler(), mScanResultReceiver, MAX_PENDING_SCAN_RESULTS);
 
         // TODO when bluetooth is off, concurrently the onCreate keeps running.
         if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
@@ -102,20 +129,14 @@ public class MainActivity extends ListActivity {
             ActivityCompat.requestPermissions(this, new String[]{android.Manifest.permission.ACCESS_FINE_LOCATION}, 1);
         }
 
-        if (mBluetoothAdapter != null){
-            mBluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
+        mScanSession = (ScanSession) getLastNonConfigurationInstance();
+        if (mScanSession == null) {
+            mScanSession = new ScanSession(mBluetoothAdapter);
         }
-        ScanFilter.Builder filterBuilder = new ScanFilter.Builder();
-        mScanFilter = filterBuilder.setDeviceName("Smart Humigadget").build();
-        ScanSettings.Builder settingsBuilder = new ScanSettings.Builder();
-        mScanSettings = settingsBuilder
-                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-//                .setMatchMode(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
-//                .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
-                .build();
-        mScanFilters = new ArrayList<ScanFilter>();
-        mScanFilters.add(mScanFilter);
-
+        mScanSession.setResultDispatcher(mScanResultDispatcher);
+        bindLeService();
+        mLeDeviceListAdapter = new LeDeviceListAdapter(mScanSession);
+        setListAdapter(mLeDeviceListAdapter);
     }
 
     public boolean checkLocationPermission()
@@ -162,10 +183,15 @@ public class MainActivity extends ListActivity {
             ActivityCompat.requestPermissions(this, new String[]{android.Manifest.permission.ACCESS_FINE_LOCATION}, 1);
         }
 
-        // Initializes list view adapter.
-        mLeDeviceListAdapter = new LeDeviceListAdapter();
-        setListAdapter(mLeDeviceListAdapter);
-        scanLeDevice(true);
+        mLeDeviceListAdapter.notifyDataSetChanged();
+        final IntentFilter connectionFilter = new IntentFilter();
+        connectionFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
+        connectionFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
+        registerReceiver(mConnectionReceiver, connectionFilter);
+        updateScanTargets();
+        // Picks up the running scan after a rotation.
+        mScanSession.start();
+        invalidateOptionsMenu();
     }
 
 
@@ -183,13 +209,65 @@ public class MainActivity extends ListActivity {
     @Override
     protected void onPause() {
         super.onPause();
-        scanLeDevice(false);
-        mLeDeviceListAdapter.clear();
+        unregisterReceiver(mConnectionReceiver);
+        if (!isChangingConfigurations()) {
+            mScanSession.stop();
+        }
+        mScanResultDispatcher.clear();
+        Log.d(TAG, "Scan result delivery: " + mScanResultDispatcher);
+        mScanSession.logMetrics();
+    }
+
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        return mScanSession;
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mScanSession != null) {
+            mScanSession.setResultDispatcher(null);
+            unbindLeService();
+        }
+    }
+
+    private void bindLeService() {
+        if (!mServiceBound) {
+            mServiceBound = bindService(new Intent(this, BluetoothLeService.class),
+                    mServiceConnection, BIND_AUTO_CREATE);
+        }
+    }
+
+    private void unbindLeService() {
+        mScanSession.setAdvertisementParser(null);
+        if (mServiceBound) {
+            unbindService(mServiceConnection);
+            mServiceBound = false;
+        }
+        mBluetoothLeService = null;
+    }
+
+    // Parses the advertisements into the service in passive mode.
+    private void updateAdvertisementParser() {
+        mScanSession.setAdvertisementParser(mBluetoothLeService != null && mScanSession.isPassive()
+                ? new AdvertisementParser(mBluetoothLeService.getSampleSink()) : null);
+    }
+
+    // Makes the scan burst for the devices the service supervises but is not connected to, so
+    // they are found as soon as they are back in range.
+    private void updateScanTargets() {
+        if (mBluetoothLeService == null) {
+            return;
+        }
+        final ArrayList<String> missing = new ArrayList<String>();
+        for (String address : mBluetoothLeService.getReconnectSupervisor().getWatched()) {
+            if (mBluetoothLeService.getConnectionState(address)
+                    != ConnectionManager.STATE_CONNECTED) {
+                missing.add(address);
+            }
+        }
+        mScanSession.setTargets(missing);
     }
 
     @Override
@@ -199,9 +277,8 @@ public class MainActivity extends ListActivity {
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
-        Log.v("Menu Created:", "onCreateOptionsMenu");
         getMenuInflater().inflate(R.menu.main, menu);
-        if (!mScanning) {
+        if (!mScanSession.isRunning()) {
             menu.findItem(R.id.menu_stop).setVisible(false);
             menu.findItem(R.id.menu_scan).setVisible(true);
             menu.findItem(R.id.menu_refresh).setActionView(null);
@@ -211,6 +288,8 @@ public class MainActivity extends ListActivity {
             menu.findItem(R.id.menu_refresh).setActionView(
                     R.layout.actionbar_indeterminate_progress);
         }
+        menu.findItem(R.id.menu_batch_scan).setChecked(mScanSession.isBatchScan());
+        menu.findItem(R.id.menu_passive).setChecked(mScanSession.isPassive());
         return true;
     }
 
@@ -219,17 +298,23 @@ public class MainActivity extends ListActivity {
         switch (item.getItemId()) {
             case R.id.menu_scan:
                 mLeDeviceListAdapter.clear();
-                scanLeDevice(true);
+                mScanSession.start();
                 break;
             case R.id.menu_stop:
-                scanLeDevice(false);
+                mScanSession.stop();
+                break;
+            case R.id.menu_batch_scan:
+                mScanSession.setBatchScan(!mScanSession.isBatchScan());
+                break;
+            case R.id.menu_passive:
+                mScanSession.setPassive(!mScanSession.isPassive());
+                updateAdvertisementParser();
                 break;
         }
+        invalidateOptionsMenu();
         return true;
     }
 
-
-
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
         final BluetoothDevice device = mLeDeviceListAdapter.getDevice(position);
@@ -237,73 +322,62 @@ public class MainActivity extends ListActivity {
         final Intent intent = new Intent(this, DeviceControlActivity.class);
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
-        if (mScanning) {
-            // mBluetoothAdapter.stopLeScan(mLeScanCallback);
-            mBluetoothLeScanner.stopScan(mScanCallback);
-            mScanning = false;
-        }
+        mScanSession.stop();
         startActivity(intent);
     }
 
-    private void scanLeDevice(final boolean enable) {
-        if (enable) {
-            // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mBluetoothLeScanner.stopScan(mScanCallback);
-                    invalidateOptionsMenu();
-                }
-            }, SCAN_PERIOD);
-
-            mScanning = true;
-            mBluetoothLeScanner.startScan(mScanFilters,mScanSettings,mScanCallback);
-        } else {
-            mScanning = false;
-            mBluetoothLeScanner.stopScan(mScanCallback);
-        }
-        invalidateOptionsMenu();
-    }
-
-
     private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mLeDevices;
+        private final ScanSession mSession;
+        private final DeviceRegistry<BluetoothDevice> mDevices;
         private LayoutInflater mInflator;
 
-        public LeDeviceListAdapter() {
+        public LeDeviceListAdapter(ScanSession session) {
             super();
-            mLeDevices = new ArrayList<BluetoothDevice>();
+            mSession = session;
+            mDevices = session.getDevices();
             mInflator = MainActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if(!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
-            }
+        /**
+         * Records a scan result.
+         *
+         * @return A combination of the {@code DeviceRegistry.CHANGE_*} flags.
+         */
+        public int addResult(ScanResult result) {
+            return mSession.addResult(result);
+        }
+
+        public int indexOf(String address) {
+            return mDevices.indexOf(address);
         }
 
         public BluetoothDevice getDevice(int position) {
-            return mLeDevices.get(position);
+            return mDevices.get(position).getDevice();
         }
 
         public void clear() {
-            mLeDevices.clear();
+            mDevices.clear();
+            notifyDataSetChanged();
         }
 
         @Override
         public int getCount() {
-            return mLeDevices.size();
+            return mDevices.size();
         }
 
         @Override
         public Object getItem(int i) {
-            return mLeDevices.get(i);
+            return mDevices.get(i).getDevice();
         }
 
         @Override
         public long getItemId(int i) {
-            return i;
+            return mDevices.get(i).getId();
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
         }
 
         @Override
@@ -315,51 +389,69 @@ public class MainActivity extends ListActivity {
                 viewHolder = new ViewHolder();
                 viewHolder.deviceAddress = (TextView) view.findViewById(R.id.device_address);
                 viewHolder.deviceName = (TextView) view.findViewById(R.id.device_name);
+                viewHolder.deviceRssi = (TextView) view.findViewById(R.id.device_rssi);
                 view.setTag(viewHolder);
             } else {
                 viewHolder = (ViewHolder) view.getTag();
             }
 
-            BluetoothDevice device = mLeDevices.get(i);
+            final DeviceRegistry.Entry<BluetoothDevice> device = mDevices.get(i);
             final String deviceName = device.getName();
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
             else
                 viewHolder.deviceName.setText(R.string.unknown_device);
             viewHolder.deviceAddress.setText(device.getAddress());
+            viewHolder.deviceRssi.setText(getString(R.string.rssi_format, device.getRssi()));
 
             return view;
         }
     }
 
-    private ScanCallback mScanCallback = new ScanCallback() {
+    // Called on the main thread once per frame with the devices heard since the last one.
+    private final CoalescingDispatcher.Receiver<String, ScanResult> mScanResultReceiver =
+            new CoalescingDispatcher.Receiver<String, ScanResult>() {
         @Override
-        public void onScanResult(int callbackType, final ScanResult result) {
-            super.onScanResult(callbackType, result);
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mLeDeviceListAdapter.addDevice(result.getDevice());
-                    mLeDeviceListAdapter.notifyDataSetChanged();
+        public void onBatch(Map<String, ScanResult> batch) {
+            if (mLeDeviceListAdapter == null) {
+                return;
+            }
+            boolean added = false;
+            int changed = 0;
+            if (mChangedPositions.length < batch.size()) {
+                mChangedPositions = new int[batch.size()];
+            }
+            for (ScanResult result : batch.values()) {
+                final int changes = mLeDeviceListAdapter.addResult(result);
+                if ((changes & DeviceRegistry.CHANGE_ADDED) != 0) {
+                    added = true;
+                } else if (changes != DeviceRegistry.CHANGE_NONE) {
+                    mChangedPositions[changed++] = mLeDeviceListAdapter.indexOf(
+                            result.getDevice().getAddress());
                 }
-            });
-        }
-
-        @Override
-        public void onBatchScanResults(List<ScanResult> results) {
-            super.onBatchScanResults(results);
-        }
-
-        @Override
-        public void onScanFailed(int errorCode) {
-            super.onScanFailed(errorCode);
-            Toast.makeText(getParent(), R.string.ble_not_supported, Toast.LENGTH_LONG).show();
+            }
+            if (added) {
+                // Rows only get appended and the ids are stable, so the list keeps its place.
+                mLeDeviceListAdapter.notifyDataSetChanged();
+                return;
+            }
+            // Only redraw the visible rows of devices whose name or RSSI changed.
+            final ListView list = getListView();
+            final int first = list.getFirstVisiblePosition();
+            final int last = list.getLastVisiblePosition();
+            for (int i = 0; i < changed; i++) {
+                final int position = mChangedPositions[i];
+                if (position >= first && position <= last) {
+                    mLeDeviceListAdapter.getView(position, list.getChildAt(position - first), list);
+                }
+            }
         }
     };
 
     static class ViewHolder {
         TextView deviceName;
         TextView deviceAddress;
+        TextView deviceRssi;
     }
 }
 
@@ -0,0 +1,216 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+/**
+ * Reduces a range of one series of a {@link SampleSeriesBuffer} to at most a given number of
+ * points for drawing, keeping the minimum and maximum of every bucket so spikes survive.
+ *
+ * <p>Buckets are runs of {@code 2^k} consecutive points, aligned on the buffer's sequence
+ * numbers so they do not move as the buffer scrolls. Every level {@code k} from
+ * {@link #MIN_LEVEL} up is kept as a ring of per-bucket minima and maxima and is brought up to
+ * date incrementally, one point at a time, so a query costs about the number of output points,
+ * no matter how much history the range covers. Not thread safe.
+ */
+public final class MinMaxDownsampler {
+
+    // Finer levels are not worth their memory, the raw points are scanned instead.
+    static final int MIN_LEVEL = 3;
+
+    private final SampleSeriesBuffer mBuffer;
+    private final int mSeries;
+    private final Level[] mLevels;
+    // Sequence number of the next point to fold into the levels.
+    private long mSyncedSequence;
+
+    private static final class Level {
+        final int shift;
+        final int slots;
+        final float[] min;
+        final float[] max;
+        // Offsets of the extremes within their bucket, -1 if the bucket has no value yet.
+        final int[] minOffset;
+        final int[] maxOffset;
+
+        Level(int shift, int slots) {
+            this.shift = shift;
+            this.slots = slots;
+            min = new float[slots];
+            max = new float[slots];
+            minOffset = new int[slots];
+            maxOffset = new int[slots];
+        }
+
+        int slot(long bucket) {
+            return (int) (bucket % slots);
+        }
+    }
+
+    /**
+     * @param buffer The buffer to read from.
+     * @param series The series to downsample.
+     */
+    public MinMaxDownsampler(SampleSeriesBuffer buffer, int series) {
+        mBuffer = buffer;
+        mSeries = series;
+        int levels = 0;
+        while (MIN_LEVEL + levels < 31 && (buffer.capacity() >> (MIN_LEVEL + levels)) > 0) {
+            levels++;
+        }
+        mLevels = new Level[levels];
+        for (int i = 0; i < levels; i++) {
+            final int shift = MIN_LEVEL + i;
+            // One extra slot for the partially filled bucket at either end of the buffer.
+            mLevels[i] = new Level(shift, (buffer.capacity() >> shift) + 2);
+        }
+        mSyncedSequence = buffer.getFirstSequence();
+    }
+
+    /**
+     * Folds the points appended since the last call into the cached levels. Called by
+     * {@link #downsample} as well, so calling it is only needed to spread the work out.
+     */
+    public void update() {
+        final long first = mBuffer.getFirstSequence();
+        final long end = mBuffer.getAppendedCount();
+        if (mSyncedSequence < first) {
+            // Points were evicted before we saw them. Buckets that start before the buffer are
+            // rescanned on query, so just carry on from the oldest point still there.
+            mSyncedSequence = first;
+        }
+        for (long sequence = mSyncedSequence; sequence < end; sequence++) {
+            final float y = mBuffer.getY(mSeries, (int) (sequence - first));
+            for (Level level : mLevels) {
+                final int slot = level.slot(sequence >> level.shift);
+                final int offset = (int) (sequence & ((1 << level.shift) - 1));
+                if (offset == 0) {
+                    level.minOffset[slot] = -1;
+                    level.maxOffset[slot] = -1;
+                }
+                if (Float.isNaN(y)) {
+                    continue;
+                }
+                if (level.minOffset[slot] < 0 || y < level.min[slot]) {
+                    level.min[slot] = y;
+                    level.minOffset[slot] = offset;
+                }
+                if (level.maxOffset[slot] < 0 || y > level.max[slot]) {
+                    level.max[slot] = y;
+                    level.maxOffset[slot] = offset;
+                }
+            }
+        }
+        mSyncedSequence = end;
+    }
+
+    /**
+     * Writes the points of the x range {@code [fromX, toX]} to {@code outX}/{@code outY},
+     * reduced to at most {@code maxPoints}, in x order. One point on either side of the range is
+     * included so the line runs to the edges. NaN values are skipped.
+     *
+     * @param maxPoints The output limit, about twice the width of the graph in pixels. At least 4.
+     * @return The number of points written.
+     */
+    public int downsample(double fromX, double toX, int maxPoints, double[] outX, float[] outY) {
+        if (maxPoints < 4) {
+            throw new IllegalArgumentException("maxPoints must be at least 4: " + maxPoints);
+        }
+        if (outX.length < maxPoints || outY.length < maxPoints) {
+            throw new IllegalArgumentException("Output arrays are shorter than maxPoints");
+        }
+        update();
+        final int size = mBuffer.size();
+        if (size == 0 || toX < fromX) {
+            return 0;
+        }
+        final int from = Math.max(0, mBuffer.indexOfX(fromX) - 1);
+        final int to = Math.min(size, mBuffer.indexOfX(Math.nextUp(toX)) + 1);
+        final int count = to - from;
+        if (count <= maxPoints) {
+            return copyRaw(from, to, outX, outY, 0);
+        }
+
+        final int maxBuckets = maxPoints / 2;
+        Level level = null;
+        for (Level candidate : mLevels) {
+            level = candidate;
+            if ((count >> candidate.shift) + 2 <= maxBuckets) {
+                break;
+            }
+        }
+        if (level == null) {
+            return copyRaw(from, to, outX, outY, 0);
+        }
+
+        final long first = mBuffer.getFirstSequence();
+        final long firstBucket = (first + from) >> level.shift;
+        final long lastBucket = (first + to - 1) >> level.shift;
+        int written = 0;
+        for (long bucket = firstBucket; bucket <= lastBucket && written + 2 <= maxPoints;
+                bucket++) {
+            final long bucketStart = bucket << level.shift;
+            if (bucketStart < first) {
+                // Part of this bucket was evicted, its cached extremes may be gone.
+                written = scanBucket(0, (int) (bucketStart + (1 << level.shift) - first),
+                        outX, outY, written);
+                continue;
+            }
+            final int slot = level.slot(bucket);
+            final int minOffset = level.minOffset[slot];
+            final int maxOffset = level.maxOffset[slot];
+            if (minOffset < 0) {
+                continue;
+            }
+            final int base = (int) (bucketStart - first);
+            written = emit(base + Math.min(minOffset, maxOffset),
+                    base + Math.max(minOffset, maxOffset), outX, outY, written);
+        }
+        return written;
+    }
+
+    private int copyRaw(int from, int to, double[] outX, float[] outY, int written) {
+        for (int i = from; i < to; i++) {
+            final float y = mBuffer.getY(mSeries, i);
+            if (!Float.isNaN(y)) {
+                outX[written] = mBuffer.getX(i);
+                outY[written] = y;
+                written++;
+            }
+        }
+        return written;
+    }
+
+    // Emits the minimum and maximum of [from, to) in the buffer.
+    private int scanBucket(int from, int to, double[] outX, float[] outY, int written) {
+        to = Math.min(to, mBuffer.size());
+        int minIndex = -1;
+        int maxIndex = -1;
+        for (int i = from; i < to; i++) {
+            final float y = mBuffer.getY(mSeries, i);
+            if (Float.isNaN(y)) {
+                continue;
+            }
+            if (minIndex < 0 || y < mBuffer.getY(mSeries, minIndex)) {
+                minIndex = i;
+            }
+            if (maxIndex < 0 || y > mBuffer.getY(mSeries, maxIndex)) {
+                maxIndex = i;
+            }
+        }
+        if (minIndex < 0) {
+            return written;
+        }
+        return emit(Math.min(minIndex, maxIndex), Math.max(minIndex, maxIndex), outX, outY,
+                written);
+    }
+
+    private int emit(int first, int second, double[] outX, float[] outY, int written) {
+        outX[written] = mBuffer.getX(first);
+        outY[written] = mBuffer.getY(mSeries, first);
+        written++;
+        if (second != first) {
+            outX[written] = mBuffer.getX(second);
+            outY[written] = mBuffer.getY(mSeries, second);
+            written++;
+        }
+        return written;
+    }
+}
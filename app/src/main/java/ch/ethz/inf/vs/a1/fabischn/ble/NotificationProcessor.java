@@ -0,0 +1,126 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves the handling of characteristic values off the threads that deliver them. Producers only
+ * copy the value into a {@link NotificationRing} and, if the processing thread is parked, unpark
+ * it; everything else, decoding, storing and fanning out, runs on the processing thread. A slow
+ * consumer therefore fills the ring instead of holding up the Bluetooth stack.
+ *
+ * @param <S> The type of the attribute a value came from.
+ */
+public final class NotificationProcessor<S> implements Runnable {
+
+    private final NotificationRing<S> mRing;
+    private final NotificationRing.Consumer<S> mConsumer;
+    private final Runnable mOnDrained;
+    private final String mName;
+    // Set by the processing thread right before it parks.
+    private final AtomicBoolean mParked = new AtomicBoolean();
+    private volatile boolean mRunning;
+    private volatile Thread mThread;
+
+    /**
+     * @param name The name of the processing thread.
+     */
+    public NotificationProcessor(NotificationRing<S> ring, NotificationRing.Consumer<S> consumer,
+                                 String name) {
+        this(ring, consumer, null, name);
+    }
+
+    /**
+     * @param onDrained Run on the processing thread after every drain that delivered values,
+     *                  before it may park, or null.
+     * @param name The name of the processing thread.
+     */
+    public NotificationProcessor(NotificationRing<S> ring, NotificationRing.Consumer<S> consumer,
+                                 Runnable onDrained, String name) {
+        mRing = ring;
+        mConsumer = consumer;
+        mOnDrained = onDrained;
+        mName = name;
+    }
+
+    /**
+     * Starts the processing thread. Values offered before are kept and processed then.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(this, mName);
+        mThread.start();
+    }
+
+    /**
+     * Stops the processing thread after it delivered what is in the ring, and waits for it.
+     */
+    public synchronized void stop() {
+        final Thread thread = mThread;
+        if (thread == null) {
+            return;
+        }
+        mRunning = false;
+        LockSupport.unpark(thread);
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        mThread = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hands a value to the processing thread. Lock-free, may be called from any thread.
+     *
+     * @return false if the value was dropped, see {@link NotificationRing#offer}.
+     */
+    public boolean offer(String deviceAddress, S source, long timestampNanos, byte[] data) {
+        if (!mRing.offer(deviceAddress, source, timestampNanos, data)) {
+            return false;
+        }
+        if (mParked.get() && mParked.compareAndSet(true, false)) {
+            LockSupport.unpark(mThread);
+        }
+        return true;
+    }
+
+    public NotificationRing<S> getRing() {
+        return mRing;
+    }
+
+    @Override
+    public void run() {
+        while (mRunning) {
+            if (drain() > 0) {
+                continue;
+            }
+            mParked.set(true);
+            // A value published before the flag was set did not unpark us, so look once more.
+            if (mRing.isReadable() || !mRunning) {
+                mParked.set(false);
+                continue;
+            }
+            LockSupport.park(this);
+            mParked.set(false);
+        }
+        drain();
+    }
+
+    private int drain() {
+        final int count = mRing.drain(mConsumer);
+        if (count > 0 && mOnDrained != null) {
+            mOnDrained.run();
+        }
+        return count;
+    }
+}
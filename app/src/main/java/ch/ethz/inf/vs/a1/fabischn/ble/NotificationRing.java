@@ -0,0 +1,171 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-capacity multi-producer/single-consumer ring of raw characteristic values. GATT
+ * callbacks may arrive on several Binder threads, so producers claim slots with a CAS on the
+ * tail and publish them through a per-slot sequence number; no producer ever waits for another
+ * one or for the consumer. Payloads are copied into preallocated per-slot buffers, so neither
+ * {@link #offer} nor {@link #drain} allocate.
+ *
+ * @param <S> The type of the attribute a value came from, {@code BluetoothGattCharacteristic}
+ *            on a device.
+ */
+public final class NotificationRing<S> {
+
+    /**
+     * Receives the values on the consumer thread.
+     */
+    public interface Consumer<S> {
+        /**
+         * @param data Holds the value in its first {@code length} bytes. Only valid during the
+         *             call, the buffer is reused.
+         */
+        void onNotification(String deviceAddress, S source, long timestampNanos, byte[] data,
+                            int length);
+    }
+
+    private final int mMask;
+    private final int mMaxLength;
+    // The sequence a slot expects next: its index when free for the producer claiming that
+    // index, one more once the value is published for the consumer.
+    private final AtomicLongArray mSequences;
+    private final String[] mAddresses;
+    private final Object[] mSources;
+    private final long[] mTimestamps;
+    private final byte[][] mData;
+    private final int[] mLengths;
+
+    // Next slot to claim, shared by the producers.
+    private final AtomicLong mTail = new AtomicLong();
+    // Next slot to read, owned by the consumer.
+    private long mHead;
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mOversized = new AtomicLong();
+
+    /**
+     * @param capacity The number of slots, rounded up to the next power of two.
+     * @param maxLength The longest value a slot holds. Longer values are rejected.
+     */
+    public NotificationRing(int capacity, int maxLength) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (maxLength < 0) {
+            throw new IllegalArgumentException("maxLength must not be negative: " + maxLength);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mMaxLength = maxLength;
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+        mAddresses = new String[size];
+        mSources = new Object[size];
+        mTimestamps = new long[size];
+        mData = new byte[size][maxLength];
+        mLengths = new int[size];
+    }
+
+    /**
+     * Appends a copy of a value. May be called from any number of threads at once.
+     *
+     * @return false if the ring is full or the value too long, and it was dropped.
+     */
+    public boolean offer(String deviceAddress, S source, long timestampNanos, byte[] data) {
+        final int length = data == null ? 0 : data.length;
+        if (length > mMaxLength) {
+            mOversized.incrementAndGet();
+            return false;
+        }
+        long tail;
+        int slot;
+        while (true) {
+            tail = mTail.get();
+            slot = (int) tail & mMask;
+            final long sequence = mSequences.get(slot);
+            if (sequence == tail) {
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    break;
+                }
+            } else if (sequence < tail) {
+                // The consumer has not freed the slot from the previous lap yet.
+                mDropped.incrementAndGet();
+                return false;
+            }
+            // Another producer claimed the slot first, try the next one.
+        }
+        mAddresses[slot] = deviceAddress;
+        mSources[slot] = source;
+        mTimestamps[slot] = timestampNanos;
+        mLengths[slot] = length;
+        if (length > 0) {
+            System.arraycopy(data, 0, mData[slot], 0, length);
+        }
+        // A full write, so a consumer about to park sees it, see NotificationProcessor.
+        mSequences.set(slot, tail + 1);
+        return true;
+    }
+
+    /**
+     * Hands all published values to the consumer, in the order their slots were claimed. Must
+     * only be called from the consumer thread.
+     *
+     * @return The number of values delivered.
+     */
+    @SuppressWarnings("unchecked")
+    public int drain(Consumer<S> consumer) {
+        int count = 0;
+        while (true) {
+            final long head = mHead;
+            final int slot = (int) head & mMask;
+            if (mSequences.get(slot) != head + 1) {
+                // Empty, or the producer that claimed the slot is still writing it.
+                return count;
+            }
+            consumer.onNotification(mAddresses[slot], (S) mSources[slot], mTimestamps[slot],
+                    mData[slot], mLengths[slot]);
+            mSources[slot] = null;
+            mHead = head + 1;
+            // Free the slot for the producer one lap ahead.
+            mSequences.lazySet(slot, head + mMask + 1);
+            count++;
+        }
+    }
+
+    /**
+     * @return Whether a value is ready for the consumer. Must only be called from the consumer
+     *         thread.
+     */
+    public boolean isReadable() {
+        return mSequences.get((int) mHead & mMask) == mHead + 1;
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    public int getMaxLength() {
+        return mMaxLength;
+    }
+
+    /**
+     * @return The number of values dropped because the ring was full.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * @return The number of values dropped because they were longer than a slot.
+     */
+    public long getOversizedCount() {
+        return mOversized.get();
+    }
+}
@@ -0,0 +1,349 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and counters of every stage a sample passes, from the connection to the
+ * UI, per device. Off by default; while off every method returns after reading one volatile
+ * flag, without reading the clock. All methods are thread safe and do not allocate once a device
+ * is known.
+ *
+ * <p>Stages measured between a request and its callback use {@link #begin} and {@link #end},
+ * durations measured from a timestamp taken earlier use {@link #recordSince}. The sample path
+ * records through the {@link Device} it looked up once per notification. Its stages and
+ * counters are only recorded by one thread at a time, so while on a record there is a clock
+ * read and an ordered write, no atomic read-modify-write.
+ */
+public final class PipelineStats {
+
+    /** From the connection request to the connected callback. */
+    public static final int STAGE_CONNECT = 0;
+    /** From issuing the service discovery to its callback. */
+    public static final int STAGE_DISCOVERY = 1;
+    /** From issuing a client configuration descriptor write to its callback. */
+    public static final int STAGE_DESCRIPTOR_WRITE = 2;
+    /** Between two notifications of a device. Its spread is the jitter of the link. */
+    public static final int STAGE_INTER_ARRIVAL = 3;
+    /** From the GATT callback to the processing thread taking the value. */
+    public static final int STAGE_DISPATCH = 4;
+    /**
+     * Decoding, storing and passing on one value on the processing thread. Measured between
+     * the dispatch of a value and the next one of the same drained batch, so it only adds a
+     * clock read per batch.
+     */
+    public static final int STAGE_DECODE = 5;
+    /** From the GATT callback to the sample listeners on the main thread. */
+    public static final int STAGE_UI_DELIVERY = 6;
+    public static final int STAGE_COUNT = 7;
+
+    public static final int COUNTER_CONNECTS = 0;
+    public static final int COUNTER_DISCONNECTS = 1;
+    public static final int COUNTER_NOTIFICATIONS = 2;
+    public static final int COUNTER_SAMPLES = 3;
+    /** GATT callbacks that reported an error. */
+    public static final int COUNTER_GATT_ERRORS = 4;
+    public static final int COUNTER_COUNT = 5;
+
+    private static final String[] STAGE_NAMES = {"connect", "discovery", "descriptor_write",
+            "inter_arrival", "dispatch", "decode", "ui_delivery"};
+    private static final String[] COUNTER_NAMES = {"connects", "disconnects", "notifications",
+            "samples", "gatt_errors"};
+
+    // The stages and counters of the sample path, each recorded on one thread at a time: the
+    // transport's callbacks of a device do not overlap, the processing thread and the scheduler
+    // are single threads. They skip the atomic read-modify-writes.
+    private static final int SINGLE_WRITER_STAGES = 1 << STAGE_INTER_ARRIVAL
+            | 1 << STAGE_DISPATCH | 1 << STAGE_DECODE | 1 << STAGE_UI_DELIVERY;
+    private static final int SINGLE_WRITER_COUNTERS =
+            1 << COUNTER_NOTIFICATIONS | 1 << COUNTER_SAMPLES;
+
+    /**
+     * What is kept of one device. Its methods do what the methods of the same name of
+     * {@link PipelineStats} do, without looking the device up.
+     */
+    public final class Device {
+        private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGE_COUNT];
+        private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_COUNT);
+        // The begin of the pending measurement of every stage, or 0.
+        private final AtomicLongArray mStarts = new AtomicLongArray(STAGE_COUNT);
+
+        Device() {
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                mHistograms[i] = new LatencyHistogram();
+            }
+        }
+
+        /**
+         * @return The time it read, to pass on as the start of a following stage, or 0 if
+         *         nothing was recorded.
+         */
+        public long recordSince(int stage, long sinceNanos) {
+            if (!mEnabled || sinceNanos == 0) {
+                return 0;
+            }
+            final long now = mClock.nowNanos();
+            record(stage, now - sinceNanos);
+            return now;
+        }
+
+        public void begin(int stage) {
+            if (mEnabled) {
+                mStarts.set(stage, mClock.nowNanos());
+            }
+        }
+
+        public void end(int stage) {
+            if (!mEnabled) {
+                return;
+            }
+            final long start = mStarts.getAndSet(stage, 0);
+            if (start != 0) {
+                record(stage, mClock.nowNanos() - start);
+            }
+        }
+
+        public void mark(int stage) {
+            if (!mEnabled) {
+                return;
+            }
+            final long now = mClock.nowNanos();
+            final long previous;
+            if ((SINGLE_WRITER_STAGES & 1 << stage) != 0) {
+                // Cancelled on the same thread, by the device's disconnect callback. Enabling
+                // racing a mark at worst counts one gap of before.
+                previous = mStarts.get(stage);
+                mStarts.lazySet(stage, now);
+            } else {
+                previous = mStarts.getAndSet(stage, now);
+            }
+            if (previous != 0) {
+                record(stage, now - previous);
+            }
+        }
+
+        public void increment(int counter) {
+            if (!mEnabled) {
+                return;
+            }
+            if ((SINGLE_WRITER_COUNTERS & 1 << counter) != 0) {
+                mCounters.lazySet(counter, mCounters.get(counter) + 1);
+            } else {
+                mCounters.incrementAndGet(counter);
+            }
+        }
+
+        /**
+         * Records a duration the caller measured, between two times it read anyway.
+         */
+        public void record(int stage, long nanos) {
+            if (!mEnabled) {
+                return;
+            }
+            if ((SINGLE_WRITER_STAGES & 1 << stage) != 0) {
+                mHistograms[stage].recordSingleWriter(nanos);
+            } else {
+                mHistograms[stage].record(nanos);
+            }
+        }
+
+        private void cancel() {
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                mStarts.set(i, 0);
+            }
+        }
+
+        private void reset() {
+            cancel();
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                mHistograms[i].reset();
+            }
+            for (int i = 0; i < COUNTER_COUNT; i++) {
+                mCounters.set(i, 0);
+            }
+        }
+
+        private boolean isEmpty() {
+            for (int i = 0; i < COUNTER_COUNT; i++) {
+                if (mCounters.get(i) != 0) {
+                    return false;
+                }
+            }
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                if (mHistograms[i].getCount() != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final GattOperationQueue.Scheduler mClock;
+    private final ConcurrentHashMap<String, Device> mDevices =
+            new ConcurrentHashMap<String, Device>();
+    private volatile boolean mEnabled;
+
+    /**
+     * @param clock The clock durations are measured on, the one notification timestamps are
+     *              taken on.
+     */
+    public PipelineStats(GattOperationQueue.Scheduler clock) {
+        mClock = clock;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Starts or stops recording. What was recorded is kept, measurements begun before are
+     * dropped.
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        if (enabled == mEnabled) {
+            return;
+        }
+        for (Device device : mDevices.values()) {
+            device.cancel();
+        }
+        mEnabled = enabled;
+    }
+
+    /**
+     * @return The current time to pass to {@link #recordSince} later, or 0 if not enabled.
+     */
+    public long startNanos() {
+        return mEnabled ? mClock.nowNanos() : 0;
+    }
+
+    /**
+     * Records the time that passed since {@code sinceNanos}. Does nothing if that is 0.
+     */
+    public void recordSince(String address, int stage, long sinceNanos) {
+        if (mEnabled) {
+            getDevice(address).recordSince(stage, sinceNanos);
+        }
+    }
+
+    /**
+     * Begins measuring a stage of a device, replacing a measurement begun before.
+     */
+    public void begin(String address, int stage) {
+        if (mEnabled) {
+            getDevice(address).begin(stage);
+        }
+    }
+
+    /**
+     * Records the time since {@link #begin} for the stage of a device, if it was begun.
+     */
+    public void end(String address, int stage) {
+        if (mEnabled) {
+            getDevice(address).end(stage);
+        }
+    }
+
+    /**
+     * Records the time since the previous mark of the stage of a device, and marks it again.
+     */
+    public void mark(String address, int stage) {
+        if (mEnabled) {
+            getDevice(address).mark(stage);
+        }
+    }
+
+    /**
+     * Drops the measurements begun for a device, for example when its link drops, so the
+     * next notification does not count the gap in between.
+     */
+    public void cancel(String address) {
+        final Device device = mDevices.get(address);
+        if (device != null) {
+            device.cancel();
+        }
+    }
+
+    public void increment(String address, int counter) {
+        if (mEnabled) {
+            getDevice(address).increment(counter);
+        }
+    }
+
+    /**
+     * @return The histogram of a stage of a device, or null if nothing was recorded for the
+     *         device.
+     */
+    public LatencyHistogram getHistogram(String address, int stage) {
+        final Device device = mDevices.get(address);
+        return device == null ? null : device.mHistograms[stage];
+    }
+
+    public long getCount(String address, int counter) {
+        final Device device = mDevices.get(address);
+        return device == null ? 0 : device.mCounters.get(counter);
+    }
+
+    /**
+     * Forgets everything recorded. The devices are kept, they may be held by callers.
+     */
+    public void reset() {
+        for (Device device : mDevices.values()) {
+            device.reset();
+        }
+    }
+
+    /**
+     * Appends one block per device that recorded anything, in address order: its counters,
+     * then one line per stage that recorded anything.
+     */
+    public StringBuilder dump(StringBuilder builder) {
+        builder.append("pipeline stats ").append(mEnabled ? "on" : "off").append('\n');
+        for (Map.Entry<String, Device> entry : new TreeMap<String, Device>(mDevices).entrySet()) {
+            final Device device = entry.getValue();
+            if (device.isEmpty()) {
+                continue;
+            }
+            builder.append(entry.getKey());
+            for (int i = 0; i < COUNTER_COUNT; i++) {
+                builder.append(' ').append(COUNTER_NAMES[i]).append('=')
+                        .append(device.mCounters.get(i));
+            }
+            builder.append('\n');
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                if (device.mHistograms[i].getCount() == 0) {
+                    continue;
+                }
+                builder.append("  ").append(STAGE_NAMES[i]).append(": ");
+                device.mHistograms[i].appendTo(builder).append('\n');
+            }
+        }
+        return builder;
+    }
+
+    @Override
+    public String toString() {
+        return dump(new StringBuilder()).toString();
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    /**
+     * @return The stats of a device, for callers that record to it often and keep it. Created
+     *         if the device is not known yet, also while off.
+     */
+    public Device getDevice(String address) {
+        Device device = mDevices.get(address);
+        if (device == null) {
+            device = new Device();
+            final Device existing = mDevices.putIfAbsent(address, device);
+            if (existing != null) {
+                device = existing;
+            }
+        }
+        return device;
+    }
+}
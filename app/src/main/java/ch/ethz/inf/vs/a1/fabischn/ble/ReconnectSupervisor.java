@@ -0,0 +1,260 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Brings lost links back. Every device the user connected to is supervised until the user
+ * disconnects it; when its link drops, reconnect attempts are scheduled with exponential backoff
+ * and random jitter, so a device that is out of range is not hammered and several devices that
+ * dropped together do not retry in lockstep.
+ *
+ * <p>The supervisor also measures the time from a dropout to the first sample after the link is
+ * back, which is what the user actually waits for. All methods are thread safe.
+ */
+public final class ReconnectSupervisor {
+
+    static final long MIN_DELAY_MILLIS = 500;
+    static final long MAX_DELAY_MILLIS = 60000;
+
+    /**
+     * Starts the actual connect attempts.
+     */
+    public interface Connector {
+        /**
+         * @return false if the attempt could not be started.
+         */
+        boolean reconnect(String address);
+    }
+
+    private final class Link implements Runnable {
+        final String address;
+        int mAttempts;
+        boolean mDropped;
+        long mDroppedAtNanos;
+        boolean mScheduled;
+        boolean mAwaitingSample;
+
+        Link(String address) {
+            this.address = address;
+        }
+
+        @Override
+        public void run() {
+            synchronized (ReconnectSupervisor.this) {
+                if (!mScheduled) {
+                    return;
+                }
+                mScheduled = false;
+                mAttempts++;
+                mAttemptCount++;
+            }
+            // Outside the lock, the connector may call back into the supervisor.
+            if (!mConnector.reconnect(address)) {
+                synchronized (ReconnectSupervisor.this) {
+                    if (mLinks.get(address) == this) {
+                        schedule(this);
+                    }
+                }
+            }
+        }
+    }
+
+    private final GattOperationQueue.Scheduler mScheduler;
+    private final Connector mConnector;
+    private final Random mRandom;
+    private final HashMap<String, Link> mLinks = new HashMap<String, Link>();
+    // Read without the lock on the sample path, see onSample.
+    private volatile int mAwaitingCount;
+
+    private long mDropoutCount;
+    private long mAttemptCount;
+    private long mRecoveredCount;
+    private long mLastRecoveryNanos;
+    private long mTotalRecoveryNanos;
+    private long mMaxRecoveryNanos;
+
+    public ReconnectSupervisor(GattOperationQueue.Scheduler scheduler, Connector connector,
+                               Random random) {
+        mScheduler = scheduler;
+        mConnector = connector;
+        mRandom = random;
+    }
+
+    /**
+     * Starts supervising a device, when the user connects to it.
+     */
+    public synchronized void watch(String address) {
+        if (!mLinks.containsKey(address)) {
+            mLinks.put(address, new Link(address));
+        }
+    }
+
+    /**
+     * Stops supervising a device, when the user disconnects from it or releases it. A pending
+     * attempt is cancelled.
+     */
+    public synchronized void unwatch(String address) {
+        final Link link = mLinks.remove(address);
+        if (link != null) {
+            cancel(link);
+            setAwaiting(link, false);
+        }
+    }
+
+    public synchronized void unwatchAll() {
+        for (Link link : mLinks.values()) {
+            cancel(link);
+            setAwaiting(link, false);
+        }
+        mLinks.clear();
+    }
+
+    public synchronized boolean isWatched(String address) {
+        return mLinks.containsKey(address);
+    }
+
+    /**
+     * @return The supervised devices.
+     */
+    public synchronized List<String> getWatched() {
+        return new ArrayList<String>(mLinks.keySet());
+    }
+
+    /**
+     * To be called when the link to a device is up.
+     */
+    public synchronized void onConnected(String address) {
+        final Link link = mLinks.get(address);
+        if (link == null) {
+            return;
+        }
+        cancel(link);
+        link.mAttempts = 0;
+        setAwaiting(link, link.mDropped);
+    }
+
+    /**
+     * To be called when the link to a device is down, whether it was lost or an attempt failed.
+     * Schedules the next attempt if the device is supervised.
+     */
+    public synchronized void onDisconnected(String address) {
+        final Link link = mLinks.get(address);
+        if (link == null || link.mScheduled) {
+            return;
+        }
+        // A link that drops again before its first sample still counts as the same dropout.
+        if (!link.mDropped) {
+            link.mDropped = true;
+            link.mDroppedAtNanos = mScheduler.nowNanos();
+            mDropoutCount++;
+        }
+        setAwaiting(link, false);
+        schedule(link);
+    }
+
+    /**
+     * To be called for every sample of a connected device. Only takes the lock while a device
+     * waits for its first sample after a dropout, so it is cheap on the sample path.
+     *
+     * @return The time from the dropout to this sample, or 0 if it is not the first one.
+     */
+    public long onSample(String address, long nowNanos) {
+        if (mAwaitingCount == 0) {
+            return 0;
+        }
+        synchronized (this) {
+            final Link link = mLinks.get(address);
+            if (link == null || !link.mAwaitingSample) {
+                return 0;
+            }
+            final long recovery = nowNanos - link.mDroppedAtNanos;
+            link.mDropped = false;
+            setAwaiting(link, false);
+            mRecoveredCount++;
+            mLastRecoveryNanos = recovery;
+            mTotalRecoveryNanos += recovery;
+            mMaxRecoveryNanos = Math.max(mMaxRecoveryNanos, recovery);
+            return recovery;
+        }
+    }
+
+    /**
+     * @return The number of attempts made since the device was last connected.
+     */
+    public synchronized int getAttempts(String address) {
+        final Link link = mLinks.get(address);
+        return link == null ? 0 : link.mAttempts;
+    }
+
+    public synchronized long getDropoutCount() {
+        return mDropoutCount;
+    }
+
+    public synchronized long getAttemptCount() {
+        return mAttemptCount;
+    }
+
+    /**
+     * @return The number of dropouts that were followed by a sample.
+     */
+    public synchronized long getRecoveredCount() {
+        return mRecoveredCount;
+    }
+
+    /**
+     * @return The time from the last recovered dropout to its first sample.
+     */
+    public synchronized long getLastTimeToFirstSampleNanos() {
+        return mLastRecoveryNanos;
+    }
+
+    public synchronized long getMeanTimeToFirstSampleNanos() {
+        return mRecoveredCount == 0 ? 0 : mTotalRecoveryNanos / mRecoveredCount;
+    }
+
+    public synchronized long getMaxTimeToFirstSampleNanos() {
+        return mMaxRecoveryNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "dropouts=" + mDropoutCount + " attempts=" + mAttemptCount
+                + " recovered=" + mRecoveredCount
+                + " firstSample=" + mLastRecoveryNanos / 1000000
+                + "ms mean=" + getMeanTimeToFirstSampleNanos() / 1000000
+                + "ms max=" + mMaxRecoveryNanos / 1000000 + "ms";
+    }
+
+    /**
+     * @return The delay before the given attempt: a random value between half and all of an
+     *         exponentially growing bound, capped at {@link #MAX_DELAY_MILLIS}.
+     */
+    long getDelayMillis(int attempt) {
+        final long bound = MIN_DELAY_MILLIS << Math.min(attempt, 16);
+        final long ceiling = Math.min(bound, MAX_DELAY_MILLIS);
+        final long half = ceiling / 2;
+        return half + (long) (mRandom.nextDouble() * (ceiling - half + 1));
+    }
+
+    private void schedule(Link link) {
+        link.mScheduled = true;
+        mScheduler.postDelayed(link, getDelayMillis(link.mAttempts));
+    }
+
+    private void cancel(Link link) {
+        if (link.mScheduled) {
+            link.mScheduled = false;
+            mScheduler.cancel(link);
+        }
+    }
+
+    private void setAwaiting(Link link, boolean awaiting) {
+        if (link.mAwaitingSample != awaiting) {
+            link.mAwaitingSample = awaiting;
+            mAwaitingCount += awaiting ? 1 : -1;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.Arrays;
+
+/**
+ * Minimum, maximum, mean and standard deviation of a value over a sliding time window, updated
+ * in constant time per sample without keeping the samples.
+ *
+ * <p>The window is split into a fixed number of buckets and slides one bucket at a time, so a
+ * sample leaves it between one window length and one window length plus a bucket after it was
+ * added. Each bucket holds the count, sum and sum of squares of its samples, which are
+ * subtracted from the running totals when it expires. Minimum and maximum come from monotonic
+ * deques that hold at most one entry per bucket. All state lives in preallocated primitive
+ * arrays, {@link #add} does not allocate. Not thread safe.
+ */
+public final class RollingWindow {
+
+    private final long mWindowMillis;
+    private final long mBucketMillis;
+    private final int mBucketCount;
+
+    // Per bucket, indexed by the absolute bucket number modulo the bucket count.
+    private final long[] mBucketNumbers;
+    private final int[] mCounts;
+    private final double[] mSums;
+    private final double[] mSumSquares;
+
+    // Monotonic deques of (bucket number, value), rings indexed from their head. The minimum
+    // deque is increasing from its head, the maximum deque decreasing.
+    private final long[] mMinBuckets;
+    private final float[] mMinValues;
+    private int mMinHead;
+    private int mMinSize;
+    private final long[] mMaxBuckets;
+    private final float[] mMaxValues;
+    private int mMaxHead;
+    private int mMaxSize;
+
+    private long mLatestBucket = -1;
+    private int mCount;
+    private double mSum;
+    private double mSumSquare;
+    // Sums are kept relative to the first value, which keeps the variance accurate for values
+    // far from zero.
+    private float mShift = Float.NaN;
+
+    /**
+     * @param windowMillis The length of the window.
+     * @param bucketCount The number of steps the window slides in.
+     */
+    public RollingWindow(long windowMillis, int bucketCount) {
+        if (bucketCount <= 0 || windowMillis < bucketCount) {
+            throw new IllegalArgumentException("Cannot split " + windowMillis + " ms into "
+                    + bucketCount + " buckets");
+        }
+        mWindowMillis = windowMillis;
+        mBucketCount = bucketCount;
+        mBucketMillis = (windowMillis + bucketCount - 1) / bucketCount;
+        mBucketNumbers = new long[bucketCount];
+        mCounts = new int[bucketCount];
+        mSums = new double[bucketCount];
+        mSumSquares = new double[bucketCount];
+        mMinBuckets = new long[bucketCount];
+        mMinValues = new float[bucketCount];
+        mMaxBuckets = new long[bucketCount];
+        mMaxValues = new float[bucketCount];
+        Arrays.fill(mBucketNumbers, -1);
+    }
+
+    public long getWindowMillis() {
+        return mWindowMillis;
+    }
+
+    /**
+     * Adds a sample. Timestamps must not be negative. A sample older than the newest one counts
+     * as the newest one; NaN is ignored.
+     */
+    public void add(long timestampMillis, float value) {
+        if (Float.isNaN(value)) {
+            return;
+        }
+        final long bucket = Math.max(timestampMillis / mBucketMillis, mLatestBucket);
+        advance(bucket);
+        if (mCount == 0) {
+            mShift = value;
+        }
+        final int slot = (int) (bucket % mBucketCount);
+        if (mBucketNumbers[slot] != bucket) {
+            mBucketNumbers[slot] = bucket;
+            mCounts[slot] = 0;
+            mSums[slot] = 0;
+            mSumSquares[slot] = 0;
+        }
+        final double shifted = (double) value - mShift;
+        mCounts[slot]++;
+        mSums[slot] += shifted;
+        mSumSquares[slot] += shifted * shifted;
+        mCount++;
+        mSum += shifted;
+        mSumSquare += shifted * shifted;
+        pushMin(bucket, value);
+        pushMax(bucket, value);
+    }
+
+    /**
+     * Slides the window up to the given time without adding a sample, so values expire while
+     * a sensor is silent.
+     */
+    public void advanceTo(long timestampMillis) {
+        final long bucket = timestampMillis / mBucketMillis;
+        if (bucket > mLatestBucket) {
+            advance(bucket);
+        }
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return The minimum, NaN if the window is empty.
+     */
+    public float getMin() {
+        return mMinSize == 0 ? Float.NaN : mMinValues[mMinHead];
+    }
+
+    public float getMax() {
+        return mMaxSize == 0 ? Float.NaN : mMaxValues[mMaxHead];
+    }
+
+    public float getMean() {
+        return mCount == 0 ? Float.NaN : (float) (mShift + mSum / mCount);
+    }
+
+    /**
+     * @return The population standard deviation, NaN if the window is empty.
+     */
+    public float getStandardDeviation() {
+        if (mCount == 0) {
+            return Float.NaN;
+        }
+        final double mean = mSum / mCount;
+        // Rounding may leave a tiny negative variance for constant values.
+        return (float) Math.sqrt(Math.max(0, mSumSquare / mCount - mean * mean));
+    }
+
+    public void clear() {
+        Arrays.fill(mBucketNumbers, -1);
+        mLatestBucket = -1;
+        mCount = 0;
+        mSum = 0;
+        mSumSquare = 0;
+        mMinSize = 0;
+        mMaxSize = 0;
+        mShift = Float.NaN;
+    }
+
+    // Expires the buckets that fall out of the window once `bucket` is the newest one.
+    private void advance(long bucket) {
+        if (bucket == mLatestBucket) {
+            return;
+        }
+        final long oldest = bucket - mBucketCount + 1;
+        if (oldest > mLatestBucket) {
+            // The whole window expired.
+            clear();
+            mLatestBucket = bucket;
+            return;
+        }
+        // Only the buckets of the current window can hold anything.
+        for (long expired = Math.max(mLatestBucket - mBucketCount + 1, 0); expired < oldest;
+                expired++) {
+            final int slot = (int) (expired % mBucketCount);
+            if (mBucketNumbers[slot] != expired) {
+                continue;
+            }
+            mCount -= mCounts[slot];
+            mSum -= mSums[slot];
+            mSumSquare -= mSumSquares[slot];
+            mBucketNumbers[slot] = -1;
+        }
+        if (mCount == 0) {
+            // Drop whatever rounding left behind.
+            mSum = 0;
+            mSumSquare = 0;
+        }
+        while (mMinSize > 0 && mMinBuckets[mMinHead] < oldest) {
+            mMinHead = (mMinHead + 1) % mBucketCount;
+            mMinSize--;
+        }
+        while (mMaxSize > 0 && mMaxBuckets[mMaxHead] < oldest) {
+            mMaxHead = (mMaxHead + 1) % mBucketCount;
+            mMaxSize--;
+        }
+        mLatestBucket = bucket;
+    }
+
+    private void pushMin(long bucket, float value) {
+        while (mMinSize > 0 && mMinValues[(mMinHead + mMinSize - 1) % mBucketCount] >= value) {
+            mMinSize--;
+        }
+        if (mMinSize > 0 && mMinBuckets[(mMinHead + mMinSize - 1) % mBucketCount] == bucket) {
+            // A smaller value of the same bucket is queued, and expires together with this one.
+            return;
+        }
+        final int tail = (mMinHead + mMinSize) % mBucketCount;
+        mMinBuckets[tail] = bucket;
+        mMinValues[tail] = value;
+        mMinSize++;
+    }
+
+    private void pushMax(long bucket, float value) {
+        while (mMaxSize > 0 && mMaxValues[(mMaxHead + mMaxSize - 1) % mBucketCount] <= value) {
+            mMaxSize--;
+        }
+        if (mMaxSize > 0 && mMaxBuckets[(mMaxHead + mMaxSize - 1) % mBucketCount] == bucket) {
+            return;
+        }
+        final int tail = (mMaxHead + mMaxSize) % mBucketCount;
+        mMaxBuckets[tail] = bucket;
+        mMaxValues[tail] = value;
+        mMaxSize++;
+    }
+}
@@ -0,0 +1,27 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+/**
+ * Turns the raw value of a characteristic into one or more samples. Implementations must not
+ * allocate, {@link #decode} runs for every notification. See {@link SampleDecoders} for the
+ * common formats.
+ */
+public interface SampleDecoder {
+
+    /**
+     * @return The number of bytes {@link #decode} reads.
+     */
+    int getSize();
+
+    /**
+     * @return The number of values {@link #decode} writes.
+     */
+    int getValueCount();
+
+    /**
+     * Decodes the values starting at {@code data[offset]}.
+     *
+     * @param out Receives {@link #getValueCount()} values, starting at {@code outOffset}.
+     * @return false if {@code data} is too short, {@code out} is left alone then.
+     */
+    boolean decode(byte[] data, int offset, float[] out, int outOffset);
+}
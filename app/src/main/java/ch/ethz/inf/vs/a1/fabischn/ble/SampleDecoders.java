@@ -0,0 +1,109 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+/**
+ * Factories for the {@link SampleDecoder}s of common characteristic formats. All of them are
+ * little endian, as is usual for Bluetooth.
+ */
+public final class SampleDecoders {
+
+    private SampleDecoders() {
+    }
+
+    private static final SampleDecoder FLOAT32 = new SampleDecoder() {
+        @Override
+        public int getSize() {
+            return 4;
+        }
+
+        @Override
+        public int getValueCount() {
+            return 1;
+        }
+
+        @Override
+        public boolean decode(byte[] data, int offset, float[] out, int outOffset) {
+            if (data.length - offset < 4) {
+                return false;
+            }
+            out[outOffset] = LittleEndian.getFloat(data, offset);
+            return true;
+        }
+    };
+
+    /**
+     * An IEEE 754 float, as in the SHT31 humidity and temperature characteristics.
+     */
+    public static SampleDecoder float32() {
+        return FLOAT32;
+    }
+
+    /**
+     * A 16 bit integer, mapped to {@code raw * scale + offset}. For example 0.01 for a
+     * temperature in hundredths of a degree.
+     */
+    public static SampleDecoder int16(final boolean signed, final float scale,
+                                      final float offset) {
+        return new SampleDecoder() {
+            @Override
+            public int getSize() {
+                return 2;
+            }
+
+            @Override
+            public int getValueCount() {
+                return 1;
+            }
+
+            @Override
+            public boolean decode(byte[] data, int dataOffset, float[] out, int outOffset) {
+                if (data.length - dataOffset < 2) {
+                    return false;
+                }
+                final int raw = LittleEndian.getUnsignedShort(data, dataOffset);
+                out[outOffset] = (signed ? (short) raw : raw) * scale + offset;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Several fields back to back in one characteristic, decoded in order.
+     */
+    public static SampleDecoder sequence(final SampleDecoder... fields) {
+        if (fields.length == 0) {
+            throw new IllegalArgumentException("A sequence needs at least one field");
+        }
+        int size = 0;
+        int valueCount = 0;
+        for (SampleDecoder field : fields) {
+            size += field.getSize();
+            valueCount += field.getValueCount();
+        }
+        final int totalSize = size;
+        final int totalValueCount = valueCount;
+        return new SampleDecoder() {
+            @Override
+            public int getSize() {
+                return totalSize;
+            }
+
+            @Override
+            public int getValueCount() {
+                return totalValueCount;
+            }
+
+            @Override
+            public boolean decode(byte[] data, int offset, float[] out, int outOffset) {
+                if (data.length - offset < totalSize) {
+                    return false;
+                }
+                for (SampleDecoder field : fields) {
+                    field.decode(data, offset, out, outOffset);
+                    offset += field.getSize();
+                    outOffset += field.getValueCount();
+                }
+                return true;
+            }
+        };
+    }
+}
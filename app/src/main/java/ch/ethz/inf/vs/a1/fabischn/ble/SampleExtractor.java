@@ -0,0 +1,92 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.UUID;
+
+/**
+ * Turns the characteristic values of a GATT session into samples: notifications and successful
+ * reads of characteristics the {@link DecoderRegistry} knows are decoded and passed to a
+ * {@link SampleListener}, everything else is ignored. Reads are stamped with the time they
+ * arrive on the scheduler's clock. Not thread safe, the decode buffer is shared.
+ */
+public final class SampleExtractor implements GattTransport.Callback {
+
+    private final DecoderRegistry mDecoders;
+    private final GattOperationQueue.Scheduler mClock;
+    private final SampleListener mListener;
+    private final float[] mValues;
+    private long mSampleCount;
+    private long mUndecodedCount;
+
+    public SampleExtractor(DecoderRegistry decoders, GattOperationQueue.Scheduler clock,
+                           SampleListener listener) {
+        mDecoders = decoders;
+        mClock = clock;
+        mListener = listener;
+        mValues = new float[Math.max(1, decoders.getMaxValueCount())];
+    }
+
+    /**
+     * @return The number of samples passed on.
+     */
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * @return The number of values of known characteristics that could not be decoded.
+     */
+    public long getUndecodedCount() {
+        return mUndecodedCount;
+    }
+
+    @Override
+    public void onConnectionStateChange(String address, int status, boolean connected) {
+    }
+
+    @Override
+    public void onServicesDiscovered(String address, int status) {
+    }
+
+    @Override
+    public void onCharacteristicRead(String address, UUID characteristic, byte[] value,
+                                     int status) {
+        if (status == GattOperationQueue.STATUS_SUCCESS) {
+            extract(address, characteristic, mClock.nowNanos(), value);
+        }
+    }
+
+    @Override
+    public void onCharacteristicWrite(String address, UUID characteristic, int status) {
+    }
+
+    @Override
+    public void onCharacteristicChanged(String address, UUID characteristic, int instanceId,
+                                        long timestampNanos, byte[] value) {
+        extract(address, characteristic, timestampNanos, value);
+    }
+
+    @Override
+    public void onDescriptorWrite(String address, UUID characteristic, int status) {
+    }
+
+    @Override
+    public void onMtuChanged(String address, int mtu, int status) {
+    }
+
+    private void extract(String address, UUID characteristic, long timestampNanos,
+                         byte[] value) {
+        final DecoderRegistry.Binding binding = mDecoders.resolve(characteristic);
+        if (binding == null) {
+            return;
+        }
+        final int count = binding.decode(value, mValues);
+        if (count == 0) {
+            mUndecodedCount++;
+        }
+        for (int i = 0; i < count; i++) {
+            mSampleCount++;
+            mListener.onSample(address, binding.getCharacteristicId(i), timestampNanos,
+                    mValues[i]);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+/**
+ * Receives decoded sensor samples from {@link BluetoothLeService}. Samples are delivered on the
+ * main thread, in the order they were received from the device.
+ */
+public interface SampleListener {
+
+    /**
+     * Called for every decoded sample.
+     *
+     * @param deviceAddress The address of the device the sample came from.
+     * @param characteristicId One of the {@code SensirionSHT31UUIDS.CHARACTERISTIC_*} ids.
+     * @param timestampNanos The time the sample was received, in elapsed realtime nanoseconds.
+     * @param value The decoded value.
+     */
+    void onSample(String deviceAddress, int characteristicId, long timestampNanos, float value);
+
+}
@@ -0,0 +1,97 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-capacity single-producer/single-consumer ring of samples. All slots are preallocated as
+ * parallel primitive arrays, so neither {@link #offer} nor {@link #drain} allocate.
+ */
+public final class SampleRing {
+
+    private final int mMask;
+    private final String[] mAddresses;
+    private final int[] mCharacteristicIds;
+    private final long[] mTimestamps;
+    private final float[] mValues;
+
+    // Next slot to read, owned by the consumer.
+    private final AtomicLong mHead = new AtomicLong();
+    // Next slot to write, owned by the producer.
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /**
+     * @param capacity The number of slots, rounded up to the next power of two.
+     */
+    public SampleRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mAddresses = new String[size];
+        mCharacteristicIds = new int[size];
+        mTimestamps = new long[size];
+        mValues = new float[size];
+    }
+
+    /**
+     * Appends a sample. Must only be called from the producer thread.
+     *
+     * @return false if the ring is full and the sample was dropped.
+     */
+    public boolean offer(String deviceAddress, int characteristicId, long timestampNanos, float value) {
+        final long tail = mTail.get();
+        if (tail - mHead.get() > mMask) {
+            mDropped.incrementAndGet();
+            return false;
+        }
+        final int slot = (int) tail & mMask;
+        mAddresses[slot] = deviceAddress;
+        mCharacteristicIds[slot] = characteristicId;
+        mTimestamps[slot] = timestampNanos;
+        mValues[slot] = value;
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Hands all currently available samples to the listener, oldest first. Must only be called
+     * from the consumer thread.
+     *
+     * @return The number of samples delivered.
+     */
+    public int drain(SampleListener listener) {
+        long head = mHead.get();
+        final long tail = mTail.get();
+        final int count = (int) (tail - head);
+        while (head < tail) {
+            final int slot = (int) head & mMask;
+            listener.onSample(mAddresses[slot], mCharacteristicIds[slot], mTimestamps[slot],
+                    mValues[slot]);
+            head++;
+            // Free the slot as we go so the producer is never blocked by a slow listener for
+            // longer than one sample.
+            mHead.lazySet(head);
+        }
+        return count;
+    }
+
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * @return The number of samples dropped because the ring was full.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+}
@@ -0,0 +1,228 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+/**
+ * Fixed-capacity ring buffer of graph values. One x array is shared by all series, the y values
+ * of each series are kept in a parallel {@code float[]}, so nothing is boxed. Once the buffer is
+ * full, every append overwrites the oldest point.
+ *
+ * <p>Logical indices used by the accessors run from 0 (the oldest point) to
+ * {@code size() - 1} (the newest). Not thread safe.
+ */
+public final class SampleSeriesBuffer implements GraphContainer {
+
+    private final double[] mX;
+    private final float[][] mY;
+    private final int mCapacity;
+    // Physical index of the oldest point.
+    private int mStart;
+    private int mSize;
+    // Incremented on every change, so readers can tell whether their copy is stale.
+    private long mVersion;
+    // The number of points ever appended. Not reset by clear(), so it works as a sequence number.
+    private long mAppendedCount;
+
+    private float[][] mValuesCache = new float[0][];
+    private long mValuesCacheVersion = -1;
+
+    /**
+     * A read-only view on a range of the buffer. It reads straight from the buffer's arrays, so
+     * it is only valid until the next {@link #addValues} or {@link #clear}.
+     */
+    public static final class Window {
+        private SampleSeriesBuffer mBuffer;
+        private int mOffset;
+        private int mLength;
+
+        public int size() {
+            return mLength;
+        }
+
+        /**
+         * @param i Index into the window, 0 being its oldest point.
+         */
+        public double getX(int i) {
+            return mBuffer.getX(mOffset + i);
+        }
+
+        public float getY(int series, int i) {
+            return mBuffer.getY(series, mOffset + i);
+        }
+
+        /**
+         * @return The logical buffer index of the window's first point.
+         */
+        public int getOffset() {
+            return mOffset;
+        }
+    }
+
+    /**
+     * @param seriesCount The number of series, each {@link #addValues} takes one value per series.
+     * @param capacity The number of points kept.
+     */
+    public SampleSeriesBuffer(int seriesCount, int capacity) {
+        if (seriesCount <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("seriesCount and capacity must be positive");
+        }
+        mCapacity = capacity;
+        mX = new double[capacity];
+        mY = new float[seriesCount][capacity];
+    }
+
+    /**
+     * Appends a point in O(1), overwriting the oldest one if the buffer is full.
+     *
+     * @param xIndex The x value, expected to be non-decreasing.
+     * @param values One value per series.
+     */
+    @Override
+    public void addValues(double xIndex, float[] values) {
+        if (values.length != mY.length) {
+            throw new IllegalArgumentException("Expected " + mY.length + " values, got "
+                    + values.length);
+        }
+        int slot = mStart + mSize;
+        if (slot >= mCapacity) {
+            slot -= mCapacity;
+        }
+        mX[slot] = xIndex;
+        for (int series = 0; series < mY.length; series++) {
+            mY[series][slot] = values[series];
+        }
+        if (mSize < mCapacity) {
+            mSize++;
+        } else if (++mStart == mCapacity) {
+            mStart = 0;
+        }
+        mAppendedCount++;
+        mVersion++;
+    }
+
+    /**
+     * Returns all values, oldest first. The matrix is cached and only refreshed when the buffer
+     * changed since the last call, and its rows are reused once the buffer is full. Callers must
+     * therefore treat it as read-only and must not hold on to it across appends.
+     *
+     * <p>{@link GraphContainer} wants rows as long as the number of values, so while the buffer
+     * fills up every call after an append allocates new rows. Code that reads after every append
+     * should use {@link #window} or {@link #getY} instead, which never copy.
+     */
+    @Override
+    public float[][] getValues() {
+        if (mValuesCacheVersion == mVersion) {
+            return mValuesCache;
+        }
+        if (mValuesCache.length != mY.length || mValuesCache[0].length != mSize) {
+            mValuesCache = new float[mY.length][mSize];
+        }
+        final int firstChunk = Math.min(mSize, mCapacity - mStart);
+        for (int series = 0; series < mY.length; series++) {
+            System.arraycopy(mY[series], mStart, mValuesCache[series], 0, firstChunk);
+            System.arraycopy(mY[series], 0, mValuesCache[series], firstChunk, mSize - firstChunk);
+        }
+        mValuesCacheVersion = mVersion;
+        return mValuesCache;
+    }
+
+    /**
+     * Points {@code window} at a range of the buffer without copying anything.
+     *
+     * @param offset The logical index of the first point.
+     * @param length The number of points.
+     * @param window The view to reuse, or null to get a new one.
+     * @return The window.
+     */
+    public Window window(int offset, int length, Window window) {
+        if (offset < 0 || length < 0 || offset + length > mSize) {
+            throw new IndexOutOfBoundsException("Window [" + offset + ", " + (offset + length)
+                    + ") out of [0, " + mSize + ")");
+        }
+        if (window == null) {
+            window = new Window();
+        }
+        window.mBuffer = this;
+        window.mOffset = offset;
+        window.mLength = length;
+        return window;
+    }
+
+    /**
+     * Points {@code window} at the newest {@code length} points, or all of them if there are
+     * fewer.
+     */
+    public Window latest(int length, Window window) {
+        final int count = Math.min(length, mSize);
+        return window(mSize - count, count, window);
+    }
+
+    /**
+     * @return The logical index of the first point whose x is not smaller than {@code x}, or
+     *         {@code size()} if there is none. Relies on x being non-decreasing.
+     */
+    public int indexOfX(double x) {
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (getX(mid) < x) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public double getX(int i) {
+        return mX[physical(i)];
+    }
+
+    public float getY(int series, int i) {
+        return mY[series][physical(i)];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    public int seriesCount() {
+        return mY.length;
+    }
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return The sequence number the next appended point will get. Every point gets the next
+     *         number in line, also across {@link #clear}.
+     */
+    public long getAppendedCount() {
+        return mAppendedCount;
+    }
+
+    /**
+     * @return The sequence number of the oldest point still in the buffer.
+     */
+    public long getFirstSequence() {
+        return mAppendedCount - mSize;
+    }
+
+    public void clear() {
+        mStart = 0;
+        mSize = 0;
+        mVersion++;
+    }
+
+    private int physical(int i) {
+        if (i < 0 || i >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + i + " out of [0, " + mSize + ")");
+        }
+        final int slot = mStart + i;
+        return slot >= mCapacity ? slot - mCapacity : slot;
+    }
+}
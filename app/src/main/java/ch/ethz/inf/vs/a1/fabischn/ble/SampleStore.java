@@ -0,0 +1,540 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only on-disk store of samples, one stream per device address and characteristic UUID.
+ *
+ * <p>Each stream is a directory of segment files. A segment starts with a 16 byte header holding
+ * its base timestamp, followed by fixed-size 8 byte records: the timestamp as milliseconds after
+ * the base, and the value. Appends go to an in-memory buffer that is written out through the
+ * segment's {@code FileChannel} when it is full or old, so the cost per sample is a couple of
+ * buffer puts. The segment list, with the time range of each segment, serves as the time index:
+ * a range query binary searches it, maps the matching segments and binary searches the records.
+ *
+ * <p>Once a segment is complete it is compacted with {@link GorillaCodec} into a
+ * {@link CompressedSeries} file, which takes one to three bytes per sample instead of eight.
+ * Compaction runs in the background, so appends do not wait for it; the raw segment is read
+ * until its compressed file is in place. Only the segment being appended to is kept raw.
+ *
+ * <p>Timestamps are wall-clock milliseconds and are expected to be non-decreasing per stream; a
+ * timestamp older than the previous one is stored as the previous one. All methods are thread
+ * safe.
+ */
+public final class SampleStore {
+
+    private static final int MAGIC = 0x53485453; // "SHTS"
+    private static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 8;
+    static final int SEGMENT_RECORDS = 64 * 1024;
+    private static final int WRITE_BUFFER_RECORDS = 512;
+    private static final long FLUSH_INTERVAL_MILLIS = 10000;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int COMPRESSED_MAGIC = 0x53485447; // "SHTG"
+    private static final String COMPRESSED_SUFFIX = ".gor";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // How long the compaction thread waits for work before it ends.
+    private static final long COMPACTOR_KEEP_ALIVE_SECONDS = 10;
+
+    /**
+     * Receives the samples of a range query, oldest first.
+     */
+    public interface Visitor {
+        void onSample(long timestampMillis, float value);
+    }
+
+    private static final class Segment {
+        File file;
+        final long baseMillis;
+        int count;
+        long lastMillis;
+        boolean compressed;
+
+        Segment(File file, long baseMillis) {
+            this.file = file;
+            this.baseMillis = baseMillis;
+        }
+    }
+
+    private static final class Stream {
+        final File directory;
+        final ArrayList<Segment> segments = new ArrayList<Segment>();
+        final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_RECORDS * RECORD_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        // Channel of the last segment, open while we append to it.
+        FileChannel channel;
+        long lastFlushMillis;
+
+        Stream(File directory) {
+            this.directory = directory;
+        }
+
+        Segment last() {
+            return segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        }
+    }
+
+    private final File mRoot;
+    private final HashMap<String, HashMap<UUID, Stream>> mStreams =
+            new HashMap<String, HashMap<UUID, Stream>>();
+    private final Executor mCompactor;
+    // The compactions handed to mCompactor and not finished yet, guarded by itself.
+    private final int[] mPendingCompactions = new int[1];
+
+    /**
+     * @param root The directory the streams are kept in. Created if needed.
+     */
+    public SampleStore(File root) {
+        this(root, createCompactor());
+    }
+
+    /**
+     * @param compactor Runs the compaction of complete segments.
+     */
+    SampleStore(File root, Executor compactor) {
+        mRoot = root;
+        mCompactor = compactor;
+    }
+
+    // A single thread that ends when idle, so an unused store holds no thread.
+    private static Executor createCompactor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                COMPACTOR_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "SampleStoreCompactor");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Appends a sample to the stream of the device and characteristic.
+     */
+    public synchronized void append(String address, UUID characteristic, long timestampMillis,
+                                    float value) throws IOException {
+        final Stream stream = stream(address, characteristic);
+        Segment segment = stream.last();
+        if (segment != null && timestampMillis < segment.lastMillis) {
+            timestampMillis = segment.lastMillis;
+        }
+        if (segment == null || segment.count >= SEGMENT_RECORDS
+                || timestampMillis - segment.baseMillis > Integer.MAX_VALUE) {
+            segment = startSegment(stream, timestampMillis);
+        }
+        stream.writeBuffer.putInt((int) (timestampMillis - segment.baseMillis));
+        stream.writeBuffer.putFloat(value);
+        segment.count++;
+        segment.lastMillis = timestampMillis;
+        if (!stream.writeBuffer.hasRemaining()
+                || timestampMillis - stream.lastFlushMillis >= FLUSH_INTERVAL_MILLIS) {
+            flush(stream);
+            stream.lastFlushMillis = timestampMillis;
+        }
+    }
+
+    /**
+     * Hands the samples of the stream with {@code fromMillis <= timestamp <= toMillis} to the
+     * visitor, oldest first.
+     *
+     * @return The number of samples visited.
+     */
+    public synchronized int read(String address, UUID characteristic, long fromMillis,
+                                 long toMillis, Visitor visitor) throws IOException {
+        final Stream stream = stream(address, characteristic);
+        flush(stream);
+        final ArrayList<Segment> segments = stream.segments;
+        // The last segment starting at or before fromMillis may still hold matching samples.
+        int first = 0;
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (segments.get(mid).baseMillis <= fromMillis) {
+                first = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int visited = 0;
+        for (int i = first; i < segments.size(); i++) {
+            final Segment segment = segments.get(i);
+            if (segment.baseMillis > toMillis) {
+                break;
+            }
+            if (segment.count == 0 || segment.lastMillis < fromMillis) {
+                continue;
+            }
+            visited += segment.compressed
+                    ? readCompressedSegment(segment, fromMillis, toMillis, visitor)
+                    : readSegment(segment, fromMillis, toMillis, visitor);
+        }
+        return visited;
+    }
+
+    /**
+     * @return The timestamp of the newest sample of the stream, or -1 if it is empty.
+     */
+    public synchronized long getLastTimestamp(String address, UUID characteristic)
+            throws IOException {
+        final Segment segment = stream(address, characteristic).last();
+        return segment == null || segment.count == 0 ? -1 : segment.lastMillis;
+    }
+
+    /**
+     * @return The directory the streams of the device are kept in. It may not exist yet.
+     */
+    public File getDeviceDirectory(String address) {
+        return new File(mRoot, address.replace(":", ""));
+    }
+
+    /**
+     * Writes all buffered samples to disk.
+     */
+    public synchronized void flush() throws IOException {
+        for (HashMap<UUID, Stream> streams : mStreams.values()) {
+            for (Stream stream : streams.values()) {
+                flush(stream);
+            }
+        }
+    }
+
+    /**
+     * Writes all buffered samples to disk, closes the files and waits for the compactions in
+     * progress. The store can still be used afterwards, files are reopened as needed.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            for (HashMap<UUID, Stream> streams : mStreams.values()) {
+                for (Stream stream : streams.values()) {
+                    flush(stream);
+                    if (stream.channel != null) {
+                        stream.channel.close();
+                        stream.channel = null;
+                    }
+                }
+            }
+            mStreams.clear();
+        }
+        awaitCompactions();
+    }
+
+    /**
+     * Waits until the complete segments handed to the compactor so far are compacted. Must not
+     * be called while holding the store's lock, compaction needs it to finish.
+     */
+    void awaitCompactions() throws InterruptedIOException {
+        synchronized (mPendingCompactions) {
+            while (mPendingCompactions[0] > 0) {
+                try {
+                    mPendingCompactions.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for compaction");
+                }
+            }
+        }
+    }
+
+    private Stream stream(String address, UUID characteristic) throws IOException {
+        HashMap<UUID, Stream> streams = mStreams.get(address);
+        if (streams == null) {
+            streams = new HashMap<UUID, Stream>();
+            mStreams.put(address, streams);
+        }
+        Stream stream = streams.get(characteristic);
+        if (stream == null) {
+            final File directory = new File(getDeviceDirectory(address),
+                    characteristic.toString());
+            stream = new Stream(directory);
+            load(stream);
+            streams.put(characteristic, stream);
+            // Complete segments left raw by a compaction that failed or was cut short.
+            for (int i = 0; i < stream.segments.size() - 1; i++) {
+                final Segment segment = stream.segments.get(i);
+                if (!segment.compressed && segment.count > 0) {
+                    scheduleCompaction(segment);
+                }
+            }
+        }
+        return stream;
+    }
+
+    // Rebuilds the segment index of a stream from its files.
+    private static void load(Stream stream) throws IOException {
+        final File[] files = stream.directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final HashMap<Long, Segment> byBase = new HashMap<Long, Segment>();
+        for (File file : files) {
+            final String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                // Left over from a compaction that did not finish.
+                file.delete();
+                continue;
+            }
+            final boolean compressed = name.endsWith(COMPRESSED_SUFFIX);
+            if (!compressed && !name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            final long baseMillis;
+            try {
+                baseMillis = Long.parseLong(name.substring(0, name.lastIndexOf('.')));
+            } catch (NumberFormatException e) {
+                // Not one of ours.
+                continue;
+            }
+            final Segment existing = byBase.get(baseMillis);
+            if (existing != null) {
+                // The raw segment of a finished compaction was not deleted yet.
+                (compressed ? existing.file : file).delete();
+                if (!compressed) {
+                    continue;
+                }
+            }
+            final Segment segment = new Segment(file, baseMillis);
+            segment.compressed = compressed;
+            byBase.put(baseMillis, segment);
+        }
+        final ArrayList<Segment> segments = new ArrayList<Segment>(byBase.values());
+        final Segment[] sorted = segments.toArray(new Segment[segments.size()]);
+        Arrays.sort(sorted, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment a, Segment b) {
+                return a.baseMillis < b.baseMillis ? -1 : (a.baseMillis == b.baseMillis ? 0 : 1);
+            }
+        });
+        for (Segment segment : sorted) {
+            if (segment.compressed) {
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(segment.file), HEADER_SIZE * 2));
+                try {
+                    if (in.readInt() != COMPRESSED_MAGIC || in.readInt() != VERSION
+                            || in.readLong() != segment.baseMillis) {
+                        throw new IOException("Corrupt segment " + segment.file);
+                    }
+                    segment.count = in.readInt();
+                    segment.lastMillis = in.readLong();
+                } finally {
+                    in.close();
+                }
+                stream.segments.add(segment);
+                continue;
+            }
+            final RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+            try {
+                final FileChannel channel = file.getChannel();
+                final long length = channel.size();
+                if (length < HEADER_SIZE) {
+                    continue;
+                }
+                segment.count = (int) ((length - HEADER_SIZE) / RECORD_SIZE);
+                final long valid = HEADER_SIZE + (long) segment.count * RECORD_SIZE;
+                if (valid != length) {
+                    // A record was cut short by a crash.
+                    channel.truncate(valid);
+                }
+                if (segment.count > 0) {
+                    final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE)
+                            .order(ByteOrder.LITTLE_ENDIAN);
+                    channel.read(record, valid - RECORD_SIZE);
+                    segment.lastMillis = segment.baseMillis + record.getInt(0);
+                } else {
+                    segment.lastMillis = segment.baseMillis;
+                }
+            } finally {
+                file.close();
+            }
+            stream.segments.add(segment);
+        }
+    }
+
+    private Segment startSegment(Stream stream, long baseMillis) throws IOException {
+        flush(stream);
+        if (stream.channel != null) {
+            stream.channel.close();
+            stream.channel = null;
+        }
+        final Segment previous = stream.last();
+        if (previous != null && !previous.compressed && previous.count > 0) {
+            // Complete and flushed, nothing writes to it anymore.
+            scheduleCompaction(previous);
+        }
+        if (!stream.directory.isDirectory() && !stream.directory.mkdirs()) {
+            throw new IOException("Cannot create " + stream.directory);
+        }
+        final Segment segment = new Segment(
+                new File(stream.directory, baseMillis + SEGMENT_SUFFIX), baseMillis);
+        segment.lastMillis = baseMillis;
+        stream.channel = new RandomAccessFile(segment.file, "rw").getChannel();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putLong(baseMillis);
+        header.flip();
+        stream.channel.truncate(0);
+        while (header.hasRemaining()) {
+            stream.channel.write(header, HEADER_SIZE - header.remaining());
+        }
+        stream.segments.add(segment);
+        return segment;
+    }
+
+    private void scheduleCompaction(final Segment segment) {
+        synchronized (mPendingCompactions) {
+            mPendingCompactions[0]++;
+        }
+        mCompactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact(segment);
+                } catch (IOException e) {
+                    // The raw segment stays, it is complete and readable. Compaction is tried
+                    // again when the stream is loaded next.
+                } finally {
+                    synchronized (mPendingCompactions) {
+                        mPendingCompactions[0]--;
+                        mPendingCompactions.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    // Replaces a complete raw segment with its compressed form. Runs on the compactor without
+    // the store's lock, readers keep reading the raw file until the compressed one is in place.
+    private void compact(Segment segment) throws IOException {
+        final CompressedSeries series = new CompressedSeries();
+        readSegment(segment, segment.baseMillis, segment.lastMillis, new Visitor() {
+            @Override
+            public void onSample(long timestampMillis, float value) {
+                series.append(timestampMillis, value);
+            }
+        });
+        final File target = new File(segment.file.getParentFile(),
+                segment.baseMillis + COMPRESSED_SUFFIX);
+        final File temp = new File(target.getPath() + TEMP_SUFFIX);
+        final FileOutputStream file = new FileOutputStream(temp);
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            out.writeInt(COMPRESSED_MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(segment.baseMillis);
+            out.writeInt(segment.count);
+            out.writeLong(segment.lastMillis);
+            series.writeTo(out);
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        synchronized (this) {
+            if (!temp.renameTo(target)) {
+                // Keep the raw segment, it is still complete.
+                temp.delete();
+                return;
+            }
+            final File raw = segment.file;
+            segment.file = target;
+            segment.compressed = true;
+            raw.delete();
+        }
+    }
+
+    private static int readCompressedSegment(Segment segment, long fromMillis, long toMillis,
+                                             Visitor visitor) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(segment.file)));
+        try {
+            // Skip the header, load() has checked it.
+            in.readFully(new byte[HEADER_SIZE + 12]);
+            return CompressedSeries.readFrom(in).read(fromMillis, toMillis, visitor);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void flush(Stream stream) throws IOException {
+        if (stream.writeBuffer.position() == 0) {
+            return;
+        }
+        final Segment segment = stream.last();
+        if (stream.channel == null) {
+            stream.channel = new RandomAccessFile(segment.file, "rw").getChannel();
+        }
+        stream.writeBuffer.flip();
+        // The buffered records are the newest ones of the last segment.
+        long position = HEADER_SIZE + (long) segment.count * RECORD_SIZE
+                - stream.writeBuffer.remaining();
+        while (stream.writeBuffer.hasRemaining()) {
+            position += stream.channel.write(stream.writeBuffer, position);
+        }
+        stream.writeBuffer.clear();
+    }
+
+    private static int readSegment(Segment segment, long fromMillis, long toMillis,
+                                   Visitor visitor) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+        try {
+            final MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    0, HEADER_SIZE + (long) segment.count * RECORD_SIZE);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            final long fromDelta = fromMillis - segment.baseMillis;
+            final long toDelta = toMillis - segment.baseMillis;
+            // First record with delta >= fromDelta.
+            int low = 0;
+            int high = segment.count;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (map.getInt(HEADER_SIZE + mid * RECORD_SIZE) < fromDelta) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            int visited = 0;
+            for (int i = low; i < segment.count; i++) {
+                final int offset = HEADER_SIZE + i * RECORD_SIZE;
+                final int delta = map.getInt(offset);
+                if (delta > toDelta) {
+                    break;
+                }
+                visitor.onSample(segment.baseMillis + delta, map.getFloat(offset + 4));
+                visited++;
+            }
+            return visited;
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import android.bluetooth.le.ScanFilter;
+import android.os.ParcelUuid;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns {@link DeviceProfile}s into controller scan filters. The controller reports a device if
+ * any filter matches, so every rule becomes a filter of its own.
+ */
+final class ScanFilterFactory {
+
+    private ScanFilterFactory() {
+    }
+
+    static List<ScanFilter> createFilters(List<DeviceProfile> profiles) {
+        final ArrayList<ScanFilter> filters = new ArrayList<ScanFilter>();
+        for (DeviceProfile profile : profiles) {
+            for (DeviceProfile.ServiceRule rule : profile.getServiceRules()) {
+                final ScanFilter.Builder builder = new ScanFilter.Builder();
+                if (rule.getMask() == null) {
+                    builder.setServiceUuid(new ParcelUuid(rule.getUuid()));
+                } else {
+                    builder.setServiceUuid(new ParcelUuid(rule.getUuid()),
+                            new ParcelUuid(rule.getMask()));
+                }
+                filters.add(builder.build());
+            }
+            for (DeviceProfile.ManufacturerRule rule : profile.getManufacturerRules()) {
+                final byte[] mask = rule.getMask();
+                final ScanFilter.Builder builder = new ScanFilter.Builder();
+                if (mask == null) {
+                    builder.setManufacturerData(rule.getCompanyId(), rule.getData());
+                } else {
+                    builder.setManufacturerData(rule.getCompanyId(), rule.getData(), mask);
+                }
+                filters.add(builder.build());
+            }
+        }
+        return filters;
+    }
+}
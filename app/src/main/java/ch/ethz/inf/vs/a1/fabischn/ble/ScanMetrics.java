@@ -0,0 +1,70 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+/**
+ * Counts how often the scanner wakes the app up. Every {@code ScanCallback} invocation is one
+ * wakeup, whether it carries a single result or a whole batch. All methods are thread safe.
+ */
+public final class ScanMetrics {
+
+    private static final long NANOS_PER_MINUTE = 60L * 1000000000L;
+
+    private long mStartNanos;
+    private long mCallbackCount;
+    private long mResultCount;
+    private int mMaxBatchSize;
+
+    public ScanMetrics(long nowNanos) {
+        mStartNanos = nowNanos;
+    }
+
+    /**
+     * Starts counting afresh, for example after the scan mode changed.
+     */
+    public synchronized void reset(long nowNanos) {
+        mStartNanos = nowNanos;
+        mCallbackCount = 0;
+        mResultCount = 0;
+        mMaxBatchSize = 0;
+    }
+
+    /**
+     * Records one callback.
+     *
+     * @param results The number of scan results it delivered.
+     */
+    public synchronized void onCallback(int results) {
+        mCallbackCount++;
+        mResultCount += results;
+        mMaxBatchSize = Math.max(mMaxBatchSize, results);
+    }
+
+    /**
+     * @return The number of callbacks, that is app wakeups, since the last reset.
+     */
+    public synchronized long getCallbackCount() {
+        return mCallbackCount;
+    }
+
+    public synchronized long getResultCount() {
+        return mResultCount;
+    }
+
+    public synchronized int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    public synchronized double getCallbacksPerMinute(long nowNanos) {
+        final long elapsed = nowNanos - mStartNanos;
+        return elapsed <= 0 ? 0 : mCallbackCount * (double) NANOS_PER_MINUTE / elapsed;
+    }
+
+    public synchronized double getResultsPerCallback() {
+        return mCallbackCount == 0 ? 0 : mResultCount / (double) mCallbackCount;
+    }
+
+    public synchronized String toString(long nowNanos) {
+        return String.format("wakeups=%d results=%d callbacks/min=%.1f results/callback=%.1f"
+                        + " maxBatch=%d", mCallbackCount, mResultCount,
+                getCallbacksPerMinute(nowNanos), getResultsPerCallback(), mMaxBatchSize);
+    }
+}
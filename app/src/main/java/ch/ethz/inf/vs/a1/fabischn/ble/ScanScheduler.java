@@ -0,0 +1,284 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Duty-cycles BLE scanning: the scanner runs for a window, pauses for an interval, and runs
+ * again. Both adapt to what the last window found.
+ *
+ * <ul>
+ * <li>A window that discovered a new device keeps scanning at full duty, with the longest window
+ * and the shortest pause.</li>
+ * <li>A window that found nothing new halves the window and doubles the pause, down to
+ * {@link #MIN_WINDOW_MILLIS} and up to {@link #MAX_INTERVAL_MILLIS}.</li>
+ * <li>While a target device has not been seen for {@link #TARGET_TIMEOUT_MILLIS}, scanning
+ * bursts at full duty regardless of the back-off.</li>
+ * </ul>
+ *
+ * <p>Duty-cycling can be switched off with {@link #setDutyCycled}, then a started scan runs
+ * until {@link #stop}.
+ *
+ * <p>Android silently ignores the sixth scan started within 30 seconds, so no start is issued
+ * that would exceed {@link #MAX_STARTS} per {@link #THROTTLE_WINDOW_MILLIS}; it is delayed
+ * instead. All methods are thread safe.
+ */
+public final class ScanScheduler {
+
+    static final long MIN_WINDOW_MILLIS = 2000;
+    static final long MAX_WINDOW_MILLIS = 10000;
+    static final long MIN_INTERVAL_MILLIS = 2000;
+    static final long MAX_INTERVAL_MILLIS = 5 * 60 * 1000;
+    static final int MAX_STARTS = 5;
+    static final long THROTTLE_WINDOW_MILLIS = 30000;
+    static final long TARGET_TIMEOUT_MILLIS = 60000;
+    // Keeps a delayed start clear of the edge of the platform's throttle window.
+    private static final long THROTTLE_MARGIN_MILLIS = 100;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    /**
+     * Starts and stops the actual scan.
+     */
+    public interface Scanner {
+        /**
+         * @return false if the scan could not be started.
+         */
+        boolean startScan();
+
+        void stopScan();
+    }
+
+    private final GattOperationQueue.Scheduler mClock;
+    private final Scanner mScanner;
+
+    // The times of the last MAX_STARTS starts, oldest at mStartIndex once the ring is full.
+    private final long[] mStartTimesNanos = new long[MAX_STARTS];
+    private int mStartIndex;
+    private int mRecordedStarts;
+
+    private boolean mRunning;
+    private boolean mScanning;
+    private boolean mDutyCycled = true;
+    private long mWindowMillis = MAX_WINDOW_MILLIS;
+    private long mIntervalMillis = MIN_INTERVAL_MILLIS;
+    private int mNewDevicesInWindow;
+    // Target address to the time it was last seen, -1 if never.
+    private final HashMap<String, Long> mTargets = new HashMap<String, Long>();
+
+    private long mStartCount;
+    private long mThrottledCount;
+    private long mBurstCount;
+    private long mFailedStartCount;
+
+    private final Runnable mStartWindow = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ScanScheduler.this) {
+                if (mRunning && !mScanning) {
+                    startWindow();
+                }
+            }
+        }
+    };
+
+    private final Runnable mEndWindow = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ScanScheduler.this) {
+                if (mRunning && mScanning) {
+                    endWindow();
+                }
+            }
+        }
+    };
+
+    public ScanScheduler(GattOperationQueue.Scheduler clock, Scanner scanner) {
+        mClock = clock;
+        mScanner = scanner;
+    }
+
+    /**
+     * Starts duty-cycling at full duty. Does nothing if already running.
+     */
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mWindowMillis = MAX_WINDOW_MILLIS;
+        mIntervalMillis = MIN_INTERVAL_MILLIS;
+        startWindow();
+    }
+
+    /**
+     * Stops scanning until the next {@link #start}.
+     */
+    public synchronized void stop() {
+        mRunning = false;
+        mClock.cancel(mStartWindow);
+        mClock.cancel(mEndWindow);
+        if (mScanning) {
+            mScanning = false;
+            mScanner.stopScan();
+        }
+    }
+
+    /**
+     * Switches duty-cycling on or off. While off, the scan runs without pauses, for example
+     * when the controller batches the results and only wakes the app once per batch anyway.
+     * Applies to the running window as well.
+     */
+    public synchronized void setDutyCycled(boolean dutyCycled) {
+        if (dutyCycled == mDutyCycled) {
+            return;
+        }
+        mDutyCycled = dutyCycled;
+        if (!mScanning) {
+            return;
+        }
+        if (dutyCycled) {
+            mClock.postDelayed(mEndWindow, mWindowMillis);
+        } else {
+            mClock.cancel(mEndWindow);
+        }
+    }
+
+    public synchronized boolean isDutyCycled() {
+        return mDutyCycled;
+    }
+
+    /**
+     * Reports a scan result.
+     *
+     * @param isNew Whether the device was not known before.
+     */
+    public synchronized void onDeviceSeen(String address, boolean isNew) {
+        if (isNew) {
+            mNewDevicesInWindow++;
+        }
+        if (mTargets.containsKey(address)) {
+            mTargets.put(address, mClock.nowNanos());
+        }
+    }
+
+    /**
+     * Adds a device that scanning should burst for while it is missing.
+     */
+    public synchronized void addTarget(String address) {
+        if (!mTargets.containsKey(address)) {
+            mTargets.put(address, -1L);
+        }
+    }
+
+    public synchronized void removeTarget(String address) {
+        mTargets.remove(address);
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    public synchronized boolean isScanning() {
+        return mScanning;
+    }
+
+    public synchronized long getWindowMillis() {
+        return mWindowMillis;
+    }
+
+    public synchronized long getIntervalMillis() {
+        return mIntervalMillis;
+    }
+
+    public synchronized long getStartCount() {
+        return mStartCount;
+    }
+
+    /**
+     * @return The number of starts that were delayed to stay within the platform's throttle.
+     */
+    public synchronized long getThrottledCount() {
+        return mThrottledCount;
+    }
+
+    /**
+     * @return The number of windows scheduled at full duty because a target was missing.
+     */
+    public synchronized long getBurstCount() {
+        return mBurstCount;
+    }
+
+    public synchronized long getFailedStartCount() {
+        return mFailedStartCount;
+    }
+
+    private void startWindow() {
+        final long now = mClock.nowNanos();
+        final long waitMillis = throttleDelayMillis(now);
+        if (waitMillis > 0) {
+            mThrottledCount++;
+            mClock.postDelayed(mStartWindow, waitMillis);
+            return;
+        }
+        recordStart(now);
+        if (!mScanner.startScan()) {
+            mFailedStartCount++;
+            mClock.postDelayed(mStartWindow, mIntervalMillis);
+            return;
+        }
+        mStartCount++;
+        mScanning = true;
+        mNewDevicesInWindow = 0;
+        if (mDutyCycled) {
+            mClock.postDelayed(mEndWindow, mWindowMillis);
+        }
+    }
+
+    private void endWindow() {
+        mScanning = false;
+        mScanner.stopScan();
+        if (isTargetMissing(mClock.nowNanos())) {
+            mBurstCount++;
+            mWindowMillis = MAX_WINDOW_MILLIS;
+            mIntervalMillis = MIN_INTERVAL_MILLIS;
+        } else if (mNewDevicesInWindow > 0) {
+            mWindowMillis = MAX_WINDOW_MILLIS;
+            mIntervalMillis = MIN_INTERVAL_MILLIS;
+        } else {
+            mWindowMillis = Math.max(MIN_WINDOW_MILLIS, mWindowMillis / 2);
+            mIntervalMillis = Math.min(MAX_INTERVAL_MILLIS, mIntervalMillis * 2);
+        }
+        mClock.postDelayed(mStartWindow, mIntervalMillis);
+    }
+
+    private boolean isTargetMissing(long now) {
+        for (Map.Entry<String, Long> target : mTargets.entrySet()) {
+            final long lastSeen = target.getValue();
+            if (lastSeen < 0 || now - lastSeen >= TARGET_TIMEOUT_MILLIS * NANOS_PER_MILLI) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // How long a start now has to wait so the last MAX_STARTS starts span the throttle window.
+    private long throttleDelayMillis(long now) {
+        if (mRecordedStarts < MAX_STARTS) {
+            return 0;
+        }
+        final long oldest = mStartTimesNanos[mStartIndex];
+        final long elapsedMillis = (now - oldest) / NANOS_PER_MILLI;
+        if (elapsedMillis >= THROTTLE_WINDOW_MILLIS + THROTTLE_MARGIN_MILLIS) {
+            return 0;
+        }
+        return THROTTLE_WINDOW_MILLIS + THROTTLE_MARGIN_MILLIS - elapsedMillis;
+    }
+
+    private void recordStart(long now) {
+        mStartTimesNanos[mStartIndex] = now;
+        mStartIndex = (mStartIndex + 1) % MAX_STARTS;
+        if (mRecordedStarts < MAX_STARTS) {
+            mRecordedStarts++;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The scan state of {@link MainActivity}: the scanner and its settings, the duty-cycling
+ * {@link ScanScheduler}, the metrics and the devices found so far. The activity hands it over to
+ * its next instance through {@code onRetainNonConfigurationInstance}, so a rotation neither
+ * restarts the scan nor forgets the devices. Must be used on the main thread.
+ */
+final class ScanSession {
+    private final static String TAG = ScanSession.class.getSimpleName();
+
+    // How long the controller collects results before handing them over in batched mode.
+    private static final long BATCH_REPORT_DELAY_MILLIS = 5000;
+    // How long a batched scan is kept running for the results it was asked to flush.
+    private static final long FLUSH_TIMEOUT_MILLIS = 1000;
+
+    private final BluetoothAdapter mBluetoothAdapter;
+    private List<DeviceProfile> mProfiles = Collections.singletonList(DeviceProfile.SHT31);
+    private List<ScanFilter> mScanFilters;
+    // Checks the results again in the app if the controller cannot filter on its own.
+    private AdvertisementMatcher mMatcher;
+    private int mRejectedCount;
+    // Passive mode takes the samples from the advertisements instead of connecting.
+    private boolean mPassive;
+    // Reads samples out of the advertisements in passive mode, null while no sink is attached.
+    private AdvertisementParser mAdvertisementParser;
+    private ScanSettings mScanSettings;
+    // Batched mode trades discovery latency for far fewer wakeups of the app. It is not
+    // duty-cycled: windows of a few seconds would end before the first batch is reported.
+    private boolean mBatchScan;
+    private final ScanMetrics mScanMetrics = new ScanMetrics(SystemClock.elapsedRealtimeNanos());
+    private final DeviceRegistry<BluetoothDevice> mDevices = new DeviceRegistry<BluetoothDevice>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ScanScheduler mScheduler;
+    // The devices the scheduler bursts for while they are missing.
+    private final HashSet<String> mTargets = new HashSet<String>();
+    // The dispatcher of the activity currently showing the results, null between two instances.
+    private CoalescingDispatcher<String, ScanResult> mResultDispatcher;
+    // The callback of the running scan, null while none runs. Every scan gets its own, so a
+    // batched scan that is still waiting for its flushed results does not block the next one.
+    private ResultCallback mScanCallback;
+
+    private final GattOperationQueue.Scheduler mClock = new GattOperationQueue.Scheduler() {
+        @Override
+        public long nowNanos() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+
+        @Override
+        public void postDelayed(Runnable runnable, long delayMillis) {
+            mHandler.postDelayed(runnable, delayMillis);
+        }
+
+        @Override
+        public void cancel(Runnable runnable) {
+            mHandler.removeCallbacks(runnable);
+        }
+    };
+
+    private final ScanScheduler.Scanner mScanner = new ScanScheduler.Scanner() {
+        @Override
+        public boolean startScan() {
+            final BluetoothLeScanner scanner = mBluetoothAdapter.getBluetoothLeScanner();
+            if (scanner == null) {
+                // Bluetooth is off.
+                return false;
+            }
+            mScanCallback = new ResultCallback();
+            scanner.startScan(mScanFilters, mScanSettings, mScanCallback);
+            return true;
+        }
+
+        @Override
+        public void stopScan() {
+            final ResultCallback callback = mScanCallback;
+            mScanCallback = null;
+            if (callback == null) {
+                return;
+            }
+            if (mBatchScan) {
+                callback.stopAfterFlush();
+            } else {
+                callback.stop();
+            }
+        }
+    };
+
+    private final class ResultCallback extends ScanCallback {
+        private boolean mFlushing;
+        private boolean mStopped;
+
+        private final Runnable mStop = new Runnable() {
+            @Override
+            public void run() {
+                stop();
+            }
+        };
+
+        /**
+         * Asks the controller for what it collected so far, which stopping would drop, and
+         * stops once the flushed batch arrived, or after {@link #FLUSH_TIMEOUT_MILLIS} if none
+         * does. The results are delivered asynchronously, stopping right away would unregister
+         * this callback before they arrive.
+         */
+        void stopAfterFlush() {
+            final BluetoothLeScanner scanner = mBluetoothAdapter.getBluetoothLeScanner();
+            if (scanner == null) {
+                // Bluetooth is off, the scan is gone already.
+                mStopped = true;
+                return;
+            }
+            mFlushing = true;
+            scanner.flushPendingScanResults(this);
+            mHandler.postDelayed(mStop, FLUSH_TIMEOUT_MILLIS);
+        }
+
+        void stop() {
+            mHandler.removeCallbacks(mStop);
+            if (mStopped) {
+                return;
+            }
+            mStopped = true;
+            final BluetoothLeScanner scanner = mBluetoothAdapter.getBluetoothLeScanner();
+            if (scanner != null) {
+                scanner.stopScan(this);
+            }
+        }
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            super.onScanResult(callbackType, result);
+            if (mStopped) {
+                return;
+            }
+            mScanMetrics.onCallback(1);
+            onResult(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            super.onBatchScanResults(results);
+            if (mStopped) {
+                return;
+            }
+            mScanMetrics.onCallback(results.size());
+            // A device usually shows up several times per batch, only its latest result is
+            // kept, and the whole batch reaches the registry in one frame.
+            for (int i = 0; i < results.size(); i++) {
+                onResult(results.get(i));
+            }
+            if (mFlushing) {
+                stop();
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            super.onScanFailed(errorCode);
+            Log.e(TAG, "Scan failed: " + errorCode);
+        }
+    }
+
+    ScanSession(BluetoothAdapter bluetoothAdapter) {
+        mBluetoothAdapter = bluetoothAdapter;
+        applyProfiles();
+        mScanSettings = buildScanSettings(false);
+        mScheduler = new ScanScheduler(mClock, mScanner);
+    }
+
+    /**
+     * @param dispatcher Receives the scan results from now on, or null to drop them.
+     */
+    void setResultDispatcher(CoalescingDispatcher<String, ScanResult> dispatcher) {
+        mResultDispatcher = dispatcher;
+    }
+
+    /**
+     * Replaces the device profiles to scan for. The current scan window is restarted with the
+     * new filters.
+     */
+    void setProfiles(List<DeviceProfile> profiles) {
+        if (profiles.isEmpty()) {
+            throw new IllegalArgumentException("At least one profile is needed");
+        }
+        final boolean running = mScheduler.isRunning();
+        mScheduler.stop();
+        mProfiles = new ArrayList<DeviceProfile>(profiles);
+        applyProfiles();
+        if (running) {
+            mScheduler.start();
+        }
+    }
+
+    List<DeviceProfile> getProfiles() {
+        return Collections.unmodifiableList(mProfiles);
+    }
+
+    /**
+     * Replaces the devices that scanning bursts for until they are seen, see
+     * {@link ScanScheduler#addTarget}. A device that leaves the set and comes back counts as
+     * missing again.
+     */
+    void setTargets(Collection<String> addresses) {
+        for (Iterator<String> it = mTargets.iterator(); it.hasNext(); ) {
+            final String address = it.next();
+            if (!addresses.contains(address)) {
+                mScheduler.removeTarget(address);
+                it.remove();
+            }
+        }
+        for (String address : addresses) {
+            if (mTargets.add(address)) {
+                mScheduler.addTarget(address);
+            }
+        }
+    }
+
+    /**
+     * Passive mode reads the sensor values out of the advertisements instead of connecting.
+     * The samples only flow once a parser is attached with {@link #setAdvertisementParser}.
+     */
+    void setPassive(boolean passive) {
+        mPassive = passive;
+    }
+
+    boolean isPassive() {
+        return mPassive;
+    }
+
+    /**
+     * @param parser Parses every accepted result in passive mode, or null to stop parsing.
+     */
+    void setAdvertisementParser(AdvertisementParser parser) {
+        mAdvertisementParser = parser;
+    }
+
+    /**
+     * Records a scan result delivered by the dispatcher in the registry.
+     *
+     * @return A combination of the {@code DeviceRegistry.CHANGE_*} flags.
+     */
+    int addResult(ScanResult result) {
+        final BluetoothDevice device = result.getDevice();
+        final ScanRecord record = result.getScanRecord();
+        // The advertised name is part of the result, device.getName() would ask the stack.
+        final int changes = mDevices.update(device.getAddress(), device,
+                record == null ? null : record.getDeviceName(), result.getRssi(),
+                result.getTimestampNanos());
+        mScheduler.onDeviceSeen(device.getAddress(),
+                (changes & DeviceRegistry.CHANGE_ADDED) != 0);
+        return changes;
+    }
+
+    DeviceRegistry<BluetoothDevice> getDevices() {
+        return mDevices;
+    }
+
+    void start() {
+        mScheduler.start();
+    }
+
+    void stop() {
+        mScheduler.stop();
+    }
+
+    boolean isRunning() {
+        return mScheduler.isRunning();
+    }
+
+    boolean isBatchScan() {
+        return mBatchScan;
+    }
+
+    /**
+     * Switches between low-latency scanning, with a callback per advertisement, and batched
+     * scanning, where the controller matches the filters and collects the results. Batched
+     * scans run without pauses until stopped. The current scan is restarted with the new
+     * settings.
+     *
+     * @return false if batched scanning is not supported.
+     */
+    boolean setBatchScan(boolean enabled) {
+        if (enabled && !mBluetoothAdapter.isOffloadedScanBatchingSupported()) {
+            Log.w(TAG, "The controller does not support batched scans.");
+            return false;
+        }
+        if (enabled == mBatchScan) {
+            return true;
+        }
+        logMetrics();
+        // Stop with the old settings, so pending batches are flushed. They arrive after the
+        // new scan started and are counted with its metrics.
+        final boolean running = mScheduler.isRunning();
+        mScheduler.stop();
+        mBatchScan = enabled;
+        mScheduler.setDutyCycled(!enabled);
+        mScanSettings = buildScanSettings(enabled);
+        mScanMetrics.reset(SystemClock.elapsedRealtimeNanos());
+        mRejectedCount = 0;
+        if (running) {
+            mScheduler.start();
+        }
+        return true;
+    }
+
+    void logMetrics() {
+        Log.d(TAG, (mBatchScan ? "Batched" : "Low-latency") + " scan: "
+                + mScanMetrics.toString(SystemClock.elapsedRealtimeNanos())
+                + " rejected=" + mRejectedCount
+                + " starts=" + mScheduler.getStartCount()
+                + " throttled=" + mScheduler.getThrottledCount()
+                + " window=" + mScheduler.getWindowMillis()
+                + "ms interval=" + mScheduler.getIntervalMillis() + "ms");
+    }
+
+    private void applyProfiles() {
+        mScanFilters = ScanFilterFactory.createFilters(mProfiles);
+        if (mBluetoothAdapter.isOffloadedFilteringSupported()) {
+            mMatcher = null;
+        } else {
+            Log.w(TAG, "The controller does not support filtering, matching in the app.");
+            mMatcher = new AdvertisementMatcher(mProfiles);
+        }
+    }
+
+    // @param recordBytes The bytes of the result's scan record, or null if it has none.
+    private boolean accept(byte[] recordBytes) {
+        if (mMatcher == null) {
+            return true;
+        }
+        if (recordBytes == null || mMatcher.match(recordBytes) < 0) {
+            mRejectedCount++;
+            return false;
+        }
+        return true;
+    }
+
+    private void onResult(ScanResult result) {
+        // Fetched once for the matcher and the parser, which read the array in place.
+        final ScanRecord record = result.getScanRecord();
+        final byte[] recordBytes = record == null ? null : record.getBytes();
+        if (!accept(recordBytes)) {
+            return;
+        }
+        if (mPassive && mAdvertisementParser != null && recordBytes != null) {
+            // Every result is parsed, the dispatcher below keeps only the latest per device.
+            mAdvertisementParser.parse(result.getDevice().getAddress(),
+                    result.getTimestampNanos(), recordBytes);
+        }
+        post(result);
+    }
+
+    private void post(ScanResult result) {
+        if (mResultDispatcher != null) {
+            mResultDispatcher.post(result.getDevice().getAddress(), result);
+        }
+    }
+
+    private static ScanSettings buildScanSettings(boolean batched) {
+        final ScanSettings.Builder settingsBuilder = new ScanSettings.Builder();
+        if (batched) {
+            settingsBuilder
+                    .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER)
+                    .setReportDelay(BATCH_REPORT_DELAY_MILLIS);
+        } else {
+            settingsBuilder.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+        }
+        return settingsBuilder.build();
+    }
+}
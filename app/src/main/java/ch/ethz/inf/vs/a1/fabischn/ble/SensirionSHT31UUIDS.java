@@ -12,6 +12,12 @@ public final class SensirionSHT31UUIDS {
     private static String S_UUID_TEMPERATURE_SERVICE = "00002234-b38d-4985-720e-0f993a68ee41";
     private static String S_UUID_TEMPERATURE_CHARACTERISTIC = "00002235-b38d-4985-720e-0f993a68ee41";
     private static String S_NOTIFICATION_DESCRIPTOR_UUID = "00002902-0000-1000-8000-00805f9b34fb";
+    private static String S_UUID_LOGGER_SERVICE = "0000f234-b38d-4985-720e-0f993a68ee41";
+    private static String S_UUID_LOGGER_SYNC_TIME = "0000f235-b38d-4985-720e-0f993a68ee41";
+    private static String S_UUID_LOGGER_OLDEST = "0000f236-b38d-4985-720e-0f993a68ee41";
+    private static String S_UUID_LOGGER_NEWEST = "0000f237-b38d-4985-720e-0f993a68ee41";
+    private static String S_UUID_LOGGER_START = "0000f238-b38d-4985-720e-0f993a68ee41";
+    private static String S_UUID_LOGGER_INTERVAL = "0000f239-b38d-4985-720e-0f993a68ee41";
 
 
     protected static UUID UUID_HUMIDITY_SERVICE = UUID.fromString(S_UUID_HUMIDITY_SERVICE);
@@ -20,8 +26,27 @@ public final class SensirionSHT31UUIDS {
     protected static UUID UUID_TEMPERATURE_CHARACTERISTIC = UUID.fromString(S_UUID_TEMPERATURE_CHARACTERISTIC);
     protected static UUID NOTIFICATION_DESCRIPTOR_UUID = UUID.fromString(S_NOTIFICATION_DESCRIPTOR_UUID);
 
+    // The logger: the device clock and the logged range as uint64 milliseconds, the interval as
+    // uint32 milliseconds, and a uint8 that starts the download of the range when set to 1.
+    protected static UUID UUID_LOGGER_SERVICE = UUID.fromString(S_UUID_LOGGER_SERVICE);
+    protected static UUID UUID_LOGGER_SYNC_TIME = UUID.fromString(S_UUID_LOGGER_SYNC_TIME);
+    protected static UUID UUID_LOGGER_OLDEST = UUID.fromString(S_UUID_LOGGER_OLDEST);
+    protected static UUID UUID_LOGGER_NEWEST = UUID.fromString(S_UUID_LOGGER_NEWEST);
+    protected static UUID UUID_LOGGER_START = UUID.fromString(S_UUID_LOGGER_START);
+    protected static UUID UUID_LOGGER_INTERVAL = UUID.fromString(S_UUID_LOGGER_INTERVAL);
+
+    // Bluetooth SIG company identifier of Sensirion AG, used in manufacturer specific data.
+    public static final int SENSIRION_COMPANY_ID = 0x06D5;
+
+    // Small integer ids for the characteristics we stream, so the sample path does not have to
+    // carry UUIDs around.
+    public static final int CHARACTERISTIC_UNKNOWN = -1;
+    public static final int CHARACTERISTIC_HUMIDITY = 0;
+    public static final int CHARACTERISTIC_TEMPERATURE = 1;
+
 
     private static HashMap<String, String> attributes = new HashMap();
+    private static HashMap<UUID, String> names = new HashMap<UUID, String>();
 
     static{
         // SHT31 Services.
@@ -34,12 +59,63 @@ public final class SensirionSHT31UUIDS {
 
         // SHT31 Notification Descriptor
         attributes.put(S_NOTIFICATION_DESCRIPTOR_UUID, "SHT31 Notification Descriptor");
+
+        // Logger.
+        attributes.put(S_UUID_LOGGER_SERVICE, "SHT31 Logger Service");
+        attributes.put(S_UUID_LOGGER_SYNC_TIME, "SHT31 Logger Sync Time");
+        attributes.put(S_UUID_LOGGER_OLDEST, "SHT31 Logger Oldest Timestamp");
+        attributes.put(S_UUID_LOGGER_NEWEST, "SHT31 Logger Newest Timestamp");
+        attributes.put(S_UUID_LOGGER_START, "SHT31 Logger Start Download");
+        attributes.put(S_UUID_LOGGER_INTERVAL, "SHT31 Logger Interval");
+
+        for (String uuid : attributes.keySet()) {
+            names.put(UUID.fromString(uuid), attributes.get(uuid));
+        }
     }
 
     public static String lookup(String uuid, String defaultName) {
         String name = attributes.get(uuid);
         return name == null ? defaultName : name;
     }
+
+    /**
+     * Like {@link #lookup(String, String)}, without turning the UUID into a string first.
+     */
+    public static String lookup(UUID uuid, String defaultName) {
+        String name = names.get(uuid);
+        return name == null ? defaultName : name;
+    }
+
+    /**
+     * Maps a characteristic UUID to one of the {@code CHARACTERISTIC_*} ids.
+     *
+     * @param uuid The characteristic UUID.
+     * @return The id, or {@link #CHARACTERISTIC_UNKNOWN} if it is not a SHT31 characteristic.
+     */
+    public static int characteristicId(UUID uuid) {
+        if (UUID_HUMIDITY_CHARACTERISTIC.equals(uuid)) {
+            return CHARACTERISTIC_HUMIDITY;
+        } else if (UUID_TEMPERATURE_CHARACTERISTIC.equals(uuid)) {
+            return CHARACTERISTIC_TEMPERATURE;
+        }
+        return CHARACTERISTIC_UNKNOWN;
+    }
+
+    /**
+     * Maps one of the {@code CHARACTERISTIC_*} ids back to its UUID.
+     *
+     * @return The UUID, or null for {@link #CHARACTERISTIC_UNKNOWN}.
+     */
+    public static UUID characteristicUuid(int characteristicId) {
+        switch (characteristicId) {
+            case CHARACTERISTIC_HUMIDITY:
+                return UUID_HUMIDITY_CHARACTERISTIC;
+            case CHARACTERISTIC_TEMPERATURE:
+                return UUID_TEMPERATURE_CHARACTERISTIC;
+            default:
+                return null;
+        }
+    }
 }
 
 
@@ -0,0 +1,135 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+/**
+ * Rolling statistics of one device: humidity, temperature and the dew point derived from both,
+ * each over the same set of windows. Updated per sample in constant time, see
+ * {@link RollingWindow}. All methods are thread safe.
+ */
+public final class SensorAggregator implements AggregateContainer {
+
+    public static final int SERIES_HUMIDITY = 0;
+    public static final int SERIES_TEMPERATURE = 1;
+    public static final int SERIES_DEW_POINT = 2;
+    public static final int SERIES_COUNT = 3;
+
+    public static final long[] DEFAULT_WINDOWS_MILLIS = {60 * 1000L, 60 * 60 * 1000L,
+            24 * 60 * 60 * 1000L};
+    // The window slides in steps of 1/60 of its length.
+    private static final int BUCKET_COUNT = 60;
+
+    // Magnus coefficients over water, -45 to 60 °C, from the Sensirion dew point application
+    // note.
+    private static final double MAGNUS_B = 17.62;
+    private static final double MAGNUS_C = 243.12;
+
+    // [series][window]
+    private final RollingWindow[][] mWindows;
+    private float mHumidity = Float.NaN;
+    private float mTemperature = Float.NaN;
+
+    public SensorAggregator() {
+        this(DEFAULT_WINDOWS_MILLIS);
+    }
+
+    /**
+     * @param windowsMillis The window lengths, shortest first.
+     */
+    public SensorAggregator(long... windowsMillis) {
+        mWindows = new RollingWindow[SERIES_COUNT][windowsMillis.length];
+        for (int series = 0; series < SERIES_COUNT; series++) {
+            for (int window = 0; window < windowsMillis.length; window++) {
+                mWindows[series][window] = new RollingWindow(windowsMillis[window], BUCKET_COUNT);
+            }
+        }
+    }
+
+    /**
+     * Adds a sample of the device. Does not allocate.
+     *
+     * @param characteristicId One of the {@code SensirionSHT31UUIDS.CHARACTERISTIC_*} ids,
+     *                         others are ignored.
+     */
+    public synchronized void onSample(int characteristicId, long timestampMillis, float value) {
+        if (characteristicId == SensirionSHT31UUIDS.CHARACTERISTIC_HUMIDITY) {
+            mHumidity = value;
+            add(SERIES_HUMIDITY, timestampMillis, value);
+        } else if (characteristicId == SensirionSHT31UUIDS.CHARACTERISTIC_TEMPERATURE) {
+            mTemperature = value;
+            add(SERIES_TEMPERATURE, timestampMillis, value);
+        } else {
+            return;
+        }
+        // Like the graph, a sample of one series is combined with the latest of the other.
+        add(SERIES_DEW_POINT, timestampMillis, dewPoint(mTemperature, mHumidity));
+    }
+
+    /**
+     * Slides all windows up to the given time, so the statistics of a silent device expire.
+     */
+    public synchronized void advanceTo(long timestampMillis) {
+        for (RollingWindow[] windows : mWindows) {
+            for (RollingWindow window : windows) {
+                window.advanceTo(timestampMillis);
+            }
+        }
+    }
+
+    @Override
+    public int getWindowCount() {
+        return mWindows[0].length;
+    }
+
+    @Override
+    public long getWindowMillis(int window) {
+        return mWindows[0][window].getWindowMillis();
+    }
+
+    @Override
+    public synchronized float getAggregate(int series, int window, int statistic) {
+        final RollingWindow rolling = mWindows[series][window];
+        switch (statistic) {
+            case STAT_MIN:
+                return rolling.getMin();
+            case STAT_MAX:
+                return rolling.getMax();
+            case STAT_MEAN:
+                return rolling.getMean();
+            case STAT_STDDEV:
+                return rolling.getStandardDeviation();
+            case STAT_COUNT:
+                return rolling.getCount();
+            default:
+                throw new IllegalArgumentException("Unknown statistic " + statistic);
+        }
+    }
+
+    /**
+     * @return The latest dew point, NaN until both humidity and temperature are known.
+     */
+    public synchronized float getDewPoint() {
+        return dewPoint(mTemperature, mHumidity);
+    }
+
+    /**
+     * Dew point after the Magnus formula.
+     *
+     * @param temperature In °C.
+     * @param humidity Relative humidity in %.
+     * @return The dew point in °C, NaN if an input is NaN or the humidity is not positive.
+     */
+    public static float dewPoint(float temperature, float humidity) {
+        if (!(humidity > 0) || Float.isNaN(temperature)) {
+            return Float.NaN;
+        }
+        final double gamma = Math.log(humidity / 100.0)
+                + MAGNUS_B * temperature / (MAGNUS_C + temperature);
+        return (float) (MAGNUS_C * gamma / (MAGNUS_B - gamma));
+    }
+
+    private void add(int series, long timestampMillis, float value) {
+        final RollingWindow[] windows = mWindows[series];
+        for (RollingWindow window : windows) {
+            window.add(timestampMillis, value);
+        }
+    }
+}
@@ -0,0 +1,467 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * A {@link GattTransport} backed by {@link SimulatedPeripheral}s instead of a radio, so the
+ * {@link GattClient} of the service can be exercised on the JVM, on a simulated clock and with
+ * as many devices as a test wants. Like the Android stack it refuses an operation while
+ * another one is in flight on the same link, answers after the peripheral's latency and reports
+ * notifications as long as the client configuration descriptor is written.
+ *
+ * <p>All methods are thread safe. Callbacks run on the scheduler, never within a call to the
+ * transport.
+ */
+public final class SimulatedGattTransport implements GattTransport {
+
+    private static final List<UUID> SERVICES = Collections.unmodifiableList(Arrays.asList(
+            SensirionSHT31UUIDS.UUID_HUMIDITY_SERVICE,
+            SensirionSHT31UUIDS.UUID_TEMPERATURE_SERVICE,
+            SensirionSHT31UUIDS.UUID_LOGGER_SERVICE));
+
+    // The characteristics of the services, in discovery order.
+    private static final UUID[] CHARACTERISTICS = {
+            SensirionSHT31UUIDS.UUID_HUMIDITY_CHARACTERISTIC,
+            SensirionSHT31UUIDS.UUID_TEMPERATURE_CHARACTERISTIC,
+            SensirionSHT31UUIDS.UUID_LOGGER_SYNC_TIME,
+            SensirionSHT31UUIDS.UUID_LOGGER_OLDEST,
+            SensirionSHT31UUIDS.UUID_LOGGER_NEWEST,
+            SensirionSHT31UUIDS.UUID_LOGGER_START,
+            SensirionSHT31UUIDS.UUID_LOGGER_INTERVAL};
+    private static final GattHandleTable HANDLE_TABLE = buildHandleTable();
+    private static final GattHandleTable EMPTY_HANDLE_TABLE = new GattHandleTable.Builder().build();
+
+    private static final int DEFAULT_MTU = 23;
+
+    // The state of the link to one peripheral. Replaced on close, so answers still scheduled
+    // for a closed link find it gone.
+    private final class Link implements Runnable {
+        final String address;
+        final SimulatedPeripheral peripheral;
+        boolean mConnecting;
+        boolean mConnected;
+        boolean mBusy;
+        boolean mDiscovered;
+        boolean mNotifying;
+        // Counts the connections on the link, so answers meant for an earlier one are dropped.
+        int mSession;
+        final LinkedHashSet<UUID> mSubscriptions = new LinkedHashSet<UUID>();
+        // The values last read, kept across connections like the stack's attribute objects.
+        final HashMap<UUID, byte[]> mValues = new HashMap<UUID, byte[]>();
+
+        Link(String address, SimulatedPeripheral peripheral) {
+            this.address = address;
+            this.peripheral = peripheral;
+        }
+
+        // Sends one notification per subscribed characteristic, then maybe drops the link.
+        @Override
+        public void run() {
+            final long now = mScheduler.nowNanos();
+            final ArrayList<UUID> characteristics;
+            final ArrayList<byte[]> values;
+            final boolean drop;
+            synchronized (SimulatedGattTransport.this) {
+                if (!isCurrent(this) || !mConnected || mSubscriptions.isEmpty()) {
+                    mNotifying = false;
+                    return;
+                }
+                characteristics = new ArrayList<UUID>(mSubscriptions);
+                values = new ArrayList<byte[]>(characteristics.size());
+                for (UUID characteristic : characteristics) {
+                    values.add(peripheral.read(characteristic, now / 1000000, mRandom));
+                }
+                mNotificationCount += characteristics.size();
+                drop = peripheral.shouldDisconnect(mRandom);
+                if (drop) {
+                    drop(this);
+                } else {
+                    mScheduler.postDelayed(this, peripheral.nextIntervalMillis(mRandom));
+                }
+            }
+            final Callback callback = mCallback;
+            for (int i = 0; i < characteristics.size(); i++) {
+                callback.onCharacteristicChanged(address, characteristics.get(i),
+                        instanceId(characteristics.get(i)), now, values.get(i));
+            }
+            if (drop) {
+                callback.onConnectionStateChange(address,
+                        SimulatedPeripheral.STATUS_CONNECTION_TIMEOUT, false);
+            }
+        }
+    }
+
+    // The answer to an operation, delivered after the peripheral's latency.
+    private abstract class Answer implements Runnable {
+        final Link link;
+        final int session;
+
+        Answer(Link link) {
+            this.link = link;
+            session = link.mSession;
+        }
+
+        @Override
+        public final void run() {
+            synchronized (SimulatedGattTransport.this) {
+                if (!isCurrent(link) || !link.mConnected || link.mSession != session) {
+                    return;
+                }
+                link.mBusy = false;
+                apply();
+            }
+            deliver(mCallback);
+        }
+
+        // Updates the link, with the transport locked.
+        void apply() {
+        }
+
+        abstract void deliver(Callback callback);
+    }
+
+    private final GattOperationQueue.Scheduler mScheduler;
+    private final Random mRandom;
+    private final HashMap<String, SimulatedPeripheral> mPeripherals =
+            new HashMap<String, SimulatedPeripheral>();
+    private final HashMap<String, Link> mLinks = new HashMap<String, Link>();
+    private volatile Callback mCallback;
+
+    private long mNotificationCount;
+    private long mDropCount;
+
+    public SimulatedGattTransport(GattOperationQueue.Scheduler scheduler, Random random) {
+        mScheduler = scheduler;
+        mRandom = random;
+    }
+
+    /**
+     * Makes a peripheral reachable under an address.
+     */
+    public synchronized void addPeripheral(String address, SimulatedPeripheral peripheral) {
+        mPeripherals.put(address, peripheral);
+    }
+
+    public synchronized SimulatedPeripheral getPeripheral(String address) {
+        return mPeripherals.get(address);
+    }
+
+    /**
+     * Drops the link to a peripheral as if it went out of range.
+     */
+    public void dropLink(String address) {
+        synchronized (this) {
+            final Link link = mLinks.get(address);
+            if (link == null || !link.mConnected) {
+                return;
+            }
+            drop(link);
+        }
+        mCallback.onConnectionStateChange(address,
+                SimulatedPeripheral.STATUS_CONNECTION_TIMEOUT, false);
+    }
+
+    /**
+     * @return The number of notifications sent on all links.
+     */
+    public synchronized long getNotificationCount() {
+        return mNotificationCount;
+    }
+
+    /**
+     * @return The number of links that dropped, whether by chance or through
+     *         {@link #dropLink(String)}.
+     */
+    public synchronized long getDropCount() {
+        return mDropCount;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public synchronized boolean connect(String address) {
+        final SimulatedPeripheral peripheral = mPeripherals.get(address);
+        if (peripheral == null) {
+            return false;
+        }
+        Link link = mLinks.get(address);
+        if (link == null) {
+            link = new Link(address, peripheral);
+            mLinks.put(address, link);
+        } else if (link.mConnecting || link.mConnected) {
+            return false;
+        }
+        link.mConnecting = true;
+        final Link connecting = link;
+        final int session = link.mSession;
+        mScheduler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                final int status = connecting.peripheral.getConnectStatus();
+                synchronized (SimulatedGattTransport.this) {
+                    if (!isCurrent(connecting) || connecting.mSession != session) {
+                        return;
+                    }
+                    connecting.mConnecting = false;
+                    connecting.mConnected = status == GattOperationQueue.STATUS_SUCCESS;
+                }
+                mCallback.onConnectionStateChange(connecting.address, status,
+                        status == GattOperationQueue.STATUS_SUCCESS);
+            }
+        }, peripheral.getLatencyMillis());
+        return true;
+    }
+
+    @Override
+    public void disconnect(final String address) {
+        final Link link;
+        synchronized (this) {
+            link = mLinks.get(address);
+            if (link == null || !(link.mConnected || link.mConnecting)) {
+                return;
+            }
+            reset(link);
+        }
+        mScheduler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedGattTransport.this) {
+                    if (!isCurrent(link)) {
+                        return;
+                    }
+                }
+                mCallback.onConnectionStateChange(address, GattOperationQueue.STATUS_SUCCESS,
+                        false);
+            }
+        }, link.peripheral.getLatencyMillis());
+    }
+
+    @Override
+    public synchronized void close(String address) {
+        final Link link = mLinks.remove(address);
+        if (link != null) {
+            reset(link);
+        }
+    }
+
+    @Override
+    public synchronized boolean discoverServices(String address) {
+        final Link link = claim(address);
+        if (link == null) {
+            return false;
+        }
+        final int status = link.peripheral.nextStatus(GattOperationQueue.OP_DISCOVER_SERVICES);
+        answer(link, status, new Answer(link) {
+            @Override
+            void apply() {
+                link.mDiscovered |= status == GattOperationQueue.STATUS_SUCCESS;
+            }
+
+            @Override
+            void deliver(Callback callback) {
+                callback.onServicesDiscovered(link.address, status);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized List<UUID> getServices(String address) {
+        final Link link = mLinks.get(address);
+        return link != null && link.mDiscovered ? SERVICES : Collections.<UUID>emptyList();
+    }
+
+    @Override
+    public synchronized GattHandleTable getHandleTable(String address) {
+        final Link link = mLinks.get(address);
+        return link != null && link.mDiscovered ? HANDLE_TABLE : EMPTY_HANDLE_TABLE;
+    }
+
+    @Override
+    public synchronized byte[] getValue(String address, UUID characteristic) {
+        final Link link = mLinks.get(address);
+        return link == null ? null : link.mValues.get(characteristic);
+    }
+
+    @Override
+    public synchronized boolean readCharacteristic(String address, final UUID characteristic) {
+        final Link link = claimDiscovered(address, characteristic);
+        if (link == null) {
+            return false;
+        }
+        final int status = link.peripheral.nextStatus(GattOperationQueue.OP_READ_CHARACTERISTIC);
+        final byte[] value = link.peripheral.read(characteristic,
+                mScheduler.nowNanos() / 1000000, mRandom);
+        answer(link, status, new Answer(link) {
+            @Override
+            void apply() {
+                if (status == GattOperationQueue.STATUS_SUCCESS) {
+                    link.mValues.put(characteristic, value);
+                }
+            }
+
+            @Override
+            void deliver(Callback callback) {
+                callback.onCharacteristicRead(link.address, characteristic,
+                        status == GattOperationQueue.STATUS_SUCCESS ? value : null, status);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean writeCharacteristic(String address, final UUID characteristic,
+                                                    byte[] value) {
+        final Link link = claimDiscovered(address, characteristic);
+        if (link == null) {
+            return false;
+        }
+        final int status =
+                link.peripheral.nextStatus(GattOperationQueue.OP_WRITE_CHARACTERISTIC);
+        if (status == GattOperationQueue.STATUS_SUCCESS) {
+            link.peripheral.write(characteristic, value.clone());
+        }
+        answer(link, status, new Answer(link) {
+            @Override
+            void deliver(Callback callback) {
+                callback.onCharacteristicWrite(link.address, characteristic, status);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean setCharacteristicNotification(String address,
+                                                              final UUID characteristic,
+                                                              final boolean enabled) {
+        if (!SimulatedPeripheral.isNotifiable(characteristic)) {
+            return false;
+        }
+        final Link link = claimDiscovered(address, characteristic);
+        if (link == null) {
+            return false;
+        }
+        final int status = link.peripheral.nextStatus(GattOperationQueue.OP_WRITE_DESCRIPTOR);
+        answer(link, status, new Answer(link) {
+            @Override
+            void apply() {
+                if (status != GattOperationQueue.STATUS_SUCCESS) {
+                    return;
+                }
+                if (!enabled) {
+                    link.mSubscriptions.remove(characteristic);
+                } else if (link.mSubscriptions.add(characteristic) && !link.mNotifying) {
+                    link.mNotifying = true;
+                    mScheduler.postDelayed(link, link.peripheral.nextIntervalMillis(mRandom));
+                }
+            }
+
+            @Override
+            void deliver(Callback callback) {
+                callback.onDescriptorWrite(link.address, characteristic, status);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean requestMtu(String address, int mtu) {
+        final Link link = claim(address);
+        if (link == null) {
+            return false;
+        }
+        final int status = link.peripheral.nextStatus(GattOperationQueue.OP_REQUEST_MTU);
+        final int agreed = status == GattOperationQueue.STATUS_SUCCESS
+                ? Math.max(DEFAULT_MTU, Math.min(mtu, SimulatedPeripheral.MAX_MTU)) : DEFAULT_MTU;
+        answer(link, status, new Answer(link) {
+            @Override
+            void deliver(Callback callback) {
+                callback.onMtuChanged(link.address, agreed, status);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean requestConnectionPriority(String address, int priority) {
+        final Link link = mLinks.get(address);
+        return link != null && link.mConnected;
+    }
+
+    private static GattHandleTable buildHandleTable() {
+        final GattHandleTable.Builder builder = new GattHandleTable.Builder();
+        for (UUID characteristic : CHARACTERISTICS) {
+            builder.add(SimulatedPeripheral.getService(characteristic), 0, characteristic,
+                    instanceId(characteristic));
+        }
+        return builder.build();
+    }
+
+    // Numbers the characteristics from 1, like the handles of a small attribute database.
+    private static int instanceId(UUID characteristic) {
+        for (int i = 0; i < CHARACTERISTICS.length; i++) {
+            if (CHARACTERISTICS[i].equals(characteristic)) {
+                return i + 1;
+            }
+        }
+        return GattTransport.INSTANCE_UNKNOWN;
+    }
+
+    private boolean isCurrent(Link link) {
+        return mLinks.get(link.address) == link;
+    }
+
+    // Takes the link for an operation, if it is connected and idle.
+    private Link claim(String address) {
+        final Link link = mLinks.get(address);
+        if (link == null || !link.mConnected || link.mBusy) {
+            return null;
+        }
+        link.mBusy = true;
+        return link;
+    }
+
+    private Link claimDiscovered(String address, UUID characteristic) {
+        final Link link = mLinks.get(address);
+        if (link == null || !link.mDiscovered
+                || SimulatedPeripheral.getService(characteristic) == null) {
+            return null;
+        }
+        return claim(address);
+    }
+
+    private void answer(Link link, int status, Answer answer) {
+        if (status == SimulatedPeripheral.STATUS_NO_RESPONSE) {
+            // The link stays busy, as the stack's does until the link drops.
+            return;
+        }
+        mScheduler.postDelayed(answer, link.peripheral.getLatencyMillis());
+    }
+
+    private void drop(Link link) {
+        reset(link);
+        mDropCount++;
+    }
+
+    private void reset(Link link) {
+        link.mConnecting = false;
+        link.mConnected = false;
+        link.mBusy = false;
+        link.mSession++;
+        link.mSubscriptions.clear();
+        if (link.mNotifying) {
+            link.mNotifying = false;
+            mScheduler.cancel(link);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * The behavior of a simulated Smart Humigadget, for {@link SimulatedGattTransport}: how fast it
+ * notifies, how much the notifications jitter, how often its link drops and which GATT statuses
+ * its operations report. The readings are random walks around room conditions. All methods are
+ * thread safe.
+ */
+public final class SimulatedPeripheral {
+
+    // GATT statuses the Android stack reports, for the failures worth simulating.
+    public static final int STATUS_CONNECTION_TIMEOUT = 0x08;
+    public static final int STATUS_GATT_ERROR = 0x85;
+
+    // Makes an operation go unanswered, so the client's timeout has to handle it.
+    public static final int STATUS_NO_RESPONSE = GattOperationQueue.STATUS_TIMEOUT;
+
+    public static final int MAX_MTU = 247;
+
+    // One more than the largest GattOperationQueue.OP_* type.
+    private static final int OPERATION_TYPES = 6;
+
+    private long mIntervalMillis = 1000;
+    private long mJitterMillis;
+    private long mLatencyMillis = 20;
+    private double mDisconnectProbability;
+    private int mConnectStatus = GattOperationQueue.STATUS_SUCCESS;
+    private final int[] mOperationStatuses = new int[OPERATION_TYPES];
+    private final int[] mFailuresLeft = new int[OPERATION_TYPES];
+
+    private float mHumidity = 45f;
+    private float mTemperature = 22f;
+    private long mLoggerIntervalMillis = 10000;
+
+    /**
+     * Sets how many notifications per second each subscribed characteristic sends.
+     */
+    public synchronized SimulatedPeripheral setNotificationRate(float hertz) {
+        if (!(hertz > 0)) {
+            throw new IllegalArgumentException("Invalid rate " + hertz);
+        }
+        mIntervalMillis = Math.max(1, Math.round(1000 / hertz));
+        return this;
+    }
+
+    /**
+     * Sets how far each notification interval may randomly deviate, in either direction.
+     */
+    public synchronized SimulatedPeripheral setJitterMillis(long jitterMillis) {
+        mJitterMillis = Math.max(0, jitterMillis);
+        return this;
+    }
+
+    /**
+     * Sets how long the peripheral takes to answer a connect or an operation.
+     */
+    public synchronized SimulatedPeripheral setLatencyMillis(long latencyMillis) {
+        mLatencyMillis = Math.max(0, latencyMillis);
+        return this;
+    }
+
+    /**
+     * Sets the chance that the link drops after a notification.
+     */
+    public synchronized SimulatedPeripheral setDisconnectProbability(double probability) {
+        mDisconnectProbability = probability;
+        return this;
+    }
+
+    /**
+     * Sets the status connect attempts end with. Anything but success fails them.
+     */
+    public synchronized SimulatedPeripheral setConnectStatus(int status) {
+        mConnectStatus = status;
+        return this;
+    }
+
+    /**
+     * Makes operations of a type report a status, for the given number of times or, with a
+     * negative count, until it is changed again.
+     *
+     * @param type One of the {@code GattOperationQueue.OP_*} types.
+     * @param status A GATT status, or {@link #STATUS_NO_RESPONSE}.
+     */
+    public synchronized SimulatedPeripheral setOperationStatus(int type, int status, int count) {
+        mOperationStatuses[type] = status;
+        mFailuresLeft[type] = count;
+        return this;
+    }
+
+    public synchronized long getLatencyMillis() {
+        return mLatencyMillis;
+    }
+
+    public synchronized int getConnectStatus() {
+        return mConnectStatus;
+    }
+
+    /**
+     * @return The delay before the next notification.
+     */
+    synchronized long nextIntervalMillis(Random random) {
+        if (mJitterMillis == 0) {
+            return mIntervalMillis;
+        }
+        final long jitter = (long) ((random.nextDouble() * 2 - 1) * mJitterMillis);
+        return Math.max(1, mIntervalMillis + jitter);
+    }
+
+    synchronized boolean shouldDisconnect(Random random) {
+        return mDisconnectProbability > 0 && random.nextDouble() < mDisconnectProbability;
+    }
+
+    /**
+     * @return The status the next operation of the type reports.
+     */
+    synchronized int nextStatus(int type) {
+        final int status = mOperationStatuses[type];
+        if (mFailuresLeft[type] > 0 && --mFailuresLeft[type] == 0) {
+            mOperationStatuses[type] = GattOperationQueue.STATUS_SUCCESS;
+        }
+        return status;
+    }
+
+    /**
+     * @return The current value of a characteristic, or null if the peripheral does not have it.
+     */
+    synchronized byte[] read(UUID characteristic, long nowMillis, Random random) {
+        if (SensirionSHT31UUIDS.UUID_HUMIDITY_CHARACTERISTIC.equals(characteristic)) {
+            mHumidity = clamp(mHumidity + (float) random.nextGaussian() * 0.05f, 0f, 100f);
+            return LittleEndian.fromFloat(mHumidity);
+        } else if (SensirionSHT31UUIDS.UUID_TEMPERATURE_CHARACTERISTIC.equals(characteristic)) {
+            mTemperature = clamp(mTemperature + (float) random.nextGaussian() * 0.01f,
+                    -40f, 125f);
+            return LittleEndian.fromFloat(mTemperature);
+        } else if (SensirionSHT31UUIDS.UUID_LOGGER_SYNC_TIME.equals(characteristic)
+                || SensirionSHT31UUIDS.UUID_LOGGER_OLDEST.equals(characteristic)
+                || SensirionSHT31UUIDS.UUID_LOGGER_NEWEST.equals(characteristic)) {
+            // Nothing logged, the range is empty.
+            return LittleEndian.fromLong(nowMillis);
+        } else if (SensirionSHT31UUIDS.UUID_LOGGER_INTERVAL.equals(characteristic)) {
+            return LittleEndian.fromInt((int) mLoggerIntervalMillis);
+        } else if (SensirionSHT31UUIDS.UUID_LOGGER_START.equals(characteristic)) {
+            return new byte[1];
+        }
+        return null;
+    }
+
+    /**
+     * @return false if the peripheral does not have the characteristic.
+     */
+    synchronized boolean write(UUID characteristic, byte[] value) {
+        if (SensirionSHT31UUIDS.UUID_LOGGER_INTERVAL.equals(characteristic)) {
+            if (value.length >= 4) {
+                mLoggerIntervalMillis = LittleEndian.getInt(value, 0) & 0xffffffffL;
+            }
+            return true;
+        }
+        return getService(characteristic) != null;
+    }
+
+    /**
+     * @return The UUID of the service a characteristic belongs to, or null if the peripheral
+     *         does not have it.
+     */
+    static UUID getService(UUID characteristic) {
+        if (SensirionSHT31UUIDS.UUID_HUMIDITY_CHARACTERISTIC.equals(characteristic)) {
+            return SensirionSHT31UUIDS.UUID_HUMIDITY_SERVICE;
+        } else if (SensirionSHT31UUIDS.UUID_TEMPERATURE_CHARACTERISTIC.equals(characteristic)) {
+            return SensirionSHT31UUIDS.UUID_TEMPERATURE_SERVICE;
+        } else if (SensirionSHT31UUIDS.UUID_LOGGER_SYNC_TIME.equals(characteristic)
+                || SensirionSHT31UUIDS.UUID_LOGGER_OLDEST.equals(characteristic)
+                || SensirionSHT31UUIDS.UUID_LOGGER_NEWEST.equals(characteristic)
+                || SensirionSHT31UUIDS.UUID_LOGGER_START.equals(characteristic)
+                || SensirionSHT31UUIDS.UUID_LOGGER_INTERVAL.equals(characteristic)) {
+            return SensirionSHT31UUIDS.UUID_LOGGER_SERVICE;
+        }
+        return null;
+    }
+
+    /**
+     * @return Whether notifications can be enabled on the characteristic.
+     */
+    static boolean isNotifiable(UUID characteristic) {
+        return SensirionSHT31UUIDS.UUID_HUMIDITY_CHARACTERISTIC.equals(characteristic)
+                || SensirionSHT31UUIDS.UUID_TEMPERATURE_CHARACTERISTIC.equals(characteristic);
+    }
+
+    private static float clamp(float value, float min, float max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,134 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the latest events of the sample path as fixed-size records in memory, for reading them
+ * back when something went wrong, instead of writing every event to logcat. A record is a
+ * timestamp, an event id, the device address and two numeric arguments. Once full, the oldest
+ * records are overwritten.
+ *
+ * <p>{@link #record} does not allocate, lock or wait and may be called from any number of
+ * threads. {@link #dump} does not hold the writers up either; it skips the records it finds
+ * being overwritten, so a dump taken under load may miss a few of the oldest ones. A writer
+ * stalled for a whole lap of the ring may leave a record mixed with the one that lapped it.
+ *
+ * <p>Callers guard their calls with a compile-time constant, so the calls and the ring are
+ * left out of release builds, see {@code GattClient}.
+ */
+public final class TraceRing {
+
+    /** The link changed: status, 1 if connected. */
+    public static final int EVENT_CONNECTION_STATE = 0;
+    /** Service discovery ended: status. */
+    public static final int EVENT_SERVICES_DISCOVERED = 1;
+    /** A GATT operation completed: its {@code GattOperationQueue.OP_*} type, status. */
+    public static final int EVENT_OPERATION = 2;
+    /** A notification arrived: characteristic id, value length. */
+    public static final int EVENT_NOTIFICATION = 3;
+    /** A value was decoded: characteristic id, the raw bits of the float. */
+    public static final int EVENT_SAMPLE = 4;
+    /** A value was dropped because the notification ring was full: characteristic id. */
+    public static final int EVENT_DROPPED = 5;
+    /** A reconnect was attempted: attempt. */
+    public static final int EVENT_RECONNECT = 6;
+
+    private static final String[] EVENT_NAMES = {"connection_state", "services_discovered",
+            "operation", "notification", "sample", "dropped", "reconnect"};
+
+    private final int mMask;
+    // Per slot: the index of the record it holds once written, -1 while written.
+    private final AtomicLongArray mSequences;
+    private final long[] mTimestamps;
+    private final int[] mEvents;
+    private final String[] mAddresses;
+    private final long[] mFirst;
+    private final long[] mSecond;
+    private final AtomicLong mNext = new AtomicLong();
+
+    /**
+     * @param capacity The number of records kept, rounded up to the next power of two.
+     */
+    public TraceRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, -1);
+        }
+        mTimestamps = new long[size];
+        mEvents = new int[size];
+        mAddresses = new String[size];
+        mFirst = new long[size];
+        mSecond = new long[size];
+    }
+
+    /**
+     * Appends a record, overwriting the oldest one if the ring is full.
+     */
+    public void record(long timestampNanos, int event, String address, long first,
+                       long second) {
+        final long index = mNext.getAndIncrement();
+        final int slot = (int) index & mMask;
+        mSequences.set(slot, -1);
+        mTimestamps[slot] = timestampNanos;
+        mEvents[slot] = event;
+        mAddresses[slot] = address;
+        mFirst[slot] = first;
+        mSecond[slot] = second;
+        mSequences.set(slot, index);
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * @return The number of records written since the ring was created, including the
+     *         overwritten ones.
+     */
+    public long getRecordCount() {
+        return mNext.get();
+    }
+
+    /**
+     * Appends the records the ring holds, oldest first, one per line: the timestamp in
+     * milliseconds, the event, the address and the arguments.
+     */
+    public StringBuilder dump(StringBuilder builder) {
+        final long end = mNext.get();
+        for (long index = Math.max(0, end - capacity()); index < end; index++) {
+            final int slot = (int) index & mMask;
+            if (mSequences.get(slot) != index) {
+                continue;
+            }
+            final long timestampNanos = mTimestamps[slot];
+            final int event = mEvents[slot];
+            final String address = mAddresses[slot];
+            final long first = mFirst[slot];
+            final long second = mSecond[slot];
+            if (mSequences.get(slot) != index) {
+                // Overwritten while we read it.
+                continue;
+            }
+            builder.append(String.format("%.3f", timestampNanos / 1e6)).append(' ')
+                    .append(event >= 0 && event < EVENT_NAMES.length
+                            ? EVENT_NAMES[event] : Integer.toString(event))
+                    .append(' ').append(address).append(' ').append(first);
+            if (event == EVENT_SAMPLE) {
+                builder.append(' ').append(Float.intBitsToFloat((int) second));
+            } else {
+                builder.append(' ').append(second);
+            }
+            builder.append('\n');
+        }
+        return builder;
+    }
+}
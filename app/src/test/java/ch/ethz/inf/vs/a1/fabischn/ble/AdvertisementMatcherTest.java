@@ -0,0 +1,131 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link AdvertisementMatcher}.
+ */
+public class AdvertisementMatcherTest {
+
+    private static final byte[] FLAGS = {0x02, 0x01, 0x06};
+    private static final byte[] NAME = {0x11, 0x09, 'S', 'm', 'a', 'r', 't', ' ', 'H', 'u', 'm',
+            'i', 'g', 'a', 'd', 'g', 'e', 't'};
+
+    private static final DeviceProfile HEART_RATE = new DeviceProfile.Builder("Heart rate")
+            .addServiceUuid(UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb"))
+            .build();
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
+    }
+
+    private static byte[] uuid128(UUID uuid) {
+        byte[] result = new byte[18];
+        result[0] = 17;
+        result[1] = 0x07;
+        long lsb = uuid.getLeastSignificantBits();
+        long msb = uuid.getMostSignificantBits();
+        for (int i = 0; i < 8; i++) {
+            result[2 + i] = (byte) (lsb >>> (8 * i));
+            result[10 + i] = (byte) (msb >>> (8 * i));
+        }
+        return result;
+    }
+
+    private static byte[] manufacturer(int companyId, byte... data) {
+        byte[] result = new byte[4 + data.length];
+        result[0] = (byte) (3 + data.length);
+        result[1] = (byte) 0xff;
+        result[2] = (byte) companyId;
+        result[3] = (byte) (companyId >>> 8);
+        System.arraycopy(data, 0, result, 4, data.length);
+        return result;
+    }
+
+    @Test
+    public void sht31_matchesServiceUuid() {
+        AdvertisementMatcher matcher =
+                new AdvertisementMatcher(Collections.singletonList(DeviceProfile.SHT31));
+        byte[] advertisement = concat(FLAGS,
+                uuid128(SensirionSHT31UUIDS.UUID_TEMPERATURE_SERVICE), new byte[10]);
+        assertEquals(0, matcher.match(advertisement));
+    }
+
+    @Test
+    public void sht31_matchesSensirionManufacturerData() {
+        AdvertisementMatcher matcher =
+                new AdvertisementMatcher(Collections.singletonList(DeviceProfile.SHT31));
+        assertEquals(0, matcher.match(concat(FLAGS,
+                manufacturer(0x06D5, (byte) 0x00, (byte) 0x04))));
+        assertEquals(-1, matcher.match(concat(FLAGS, manufacturer(0x004C, (byte) 0x02))));
+    }
+
+    @Test
+    public void nameAlone_doesNotMatch() {
+        AdvertisementMatcher matcher =
+                new AdvertisementMatcher(Collections.singletonList(DeviceProfile.SHT31));
+        assertEquals(-1, matcher.match(concat(FLAGS, NAME)));
+        assertEquals(-1, matcher.match(null));
+    }
+
+    @Test
+    public void shortUuids_expandToBaseUuid() {
+        AdvertisementMatcher matcher =
+                new AdvertisementMatcher(Arrays.asList(DeviceProfile.SHT31, HEART_RATE));
+        byte[] list16 = {0x05, 0x03, 0x0f, 0x18, 0x0d, 0x18};
+        assertEquals(1, matcher.match(concat(FLAGS, list16)));
+        byte[] list32 = {0x05, 0x05, 0x0d, 0x18, 0x00, 0x00};
+        assertEquals(1, matcher.match(concat(FLAGS, list32)));
+        byte[] other = {0x03, 0x03, 0x0f, 0x18};
+        assertEquals(-1, matcher.match(concat(FLAGS, other)));
+    }
+
+    @Test
+    public void masks_ignoreBits() {
+        DeviceProfile profile = new DeviceProfile.Builder("Masked")
+                .addManufacturerData(0x06D5, new byte[]{0x10, 0x20}, new byte[]{(byte) 0xf0, 0x00})
+                .addServiceUuid(UUID.fromString("00001234-b38d-4985-720e-0f993a68ee41"),
+                        UUID.fromString("000000ff-ffff-ffff-ffff-ffffffffffff"))
+                .build();
+        AdvertisementMatcher matcher = new AdvertisementMatcher(Collections.singletonList(profile));
+        assertEquals(0, matcher.match(manufacturer(0x06D5, (byte) 0x1f, (byte) 0x99)));
+        assertEquals(-1, matcher.match(manufacturer(0x06D5, (byte) 0x2f, (byte) 0x20)));
+        // Data shorter than the pattern does not match.
+        assertEquals(-1, matcher.match(manufacturer(0x06D5, (byte) 0x10)));
+        assertEquals(0, matcher.match(uuid128(SensirionSHT31UUIDS.UUID_TEMPERATURE_SERVICE)));
+        assertEquals(-1, matcher.match(uuid128(SensirionSHT31UUIDS.UUID_HUMIDITY_CHARACTERISTIC)));
+    }
+
+    @Test
+    public void malformedStructures_areIgnored() {
+        AdvertisementMatcher matcher =
+                new AdvertisementMatcher(Collections.singletonList(DeviceProfile.SHT31));
+        byte[] truncated = uuid128(SensirionSHT31UUIDS.UUID_HUMIDITY_SERVICE);
+        assertEquals(-1, matcher.match(truncated, 0, truncated.length - 1));
+        byte[] overlong = concat(FLAGS, new byte[]{(byte) 0x40, (byte) 0xff, (byte) 0xd5, 0x06});
+        assertEquals(-1, matcher.match(overlong));
+        // A structure before the damage still counts.
+        assertEquals(0, matcher.match(concat(manufacturer(0x06D5), new byte[]{0x40, 0x01})));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyProfile_isRejected() {
+        new DeviceProfile.Builder("Empty").build();
+    }
+}
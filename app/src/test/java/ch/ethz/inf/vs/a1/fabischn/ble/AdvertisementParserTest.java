@@ -0,0 +1,152 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link AdvertisementParser}.
+ */
+public class AdvertisementParserTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final byte[] FLAGS = {0x02, 0x01, 0x06};
+
+    private final List<Integer> mCharacteristics = new ArrayList<Integer>();
+    private final List<Float> mValues = new ArrayList<Float>();
+    private final List<Long> mTimestamps = new ArrayList<Long>();
+    private AdvertisementParser mParser;
+
+    @Before
+    public void setUp() {
+        mParser = new AdvertisementParser(new SampleListener() {
+            @Override
+            public void onSample(String deviceAddress, int characteristicId, long timestampNanos,
+                                 float value) {
+                assertEquals(ADDRESS, deviceAddress);
+                mCharacteristics.add(characteristicId);
+                mTimestamps.add(timestampNanos);
+                mValues.add(value);
+            }
+        });
+    }
+
+    // Sensirion manufacturer data with temperature and humidity ticks.
+    static byte[] sensirion(int sampleType, int temperatureTicks, int humidityTicks) {
+        return new byte[]{0x0b, (byte) 0xff, (byte) 0xd5, 0x06, 0x00, (byte) sampleType,
+                0x3c, (byte) 0xa1,
+                (byte) temperatureTicks, (byte) (temperatureTicks >>> 8),
+                (byte) humidityTicks, (byte) (humidityTicks >>> 8)};
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
+    }
+
+    @Test
+    public void temperatureAndHumidity_areConvertedFromTicks() {
+        // 0x6666 is 25 degrees and 0x8000 is 50 percent.
+        byte[] advertisement = concat(FLAGS, sensirion(4, 0x6666, 0x8000));
+        assertEquals(2, mParser.parse(ADDRESS, 42L, ByteBuffer.wrap(advertisement)));
+        assertEquals(Integer.valueOf(SensirionSHT31UUIDS.CHARACTERISTIC_TEMPERATURE),
+                mCharacteristics.get(0));
+        assertEquals(25f, mValues.get(0), 0.01f);
+        assertEquals(Integer.valueOf(SensirionSHT31UUIDS.CHARACTERISTIC_HUMIDITY),
+                mCharacteristics.get(1));
+        assertEquals(50f, mValues.get(1), 0.01f);
+        assertEquals(Long.valueOf(42L), mTimestamps.get(1));
+        assertEquals(2, mParser.getSampleCount());
+    }
+
+    @Test
+    public void parse_respectsPositionAndLimitWithoutMovingThem() {
+        byte[] advertisement = concat(new byte[]{0x55, 0x55}, FLAGS, sensirion(4, 0, 0xffff),
+                sensirion(4, 0xffff, 0));
+        ByteBuffer buffer = ByteBuffer.wrap(advertisement);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.position(2);
+        buffer.limit(advertisement.length - 12);
+        assertEquals(2, mParser.parse(ADDRESS, 0L, buffer));
+        assertEquals(2, buffer.position());
+        assertEquals(-45f, mValues.get(0), 0f);
+        assertEquals(100f, mValues.get(1), 0f);
+    }
+
+    @Test
+    public void array_isParsedInPlaceBetweenOffsetAndLength() {
+        byte[] advertisement = concat(new byte[]{0x55, 0x55}, FLAGS, sensirion(4, 0, 0xffff),
+                sensirion(4, 0xffff, 0));
+        assertEquals(2, mParser.parse(ADDRESS, 0L, advertisement, 2, advertisement.length - 14));
+        assertEquals(-45f, mValues.get(0), 0f);
+        assertEquals(100f, mValues.get(1), 0f);
+        assertEquals(4, mParser.parse(ADDRESS, 0L, concat(FLAGS, sensirion(4, 0, 0xffff),
+                sensirion(4, 0xffff, 0))));
+    }
+
+    @Test
+    public void directBuffer_isParsedLikeAnArray() {
+        byte[] advertisement = concat(FLAGS, sensirion(4, 0x6666, 0x8000));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(advertisement.length + 1);
+        buffer.put((byte) 0x55).put(advertisement);
+        buffer.position(1);
+        assertEquals(2, mParser.parse(ADDRESS, 0L, buffer));
+        assertEquals(1, buffer.position());
+        assertEquals(25f, mValues.get(0), 0.01f);
+        assertEquals(50f, mValues.get(1), 0.01f);
+    }
+
+    @Test
+    public void scanResponse_isParsedToo() {
+        byte[] name = {0x05, 0x09, 'S', 'H', 'T', '3'};
+        // Android concatenates advertisement and scan response, padding included.
+        byte[] advertisement = concat(FLAGS, name, new byte[]{0, 0}, sensirion(4, 0x6666, 0),
+                new byte[3]);
+        assertEquals(2, mParser.parse(ADDRESS, 0L, ByteBuffer.wrap(advertisement)));
+    }
+
+    @Test
+    public void unknownOrTruncated_areSkipped() {
+        assertEquals(0, mParser.parse(ADDRESS, 0L, ByteBuffer.wrap(sensirion(9, 1, 2))));
+        assertEquals(1, mParser.getUnknownCount());
+        byte[] truncated = sensirion(4, 1, 2);
+        truncated[0] = 0x09;
+        assertEquals(0, mParser.parse(ADDRESS, 0L,
+                ByteBuffer.wrap(truncated, 0, truncated.length - 2).slice()));
+        byte[] otherCompany = sensirion(4, 1, 2);
+        otherCompany[3] = 0x00;
+        assertEquals(0, mParser.parse(ADDRESS, 0L, ByteBuffer.wrap(otherCompany)));
+        byte[] overlong = sensirion(4, 1, 2);
+        overlong[0] = 0x20;
+        assertEquals(0, mParser.parse(ADDRESS, 0L, ByteBuffer.wrap(overlong)));
+        assertTrue(mValues.isEmpty());
+        assertEquals(4, mParser.getAdvertisementCount());
+    }
+
+    @Test
+    public void littleEndian_agreesForArraysAndBuffers() {
+        byte[] data = {0x00, 0x00, (byte) 0xbc, 0x41, (byte) 0xd5, 0x06};
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.BIG_ENDIAN);
+        assertEquals(23.5f, LittleEndian.getFloat(data, 0), 0f);
+        assertEquals(23.5f, LittleEndian.getFloat(buffer, 0), 0f);
+        assertEquals(0x06d5, LittleEndian.getUnsignedShort(data, 4));
+        assertEquals(0x06d5, LittleEndian.getUnsignedShort(buffer, 4));
+        assertEquals(BluetoothLeService.convertRawValue(data), LittleEndian.getFloat(buffer, 0),
+                0f);
+    }
+}
@@ -0,0 +1,146 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link AlertEngine}.
+ */
+public class AlertEngineTest {
+
+    private static final String A = "00:11:22:33:44:55";
+    private static final String B = "66:77:88:99:AA:BB";
+    private static final int HUMIDITY = SensirionSHT31UUIDS.CHARACTERISTIC_HUMIDITY;
+    private static final int TEMPERATURE = SensirionSHT31UUIDS.CHARACTERISTIC_TEMPERATURE;
+
+    private static final class RecordingListener implements AlertEngine.Listener {
+        final List<String> events = new ArrayList<String>();
+
+        @Override
+        public void onAlert(int ruleId, String deviceAddress, int characteristicId,
+                            boolean active, long timestampMillis, float value) {
+            events.add(ruleId + " " + deviceAddress + " " + characteristicId + " "
+                    + (active ? "on" : "off") + " " + timestampMillis);
+        }
+    }
+
+    @Test
+    public void threshold_firesOnceAndClearsWithHysteresis() {
+        final RecordingListener listener = new RecordingListener();
+        final AlertEngine.Builder builder = new AlertEngine.Builder();
+        final int above = builder.addAbove(A, HUMIDITY, 70f, 5f);
+        final int below = builder.addBelow(A, TEMPERATURE, 10f, 1f);
+        final AlertEngine engine = builder.build(listener);
+
+        engine.onSample(A, HUMIDITY, 1, 69f);
+        engine.onSample(A, HUMIDITY, 2, 71f);
+        engine.onSample(A, HUMIDITY, 3, 72f);
+        // Inside the hysteresis band, still active.
+        engine.onSample(A, HUMIDITY, 4, 66f);
+        assertTrue(engine.isActive(above));
+        engine.onSample(A, HUMIDITY, 5, 65f);
+        assertFalse(engine.isActive(above));
+
+        engine.onSample(A, TEMPERATURE, 6, 9.5f);
+        engine.onSample(A, TEMPERATURE, 7, 10.5f);
+        assertTrue(engine.isActive(below));
+        engine.onSample(A, TEMPERATURE, 8, 11f);
+        assertFalse(engine.isActive(below));
+
+        assertEquals(4, listener.events.size());
+        assertEquals(above + " " + A + " 0 on 2", listener.events.get(0));
+        assertEquals(above + " " + A + " 0 off 5", listener.events.get(1));
+        assertEquals(below + " " + A + " 1 on 6", listener.events.get(2));
+        assertEquals(below + " " + A + " 1 off 8", listener.events.get(3));
+        assertEquals(2, engine.getTriggeredCount());
+    }
+
+    @Test
+    public void samples_onlyVisitTheirOwnRules() {
+        final RecordingListener listener = new RecordingListener();
+        final AlertEngine.Builder builder = new AlertEngine.Builder();
+        builder.addAbove(A, HUMIDITY, 50f, 0f);
+        builder.addAbove(B, HUMIDITY, 50f, 0f);
+        builder.addAbove(B, TEMPERATURE, 50f, 0f);
+        final int b = builder.addAbove(B, HUMIDITY, 60f, 0f);
+        final AlertEngine engine = builder.build(listener);
+
+        engine.onSample(B, HUMIDITY, 1, 65f);
+        assertEquals(2, engine.getEvaluatedCount());
+        assertEquals(2, engine.getActiveCount());
+        assertTrue(engine.isActive(b));
+        // Unknown devices and characteristics are ignored.
+        engine.onSample("FF:FF:FF:FF:FF:FF", HUMIDITY, 2, 99f);
+        engine.onSample(A, 7, 3, 99f);
+        engine.onSample(A, HUMIDITY, 4, Float.NaN);
+        assertEquals(2, engine.getEvaluatedCount());
+    }
+
+    @Test
+    public void rateOfChange_measuredOverTheSpan() {
+        final RecordingListener listener = new RecordingListener();
+        final AlertEngine.Builder builder = new AlertEngine.Builder();
+        // At most 2 degrees per minute, measured over at least 30 s.
+        final int rate = builder.addRateOfChange(A, TEMPERATURE, 2f, 0.5f, 30000);
+        final AlertEngine engine = builder.build(listener);
+
+        engine.onSample(A, TEMPERATURE, 0, 20f);
+        // A jump between two close samples is not judged yet.
+        engine.onSample(A, TEMPERATURE, 1000, 25f);
+        assertFalse(engine.isActive(rate));
+        // 0.5 degrees in 30 s is 1 per minute.
+        engine.onSample(A, TEMPERATURE, 30000, 20.5f);
+        assertFalse(engine.isActive(rate));
+        // 1.5 degrees in 30 s is 3 per minute.
+        engine.onSample(A, TEMPERATURE, 60000, 19f);
+        assertTrue(engine.isActive(rate));
+        // 0.9 degrees in 30 s is 1.8 per minute, inside the hysteresis.
+        engine.onSample(A, TEMPERATURE, 90000, 18.1f);
+        assertTrue(engine.isActive(rate));
+        engine.onSample(A, TEMPERATURE, 120000, 18.1f);
+        assertFalse(engine.isActive(rate));
+        assertEquals(2, listener.events.size());
+    }
+
+    @Test
+    public void silence_firesOnTickAndClearsWithTheNextSample() {
+        final RecordingListener listener = new RecordingListener();
+        final AlertEngine.Builder builder = new AlertEngine.Builder();
+        final int silenceA = builder.addSilence(A, HUMIDITY, 10000);
+        final int silenceB = builder.addSilence(B, HUMIDITY, 10000);
+        final AlertEngine engine = builder.build(listener);
+
+        engine.tick(0);
+        engine.onSample(A, HUMIDITY, 5000, 40f);
+        engine.tick(10000);
+        assertFalse(engine.isActive(silenceA));
+        assertFalse(engine.isActive(silenceB));
+        engine.tick(10001);
+        assertFalse(engine.isActive(silenceA));
+        assertTrue(engine.isActive(silenceB));
+        engine.tick(15001);
+        assertTrue(engine.isActive(silenceA));
+        // Fires once, not on every tick.
+        engine.tick(20000);
+        assertEquals(2, listener.events.size());
+
+        engine.onSample(A, HUMIDITY, 21000, 40f);
+        assertFalse(engine.isActive(silenceA));
+        assertTrue(engine.isActive(silenceB));
+        assertEquals(silenceA + " " + A + " 0 off 21000", listener.events.get(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeHysteresis_throws() {
+        new AlertEngine.Builder().addAbove(A, HUMIDITY, 50f, -1f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownRule_throws() {
+        new AlertEngine.Builder().build(new RecordingListener()).isActive(0);
+    }
+}
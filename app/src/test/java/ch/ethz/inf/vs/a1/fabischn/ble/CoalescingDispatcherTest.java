@@ -0,0 +1,210 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link CoalescingDispatcher}.
+ */
+public class CoalescingDispatcherTest {
+
+    private static final long FRAME_NANOS = 16666667;
+
+    // Collects scheduled frames so the test decides when a frame starts.
+    private static class FakeFrameScheduler implements CoalescingDispatcher.FrameScheduler {
+        final List<Runnable> frames = new ArrayList<Runnable>();
+
+        @Override
+        public synchronized void scheduleFrame(Runnable frame) {
+            frames.add(frame);
+        }
+
+        // Runs the frame callbacks scheduled so far, like one vsync would.
+        void doFrame() {
+            final List<Runnable> due;
+            synchronized (this) {
+                due = new ArrayList<Runnable>(frames);
+                frames.clear();
+            }
+            for (Runnable frame : due) {
+                frame.run();
+            }
+        }
+
+        synchronized int pending() {
+            return frames.size();
+        }
+    }
+
+    private static class BatchRecorder implements CoalescingDispatcher.Receiver<String, Integer> {
+        final List<Integer> batchSizes = new ArrayList<Integer>();
+        final List<Integer> values = new ArrayList<Integer>();
+
+        @Override
+        public void onBatch(Map<String, Integer> batch) {
+            batchSizes.add(batch.size());
+            values.addAll(batch.values());
+        }
+    }
+
+    private FakeFrameScheduler mScheduler;
+    private BatchRecorder mRecorder;
+    private CoalescingDispatcher<String, Integer> mDispatcher;
+
+    @Before
+    public void setUp() {
+        mScheduler = new FakeFrameScheduler();
+        mRecorder = new BatchRecorder();
+        mDispatcher = new CoalescingDispatcher<String, Integer>(mScheduler, mRecorder, 4);
+    }
+
+    @Test
+    public void events_areDeliveredOnTheNextFrame() {
+        mDispatcher.post("a", 1);
+        mDispatcher.post("b", 2);
+        assertEquals(1, mScheduler.pending());
+        assertTrue(mRecorder.batchSizes.isEmpty());
+
+        mScheduler.doFrame();
+        assertEquals(1, mRecorder.batchSizes.size());
+        assertEquals(Integer.valueOf(2), mRecorder.batchSizes.get(0));
+        assertEquals(1, mDispatcher.getFlushCount());
+    }
+
+    @Test
+    public void eventsForTheSameKey_areMerged() {
+        mDispatcher.post("a", 1);
+        mDispatcher.post("a", 2);
+        mDispatcher.post("a", 3);
+        mScheduler.doFrame();
+        assertEquals(1, mRecorder.values.size());
+        assertEquals(Integer.valueOf(3), mRecorder.values.get(0));
+        assertEquals(2, mDispatcher.getMergedCount());
+    }
+
+    @Test
+    public void newKeys_areDroppedWhenFull() {
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i < 4, mDispatcher.post("k" + i, i));
+        }
+        // Known keys are still merged.
+        assertTrue(mDispatcher.post("k0", 10));
+        assertEquals(2, mDispatcher.getDroppedCount());
+        mScheduler.doFrame();
+        assertEquals(4, mDispatcher.getDeliveredCount());
+        assertTrue(mDispatcher.post("k5", 5));
+    }
+
+    @Test
+    public void clear_discardsPendingEvents() {
+        mDispatcher.post("a", 1);
+        mDispatcher.clear();
+        mScheduler.doFrame();
+        assertTrue(mRecorder.batchSizes.isEmpty());
+        assertEquals(1, mDispatcher.getDroppedCount());
+        // The next event schedules a frame again.
+        mDispatcher.post("a", 2);
+        assertEquals(1, mScheduler.pending());
+    }
+
+    @Test
+    public void eventPostedDuringBatch_goesToTheNextFrame() {
+        final List<Integer> seen = new ArrayList<Integer>();
+        mDispatcher = new CoalescingDispatcher<String, Integer>(mScheduler,
+                new CoalescingDispatcher.Receiver<String, Integer>() {
+                    @Override
+                    public void onBatch(Map<String, Integer> batch) {
+                        seen.addAll(batch.values());
+                        if (seen.size() == 1) {
+                            mDispatcher.post("a", 2);
+                        }
+                    }
+                }, 4);
+        mDispatcher.post("a", 1);
+        mScheduler.doFrame();
+        assertEquals(1, seen.size());
+        mScheduler.doFrame();
+        assertEquals(2, seen.size());
+    }
+
+    // 10k events per second from 50 advertisers, one frame every 16.7 ms on a simulated clock.
+    // Every frame must do at most one batch with at most one entry per advertiser.
+    @Test
+    public void tenThousandEventsPerSecond_costOneBatchPerFrame() {
+        final int devices = 50;
+        final int eventsPerSecond = 10000;
+        mDispatcher = new CoalescingDispatcher<String, Integer>(mScheduler, mRecorder, devices);
+        final String[] addresses = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            addresses[i] = String.format("00:11:22:33:44:%02X", i);
+        }
+        final long eventNanos = 1000000000L / eventsPerSecond;
+        long nextFrame = FRAME_NANOS;
+        int frames = 0;
+        for (int event = 0; event < eventsPerSecond; event++) {
+            final long now = event * eventNanos;
+            while (now >= nextFrame) {
+                final int before = mRecorder.batchSizes.size();
+                mScheduler.doFrame();
+                assertTrue(mRecorder.batchSizes.size() - before <= 1);
+                nextFrame += FRAME_NANOS;
+                frames++;
+            }
+            mDispatcher.post(addresses[event % devices], event);
+        }
+        mScheduler.doFrame();
+        frames++;
+
+        // Every frame has events to flush.
+        assertEquals(frames, mDispatcher.getFlushCount());
+        assertTrue(mDispatcher.getMaxBatchSize() <= devices);
+        assertEquals(0, mDispatcher.getDroppedCount());
+        assertEquals(eventsPerSecond, mDispatcher.getDeliveredCount()
+                + mDispatcher.getMergedCount());
+        // About 167 events per frame collapse to one entry per device.
+        assertTrue(mDispatcher.getDeliveredCount() <= frames * devices);
+    }
+
+    // Same load from a real producer thread while this thread plays the UI thread.
+    @Test
+    public void concurrentProducer_losesNothingButMerges() throws Exception {
+        final int events = 10000;
+        final CountDownLatch done = new CountDownLatch(1);
+        mDispatcher = new CoalescingDispatcher<String, Integer>(mScheduler, mRecorder, 16);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final long start = System.nanoTime();
+                for (int i = 0; i < events; i++) {
+                    // Pace at 10k events/s.
+                    while (System.nanoTime() - start < i * 100000L) {
+                        Thread.yield();
+                    }
+                    mDispatcher.post("k" + (i % 16), i);
+                }
+                done.countDown();
+            }
+        });
+        producer.start();
+        while (!done.await(FRAME_NANOS, TimeUnit.NANOSECONDS)) {
+            mScheduler.doFrame();
+        }
+        mScheduler.doFrame();
+        producer.join();
+
+        assertEquals(events, mDispatcher.getPostedCount());
+        assertEquals(0, mDispatcher.getDroppedCount());
+        assertEquals(events, mDispatcher.getDeliveredCount() + mDispatcher.getMergedCount());
+        assertTrue(mDispatcher.getMaxBatchSize() <= 16);
+        // The newest value of every key made it through.
+        assertTrue(mRecorder.values.contains(events - 1));
+    }
+}
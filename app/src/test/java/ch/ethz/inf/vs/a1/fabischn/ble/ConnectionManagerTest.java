@@ -0,0 +1,190 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ConnectionManager}, driven by a fake transport.
+ */
+public class ConnectionManagerTest {
+
+    private static class FakeLink {
+        final String address;
+        boolean closed;
+
+        FakeLink(String address) {
+            this.address = address;
+        }
+    }
+
+    private static class FakeTransport implements ConnectionManager.Transport<FakeLink> {
+        final List<String> connects = new ArrayList<String>();
+        final List<String> reconnects = new ArrayList<String>();
+        final List<String> disconnects = new ArrayList<String>();
+        boolean refuse;
+
+        @Override
+        public FakeLink connect(String address) {
+            if (refuse) {
+                return null;
+            }
+            connects.add(address);
+            return new FakeLink(address);
+        }
+
+        @Override
+        public boolean reconnect(FakeLink handle) {
+            reconnects.add(handle.address);
+            return true;
+        }
+
+        @Override
+        public void disconnect(FakeLink handle) {
+            disconnects.add(handle.address);
+        }
+
+        @Override
+        public void close(FakeLink handle) {
+            handle.closed = true;
+        }
+    }
+
+    private FakeTransport mTransport;
+    private ConnectionManager<FakeLink> mManager;
+
+    @Before
+    public void setUp() {
+        mTransport = new FakeTransport();
+        mManager = new ConnectionManager<FakeLink>(mTransport, 2);
+    }
+
+    @Test
+    public void connect_keepsOneHandlePerAddress() throws Exception {
+        mManager.connect("A");
+        mManager.onConnected("A");
+        mManager.connect("B");
+        mManager.onConnected("B");
+
+        assertEquals(ConnectionManager.STATE_CONNECTED, mManager.getState("A"));
+        assertEquals(ConnectionManager.STATE_CONNECTED, mManager.getState("B"));
+        assertEquals("A", mManager.getHandle("A").address);
+        assertEquals("B", mManager.getHandle("B").address);
+        assertFalse(mManager.getHandle("A").closed);
+    }
+
+    @Test
+    public void connect_startsOneAttemptAtATime() throws Exception {
+        mManager.connect("A");
+        mManager.connect("B");
+        assertEquals(1, mTransport.connects.size());
+        assertEquals(ConnectionManager.STATE_QUEUED, mManager.getState("B"));
+
+        mManager.onConnected("A");
+        assertEquals(2, mTransport.connects.size());
+        assertEquals(ConnectionManager.STATE_CONNECTING, mManager.getState("B"));
+    }
+
+    @Test
+    public void connect_respectsLimitAndServesQueueInOrder() throws Exception {
+        for (String address : new String[]{"A", "B", "C", "D"}) {
+            mManager.connect(address);
+        }
+        mManager.onConnected("A");
+        mManager.onConnected("B");
+        // A stray report for a queued device must not take a slot.
+        mManager.onConnected("C");
+        assertEquals(2, mManager.getActiveCount());
+        assertEquals(2, mManager.getQueuedCount());
+        assertEquals(ConnectionManager.STATE_QUEUED, mManager.getState("C"));
+
+        mManager.disconnect("A");
+        assertEquals(ConnectionManager.STATE_DISCONNECTING, mManager.getState("A"));
+        assertEquals(ConnectionManager.STATE_QUEUED, mManager.getState("C"));
+
+        mManager.onDisconnected("A");
+        assertEquals(ConnectionManager.STATE_CONNECTING, mManager.getState("C"));
+        assertEquals(ConnectionManager.STATE_QUEUED, mManager.getState("D"));
+    }
+
+    @Test
+    public void setMaxConnections_releasesQueuedRequests() throws Exception {
+        mManager.connect("A");
+        mManager.onConnected("A");
+        mManager.connect("B");
+        mManager.onConnected("B");
+        mManager.connect("C");
+        assertEquals(ConnectionManager.STATE_QUEUED, mManager.getState("C"));
+
+        mManager.setMaxConnections(3);
+        assertEquals(ConnectionManager.STATE_CONNECTING, mManager.getState("C"));
+    }
+
+    @Test
+    public void connect_reusesHandleAfterLinkLoss() throws Exception {
+        mManager.connect("A");
+        mManager.onConnected("A");
+        FakeLink link = mManager.getHandle("A");
+        mManager.onDisconnected("A");
+
+        mManager.connect("A");
+        assertSame(link, mManager.getHandle("A"));
+        assertEquals(1, mTransport.connects.size());
+        assertEquals(1, mTransport.reconnects.size());
+    }
+
+    @Test
+    public void disconnect_withdrawsQueuedRequest() throws Exception {
+        mManager.connect("A");
+        mManager.connect("B");
+        mManager.disconnect("B");
+        mManager.onConnected("A");
+
+        assertEquals(ConnectionManager.STATE_DISCONNECTED, mManager.getState("B"));
+        assertEquals(1, mTransport.connects.size());
+    }
+
+    @Test
+    public void close_releasesHandle() throws Exception {
+        mManager.connect("A");
+        mManager.onConnected("A");
+        FakeLink link = mManager.getHandle("A");
+        mManager.close("A");
+
+        assertTrue(link.closed);
+        assertNull(mManager.getHandle("A"));
+        assertEquals(0, mManager.getActiveCount());
+    }
+
+    @Test
+    public void connect_failsWhenTransportRefuses() throws Exception {
+        mTransport.refuse = true;
+        assertFalse(mManager.connect("A"));
+        assertEquals(ConnectionManager.STATE_DISCONNECTED, mManager.getState("A"));
+    }
+
+    @Test
+    public void connectedLinks_scaleUpToLimit() throws Exception {
+        mManager.setMaxConnections(12);
+        List<String> addresses = new ArrayList<String>();
+        for (int i = 0; i < 16; i++) {
+            String address = "DEV" + i;
+            addresses.add(address);
+            mManager.connect(address);
+        }
+        // The fake peripherals accept every connection as soon as it is attempted.
+        for (int round = 0; round < 16; round++) {
+            for (String address : mManager.getAddresses(ConnectionManager.STATE_CONNECTING)) {
+                mManager.onConnected(address);
+            }
+        }
+        assertEquals(12, mManager.getAddresses(ConnectionManager.STATE_CONNECTED).size());
+        assertEquals(4, mManager.getQueuedCount());
+        // Served in request order.
+        assertEquals(addresses.subList(0, 12), mTransport.connects);
+    }
+}
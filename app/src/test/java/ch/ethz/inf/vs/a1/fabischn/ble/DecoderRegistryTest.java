@@ -0,0 +1,84 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link DecoderRegistry} and {@link SampleDecoders}.
+ */
+public class DecoderRegistryTest {
+
+    private static final UUID COMBINED = UUID.fromString("00003235-b38d-4985-720e-0f993a68ee41");
+
+    @Test
+    public void default_decodesSht31Floats() {
+        DecoderRegistry registry = DecoderRegistry.createDefault();
+        DecoderRegistry.Binding binding =
+                registry.resolve(SensirionSHT31UUIDS.UUID_TEMPERATURE_CHARACTERISTIC);
+        float[] out = new float[1];
+        assertEquals(1, binding.decode(new byte[]{0x00, 0x00, (byte) 0xbc, 0x41}, out));
+        assertEquals(23.5f, out[0], 0f);
+        assertEquals(SensirionSHT31UUIDS.CHARACTERISTIC_TEMPERATURE,
+                binding.getCharacteristicId(0));
+        assertNull(registry.resolve(SensirionSHT31UUIDS.UUID_TEMPERATURE_SERVICE));
+    }
+
+    @Test
+    public void int16_isScaled() {
+        float[] out = new float[1];
+        assertTrue(SampleDecoders.int16(true, 0.01f, 0f)
+                .decode(new byte[]{(byte) 0x2e, (byte) 0xfb}, 0, out, 0));
+        assertEquals(-12.34f, out[0], 1e-4f);
+        assertTrue(SampleDecoders.int16(false, 100f / 65535f, 0f)
+                .decode(new byte[]{(byte) 0xff, (byte) 0xff}, 0, out, 0));
+        assertEquals(100f, out[0], 1e-4f);
+        assertTrue(SampleDecoders.int16(false, 175f / 65535f, -45f)
+                .decode(new byte[]{0x00, 0x00}, 0, out, 0));
+        assertEquals(-45f, out[0], 0f);
+    }
+
+    @Test
+    public void sequence_decodesAllFields() {
+        DecoderRegistry registry = new DecoderRegistry();
+        registry.register(COMBINED, SampleDecoders.sequence(
+                SampleDecoders.int16(true, 0.01f, 0f), SampleDecoders.float32()),
+                SensirionSHT31UUIDS.CHARACTERISTIC_TEMPERATURE,
+                SensirionSHT31UUIDS.CHARACTERISTIC_HUMIDITY);
+        DecoderRegistry.Binding binding = registry.resolve(COMBINED);
+        assertEquals(6, binding.getDecoder().getSize());
+        float[] out = new float[2];
+        assertEquals(2, binding.decode(
+                new byte[]{(byte) 0xc4, 0x09, 0x00, 0x00, 0x48, 0x42}, out));
+        assertEquals(25f, out[0], 1e-4f);
+        assertEquals(50f, out[1], 0f);
+        assertEquals(SensirionSHT31UUIDS.CHARACTERISTIC_HUMIDITY, binding.getCharacteristicId(1));
+        assertEquals(2, registry.getMaxValueCount());
+    }
+
+    @Test
+    public void shortPayload_decodesNothing() {
+        DecoderRegistry.Binding binding = DecoderRegistry.createDefault()
+                .resolve(SensirionSHT31UUIDS.UUID_HUMIDITY_CHARACTERISTIC);
+        float[] out = {7f};
+        assertEquals(0, binding.decode(new byte[]{1, 2, 3}, out));
+        assertEquals(0, binding.decode(null, out));
+        assertEquals(7f, out[0], 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void register_rejectsWrongIdCount() {
+        new DecoderRegistry().register(COMBINED, SampleDecoders.float32(),
+                SensirionSHT31UUIDS.CHARACTERISTIC_HUMIDITY,
+                SensirionSHT31UUIDS.CHARACTERISTIC_TEMPERATURE);
+    }
+
+    @Test
+    public void lookup_byUuid() {
+        assertEquals("SHT31 Humidity Service",
+                SensirionSHT31UUIDS.lookup(SensirionSHT31UUIDS.UUID_HUMIDITY_SERVICE, "?"));
+        assertEquals("?", SensirionSHT31UUIDS.lookup(COMBINED, "?"));
+    }
+}
@@ -0,0 +1,96 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link DeviceRegistry}.
+ */
+public class DeviceRegistryTest {
+
+    private static final String A = "00:11:22:33:44:55";
+    private static final String B = "AA:BB:CC:DD:EE:FF";
+
+    private final DeviceRegistry<Object> mRegistry = new DeviceRegistry<Object>();
+
+    @Test
+    public void newDevice_isAddedAtTheEnd() {
+        assertEquals(DeviceRegistry.CHANGE_ADDED | DeviceRegistry.CHANGE_NAME,
+                mRegistry.update(A, "dev-a", "Smart Humigadget", -60, 1));
+        assertEquals(DeviceRegistry.CHANGE_ADDED, mRegistry.update(B, "dev-b", null, -70, 2));
+        assertEquals(2, mRegistry.size());
+        assertEquals(0, mRegistry.indexOf(A));
+        assertEquals(1, mRegistry.indexOf(B));
+        assertEquals(-1, mRegistry.indexOf("11:11:11:11:11:11"));
+        assertEquals("dev-b", mRegistry.get(1).getDevice());
+        assertNull(mRegistry.get(B).getName());
+    }
+
+    @Test
+    public void repeatedResult_changesNothingVisible() {
+        mRegistry.update(A, "dev-a", "Smart Humigadget", -60, 1);
+        assertEquals(DeviceRegistry.CHANGE_NONE,
+                mRegistry.update(A, "dev-a", "Smart Humigadget", -60, 5));
+        // Results without a name keep the cached one.
+        assertEquals(DeviceRegistry.CHANGE_NONE, mRegistry.update(A, "dev-a", null, -60, 6));
+        DeviceRegistry.Entry<Object> entry = mRegistry.get(A);
+        assertEquals("Smart Humigadget", entry.getName());
+        assertEquals(6, entry.getLastSeenNanos());
+        assertEquals(3, entry.getSeenCount());
+    }
+
+    @Test
+    public void rssiAndName_areReportedSeparately() {
+        mRegistry.update(A, "dev-a", null, -60, 1);
+        assertEquals(DeviceRegistry.CHANGE_RSSI, mRegistry.update(A, "dev-a", null, -61, 2));
+        assertEquals(DeviceRegistry.CHANGE_NAME, mRegistry.update(A, "dev-a", "Gadget", -61, 3));
+        assertEquals(DeviceRegistry.CHANGE_NAME | DeviceRegistry.CHANGE_RSSI,
+                mRegistry.update(A, "dev-a", "Gadget 2", -50, 4));
+        assertEquals(-50, mRegistry.get(0).getRssi());
+    }
+
+    @Test
+    public void ids_areStableAndNeverReused() {
+        mRegistry.update(A, "dev-a", null, -60, 1);
+        mRegistry.update(B, "dev-b", null, -60, 1);
+        long idA = mRegistry.get(A).getId();
+        long idB = mRegistry.get(B).getId();
+        assertNotEquals(idA, idB);
+        mRegistry.update(A, "dev-a", null, -40, 2);
+        assertEquals(idA, mRegistry.get(0).getId());
+
+        mRegistry.clear();
+        assertEquals(0, mRegistry.size());
+        mRegistry.update(A, "dev-a", null, -60, 3);
+        assertNotEquals(idA, mRegistry.get(A).getId());
+        assertNotEquals(idB, mRegistry.get(A).getId());
+    }
+
+    @Test
+    public void manyAdvertisers_onlyRedrawWhatChanged() {
+        final int advertisers = 1000;
+        final int results = 20000;
+        // Heard in random order, the RSSI wobbles by a dB now and then.
+        Random random = new Random(7);
+        int added = 0;
+        int redraws = 0;
+        for (int i = 0; i < results; i++) {
+            final int advertiser = random.nextInt(advertisers);
+            final String address = String.format("C0:FF:EE:00:%02X:%02X", advertiser >> 8,
+                    advertiser & 0xff);
+            final int rssi = -70 + (random.nextInt(8) == 0 ? 1 : 0);
+            final int changes = mRegistry.update(address, address, "Smart Humigadget", rssi, i);
+            if ((changes & DeviceRegistry.CHANGE_ADDED) != 0) {
+                added++;
+            } else if (changes != DeviceRegistry.CHANGE_NONE) {
+                redraws++;
+            }
+        }
+        assertEquals(advertisers, mRegistry.size());
+        assertEquals(advertisers, added);
+        assertTrue(redraws < results / 2);
+    }
+}
@@ -0,0 +1,99 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A simulated clock for the tests. {@link #advance} runs the posted runnables in order of their
+ * due time, and in the order they were posted when due at the same time.
+ */
+class FakeScheduler implements GattOperationQueue.Scheduler {
+    private static final class Entry implements Comparable<Entry> {
+        final Runnable runnable;
+        final long dueMillis;
+        final long sequence;
+        boolean cancelled;
+
+        Entry(Runnable runnable, long dueMillis, long sequence) {
+            this.runnable = runnable;
+            this.dueMillis = dueMillis;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (dueMillis != other.dueMillis) {
+                return dueMillis < other.dueMillis ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : sequence > other.sequence ? 1 : 0;
+        }
+    }
+
+    long nowMillis;
+    private long mSequence;
+    private int mPending;
+    private final PriorityQueue<Entry> mQueue = new PriorityQueue<Entry>();
+    private final IdentityHashMap<Runnable, List<Entry>> mEntries =
+            new IdentityHashMap<Runnable, List<Entry>>();
+
+    @Override
+    public long nowNanos() {
+        return nowMillis * 1000000L;
+    }
+
+    @Override
+    public void postDelayed(Runnable runnable, long delayMillis) {
+        final Entry entry = new Entry(runnable, nowMillis + delayMillis, mSequence++);
+        mQueue.add(entry);
+        List<Entry> entries = mEntries.get(runnable);
+        if (entries == null) {
+            entries = new ArrayList<Entry>(1);
+            mEntries.put(runnable, entries);
+        }
+        entries.add(entry);
+        mPending++;
+    }
+
+    @Override
+    public void cancel(Runnable runnable) {
+        final List<Entry> entries = mEntries.remove(runnable);
+        if (entries != null) {
+            for (Entry entry : entries) {
+                entry.cancelled = true;
+            }
+            mPending -= entries.size();
+        }
+    }
+
+    /**
+     * @return The number of runnables posted and neither run nor cancelled yet.
+     */
+    int pending() {
+        return mPending;
+    }
+
+    /**
+     * Moves the clock forward, running what becomes due on the way.
+     */
+    void advance(long millis) {
+        final long until = nowMillis + millis;
+        Entry entry;
+        while ((entry = mQueue.peek()) != null && entry.dueMillis <= until) {
+            mQueue.poll();
+            if (entry.cancelled) {
+                continue;
+            }
+            final List<Entry> entries = mEntries.get(entry.runnable);
+            entries.remove(entry);
+            if (entries.isEmpty()) {
+                mEntries.remove(entry.runnable);
+            }
+            mPending--;
+            nowMillis = entry.dueMillis;
+            entry.runnable.run();
+        }
+        nowMillis = until;
+    }
+}
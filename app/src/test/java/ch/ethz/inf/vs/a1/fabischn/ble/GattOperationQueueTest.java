@@ -0,0 +1,217 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link GattOperationQueue}, run on a simulated clock.
+ */
+public class GattOperationQueueTest {
+
+    private static final int GATT_SUCCESS = 0;
+
+    private static class FakeOperation extends GattOperationQueue.Operation {
+        final List<String> log;
+        final String name;
+        boolean accept = true;
+        int executions;
+        int status = Integer.MIN_VALUE;
+
+        FakeOperation(List<String> log, String name, int type, Object target) {
+            super(type, target, 1000);
+            this.log = log;
+            this.name = name;
+        }
+
+        @Override
+        protected boolean execute() {
+            executions++;
+            log.add(name);
+            return accept;
+        }
+
+        @Override
+        protected void onComplete(int status) {
+            this.status = status;
+        }
+    }
+
+    private FakeScheduler mScheduler;
+    private GattOperationQueue mQueue;
+    private List<String> mLog;
+
+    @Before
+    public void setUp() {
+        mScheduler = new FakeScheduler();
+        mQueue = new GattOperationQueue(mScheduler, 2);
+        mLog = new ArrayList<String>();
+    }
+
+    @Test
+    public void operations_runOneAtATimeInOrder() throws Exception {
+        Object humidity = new Object();
+        Object temperature = new Object();
+        FakeOperation first = new FakeOperation(mLog, "humidity",
+                GattOperationQueue.OP_WRITE_DESCRIPTOR, humidity);
+        FakeOperation second = new FakeOperation(mLog, "temperature",
+                GattOperationQueue.OP_WRITE_DESCRIPTOR, temperature);
+        mQueue.enqueue(first);
+        mQueue.enqueue(second);
+        assertEquals(1, mLog.size());
+        assertEquals(2, mQueue.getDepth());
+
+        // A callback for a different attribute does not complete the operation in flight.
+        assertFalse(mQueue.complete(GattOperationQueue.OP_WRITE_DESCRIPTOR, temperature, GATT_SUCCESS));
+        assertFalse(mQueue.complete(GattOperationQueue.OP_READ_CHARACTERISTIC, humidity, GATT_SUCCESS));
+        assertEquals(1, mLog.size());
+
+        assertTrue(mQueue.complete(GattOperationQueue.OP_WRITE_DESCRIPTOR, humidity, GATT_SUCCESS));
+        assertEquals(GATT_SUCCESS, first.status);
+        assertEquals(2, mLog.size());
+        assertEquals("temperature", mLog.get(1));
+
+        assertTrue(mQueue.complete(GattOperationQueue.OP_WRITE_DESCRIPTOR, temperature, GATT_SUCCESS));
+        assertEquals(0, mQueue.getDepth());
+        assertEquals(2, mQueue.getCompletedCount());
+        assertEquals(2, mQueue.getMaxDepth());
+    }
+
+    @Test
+    public void timeout_retriesThenFails() throws Exception {
+        FakeOperation read = new FakeOperation(mLog, "read",
+                GattOperationQueue.OP_READ_CHARACTERISTIC, new Object());
+        FakeOperation next = new FakeOperation(mLog, "next",
+                GattOperationQueue.OP_DISCOVER_SERVICES, null);
+        mQueue.enqueue(read);
+        mQueue.enqueue(next);
+
+        mScheduler.advance(2500);
+        assertEquals(3, read.executions);
+        assertEquals(Integer.MIN_VALUE, read.status);
+
+        mScheduler.advance(500);
+        assertEquals(GattOperationQueue.STATUS_TIMEOUT, read.status);
+        assertEquals(3, mQueue.getTimeoutCount());
+        assertEquals(2, mQueue.getRetryCount());
+        assertEquals(1, mQueue.getFailedCount());
+        assertEquals(1, next.executions);
+    }
+
+    @Test
+    public void rejectedOperation_isRetried() throws Exception {
+        FakeOperation discover = new FakeOperation(mLog, "discover",
+                GattOperationQueue.OP_DISCOVER_SERVICES, null);
+        discover.accept = false;
+        mQueue.enqueue(discover);
+        assertEquals(1, discover.executions);
+
+        discover.accept = true;
+        mScheduler.advance(100);
+        assertEquals(2, discover.executions);
+        assertTrue(mQueue.complete(GattOperationQueue.OP_DISCOVER_SERVICES, null, GATT_SUCCESS));
+        assertEquals(GATT_SUCCESS, discover.status);
+    }
+
+    @Test
+    public void rejectedOperation_failsAfterRetries() throws Exception {
+        FakeOperation discover = new FakeOperation(mLog, "discover",
+                GattOperationQueue.OP_DISCOVER_SERVICES, null);
+        discover.accept = false;
+        mQueue.enqueue(discover);
+        mScheduler.advance(1000);
+        assertEquals(3, discover.executions);
+        assertEquals(GattOperationQueue.STATUS_NOT_STARTED, discover.status);
+        assertEquals(0, mQueue.getDepth());
+    }
+
+    @Test
+    public void completion_cancelsTimeout() throws Exception {
+        Object target = new Object();
+        FakeOperation read = new FakeOperation(mLog, "read",
+                GattOperationQueue.OP_READ_CHARACTERISTIC, target);
+        mQueue.enqueue(read);
+        mScheduler.advance(30);
+        mQueue.complete(GattOperationQueue.OP_READ_CHARACTERISTIC, target, GATT_SUCCESS);
+        mScheduler.advance(5000);
+
+        assertEquals(1, read.executions);
+        assertEquals(0, mQueue.getTimeoutCount());
+        assertEquals(30000000L, mQueue.getMeanLatencyNanos());
+        assertEquals(30000000L, mQueue.getMaxLatencyNanos());
+    }
+
+    @Test
+    public void clear_cancelsEverything() throws Exception {
+        FakeOperation first = new FakeOperation(mLog, "first",
+                GattOperationQueue.OP_DISCOVER_SERVICES, null);
+        FakeOperation second = new FakeOperation(mLog, "second",
+                GattOperationQueue.OP_READ_CHARACTERISTIC, new Object());
+        mQueue.enqueue(first);
+        mQueue.enqueue(second);
+        mQueue.clear();
+
+        assertEquals(GattOperationQueue.STATUS_CANCELLED, first.status);
+        assertEquals(GattOperationQueue.STATUS_CANCELLED, second.status);
+        assertEquals(0, second.executions);
+        assertEquals(0, mQueue.getDepth());
+        mScheduler.advance(10000);
+        assertEquals(0, mQueue.getTimeoutCount());
+    }
+
+    @Test
+    public void operationEnqueuedFromCallback_runsAfterQueuedOnes() throws Exception {
+        final FakeOperation third = new FakeOperation(mLog, "third",
+                GattOperationQueue.OP_DISCOVER_SERVICES, null);
+        FakeOperation first = new FakeOperation(mLog, "first",
+                GattOperationQueue.OP_DISCOVER_SERVICES, null) {
+            @Override
+            protected void onComplete(int status) {
+                super.onComplete(status);
+                mQueue.enqueue(third);
+            }
+        };
+        FakeOperation second = new FakeOperation(mLog, "second",
+                GattOperationQueue.OP_DISCOVER_SERVICES, null);
+        mQueue.enqueue(first);
+        mQueue.enqueue(second);
+        mQueue.complete(GattOperationQueue.OP_DISCOVER_SERVICES, null, GATT_SUCCESS);
+        mQueue.complete(GattOperationQueue.OP_DISCOVER_SERVICES, null, GATT_SUCCESS);
+
+        assertEquals(3, mLog.size());
+        assertEquals("second", mLog.get(1));
+        assertEquals("third", mLog.get(2));
+    }
+
+    @Test
+    public void operationWithoutCallback_completesOnExecute() throws Exception {
+        FakeOperation mtu = new FakeOperation(mLog, "mtu", GattOperationQueue.OP_REQUEST_MTU,
+                null);
+        FakeOperation priority = new FakeOperation(mLog, "priority",
+                GattOperationQueue.OP_REQUEST_CONNECTION_PRIORITY, null) {
+            @Override
+            protected boolean completesOnExecute() {
+                return true;
+            }
+        };
+        FakeOperation read = new FakeOperation(mLog, "read",
+                GattOperationQueue.OP_READ_CHARACTERISTIC, null);
+        mQueue.enqueue(mtu);
+        mQueue.enqueue(priority);
+        mQueue.enqueue(read);
+        assertTrue(mQueue.complete(GattOperationQueue.OP_REQUEST_MTU, null, GATT_SUCCESS));
+        // The priority request is done without a callback and the read follows right away.
+        assertEquals(GattOperationQueue.STATUS_SUCCESS, priority.status);
+        assertEquals(3, mLog.size());
+        assertEquals(1, mQueue.getDepth());
+        assertTrue(mQueue.complete(GattOperationQueue.OP_READ_CHARACTERISTIC, null,
+                GATT_SUCCESS));
+        mScheduler.advance(5000);
+        assertEquals(0, mQueue.getTimeoutCount());
+        assertEquals(1, priority.executions);
+    }
+}
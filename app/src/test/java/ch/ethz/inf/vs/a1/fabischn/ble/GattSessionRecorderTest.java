@@ -0,0 +1,206 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link GattSessionRecorder}, {@link GattSessionReplayer} and
+ * {@link SampleExtractor}.
+ */
+public class GattSessionRecorderTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID HUMIDITY = SensirionSHT31UUIDS.UUID_HUMIDITY_CHARACTERISTIC;
+    private static final UUID TEMPERATURE = SensirionSHT31UUIDS.UUID_TEMPERATURE_CHARACTERISTIC;
+
+    // Keeps every event as a line, with the time it was delivered.
+    private static class RecordingCallback implements GattTransport.Callback {
+        final FakeScheduler scheduler;
+        final List<String> events = new ArrayList<String>();
+
+        RecordingCallback(FakeScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public void onConnectionStateChange(String address, int status, boolean connected) {
+            add(address + " state " + status + " " + connected);
+        }
+
+        @Override
+        public void onServicesDiscovered(String address, int status) {
+            add(address + " discovered " + status);
+        }
+
+        @Override
+        public void onCharacteristicRead(String address, UUID characteristic, byte[] value,
+                                         int status) {
+            add(address + " read " + characteristic + " " + Arrays.toString(value) + " "
+                    + status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(String address, UUID characteristic, int status) {
+            add(address + " write " + characteristic + " " + status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(String address, UUID characteristic,
+                                            int instanceId, long timestampNanos, byte[] value) {
+            add(address + " changed " + characteristic + " " + timestampNanos / 1000000 + " "
+                    + Arrays.toString(value));
+        }
+
+        @Override
+        public void onDescriptorWrite(String address, UUID characteristic, int status) {
+            add(address + " descriptor " + characteristic + " " + status);
+        }
+
+        @Override
+        public void onMtuChanged(String address, int mtu, int status) {
+            add(address + " mtu " + mtu + " " + status);
+        }
+
+        private void add(String event) {
+            events.add(scheduler.nowMillis + ": " + event);
+        }
+    }
+
+    private FakeScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mScheduler = new FakeScheduler();
+        mScheduler.nowMillis = 5000;
+    }
+
+    // Plays a short session into the recorder.
+    private byte[] record(RecordingCallback delegate) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final GattSessionRecorder recorder = new GattSessionRecorder(out, mScheduler, delegate);
+        recorder.onConnectionStateChange(ADDRESS, 0, true);
+        mScheduler.nowMillis += 30;
+        recorder.onServicesDiscovered(ADDRESS, 0);
+        recorder.onMtuChanged(ADDRESS, 247, 0);
+        mScheduler.nowMillis += 10;
+        recorder.onDescriptorWrite(ADDRESS, HUMIDITY, 0);
+        recorder.onCharacteristicRead(ADDRESS, TEMPERATURE, LittleEndian.fromFloat(21.5f), 0);
+        recorder.onCharacteristicRead(ADDRESS, TEMPERATURE, null, 0x85);
+        recorder.onCharacteristicWrite(ADDRESS, SensirionSHT31UUIDS.UUID_LOGGER_START, 0);
+        for (int i = 0; i < 5; i++) {
+            mScheduler.nowMillis += 100;
+            recorder.onCharacteristicChanged(ADDRESS, HUMIDITY, GattTransport.INSTANCE_UNKNOWN,
+                    mScheduler.nowNanos(), LittleEndian.fromFloat(40f + i));
+        }
+        mScheduler.nowMillis += 50;
+        recorder.onConnectionStateChange(ADDRESS, 8, false);
+        assertEquals(13, recorder.getEventCount());
+        recorder.close();
+        assertNull(recorder.getError());
+        // Closed, only passed on.
+        recorder.onServicesDiscovered(ADDRESS, 0);
+        assertEquals(13, recorder.getEventCount());
+        return out.toByteArray();
+    }
+
+    @Test
+    public void replay_reproducesTheSessionAtItsPace() throws IOException {
+        final RecordingCallback live = new RecordingCallback(mScheduler);
+        final byte[] recording = record(live);
+        assertEquals(14, live.events.size());
+
+        // Replayed 100 s later, with the same spacing.
+        mScheduler.nowMillis = 105000;
+        final RecordingCallback replayed = new RecordingCallback(mScheduler);
+        final GattSessionReplayer replayer = new GattSessionReplayer(
+                new ByteArrayInputStream(recording), mScheduler, replayed);
+        final List<IOException> finished = new ArrayList<IOException>();
+        replayer.start(new GattSessionReplayer.Listener() {
+            @Override
+            public void onReplayFinished(GattSessionReplayer r, IOException error) {
+                finished.add(error);
+            }
+        });
+        assertTrue(replayer.isRunning());
+        assertEquals(1, replayed.events.size());
+        mScheduler.advance(300);
+        assertEquals(9, replayed.events.size());
+        mScheduler.advance(1000);
+        assertFalse(replayer.isRunning());
+        assertEquals(1, finished.size());
+        assertNull(finished.get(0));
+        assertEquals(13, replayer.getEventCount());
+        for (int i = 0; i < 13; i++) {
+            assertEquals(shift(live.events.get(i), 100000), replayed.events.get(i));
+        }
+    }
+
+    @Test
+    public void replayAll_feedsTheSampleExtractor() throws IOException {
+        final byte[] recording = record(null);
+        final List<String> samples = new ArrayList<String>();
+        final SampleExtractor extractor = new SampleExtractor(DecoderRegistry.createDefault(),
+                mScheduler, new SampleListener() {
+            @Override
+            public void onSample(String deviceAddress, int characteristicId,
+                                 long timestampNanos, float value) {
+                samples.add(characteristicId + " " + timestampNanos / 1000000 + " " + value);
+            }
+        });
+        mScheduler.nowMillis = 0;
+        final GattSessionReplayer replayer = new GattSessionReplayer(
+                new ByteArrayInputStream(recording), mScheduler, extractor);
+        assertEquals(13, replayer.replayAll());
+        assertEquals(6, extractor.getSampleCount());
+        assertEquals(Arrays.asList("1 0 21.5", "0 140 40.0", "0 240 41.0", "0 340 42.0",
+                "0 440 43.0", "0 540 44.0"), samples);
+    }
+
+    @Test
+    public void truncatedRecording_endsTheReplayWithAnError() throws IOException {
+        final byte[] recording = record(null);
+        final byte[] truncated = Arrays.copyOf(recording, recording.length - 3);
+        final RecordingCallback replayed = new RecordingCallback(mScheduler);
+        final GattSessionReplayer replayer = new GattSessionReplayer(
+                new ByteArrayInputStream(truncated), mScheduler, replayed);
+        try {
+            replayer.replayAll();
+            fail();
+        } catch (IOException expected) {
+            assertEquals(12, replayed.events.size());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void foreignFile_isRejected() throws IOException {
+        new GattSessionReplayer(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}),
+                mScheduler, new RecordingCallback(mScheduler));
+    }
+
+    // Moves the time of an event line.
+    private static String shift(String event, long millis) {
+        final int colon = event.indexOf(':');
+        String shifted = (Long.parseLong(event.substring(0, colon)) + millis)
+                + event.substring(colon);
+        if (event.contains(" changed ")) {
+            final String[] parts = shifted.split(" ");
+            parts[4] = Long.toString(Long.parseLong(parts[4]) + millis);
+            final StringBuilder builder = new StringBuilder(parts[0]);
+            for (int i = 1; i < parts.length; i++) {
+                builder.append(' ').append(parts[i]);
+            }
+            shifted = builder.toString();
+        }
+        return shifted;
+    }
+}
@@ -0,0 +1,171 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link GorillaCodec} and {@link CompressedSeries}.
+ */
+public class GorillaCodecTest {
+
+    private static final long T0 = 1476700000000L;
+
+    private static class Collector implements SampleStore.Visitor {
+        final List<Long> timestamps = new ArrayList<Long>();
+        final List<Float> values = new ArrayList<Float>();
+
+        @Override
+        public void onSample(long timestampMillis, float value) {
+            timestamps.add(timestampMillis);
+            values.add(value);
+        }
+    }
+
+    private static void assertRoundTrip(long[] timestamps, float[] values) {
+        GorillaCodec.Encoder encoder = new GorillaCodec.Encoder(16);
+        for (int i = 0; i < timestamps.length; i++) {
+            encoder.append(timestamps[i], values[i]);
+        }
+        GorillaCodec.Decoder decoder = new GorillaCodec.Decoder();
+        decoder.reset(encoder.toByteArray(), 0, encoder.getCount());
+        for (int i = 0; i < timestamps.length; i++) {
+            assertTrue(decoder.next());
+            assertEquals(timestamps[i], decoder.timestamp());
+            assertEquals(Float.floatToRawIntBits(values[i]),
+                    Float.floatToRawIntBits(decoder.value()));
+        }
+        assertFalse(decoder.next());
+    }
+
+    @Test
+    public void roundTrip_regularSamples() {
+        long[] timestamps = new long[1000];
+        float[] values = new float[1000];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = T0 + i * 1000L;
+            values[i] = 45f + (float) Math.sin(i / 100.0);
+        }
+        assertRoundTrip(timestamps, values);
+    }
+
+    @Test
+    public void roundTrip_irregularSamplesAndSpecialValues() {
+        Random random = new Random(42);
+        long[] timestamps = new long[5000];
+        float[] values = new float[5000];
+        long t = T0;
+        for (int i = 0; i < timestamps.length; i++) {
+            // Deltas hitting every delta-of-delta width, including huge gaps and going back.
+            switch (i % 6) {
+                case 0: t += 1000; break;
+                case 1: t += random.nextInt(200); break;
+                case 2: t += random.nextInt(4000); break;
+                case 3: t += random.nextInt(Integer.MAX_VALUE); break;
+                case 4: t += (long) random.nextInt(Integer.MAX_VALUE) << 8; break;
+                default: t -= random.nextInt(500); break;
+            }
+            timestamps[i] = t;
+            values[i] = Float.intBitsToFloat(random.nextInt());
+        }
+        values[10] = Float.NaN;
+        values[11] = Float.POSITIVE_INFINITY;
+        values[12] = -0f;
+        values[13] = 0f;
+        values[14] = 0f;
+        assertRoundTrip(timestamps, values);
+    }
+
+    @Test
+    public void constantSamples_takeTwoBitsEach() {
+        GorillaCodec.Encoder encoder = new GorillaCodec.Encoder(16);
+        for (int i = 0; i < 10001; i++) {
+            encoder.append(T0 + i * 1000L, 21.5f);
+        }
+        // 96 bits for the first sample, 7 + 2 for the first delta and value.
+        assertTrue(encoder.getByteLength() <= (96 + 9 + 10000 * 2 + 7) / 8 + 1);
+    }
+
+    @Test
+    public void dayOfReadings_takesUnderAThirdOfRawRecords() {
+        // A day of humidity at 1 Hz with a few ms of jitter and 0.01 %RH resolution.
+        final int samples = 24 * 60 * 60;
+        Random random = new Random(1);
+        GorillaCodec.Encoder encoder = new GorillaCodec.Encoder(samples);
+        long t = T0;
+        for (int i = 0; i < samples; i++) {
+            t += 1000 + random.nextInt(5) - 2;
+            encoder.append(t, Math.round((45f + 5f * (float) Math.sin(i / 3600.0)) * 100f) / 100f);
+        }
+        // A raw record is a long timestamp and a float value.
+        assertTrue(encoder.getByteLength() < samples * 12 / 3);
+    }
+
+    @Test
+    public void encoder_canBeReused() {
+        GorillaCodec.Encoder encoder = new GorillaCodec.Encoder(16);
+        for (int i = 0; i < 100; i++) {
+            encoder.append(i, i);
+        }
+        encoder.reset();
+        encoder.append(T0, 1f);
+        encoder.append(T0 + 5, 2f);
+        GorillaCodec.Decoder decoder = new GorillaCodec.Decoder();
+        decoder.reset(encoder.getBuffer(), 0, encoder.getCount());
+        assertTrue(decoder.next());
+        assertEquals(T0, decoder.timestamp());
+        assertTrue(decoder.next());
+        assertEquals(T0 + 5, decoder.timestamp());
+        assertEquals(2f, decoder.value(), 0f);
+    }
+
+    @Test
+    public void series_readsRangesAcrossBlocks() {
+        CompressedSeries series = new CompressedSeries();
+        final int count = CompressedSeries.BLOCK_SAMPLES * 5 + 17;
+        for (int i = 0; i < count; i++) {
+            series.append(T0 + i * 10L, i);
+        }
+        assertEquals(count, series.size());
+
+        Collector collector = new Collector();
+        long from = T0 + (CompressedSeries.BLOCK_SAMPLES * 2 - 3) * 10L;
+        long to = T0 + (CompressedSeries.BLOCK_SAMPLES * 5 + 5) * 10L;
+        assertEquals(CompressedSeries.BLOCK_SAMPLES * 3 + 9, series.read(from, to, collector));
+        assertEquals(Long.valueOf(from), collector.timestamps.get(0));
+        assertEquals(Long.valueOf(to), collector.timestamps.get(collector.timestamps.size() - 1));
+        for (int i = 0; i < collector.values.size(); i++) {
+            assertEquals(CompressedSeries.BLOCK_SAMPLES * 2 - 3 + i, collector.values.get(i), 0f);
+        }
+
+        assertEquals(0, series.read(T0 - 100, T0 - 1, new Collector()));
+        assertEquals(0, series.read(T0 + count * 10L, Long.MAX_VALUE, new Collector()));
+    }
+
+    @Test
+    public void series_survivesSerialization() throws Exception {
+        CompressedSeries series = new CompressedSeries();
+        for (int i = 0; i < CompressedSeries.BLOCK_SAMPLES + 10; i++) {
+            series.append(T0 + i, i * 0.5f);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        series.writeTo(new DataOutputStream(bytes));
+
+        CompressedSeries copy = CompressedSeries.readFrom(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(series.size(), copy.size());
+        copy.append(T0 + 5000, 7f);
+        Collector collector = new Collector();
+        assertEquals(series.size() + 1, copy.read(T0, T0 + 5000, collector));
+        assertEquals(5f, collector.values.get(10), 0f);
+        assertEquals(7f, collector.values.get(collector.values.size() - 1), 0f);
+    }
+}
@@ -0,0 +1,105 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link GraphSnapshot}.
+ */
+public class GraphSnapshotTest {
+
+    private static final long T0 = 1476700000000L;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("graph", ".snap");
+        assertTrue(mFile.delete());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    @Test
+    public void read_restoresPointsOldestFirst() throws Exception {
+        SampleSeriesBuffer buffer = new SampleSeriesBuffer(2, 4);
+        for (int i = 0; i < 6; i++) {
+            buffer.addValues(i * 0.5, new float[]{i, 10 * i});
+        }
+        GraphSnapshot.write(mFile, GraphSnapshot.encode(buffer, T0, T0 + 2500));
+
+        SampleSeriesBuffer restored = new SampleSeriesBuffer(2, 4);
+        GraphSnapshot snapshot = GraphSnapshot.read(mFile, restored);
+        assertEquals(T0, snapshot.getOriginMillis());
+        assertEquals(T0 + 2500, snapshot.getLastMillis());
+        assertEquals(4, restored.size());
+        assertEquals(1.0, restored.getX(0), 0.0);
+        assertEquals(2.5, restored.getX(3), 0.0);
+        assertArrayEquals(new float[]{2, 3, 4, 5}, restored.getValues()[0], 0f);
+        assertArrayEquals(new float[]{20, 30, 40, 50}, restored.getValues()[1], 0f);
+    }
+
+    @Test
+    public void read_keepsNewestPointsOfLargerSnapshot() throws Exception {
+        SampleSeriesBuffer buffer = new SampleSeriesBuffer(1, 10);
+        for (int i = 0; i < 10; i++) {
+            buffer.addValues(i, new float[]{i});
+        }
+        GraphSnapshot.write(mFile, GraphSnapshot.encode(buffer, T0, T0 + 9000));
+
+        SampleSeriesBuffer restored = new SampleSeriesBuffer(1, 3);
+        GraphSnapshot.read(mFile, restored);
+        assertArrayEquals(new float[]{7, 8, 9}, restored.getValues()[0], 0f);
+    }
+
+    @Test
+    public void read_withoutSnapshot_returnsNull() throws Exception {
+        SampleSeriesBuffer buffer = new SampleSeriesBuffer(2, 4);
+        assertNull(GraphSnapshot.read(mFile, buffer));
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void truncatedSnapshot_isRejectedBeforeAnyPointIsAdded() throws Exception {
+        SampleSeriesBuffer buffer = new SampleSeriesBuffer(2, 4);
+        for (int i = 0; i < 4; i++) {
+            buffer.addValues(i, new float[]{i, i});
+        }
+        GraphSnapshot.write(mFile, GraphSnapshot.encode(buffer, T0, T0 + 3000));
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        SampleSeriesBuffer restored = new SampleSeriesBuffer(2, 4);
+        try {
+            GraphSnapshot.read(mFile, restored);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertEquals(0, restored.size());
+        }
+    }
+
+    @Test
+    public void write_replacesPreviousSnapshot() throws Exception {
+        SampleSeriesBuffer buffer = new SampleSeriesBuffer(1, 8);
+        buffer.addValues(0, new float[]{1});
+        GraphSnapshot.write(mFile, GraphSnapshot.encode(buffer, T0, T0));
+        buffer.addValues(1, new float[]{2});
+        GraphSnapshot.write(mFile, GraphSnapshot.encode(buffer, T0, T0 + 1000));
+
+        SampleSeriesBuffer restored = new SampleSeriesBuffer(1, 8);
+        assertEquals(T0 + 1000, GraphSnapshot.read(mFile, restored).getLastMillis());
+        assertArrayEquals(new float[]{1, 2}, restored.getValues()[0], 0f);
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+    }
+}
@@ -0,0 +1,72 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link LinkStats} and {@link LinkProfile}.
+ */
+public class LinkStatsTest {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void samples_countTowardsTheProfileInEffect() {
+        LinkStats stats = new LinkStats();
+        stats.onProfileRequested(LinkProfile.HIGH_THROUGHPUT, 0);
+        stats.onMtuChanged(247);
+        stats.onProfileApplied(40 * MS);
+        // 100 samples 10 ms apart.
+        for (int i = 0; i < 100; i++) {
+            stats.onSample(i * 10 * MS);
+        }
+        stats.onProfileRequested(LinkProfile.LOW_POWER, 1000 * MS);
+        for (int i = 0; i < 10; i++) {
+            stats.onSample(1000 * MS + i * 100 * MS);
+        }
+
+        assertEquals(247, stats.getMtu());
+        assertEquals(LinkProfile.LOW_POWER, stats.getProfile());
+        assertEquals(100, stats.getSampleCount(LinkProfile.HIGH_THROUGHPUT));
+        assertEquals(100.0, stats.getSamplesPerSecond(LinkProfile.HIGH_THROUGHPUT, 2000 * MS),
+                1e-9);
+        assertEquals(10 * MS, stats.getMeanGapNanos(LinkProfile.HIGH_THROUGHPUT));
+        assertEquals(40 * MS, stats.getSetupNanos(LinkProfile.HIGH_THROUGHPUT));
+        // The gap across the profile change is not counted.
+        assertEquals(100 * MS, stats.getMaxGapNanos(LinkProfile.LOW_POWER));
+        assertEquals(10.0, stats.getSamplesPerSecond(LinkProfile.LOW_POWER, 2000 * MS), 1e-9);
+        assertEquals(0, stats.getSampleCount(LinkProfile.BALANCED));
+        assertTrue(stats.toString(2000 * MS).contains("high_throughput: samples=100"));
+    }
+
+    @Test
+    public void disconnect_stopsTheClockAndResetsMtu() {
+        LinkStats stats = new LinkStats();
+        stats.onProfileRequested(LinkProfile.BALANCED, 0);
+        stats.onMtuChanged(185);
+        stats.onSample(500 * MS);
+        stats.onDisconnected(1000 * MS);
+        stats.onSample(1500 * MS);
+
+        assertNull(stats.getProfile());
+        assertEquals(LinkProfile.DEFAULT_MTU, stats.getMtu());
+        assertEquals(1, stats.getSampleCount(LinkProfile.BALANCED));
+        assertEquals(1.0, stats.getSamplesPerSecond(LinkProfile.BALANCED, 9000 * MS), 1e-9);
+    }
+
+    @Test
+    public void profiles_haveTheirIds() {
+        for (int id = 0; id < LinkProfile.COUNT; id++) {
+            assertEquals(id, LinkProfile.fromId(id).getId());
+        }
+        assertEquals(LinkProfile.PRIORITY_HIGH,
+                LinkProfile.HIGH_THROUGHPUT.getConnectionPriority());
+        assertEquals(0, LinkProfile.LOW_POWER.getMtu());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fromId_rejectsUnknown() {
+        LinkProfile.fromId(LinkProfile.COUNT);
+    }
+}
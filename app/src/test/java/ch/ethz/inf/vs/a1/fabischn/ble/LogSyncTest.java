@@ -0,0 +1,248 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link LogSync}, against a simulated logger that loses packets.
+ */
+public class LogSyncTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final long T0 = 1476700000000L;
+    private static final long INTERVAL = 10000;
+
+    /**
+     * A logger holding {@code count} samples per stream, the newest at {@code newestMillis}.
+     * Packets are queued instead of delivered, some of them are lost.
+     */
+    private static class FakeLogger implements LogSync.Peripheral {
+        final long newestMillis;
+        final int count;
+        final int valuesPerPacket;
+        final double lossRate;
+        final Random random = new Random(11);
+        final ArrayDeque<Object[]> packets = new ArrayDeque<Object[]>();
+        int requests;
+        int lost;
+
+        FakeLogger(long newestMillis, int count, int valuesPerPacket, double lossRate) {
+            this.newestMillis = newestMillis;
+            this.count = count;
+            this.valuesPerPacket = valuesPerPacket;
+            this.lossRate = lossRate;
+        }
+
+        static float humidity(long index) {
+            return 40f + (index % 1000) * 0.01f;
+        }
+
+        static float temperature(long index) {
+            return 20f + (index % 500) * 0.02f;
+        }
+
+        @Override
+        public boolean requestRange(long oldestMillis, long newestRequested) {
+            requests++;
+            final long first = Math.max(0, (newestMillis - newestRequested + INTERVAL - 1)
+                    / INTERVAL);
+            final long last = Math.min(count - 1, (newestMillis - oldestMillis) / INTERVAL);
+            for (int characteristic = 0; characteristic < 2; characteristic++) {
+                for (long index = first; index <= last; index += valuesPerPacket) {
+                    final int values = (int) Math.min(valuesPerPacket, last - index + 1);
+                    final byte[] packet = new byte[4 + 4 * values];
+                    final long sequence = index - first;
+                    for (int b = 0; b < 4; b++) {
+                        packet[b] = (byte) (sequence >>> (8 * b));
+                    }
+                    for (int i = 0; i < values; i++) {
+                        final float value = characteristic == 0 ? humidity(index + i)
+                                : temperature(index + i);
+                        final int bits = Float.floatToRawIntBits(value);
+                        for (int b = 0; b < 4; b++) {
+                            packet[4 + 4 * i + b] = (byte) (bits >>> (8 * b));
+                        }
+                    }
+                    if (random.nextDouble() >= lossRate) {
+                        packets.addLast(new Object[]{characteristic, packet});
+                    } else {
+                        lost++;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Result implements LogSync.Listener {
+        int calls;
+        boolean complete;
+
+        @Override
+        public void onFinished(LogSync sync, boolean complete) {
+            calls++;
+            this.complete = complete;
+        }
+    }
+
+    private File mRoot;
+    private SampleStore mStore;
+    private FakeScheduler mScheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = File.createTempFile("logsync", "");
+        assertTrue(mRoot.delete());
+        assertTrue(mRoot.mkdirs());
+        mStore = new SampleStore(mRoot);
+        mScheduler = new FakeScheduler();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mStore.close();
+        delete(mRoot);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    // Delivers packets until the download ends, letting the clock run when the link is quiet.
+    // Stops early after `maxPackets` packets.
+    private void run(LogSync sync, FakeLogger logger, long maxPackets) {
+        long delivered = 0;
+        while (sync.isRunning() && delivered < maxPackets) {
+            final Object[] packet = logger.packets.pollFirst();
+            if (packet == null) {
+                mScheduler.advance(LogSync.IDLE_TIMEOUT_MILLIS);
+            } else {
+                assertTrue(sync.onPacket((Integer) packet[0], (byte[]) packet[1]));
+                delivered++;
+            }
+        }
+    }
+
+    private void assertStored(int count, long newestMillis) throws Exception {
+        final long oldestMillis = newestMillis - (count - 1) * INTERVAL;
+        final int[] seen = new int[1];
+        mStore.read(ADDRESS, SensirionSHT31UUIDS.UUID_HUMIDITY_CHARACTERISTIC, oldestMillis,
+                Long.MAX_VALUE, new SampleStore.Visitor() {
+                    @Override
+                    public void onSample(long timestampMillis, float value) {
+                        final long index = (newestMillis - timestampMillis) / INTERVAL;
+                        assertEquals(oldestMillis + seen[0] * INTERVAL, timestampMillis);
+                        assertEquals(FakeLogger.humidity(index), value, 0f);
+                        seen[0]++;
+                    }
+                });
+        assertEquals(count, seen[0]);
+        final int[] temperatures = new int[1];
+        mStore.read(ADDRESS, SensirionSHT31UUIDS.UUID_TEMPERATURE_CHARACTERISTIC, oldestMillis,
+                Long.MAX_VALUE, new SampleStore.Visitor() {
+                    @Override
+                    public void onSample(long timestampMillis, float value) {
+                        final long index = (newestMillis - timestampMillis) / INTERVAL;
+                        assertEquals(FakeLogger.temperature(index), value, 0f);
+                        temperatures[0]++;
+                    }
+                });
+        assertEquals(count, temperatures[0]);
+    }
+
+    @Test
+    public void backlog_isDownloadedDespitePacketLoss() throws Exception {
+        final int count = 100000;
+        final long newest = T0 + (count - 1) * INTERVAL;
+        FakeLogger logger = new FakeLogger(newest, count, 4, 0.05);
+        Result result = new Result();
+        LogSync sync = new LogSync(mScheduler, logger, mStore, ADDRESS, result);
+        sync.start(T0, newest, INTERVAL);
+        run(sync, logger, Long.MAX_VALUE);
+
+        assertEquals(1, result.calls);
+        assertTrue(result.complete);
+        assertEquals(count, sync.getCommittedCount());
+        // Every retry asks for at least one lost packet, and only the holes are asked for
+        // again, a small part of the backlog comes twice.
+        assertTrue(sync.getRetryCount() > 0);
+        assertTrue(sync.toString(), sync.getRetryCount() <= logger.lost);
+        assertTrue(sync.toString(), sync.getDuplicateCount() < 2 * count / 5);
+        assertStored(count, newest);
+    }
+
+    @Test
+    public void interruptedDownload_resumesAfterCheckpoint() throws Exception {
+        final int count = 3 * LogSync.CHUNK_SAMPLES + 100;
+        final long newest = T0 + (count - 1) * INTERVAL;
+        // A large MTU, 60 values per packet.
+        FakeLogger logger = new FakeLogger(newest, count, 60, 0.02);
+        Result result = new Result();
+        LogSync sync = new LogSync(mScheduler, logger, mStore, ADDRESS, result);
+        sync.start(T0, newest, INTERVAL);
+        run(sync, logger, 200);
+        sync.stop();
+        assertEquals(1, result.calls);
+        assertFalse(result.complete);
+        final long committed = sync.getCommittedCount();
+        assertTrue(committed > 0 && committed < count);
+
+        // The link drops, the packets in flight are gone.
+        logger.packets.clear();
+        LogSync resumed = new LogSync(mScheduler, logger, mStore, ADDRESS, result);
+        resumed.start(T0, newest, INTERVAL);
+        assertEquals(count - committed, resumed.getTotalCount());
+        run(resumed, logger, Long.MAX_VALUE);
+        assertTrue(result.complete);
+        assertStored(count, newest);
+    }
+
+    @Test
+    public void nothingNew_finishesRightAway() throws Exception {
+        mStore.append(ADDRESS, SensirionSHT31UUIDS.UUID_HUMIDITY_CHARACTERISTIC, T0, 1f);
+        mStore.append(ADDRESS, SensirionSHT31UUIDS.UUID_TEMPERATURE_CHARACTERISTIC, T0, 1f);
+        FakeLogger logger = new FakeLogger(T0, 1, 4, 0);
+        Result result = new Result();
+        LogSync sync = new LogSync(mScheduler, logger, mStore, ADDRESS, result);
+        sync.start(T0 - INTERVAL, T0, INTERVAL);
+        assertFalse(sync.isRunning());
+        assertTrue(result.complete);
+        assertEquals(0, logger.requests);
+    }
+
+    @Test
+    public void silentLogger_givesUp() throws Exception {
+        FakeLogger logger = new FakeLogger(T0, 10, 4, 1.0);
+        Result result = new Result();
+        LogSync sync = new LogSync(mScheduler, logger, mStore, ADDRESS, result);
+        sync.start(T0 - 9 * INTERVAL, T0, INTERVAL);
+        mScheduler.advance(LogSync.IDLE_TIMEOUT_MILLIS * (LogSync.MAX_STALLED_REQUESTS + 1));
+        assertFalse(sync.isRunning());
+        assertFalse(result.complete);
+        assertEquals(LogSync.MAX_STALLED_REQUESTS, logger.requests);
+    }
+
+    @Test
+    public void liveValues_areNotLogPackets() throws Exception {
+        FakeLogger logger = new FakeLogger(T0, 10, 4, 1.0);
+        LogSync sync = new LogSync(mScheduler, logger, mStore, ADDRESS, null);
+        assertFalse(sync.onPacket(SensirionSHT31UUIDS.CHARACTERISTIC_HUMIDITY, new byte[8]));
+        sync.start(T0 - 9 * INTERVAL, T0, INTERVAL);
+        assertFalse(sync.onPacket(SensirionSHT31UUIDS.CHARACTERISTIC_HUMIDITY, new byte[4]));
+        assertTrue(sync.onPacket(SensirionSHT31UUIDS.CHARACTERISTIC_HUMIDITY, new byte[8]));
+        sync.stop();
+    }
+}
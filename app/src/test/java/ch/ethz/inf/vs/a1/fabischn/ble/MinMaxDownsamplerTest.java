@@ -0,0 +1,164 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link MinMaxDownsampler}.
+ */
+public class MinMaxDownsamplerTest {
+
+    private static SampleSeriesBuffer fill(int capacity, int count, long seed) {
+        SampleSeriesBuffer buffer = new SampleSeriesBuffer(1, capacity);
+        Random random = new Random(seed);
+        float[] values = new float[1];
+        for (int i = 0; i < count; i++) {
+            values[0] = (float) random.nextGaussian();
+            buffer.addValues(i, values);
+        }
+        return buffer;
+    }
+
+    @Test
+    public void smallRange_isCopiedUnchanged() throws Exception {
+        SampleSeriesBuffer buffer = fill(100, 50, 1);
+        MinMaxDownsampler lod = new MinMaxDownsampler(buffer, 0);
+        double[] x = new double[200];
+        float[] y = new float[200];
+        assertEquals(50, lod.downsample(0, 49, 200, x, y));
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, x[i], 0.0);
+            assertEquals(buffer.getY(0, i), y[i], 0f);
+        }
+    }
+
+    @Test
+    public void largeRange_staysWithinLimitAndKeepsExtremes() throws Exception {
+        SampleSeriesBuffer buffer = fill(100000, 100000, 2);
+        MinMaxDownsampler lod = new MinMaxDownsampler(buffer, 0);
+        double[] x = new double[1000];
+        float[] y = new float[1000];
+        int count = lod.downsample(0, 99999, 1000, x, y);
+        assertTrue(count <= 1000);
+        assertTrue(count > 500);
+
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (int i = 0; i < buffer.size(); i++) {
+            min = Math.min(min, buffer.getY(0, i));
+            max = Math.max(max, buffer.getY(0, i));
+        }
+        float outMin = Float.MAX_VALUE;
+        float outMax = -Float.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                assertTrue(x[i] > x[i - 1]);
+            }
+            // Every output point is a real point of the series.
+            assertEquals(buffer.getY(0, (int) x[i]), y[i], 0f);
+            outMin = Math.min(outMin, y[i]);
+            outMax = Math.max(outMax, y[i]);
+        }
+        assertEquals(min, outMin, 0f);
+        assertEquals(max, outMax, 0f);
+    }
+
+    @Test
+    public void renderInput_staysAtTwoPointsPerPixel() throws Exception {
+        final int widthPx = 1080;
+        final int samples = 200000;
+        SampleSeriesBuffer buffer = new SampleSeriesBuffer(1, samples);
+        MinMaxDownsampler lod = new MinMaxDownsampler(buffer, 0);
+        float[] values = new float[1];
+        for (int i = 0; i < samples; i++) {
+            values[0] = 20f + (float) Math.sin(i / 600.0) + (i % 7) * 0.01f;
+            buffer.addValues(i, values);
+            // Levels are brought up to date once per frame of 16 samples.
+            if ((i & 15) == 15) {
+                lod.update();
+            }
+        }
+        double[] x = new double[2 * widthPx];
+        float[] y = new float[2 * widthPx];
+        int count = lod.downsample(0, samples - 1, 2 * widthPx, x, y);
+        assertTrue(count <= 2 * widthPx);
+        assertTrue(count >= widthPx);
+    }
+
+    @Test
+    public void incrementalUpdates_matchRebuild() throws Exception {
+        SampleSeriesBuffer buffer = new SampleSeriesBuffer(1, 5000);
+        MinMaxDownsampler incremental = new MinMaxDownsampler(buffer, 0);
+        Random random = new Random(3);
+        float[] values = new float[1];
+        double[] x = new double[100];
+        float[] y = new float[100];
+        double[] expectedX = new double[100];
+        float[] expectedY = new float[100];
+        for (int i = 0; i < 20000; i++) {
+            values[0] = random.nextFloat();
+            buffer.addValues(i, values);
+            if (i % 997 == 0) {
+                double from = buffer.getX(0);
+                int count = incremental.downsample(from, i, 100, x, y);
+                int expected = new MinMaxDownsampler(buffer, 0)
+                        .downsample(from, i, 100, expectedX, expectedY);
+                assertEquals(expected, count);
+                assertArrayEquals(expectedX, x, 0.0);
+                assertArrayEquals(expectedY, y, 0f);
+            }
+        }
+    }
+
+    @Test
+    public void evictedPoints_areNotReported() throws Exception {
+        SampleSeriesBuffer buffer = new SampleSeriesBuffer(1, 1000);
+        MinMaxDownsampler lod = new MinMaxDownsampler(buffer, 0);
+        float[] values = new float[1];
+        for (int i = 0; i < 1005; i++) {
+            // A spike in the first few points, which will be evicted.
+            values[0] = i < 5 ? 100f : 1f;
+            buffer.addValues(i, values);
+            lod.update();
+        }
+        double[] x = new double[40];
+        float[] y = new float[40];
+        int count = lod.downsample(buffer.getX(0), 1004, 40, x, y);
+        for (int i = 0; i < count; i++) {
+            assertEquals(1f, y[i], 0f);
+            assertTrue(x[i] >= 5);
+        }
+    }
+
+    @Test
+    public void nanValues_areSkipped() throws Exception {
+        SampleSeriesBuffer buffer = new SampleSeriesBuffer(1, 100);
+        float[] values = new float[1];
+        for (int i = 0; i < 100; i++) {
+            values[0] = i % 2 == 0 ? Float.NaN : i;
+            buffer.addValues(i, values);
+        }
+        double[] x = new double[10];
+        float[] y = new float[10];
+        int count = new MinMaxDownsampler(buffer, 0).downsample(0, 99, 10, x, y);
+        assertTrue(count > 0);
+        for (int i = 0; i < count; i++) {
+            assertFalse(Float.isNaN(y[i]));
+        }
+    }
+
+    @Test
+    public void range_selectsByX() throws Exception {
+        SampleSeriesBuffer buffer = fill(10000, 10000, 4);
+        MinMaxDownsampler lod = new MinMaxDownsampler(buffer, 0);
+        double[] x = new double[100];
+        float[] y = new float[100];
+        int count = lod.downsample(2000, 3000, 100, x, y);
+        // One point of slack on either side.
+        assertTrue(x[0] >= 1999 - (1 << 5));
+        assertTrue(x[count - 1] <= 3001 + (1 << 5));
+    }
+}
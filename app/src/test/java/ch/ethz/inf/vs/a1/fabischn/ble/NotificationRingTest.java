@@ -0,0 +1,171 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link NotificationRing} and {@link NotificationProcessor}.
+ */
+public class NotificationRingTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    private static class Collector implements NotificationRing.Consumer<Integer> {
+        final List<Integer> sources = new ArrayList<Integer>();
+        final List<Long> timestamps = new ArrayList<Long>();
+        final List<byte[]> values = new ArrayList<byte[]>();
+
+        @Override
+        public void onNotification(String deviceAddress, Integer source, long timestampNanos,
+                                   byte[] data, int length) {
+            assertEquals(ADDRESS, deviceAddress);
+            sources.add(source);
+            timestamps.add(timestampNanos);
+            final byte[] value = new byte[length];
+            System.arraycopy(data, 0, value, 0, length);
+            values.add(value);
+        }
+    }
+
+    @Test
+    public void drain_deliversCopiesInOrder() {
+        final NotificationRing<Integer> ring = new NotificationRing<Integer>(4, 8);
+        final byte[] value = {1, 2, 3, 4};
+        assertTrue(ring.offer(ADDRESS, 7, 100, value));
+        // The stack reuses its buffer for the next value.
+        value[0] = 9;
+        assertTrue(ring.offer(ADDRESS, 8, 200, new byte[]{5}));
+        assertTrue(ring.offer(ADDRESS, 9, 300, null));
+
+        final Collector collector = new Collector();
+        assertEquals(3, ring.drain(collector));
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, collector.values.get(0));
+        assertArrayEquals(new byte[]{5}, collector.values.get(1));
+        assertEquals(0, collector.values.get(2).length);
+        assertEquals(Long.valueOf(300), collector.timestamps.get(2));
+        assertEquals(Integer.valueOf(8), collector.sources.get(1));
+        assertEquals(0, ring.drain(collector));
+        assertFalse(ring.isReadable());
+    }
+
+    @Test
+    public void fullRing_dropsAndRecovers() {
+        final NotificationRing<Integer> ring = new NotificationRing<Integer>(3, 4);
+        assertEquals(4, ring.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(ADDRESS, i, i, new byte[]{(byte) i}));
+        }
+        assertFalse(ring.offer(ADDRESS, 4, 4, new byte[]{4}));
+        assertEquals(1, ring.getDroppedCount());
+
+        final Collector collector = new Collector();
+        assertEquals(4, ring.drain(collector));
+        for (int i = 5; i < 9; i++) {
+            assertTrue(ring.offer(ADDRESS, i, i, new byte[]{(byte) i}));
+        }
+        assertEquals(4, ring.drain(collector));
+        assertEquals(Integer.valueOf(8), collector.sources.get(7));
+    }
+
+    @Test
+    public void oversizedValue_isRejected() {
+        final NotificationRing<Integer> ring = new NotificationRing<Integer>(4, 2);
+        assertFalse(ring.offer(ADDRESS, 0, 0, new byte[3]));
+        assertEquals(1, ring.getOversizedCount());
+        assertEquals(0, ring.getDroppedCount());
+        assertFalse(ring.isReadable());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroCapacity_isRejected() {
+        new NotificationRing<Integer>(0, 4);
+    }
+
+    @Test
+    public void processor_keepsOrderOfEveryProducer() throws Exception {
+        final int producers = 4;
+        final int perProducer = 200000;
+        final long[] next = new long[producers];
+        final CountDownLatch done = new CountDownLatch(1);
+        final int[] received = new int[1];
+        final boolean[] ordered = {true};
+        final NotificationRing.Consumer<Integer> consumer =
+                new NotificationRing.Consumer<Integer>() {
+                    @Override
+                    public void onNotification(String deviceAddress, Integer source,
+                                               long timestampNanos, byte[] data, int length) {
+                        final int producer = data[0];
+                        ordered[0] &= timestampNanos == next[producer];
+                        next[producer] = timestampNanos + 1;
+                        if (++received[0] == producers * perProducer) {
+                            done.countDown();
+                        }
+                    }
+                };
+        final NotificationProcessor<Integer> processor = new NotificationProcessor<Integer>(
+                new NotificationRing<Integer>(256, 20), consumer, "test");
+        processor.start();
+        final Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final byte[] value = {(byte) p};
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        // Retry instead of dropping, so every value must come through.
+                        while (!processor.offer(ADDRESS, null, i, value)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        processor.stop();
+        assertTrue(ordered[0]);
+        assertEquals(producers * perProducer, received[0]);
+    }
+
+    @Test
+    public void stop_deliversRemainingValues() {
+        final Collector collector = new Collector();
+        final NotificationProcessor<Integer> processor = new NotificationProcessor<Integer>(
+                new NotificationRing<Integer>(16, 4), collector, "test");
+        for (int i = 0; i < 10; i++) {
+            assertTrue(processor.offer(ADDRESS, i, i, new byte[]{(byte) i}));
+        }
+        processor.start();
+        processor.stop();
+        assertEquals(10, collector.sources.size());
+        assertEquals(Integer.valueOf(9), collector.sources.get(9));
+    }
+
+    @Test
+    public void onDrained_runsAfterTheBatch() {
+        final Collector collector = new Collector();
+        final int[] delivered = {-1};
+        final NotificationProcessor<Integer> processor = new NotificationProcessor<Integer>(
+                new NotificationRing<Integer>(16, 4), collector, new Runnable() {
+                    @Override
+                    public void run() {
+                        delivered[0] = collector.sources.size();
+                    }
+                }, "test");
+        for (int i = 0; i < 10; i++) {
+            assertTrue(processor.offer(ADDRESS, i, i, new byte[]{(byte) i}));
+        }
+        processor.start();
+        processor.stop();
+        assertEquals(10, delivered[0]);
+    }
+}
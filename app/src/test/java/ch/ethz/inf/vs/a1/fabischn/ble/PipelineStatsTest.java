@@ -0,0 +1,241 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link PipelineStats} and {@link LatencyHistogram}.
+ */
+public class PipelineStatsTest {
+
+    private static final String DEVICE = "C0:FF:EE:00:00:01";
+    private static final long MS = 1000000L;
+
+    // A clock that only moves when told to, and counts how often it is read.
+    private static class FakeClock implements GattOperationQueue.Scheduler {
+        long nowNanos = 1;
+        int reads;
+
+        @Override
+        public long nowNanos() {
+            reads++;
+            return nowNanos;
+        }
+
+        @Override
+        public void postDelayed(Runnable runnable, long delayMillis) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void cancel(Runnable runnable) {
+        }
+    }
+
+    private FakeClock mClock;
+    private PipelineStats mStats;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeClock();
+        mStats = new PipelineStats(mClock);
+    }
+
+    @Test
+    public void buckets_coverEveryDurationWithinOneSixteenth() {
+        int previous = -1;
+        for (long nanos = 0; nanos < (1L << 42); nanos = nanos < 100 ? nanos + 1 : nanos * 9 / 8) {
+            final int bucket = LatencyHistogram.bucketOf(nanos);
+            assertTrue(bucket >= previous);
+            assertTrue(bucket < LatencyHistogram.BUCKET_COUNT);
+            previous = bucket;
+            if (bucket == LatencyHistogram.BUCKET_COUNT - 1) {
+                continue;
+            }
+            assertTrue(LatencyHistogram.lowerBoundOf(bucket) <= nanos);
+            assertTrue(LatencyHistogram.upperBoundOf(bucket) >= nanos);
+            final long width = LatencyHistogram.upperBoundOf(bucket)
+                    - LatencyHistogram.lowerBoundOf(bucket) + 1;
+            assertTrue(width * 16 <= Math.max(16, LatencyHistogram.lowerBoundOf(bucket)));
+        }
+        for (int bucket = 0; bucket + 1 < LatencyHistogram.BUCKET_COUNT; bucket++) {
+            assertEquals(LatencyHistogram.upperBoundOf(bucket) + 1,
+                    LatencyHistogram.lowerBoundOf(bucket + 1));
+            assertEquals(bucket, LatencyHistogram.bucketOf(LatencyHistogram.lowerBoundOf(bucket)));
+        }
+    }
+
+    @Test
+    public void histogram_reportsPercentilesWithinTheirBucket() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileNanos(99));
+        // 1 ms to 100 ms in 1 ms steps.
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * MS);
+        }
+        histogram.record(-5);
+
+        assertEquals(101, histogram.getCount());
+        assertMean(5050 * MS / 101, histogram.getMeanNanos());
+        assertEquals(0, histogram.getPercentileNanos(0));
+        assertWithin(50 * MS, histogram.getPercentileNanos(50));
+        assertWithin(99 * MS, histogram.getPercentileNanos(99));
+        assertWithin(100 * MS, histogram.getMaxNanos());
+        assertTrue(histogram.toString().startsWith("n=101 mean="));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxNanos());
+    }
+
+    @Test
+    public void disabled_recordsNothingAndDoesNotReadTheClock() {
+        assertFalse(mStats.isEnabled());
+        assertEquals(0, mStats.startNanos());
+        mStats.begin(DEVICE, PipelineStats.STAGE_CONNECT);
+        mStats.end(DEVICE, PipelineStats.STAGE_CONNECT);
+        mStats.mark(DEVICE, PipelineStats.STAGE_INTER_ARRIVAL);
+        mStats.recordSince(DEVICE, PipelineStats.STAGE_DISPATCH, 1);
+        mStats.increment(DEVICE, PipelineStats.COUNTER_NOTIFICATIONS);
+
+        assertEquals(0, mClock.reads);
+        assertNull(mStats.getHistogram(DEVICE, PipelineStats.STAGE_CONNECT));
+        assertEquals(0, mStats.getCount(DEVICE, PipelineStats.COUNTER_NOTIFICATIONS));
+    }
+
+    @Test
+    public void stages_measureBetweenBeginAndEnd() {
+        mStats.setEnabled(true);
+        mStats.begin(DEVICE, PipelineStats.STAGE_CONNECT);
+        mClock.nowNanos += 800 * MS;
+        mStats.end(DEVICE, PipelineStats.STAGE_CONNECT);
+        // Without a begin there is nothing to measure.
+        mStats.end(DEVICE, PipelineStats.STAGE_CONNECT);
+        mStats.end(DEVICE, PipelineStats.STAGE_DISCOVERY);
+
+        final LatencyHistogram connect = mStats.getHistogram(DEVICE, PipelineStats.STAGE_CONNECT);
+        assertEquals(1, connect.getCount());
+        assertMean(800 * MS, connect.getMeanNanos());
+        assertEquals(0, mStats.getHistogram(DEVICE, PipelineStats.STAGE_DISCOVERY).getCount());
+    }
+
+    @Test
+    public void marks_measureTheGapsUntilCancelled() {
+        mStats.setEnabled(true);
+        for (int i = 0; i < 5; i++) {
+            mStats.mark(DEVICE, PipelineStats.STAGE_INTER_ARRIVAL);
+            mStats.increment(DEVICE, PipelineStats.COUNTER_NOTIFICATIONS);
+            mClock.nowNanos += 100 * MS;
+        }
+        // The link drops, the gap until the next notification is not a gap of the link.
+        mStats.cancel(DEVICE);
+        mClock.nowNanos += 5000 * MS;
+        mStats.mark(DEVICE, PipelineStats.STAGE_INTER_ARRIVAL);
+
+        final LatencyHistogram gaps =
+                mStats.getHistogram(DEVICE, PipelineStats.STAGE_INTER_ARRIVAL);
+        assertEquals(4, gaps.getCount());
+        assertMean(100 * MS, gaps.getMeanNanos());
+        assertEquals(5, mStats.getCount(DEVICE, PipelineStats.COUNTER_NOTIFICATIONS));
+    }
+
+    @Test
+    public void recordSince_skipsTimersStartedWhileDisabled() {
+        final long disabledStart = mStats.startNanos();
+        mStats.setEnabled(true);
+        mStats.recordSince(DEVICE, PipelineStats.STAGE_DISPATCH, disabledStart);
+        final long start = mStats.startNanos();
+        mClock.nowNanos += 2000;
+        mStats.recordSince(DEVICE, PipelineStats.STAGE_DISPATCH, start);
+        mStats.recordSince(DEVICE, PipelineStats.STAGE_UI_DELIVERY, start - 3 * MS);
+
+        assertEquals(1, mStats.getHistogram(DEVICE, PipelineStats.STAGE_DISPATCH).getCount());
+        assertMean(2000,
+                mStats.getHistogram(DEVICE, PipelineStats.STAGE_DISPATCH).getMeanNanos());
+        assertMean(3 * MS + 2000,
+                mStats.getHistogram(DEVICE, PipelineStats.STAGE_UI_DELIVERY).getMeanNanos());
+    }
+
+    @Test
+    public void histogram_singleWriterCountsLikeRecord() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 20; i++) {
+            histogram.recordSingleWriter(i);
+        }
+        histogram.record(-1);
+
+        assertEquals(21, histogram.getCount());
+        // Durations below 32 ns have a bucket each, their mean is exact.
+        assertEquals(190 / 21, histogram.getMeanNanos());
+        assertEquals(19, histogram.getMaxNanos());
+    }
+
+    @Test
+    public void device_recordsLikeTheAddressMethods() {
+        final PipelineStats.Device device = mStats.getDevice(DEVICE);
+        assertEquals(0, device.recordSince(PipelineStats.STAGE_DISPATCH, 1));
+        device.increment(PipelineStats.COUNTER_SAMPLES);
+        assertEquals(0, mClock.reads);
+
+        mStats.setEnabled(true);
+        final long start = mClock.nowNanos;
+        mClock.nowNanos += 5000;
+        final long now = device.recordSince(PipelineStats.STAGE_DISPATCH, start);
+        device.record(PipelineStats.STAGE_DECODE, 300);
+        device.increment(PipelineStats.COUNTER_SAMPLES);
+        device.increment(PipelineStats.COUNTER_SAMPLES);
+
+        assertEquals(mClock.nowNanos, now);
+        assertEquals(1, mClock.reads);
+        assertMean(5000,
+                mStats.getHistogram(DEVICE, PipelineStats.STAGE_DISPATCH).getMeanNanos());
+        assertMean(300, mStats.getHistogram(DEVICE, PipelineStats.STAGE_DECODE).getMeanNanos());
+        assertEquals(2, mStats.getCount(DEVICE, PipelineStats.COUNTER_SAMPLES));
+    }
+
+    @Test
+    public void reset_keepsTheDevicesRecording() {
+        mStats.setEnabled(true);
+        final PipelineStats.Device device = mStats.getDevice(DEVICE);
+        device.increment(PipelineStats.COUNTER_NOTIFICATIONS);
+        mStats.reset();
+        assertEquals(0, mStats.getCount(DEVICE, PipelineStats.COUNTER_NOTIFICATIONS));
+
+        device.increment(PipelineStats.COUNTER_NOTIFICATIONS);
+        assertEquals(1, mStats.getCount(DEVICE, PipelineStats.COUNTER_NOTIFICATIONS));
+        assertTrue(mStats.toString().contains("notifications=1"));
+    }
+
+    @Test
+    public void dump_listsTheStagesThatRecorded() {
+        mStats.setEnabled(true);
+        mStats.increment("B", PipelineStats.COUNTER_SAMPLES);
+        mStats.begin("A", PipelineStats.STAGE_DISCOVERY);
+        mClock.nowNanos += 1500 * MS;
+        mStats.end("A", PipelineStats.STAGE_DISCOVERY);
+
+        final String dump = mStats.toString();
+        assertTrue(dump, dump.startsWith("pipeline stats on\nA connects=0"));
+        assertTrue(dump, dump.contains("\n  discovery: n=1 mean=1.5"));
+        assertFalse(dump, dump.contains("dispatch"));
+        assertTrue(dump, dump.indexOf("\nB ") > dump.indexOf("discovery"));
+        assertTrue(dump, dump.contains("samples=1"));
+
+        mStats.reset();
+        assertEquals("pipeline stats on\n", mStats.toString());
+    }
+
+    // Means are taken from the middle of the buckets, at most 1/32 off.
+    private static void assertMean(long expected, long actual) {
+        assertTrue(actual + " for " + expected,
+                Math.abs(actual - expected) <= expected / 32);
+    }
+
+    // Percentiles are rounded up to the end of their bucket, at most 1/16 above the value.
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " for " + expected,
+                actual >= expected && actual <= expected + expected / 16);
+    }
+}
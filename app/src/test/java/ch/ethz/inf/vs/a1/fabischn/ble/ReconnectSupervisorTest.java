@@ -0,0 +1,184 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ReconnectSupervisor} and {@link GattHandleTable}.
+ */
+public class ReconnectSupervisorTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final String OTHER = "AA:BB:CC:DD:EE:FF";
+
+    private static class FakeConnector implements ReconnectSupervisor.Connector {
+        final List<String> attempts = new ArrayList<String>();
+        final List<Long> attemptMillis = new ArrayList<Long>();
+        FakeScheduler scheduler;
+        boolean accept = true;
+
+        @Override
+        public boolean reconnect(String address) {
+            attempts.add(address);
+            attemptMillis.add(scheduler.nowMillis);
+            return accept;
+        }
+    }
+
+    private FakeScheduler mScheduler;
+    private FakeConnector mConnector;
+    private ReconnectSupervisor mSupervisor;
+
+    @Before
+    public void setUp() {
+        mScheduler = new FakeScheduler();
+        mConnector = new FakeConnector();
+        mConnector.scheduler = mScheduler;
+        mSupervisor = new ReconnectSupervisor(mScheduler, mConnector, new Random(3));
+    }
+
+    @Test
+    public void dropout_isRetriedWithGrowingJitteredDelays() {
+        mSupervisor.watch(ADDRESS);
+        mSupervisor.onConnected(ADDRESS);
+        mSupervisor.onDisconnected(ADDRESS);
+        for (int attempt = 0; attempt < 12; attempt++) {
+            final long failedAt = mScheduler.nowMillis;
+            mScheduler.advance(ReconnectSupervisor.MAX_DELAY_MILLIS);
+            assertEquals(attempt + 1, mConnector.attempts.size());
+            final long delay = mConnector.attemptMillis.get(attempt) - failedAt;
+            final long ceiling = Math.min(ReconnectSupervisor.MIN_DELAY_MILLIS << attempt,
+                    ReconnectSupervisor.MAX_DELAY_MILLIS);
+            assertTrue("attempt " + attempt + ": " + delay,
+                    delay >= ceiling / 2 && delay <= ceiling);
+            // The attempt failed.
+            mSupervisor.onDisconnected(ADDRESS);
+        }
+        assertEquals(12, mSupervisor.getAttempts(ADDRESS));
+        assertEquals(1, mSupervisor.getDropoutCount());
+    }
+
+    @Test
+    public void delays_differBetweenDevices() {
+        boolean differ = false;
+        for (int attempt = 0; attempt < 8; attempt++) {
+            differ |= mSupervisor.getDelayMillis(attempt) != mSupervisor.getDelayMillis(attempt);
+        }
+        assertTrue(differ);
+    }
+
+    @Test
+    public void refusedAttempt_isRescheduled() {
+        mSupervisor.watch(ADDRESS);
+        mSupervisor.onDisconnected(ADDRESS);
+        mConnector.accept = false;
+        mScheduler.advance(ReconnectSupervisor.MIN_DELAY_MILLIS);
+        mScheduler.advance(ReconnectSupervisor.MIN_DELAY_MILLIS * 2);
+        assertEquals(2, mConnector.attempts.size());
+    }
+
+    @Test
+    public void connect_resetsBackoff() {
+        mSupervisor.watch(ADDRESS);
+        mSupervisor.onDisconnected(ADDRESS);
+        mScheduler.advance(ReconnectSupervisor.MIN_DELAY_MILLIS);
+        mSupervisor.onDisconnected(ADDRESS);
+        mScheduler.advance(ReconnectSupervisor.MIN_DELAY_MILLIS * 2);
+        assertEquals(2, mSupervisor.getAttempts(ADDRESS));
+        mSupervisor.onConnected(ADDRESS);
+        assertEquals(0, mSupervisor.getAttempts(ADDRESS));
+        mSupervisor.onDisconnected(ADDRESS);
+        mScheduler.advance(ReconnectSupervisor.MIN_DELAY_MILLIS);
+        assertEquals(3, mConnector.attempts.size());
+    }
+
+    @Test
+    public void userDisconnect_cancelsPendingAttempt() {
+        mSupervisor.watch(ADDRESS);
+        mSupervisor.watch(OTHER);
+        mSupervisor.onDisconnected(ADDRESS);
+        mSupervisor.onDisconnected(OTHER);
+        mSupervisor.unwatch(ADDRESS);
+        mScheduler.advance(ReconnectSupervisor.MAX_DELAY_MILLIS);
+        assertEquals(1, mConnector.attempts.size());
+        assertEquals(OTHER, mConnector.attempts.get(0));
+
+        // The disconnect the user asked for is not retried.
+        mSupervisor.onDisconnected(ADDRESS);
+        mScheduler.advance(ReconnectSupervisor.MAX_DELAY_MILLIS);
+        assertEquals(1, mConnector.attempts.size());
+        assertFalse(mSupervisor.isWatched(ADDRESS));
+    }
+
+    @Test
+    public void timeToFirstSample_spansFailedAttempts() {
+        mSupervisor.watch(ADDRESS);
+        mSupervisor.onConnected(ADDRESS);
+        assertEquals(0, mSupervisor.onSample(ADDRESS, mScheduler.nowNanos()));
+
+        mScheduler.advance(1000);
+        final long droppedAt = mScheduler.nowNanos();
+        mSupervisor.onDisconnected(ADDRESS);
+        mScheduler.advance(ReconnectSupervisor.MIN_DELAY_MILLIS);
+        mSupervisor.onDisconnected(ADDRESS);
+        mScheduler.advance(ReconnectSupervisor.MIN_DELAY_MILLIS * 2);
+        mSupervisor.onConnected(ADDRESS);
+        // Dropped again before a sample arrived.
+        mSupervisor.onDisconnected(ADDRESS);
+        mScheduler.advance(ReconnectSupervisor.MIN_DELAY_MILLIS);
+        mSupervisor.onConnected(ADDRESS);
+        mScheduler.advance(250);
+
+        final long expected = mScheduler.nowNanos() - droppedAt;
+        assertEquals(expected, mSupervisor.onSample(ADDRESS, mScheduler.nowNanos()));
+        assertEquals(0, mSupervisor.onSample(ADDRESS, mScheduler.nowNanos()));
+        assertEquals(1, mSupervisor.getDropoutCount());
+        assertEquals(1, mSupervisor.getRecoveredCount());
+        assertEquals(expected, mSupervisor.getLastTimeToFirstSampleNanos());
+        assertEquals(expected, mSupervisor.getMaxTimeToFirstSampleNanos());
+        assertEquals(3, mSupervisor.getAttemptCount());
+    }
+
+    @Test
+    public void unwatchedDevice_isNotMeasured() {
+        mSupervisor.onConnected(ADDRESS);
+        mSupervisor.onDisconnected(ADDRESS);
+        mSupervisor.onConnected(ADDRESS);
+        assertEquals(0, mSupervisor.onSample(ADDRESS, 1000));
+        assertEquals(0, mSupervisor.getDropoutCount());
+        assertEquals(0, mScheduler.pending());
+    }
+
+    @Test
+    public void handleTable_comparesLayout() {
+        final UUID service = SensirionSHT31UUIDS.UUID_HUMIDITY_SERVICE;
+        final UUID characteristic = SensirionSHT31UUIDS.UUID_HUMIDITY_CHARACTERISTIC;
+        final GattHandleTable.Builder builder = new GattHandleTable.Builder();
+        for (int i = 0; i < 40; i++) {
+            builder.add(service, 1, new UUID(i, i), i + 2);
+        }
+        final GattHandleTable table = builder.add(service, 1, characteristic, 50).build();
+        final GattHandleTable.Builder same = new GattHandleTable.Builder();
+        final GattHandleTable.Builder moved = new GattHandleTable.Builder();
+        for (int i = 0; i < 40; i++) {
+            same.add(service, 1, new UUID(i, i), i + 2);
+            moved.add(service, 1, new UUID(i, i), i + 2);
+        }
+        assertEquals(table, same.add(service, 1, characteristic, 50).build());
+        assertEquals(table.hashCode(), same.build().hashCode());
+        assertNotEquals(table, moved.add(service, 1, characteristic, 51).build());
+        assertNotEquals(table, new GattHandleTable.Builder().build());
+        assertEquals(41, table.size());
+        assertEquals(40, table.indexOf(characteristic));
+        assertEquals(characteristic, table.getCharacteristicUuid(40));
+        assertEquals(service, table.getServiceUuid(40));
+        assertEquals(-1, table.indexOf(SensirionSHT31UUIDS.UUID_LOGGER_START));
+    }
+}
@@ -0,0 +1,139 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link RollingWindow}, against statistics recomputed from all samples.
+ */
+public class RollingWindowTest {
+
+    private static final long T0 = 1476700000000L;
+
+    @Test
+    public void statistics_matchRecomputation() {
+        final long windowMillis = 60000;
+        final int buckets = 60;
+        final long bucketMillis = windowMillis / buckets;
+        final RollingWindow window = new RollingWindow(windowMillis, buckets);
+        final Random random = new Random(5);
+        final List<Long> bucketNumbers = new ArrayList<Long>();
+        final List<Float> values = new ArrayList<Float>();
+        long now = T0;
+        float value = 21f;
+        for (int i = 0; i < 20000; i++) {
+            // Mostly regular, with the odd pause longer than the window.
+            now += random.nextInt(100) == 0 ? random.nextInt(90000) : random.nextInt(400);
+            value += (float) random.nextGaussian() * 0.1f;
+            window.add(now, value);
+            bucketNumbers.add(now / bucketMillis);
+            values.add(value);
+
+            final long oldest = now / bucketMillis - buckets + 1;
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            double sum = 0;
+            int count = 0;
+            for (int j = values.size() - 1; j >= 0 && bucketNumbers.get(j) >= oldest; j--) {
+                min = Math.min(min, values.get(j));
+                max = Math.max(max, values.get(j));
+                sum += values.get(j);
+                count++;
+            }
+            final double mean = sum / count;
+            double squares = 0;
+            for (int j = values.size() - count; j < values.size(); j++) {
+                squares += (values.get(j) - mean) * (values.get(j) - mean);
+            }
+            assertEquals(count, window.getCount());
+            assertEquals(min, window.getMin(), 0f);
+            assertEquals(max, window.getMax(), 0f);
+            assertEquals(mean, window.getMean(), 1e-4);
+            assertEquals(Math.sqrt(squares / count), window.getStandardDeviation(), 1e-3);
+        }
+    }
+
+    @Test
+    public void samples_expireAfterWindow() {
+        final RollingWindow window = new RollingWindow(60000, 60);
+        window.add(T0, 10f);
+        window.add(T0 + 30000, 20f);
+        assertEquals(10f, window.getMin(), 0f);
+        assertEquals(15f, window.getMean(), 0f);
+        assertEquals(5f, window.getStandardDeviation(), 1e-6f);
+
+        window.advanceTo(T0 + 61000);
+        assertEquals(1, window.getCount());
+        assertEquals(20f, window.getMin(), 0f);
+        assertEquals(20f, window.getMax(), 0f);
+        assertEquals(0f, window.getStandardDeviation(), 0f);
+
+        window.advanceTo(T0 + 200000);
+        assertEquals(0, window.getCount());
+        assertTrue(Float.isNaN(window.getMin()));
+        assertTrue(Float.isNaN(window.getMean()));
+    }
+
+    @Test
+    public void lateAndNaNSamples_areHandled() {
+        final RollingWindow window = new RollingWindow(60000, 60);
+        window.add(T0 + 5000, 1f);
+        window.add(T0 + 10000, 2f);
+        window.add(T0, 3f);
+        window.add(T0 + 11000, Float.NaN);
+        assertEquals(3, window.getCount());
+        assertEquals(3f, window.getMax(), 0f);
+        // The late sample counts as the newest one, so it outlives the first.
+        window.advanceTo(T0 + 65500);
+        assertEquals(2, window.getCount());
+        assertEquals(2f, window.getMin(), 0f);
+        assertEquals(3f, window.getMax(), 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooManyBuckets_areRejected() {
+        new RollingWindow(10, 60);
+    }
+
+    @Test
+    public void dewPoint_followsMagnusFormula() {
+        assertEquals(16.69f, SensorAggregator.dewPoint(25f, 60f), 0.02f);
+        assertEquals(0f, SensorAggregator.dewPoint(0f, 100f), 1e-4f);
+        assertEquals(-9.2f, SensorAggregator.dewPoint(10f, 25f), 0.1f);
+        assertTrue(Float.isNaN(SensorAggregator.dewPoint(20f, 0f)));
+        assertTrue(Float.isNaN(SensorAggregator.dewPoint(Float.NaN, 50f)));
+    }
+
+    @Test
+    public void aggregator_combinesHumidityAndTemperature() {
+        final SensorAggregator aggregator = new SensorAggregator();
+        assertEquals(3, aggregator.getWindowCount());
+        assertEquals(24 * 60 * 60 * 1000L, aggregator.getWindowMillis(2));
+        aggregator.onSample(SensirionSHT31UUIDS.CHARACTERISTIC_HUMIDITY, T0, 60f);
+        // No temperature yet, so no dew point.
+        assertEquals(0f, aggregator.getAggregate(SensorAggregator.SERIES_DEW_POINT, 0,
+                AggregateContainer.STAT_COUNT), 0f);
+        aggregator.onSample(SensirionSHT31UUIDS.CHARACTERISTIC_TEMPERATURE, T0 + 1000, 25f);
+        aggregator.onSample(SensirionSHT31UUIDS.CHARACTERISTIC_TEMPERATURE, T0 + 2000, 27f);
+        aggregator.onSample(SensirionSHT31UUIDS.CHARACTERISTIC_UNKNOWN, T0 + 2000, 99f);
+        assertEquals(26f, aggregator.getAggregate(SensorAggregator.SERIES_TEMPERATURE, 1,
+                AggregateContainer.STAT_MEAN), 0f);
+        assertEquals(16.69f, aggregator.getAggregate(SensorAggregator.SERIES_DEW_POINT, 2,
+                AggregateContainer.STAT_MIN), 0.02f);
+        assertEquals(2f, aggregator.getAggregate(SensorAggregator.SERIES_DEW_POINT, 0,
+                AggregateContainer.STAT_COUNT), 0f);
+        assertEquals(aggregator.getDewPoint(), aggregator.getAggregate(
+                SensorAggregator.SERIES_DEW_POINT, 0, AggregateContainer.STAT_MAX), 0f);
+
+        aggregator.advanceTo(T0 + 2 * 60 * 60 * 1000L);
+        assertTrue(Float.isNaN(aggregator.getAggregate(SensorAggregator.SERIES_HUMIDITY, 1,
+                AggregateContainer.STAT_MEAN)));
+        assertEquals(60f, aggregator.getAggregate(SensorAggregator.SERIES_HUMIDITY, 2,
+                AggregateContainer.STAT_MEAN), 0f);
+    }
+}
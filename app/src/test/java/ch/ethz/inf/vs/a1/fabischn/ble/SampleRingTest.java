@@ -0,0 +1,146 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link SampleRing}.
+ */
+public class SampleRingTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    private static class RecordingListener implements SampleListener {
+        int count;
+        String lastAddress;
+        int lastCharacteristicId;
+        long lastTimestamp;
+        float lastValue;
+
+        @Override
+        public void onSample(String deviceAddress, int characteristicId, long timestampNanos,
+                             float value) {
+            count++;
+            lastAddress = deviceAddress;
+            lastCharacteristicId = characteristicId;
+            lastTimestamp = timestampNanos;
+            lastValue = value;
+        }
+    }
+
+    @Test
+    public void capacity_isRoundedUpToPowerOfTwo() throws Exception {
+        assertEquals(8, new SampleRing(5).capacity());
+        assertEquals(8, new SampleRing(8).capacity());
+    }
+
+    @Test
+    public void drain_deliversInOrder() throws Exception {
+        SampleRing ring = new SampleRing(4);
+        final long[] timestamps = new long[3];
+        for (int i = 0; i < 3; i++) {
+            assertTrue(ring.offer(ADDRESS, SensirionSHT31UUIDS.CHARACTERISTIC_HUMIDITY, i, i * 1.5f));
+        }
+        int drained = ring.drain(new SampleListener() {
+            int i;
+
+            @Override
+            public void onSample(String deviceAddress, int characteristicId, long timestampNanos,
+                                 float value) {
+                assertEquals(ADDRESS, deviceAddress);
+                assertEquals(SensirionSHT31UUIDS.CHARACTERISTIC_HUMIDITY, characteristicId);
+                assertEquals(i * 1.5f, value, 0f);
+                timestamps[i++] = timestampNanos;
+            }
+        });
+        assertEquals(3, drained);
+        assertArrayEquals(new long[]{0, 1, 2}, timestamps);
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void offer_dropsWhenFull() throws Exception {
+        SampleRing ring = new SampleRing(2);
+        assertTrue(ring.offer(ADDRESS, 0, 1, 1f));
+        assertTrue(ring.offer(ADDRESS, 0, 2, 2f));
+        assertFalse(ring.offer(ADDRESS, 0, 3, 3f));
+        assertEquals(1, ring.getDroppedCount());
+
+        RecordingListener listener = new RecordingListener();
+        ring.drain(listener);
+        assertEquals(2, listener.count);
+        assertEquals(2, listener.lastTimestamp);
+        assertTrue(ring.offer(ADDRESS, 0, 4, 4f));
+    }
+
+    @Test
+    public void offerAndDrain_wrapAround() throws Exception {
+        SampleRing ring = new SampleRing(4);
+        RecordingListener listener = new RecordingListener();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(ring.offer(ADDRESS, SensirionSHT31UUIDS.CHARACTERISTIC_TEMPERATURE, i, i));
+            if (i % 3 == 2) {
+                ring.drain(listener);
+            }
+        }
+        ring.drain(listener);
+        assertEquals(100, listener.count);
+        assertEquals(99f, listener.lastValue, 0f);
+        assertEquals(SensirionSHT31UUIDS.CHARACTERISTIC_TEMPERATURE, listener.lastCharacteristicId);
+    }
+
+    @Test
+    public void convertRawValue_isLittleEndianFloat() throws Exception {
+        int bits = Float.floatToIntBits(23.5f);
+        byte[] raw = {(byte) bits, (byte) (bits >> 8), (byte) (bits >> 16), (byte) (bits >> 24)};
+        assertEquals(23.5f, BluetoothLeService.convertRawValue(raw), 0f);
+    }
+
+    @Test
+    public void offerAndDrain_doNotAllocate() throws Exception {
+        // The host JVM exposes per-thread allocation counters through com.sun.management. Looked
+        // up reflectively, since java.lang.management is not part of the Android API.
+        Object threadBean;
+        Method allocatedBytes;
+        try {
+            threadBean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            allocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+        } catch (ClassNotFoundException e) {
+            threadBean = null;
+            allocatedBytes = null;
+        }
+        Assume.assumeTrue(threadBean != null);
+
+        final int samples = 100000;
+        SampleRing ring = new SampleRing(1024);
+        RecordingListener listener = new RecordingListener();
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up so that class loading and JIT compilation are not counted.
+        runSamples(ring, listener, samples);
+
+        long before = (Long) allocatedBytes.invoke(threadBean, threadId);
+        runSamples(ring, listener, samples);
+        long after = (Long) allocatedBytes.invoke(threadBean, threadId);
+
+        // Allow for the boxed Long returned by the first reflective call.
+        double bytesPerSample = (after - before - 64) / (double) samples;
+        assertTrue("allocated " + bytesPerSample + " bytes per sample", bytesPerSample < 0.01);
+    }
+
+    private static void runSamples(SampleRing ring, SampleListener listener, int samples) {
+        for (int i = 0; i < samples; i++) {
+            ring.offer(ADDRESS, SensirionSHT31UUIDS.CHARACTERISTIC_HUMIDITY, i, 42.0f);
+            if ((i & 63) == 63) {
+                ring.drain(listener);
+            }
+        }
+        ring.drain(listener);
+    }
+}
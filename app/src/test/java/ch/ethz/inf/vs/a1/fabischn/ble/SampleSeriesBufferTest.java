@@ -0,0 +1,101 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link SampleSeriesBuffer}.
+ */
+public class SampleSeriesBufferTest {
+
+    @Test
+    public void getValues_returnsOldestFirst() throws Exception {
+        SampleSeriesBuffer buffer = new SampleSeriesBuffer(2, 4);
+        for (int i = 0; i < 3; i++) {
+            buffer.addValues(i, new float[]{i, 10 * i});
+        }
+        float[][] values = buffer.getValues();
+        assertEquals(2, values.length);
+        assertArrayEquals(new float[]{0, 1, 2}, values[0], 0f);
+        assertArrayEquals(new float[]{0, 10, 20}, values[1], 0f);
+    }
+
+    @Test
+    public void addValues_overwritesOldestWhenFull() throws Exception {
+        SampleSeriesBuffer buffer = new SampleSeriesBuffer(1, 3);
+        for (int i = 0; i < 7; i++) {
+            buffer.addValues(i, new float[]{i});
+        }
+        assertEquals(3, buffer.size());
+        assertArrayEquals(new float[]{4, 5, 6}, buffer.getValues()[0], 0f);
+        assertEquals(4.0, buffer.getX(0), 0.0);
+        assertEquals(6.0, buffer.getX(2), 0.0);
+    }
+
+    @Test
+    public void getValues_isCachedUntilNextAppend() throws Exception {
+        SampleSeriesBuffer buffer = new SampleSeriesBuffer(1, 2);
+        buffer.addValues(0, new float[]{0});
+        buffer.addValues(1, new float[]{1});
+        float[][] first = buffer.getValues();
+        assertSame(first, buffer.getValues());
+
+        // Once full, the cached rows are reused rather than reallocated.
+        buffer.addValues(2, new float[]{2});
+        float[][] second = buffer.getValues();
+        assertSame(first, second);
+        assertArrayEquals(new float[]{1, 2}, second[0], 0f);
+    }
+
+    @Test
+    public void window_readsWithoutCopying() throws Exception {
+        SampleSeriesBuffer buffer = new SampleSeriesBuffer(2, 5);
+        for (int i = 0; i < 8; i++) {
+            buffer.addValues(i, new float[]{i, -i});
+        }
+        SampleSeriesBuffer.Window window = buffer.latest(2, null);
+        assertEquals(2, window.size());
+        assertEquals(6.0, window.getX(0), 0.0);
+        assertEquals(-7f, window.getY(1, 1), 0f);
+
+        assertSame(window, buffer.window(1, 3, window));
+        assertEquals(4.0, window.getX(0), 0.0);
+        assertEquals(1, window.getOffset());
+        assertEquals(5, buffer.latest(10, window).size());
+    }
+
+    @Test
+    public void indexOfX_findsFirstPointAtOrAfter() throws Exception {
+        SampleSeriesBuffer buffer = new SampleSeriesBuffer(1, 4);
+        for (int i = 0; i < 6; i++) {
+            buffer.addValues(i * 10, new float[]{i});
+        }
+        // Holds x = 20, 30, 40, 50.
+        assertEquals(0, buffer.indexOfX(0));
+        assertEquals(1, buffer.indexOfX(25));
+        assertEquals(1, buffer.indexOfX(30));
+        assertEquals(4, buffer.indexOfX(51));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addValues_rejectsWrongSeriesCount() throws Exception {
+        new SampleSeriesBuffer(2, 4).addValues(0, new float[]{1});
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void window_rejectsRangeBeyondSize() throws Exception {
+        SampleSeriesBuffer buffer = new SampleSeriesBuffer(1, 4);
+        buffer.addValues(0, new float[]{0});
+        buffer.window(0, 2, null);
+    }
+
+    @Test
+    public void clear_emptiesBuffer() throws Exception {
+        SampleSeriesBuffer buffer = new SampleSeriesBuffer(1, 4);
+        buffer.addValues(0, new float[]{0});
+        buffer.clear();
+        assertEquals(0, buffer.size());
+        assertEquals(0, buffer.getValues()[0].length);
+    }
+}
@@ -0,0 +1,234 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link SampleStore}.
+ */
+public class SampleStoreTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID HUMIDITY = SensirionSHT31UUIDS.UUID_HUMIDITY_CHARACTERISTIC;
+    private static final UUID TEMPERATURE = SensirionSHT31UUIDS.UUID_TEMPERATURE_CHARACTERISTIC;
+    private static final long T0 = 1476700000000L;
+
+    private File mRoot;
+    private SampleStore mStore;
+
+    private static class Collector implements SampleStore.Visitor {
+        final List<Long> timestamps = new ArrayList<Long>();
+        final List<Float> values = new ArrayList<Float>();
+
+        @Override
+        public void onSample(long timestampMillis, float value) {
+            timestamps.add(timestampMillis);
+            values.add(value);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = File.createTempFile("samples", "");
+        assertTrue(mRoot.delete());
+        assertTrue(mRoot.mkdirs());
+        mStore = new SampleStore(mRoot);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mStore.close();
+        delete(mRoot);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void read_returnsRangeInOrder() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            mStore.append(ADDRESS, HUMIDITY, T0 + i * 1000, i);
+        }
+        Collector collector = new Collector();
+        assertEquals(11, mStore.read(ADDRESS, HUMIDITY, T0 + 10000, T0 + 20000, collector));
+        assertEquals(Long.valueOf(T0 + 10000), collector.timestamps.get(0));
+        assertEquals(Float.valueOf(20f), collector.values.get(10));
+    }
+
+    @Test
+    public void streams_areSeparatedByCharacteristic() throws Exception {
+        mStore.append(ADDRESS, HUMIDITY, T0, 45f);
+        mStore.append(ADDRESS, TEMPERATURE, T0, 21f);
+        Collector collector = new Collector();
+        mStore.read(ADDRESS, TEMPERATURE, T0, T0, collector);
+        assertEquals(1, collector.values.size());
+        assertEquals(Float.valueOf(21f), collector.values.get(0));
+        assertEquals(T0, mStore.getLastTimestamp(ADDRESS, HUMIDITY));
+        assertEquals(-1, mStore.getLastTimestamp("AA:BB:CC:DD:EE:FF", HUMIDITY));
+    }
+
+    @Test
+    public void read_spansSegments() throws Exception {
+        final int count = SampleStore.SEGMENT_RECORDS * 2 + 100;
+        for (int i = 0; i < count; i++) {
+            mStore.append(ADDRESS, HUMIDITY, T0 + i * 100L, i);
+        }
+        Collector collector = new Collector();
+        long from = T0 + (SampleStore.SEGMENT_RECORDS - 10) * 100L;
+        long to = T0 + (SampleStore.SEGMENT_RECORDS * 2 + 10) * 100L;
+        assertEquals(SampleStore.SEGMENT_RECORDS + 21, mStore.read(ADDRESS, HUMIDITY, from, to,
+                collector));
+        for (int i = 1; i < collector.timestamps.size(); i++) {
+            assertEquals(collector.timestamps.get(i - 1) + 100, (long) collector.timestamps.get(i));
+        }
+    }
+
+    @Test
+    public void completeSegments_areCompacted() throws Exception {
+        final int count = SampleStore.SEGMENT_RECORDS + 10;
+        for (int i = 0; i < count; i++) {
+            mStore.append(ADDRESS, HUMIDITY, T0 + i * 1000L, 40f + (i % 100) * 0.01f);
+        }
+        mStore.flush();
+        mStore.awaitCompactions();
+        File directory = new File(new File(mRoot, "001122334455"), HUMIDITY.toString());
+        assertFalse(new File(directory, T0 + ".seg").exists());
+        File compressed = new File(directory, T0 + ".gor");
+        assertTrue(compressed.exists());
+        assertTrue(compressed.length() < SampleStore.SEGMENT_RECORDS * SampleStore.RECORD_SIZE / 2);
+
+        mStore.close();
+        mStore = new SampleStore(mRoot);
+        Collector collector = new Collector();
+        assertEquals(count, mStore.read(ADDRESS, HUMIDITY, T0, Long.MAX_VALUE, collector));
+        for (int i = 0; i < count; i++) {
+            assertEquals(T0 + i * 1000L, (long) collector.timestamps.get(i));
+            assertEquals(40f + (i % 100) * 0.01f, collector.values.get(i), 0f);
+        }
+        assertEquals(T0 + (count - 1) * 1000L, mStore.getLastTimestamp(ADDRESS, HUMIDITY));
+    }
+
+    @Test
+    public void rawSegment_isReadUntilCompacted() throws Exception {
+        mStore.close();
+        final List<Runnable> compactions = new ArrayList<Runnable>();
+        mStore = new SampleStore(mRoot, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                compactions.add(command);
+            }
+        });
+        final int count = SampleStore.SEGMENT_RECORDS + 10;
+        for (int i = 0; i < count; i++) {
+            mStore.append(ADDRESS, HUMIDITY, T0 + i * 1000L, i);
+        }
+        // The append that started the next segment only handed the full one over.
+        assertEquals(1, compactions.size());
+        File directory = new File(new File(mRoot, "001122334455"), HUMIDITY.toString());
+        assertTrue(new File(directory, T0 + ".seg").exists());
+        assertEquals(count, mStore.read(ADDRESS, HUMIDITY, T0, Long.MAX_VALUE, new Collector()));
+
+        compactions.remove(0).run();
+        assertFalse(new File(directory, T0 + ".seg").exists());
+        assertTrue(new File(directory, T0 + ".gor").exists());
+        Collector collector = new Collector();
+        assertEquals(count, mStore.read(ADDRESS, HUMIDITY, T0, Long.MAX_VALUE, collector));
+        assertEquals(Float.valueOf(count - 1), collector.values.get(count - 1));
+    }
+
+    @Test
+    public void segmentLeftRaw_isCompactedOnReopen() throws Exception {
+        mStore.close();
+        final List<Runnable> compactions = new ArrayList<Runnable>();
+        mStore = new SampleStore(mRoot, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                compactions.add(command);
+            }
+        });
+        final int count = SampleStore.SEGMENT_RECORDS + 10;
+        for (int i = 0; i < count; i++) {
+            mStore.append(ADDRESS, HUMIDITY, T0 + i * 1000L, i);
+        }
+        // The process dies before the compaction runs.
+        assertEquals(1, compactions.size());
+        mStore.flush();
+
+        mStore = new SampleStore(mRoot);
+        assertEquals(T0 + (count - 1) * 1000L, mStore.getLastTimestamp(ADDRESS, HUMIDITY));
+        mStore.awaitCompactions();
+        File directory = new File(new File(mRoot, "001122334455"), HUMIDITY.toString());
+        assertFalse(new File(directory, T0 + ".seg").exists());
+        assertEquals(count, mStore.read(ADDRESS, HUMIDITY, T0, Long.MAX_VALUE, new Collector()));
+    }
+
+    @Test
+    public void samples_surviveReopen() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            mStore.append(ADDRESS, HUMIDITY, T0 + i, i);
+        }
+        mStore.close();
+
+        mStore = new SampleStore(mRoot);
+        assertEquals(T0 + 999, mStore.getLastTimestamp(ADDRESS, HUMIDITY));
+        mStore.append(ADDRESS, HUMIDITY, T0 + 1000, 1000f);
+        Collector collector = new Collector();
+        assertEquals(1001, mStore.read(ADDRESS, HUMIDITY, T0, T0 + 1000, collector));
+        assertEquals(Float.valueOf(1000f), collector.values.get(1000));
+    }
+
+    @Test
+    public void truncatedRecord_isDroppedOnReopen() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            mStore.append(ADDRESS, HUMIDITY, T0 + i, i);
+        }
+        mStore.close();
+        File segment = new File(new File(new File(mRoot, "001122334455"), HUMIDITY.toString()),
+                T0 + ".seg");
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        mStore = new SampleStore(mRoot);
+        Collector collector = new Collector();
+        assertEquals(9, mStore.read(ADDRESS, HUMIDITY, T0, T0 + 100, collector));
+        assertEquals(T0 + 8, mStore.getLastTimestamp(ADDRESS, HUMIDITY));
+    }
+
+    @Test
+    public void olderTimestamp_isClampedToPrevious() throws Exception {
+        mStore.append(ADDRESS, HUMIDITY, T0 + 5000, 1f);
+        mStore.append(ADDRESS, HUMIDITY, T0, 2f);
+        Collector collector = new Collector();
+        mStore.read(ADDRESS, HUMIDITY, T0, T0 + 10000, collector);
+        assertEquals(Long.valueOf(T0 + 5000), collector.timestamps.get(1));
+    }
+
+    @Test
+    public void records_areEightBytes() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            mStore.append(ADDRESS, HUMIDITY, T0 + i * 1000, i);
+        }
+        mStore.flush();
+        File segment = new File(new File(new File(mRoot, "001122334455"), HUMIDITY.toString()),
+                T0 + ".seg");
+        assertEquals(SampleStore.HEADER_SIZE + 1000 * SampleStore.RECORD_SIZE, segment.length());
+    }
+}
@@ -0,0 +1,39 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ScanMetrics}.
+ */
+public class ScanMetricsTest {
+
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void batchedCallbacks_countAsOneWakeupEach() {
+        ScanMetrics metrics = new ScanMetrics(0);
+        // Two minutes of batches every 5 s with 40 results each.
+        for (int i = 0; i < 24; i++) {
+            metrics.onCallback(40);
+        }
+        assertEquals(24, metrics.getCallbackCount());
+        assertEquals(960, metrics.getResultCount());
+        assertEquals(12.0, metrics.getCallbacksPerMinute(120 * SECOND), 1e-9);
+        assertEquals(40.0, metrics.getResultsPerCallback(), 1e-9);
+        assertEquals(40, metrics.getMaxBatchSize());
+    }
+
+    @Test
+    public void reset_startsAFreshWindow() {
+        ScanMetrics metrics = new ScanMetrics(0);
+        metrics.onCallback(1);
+        metrics.reset(60 * SECOND);
+        assertEquals(0, metrics.getCallbackCount());
+        assertEquals(0.0, metrics.getCallbacksPerMinute(60 * SECOND), 0);
+        metrics.onCallback(1);
+        metrics.onCallback(1);
+        assertEquals(4.0, metrics.getCallbacksPerMinute(90 * SECOND), 1e-9);
+    }
+}
@@ -0,0 +1,184 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ScanScheduler}, on a simulated clock.
+ */
+public class ScanSchedulerTest {
+
+    // Records start times and can report a device during each window.
+    private class FakeScanner implements ScanScheduler.Scanner {
+        final List<Long> starts = new ArrayList<Long>();
+        final List<Long> stops = new ArrayList<Long>();
+        boolean scanning;
+        boolean accept = true;
+
+        @Override
+        public boolean startScan() {
+            if (!accept) {
+                return false;
+            }
+            assertFalse(scanning);
+            scanning = true;
+            starts.add(mClock.nowMillis);
+            return true;
+        }
+
+        @Override
+        public void stopScan() {
+            assertTrue(scanning);
+            scanning = false;
+            stops.add(mClock.nowMillis);
+        }
+    }
+
+    private FakeScheduler mClock;
+    private FakeScanner mScanner;
+    private ScanScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeScheduler();
+        mScanner = new FakeScanner();
+        mScheduler = new ScanScheduler(mClock, mScanner);
+    }
+
+    @Test
+    public void start_scansRightAwayAtFullDuty() {
+        mScheduler.start();
+        assertTrue(mScanner.scanning);
+        assertEquals(ScanScheduler.MAX_WINDOW_MILLIS, mScheduler.getWindowMillis());
+        mClock.advance(ScanScheduler.MAX_WINDOW_MILLIS);
+        assertFalse(mScanner.scanning);
+        assertEquals(Long.valueOf(ScanScheduler.MAX_WINDOW_MILLIS), mScanner.stops.get(0));
+    }
+
+    @Test
+    public void quietWindows_backOffToTheLimits() {
+        mScheduler.start();
+        mClock.advance(60 * 60 * 1000);
+        assertEquals(ScanScheduler.MIN_WINDOW_MILLIS, mScheduler.getWindowMillis());
+        assertEquals(ScanScheduler.MAX_INTERVAL_MILLIS, mScheduler.getIntervalMillis());
+        // The pauses between windows only grow.
+        long previousPause = 0;
+        for (int i = 1; i < mScanner.starts.size(); i++) {
+            long pause = mScanner.starts.get(i) - mScanner.stops.get(i - 1);
+            assertTrue(pause >= previousPause);
+            previousPause = pause;
+        }
+        // An hour of backed-off scanning takes far less than an hour of radio time.
+        long scanning = 0;
+        for (int i = 0; i < mScanner.stops.size(); i++) {
+            scanning += mScanner.stops.get(i) - mScanner.starts.get(i);
+        }
+        assertTrue(scanning < 5 * 60 * 1000);
+    }
+
+    @Test
+    public void newDevice_resetsToFullDuty() {
+        mScheduler.start();
+        mClock.advance(2 * 60 * 1000);
+        assertTrue(mScheduler.getIntervalMillis() > ScanScheduler.MIN_INTERVAL_MILLIS);
+
+        // Wait for the next window and discover something in it.
+        while (!mScanner.scanning) {
+            mClock.advance(100);
+        }
+        mScheduler.onDeviceSeen("00:11:22:33:44:55", true);
+        mClock.advance(ScanScheduler.MAX_WINDOW_MILLIS);
+        assertEquals(ScanScheduler.MAX_WINDOW_MILLIS, mScheduler.getWindowMillis());
+        assertEquals(ScanScheduler.MIN_INTERVAL_MILLIS, mScheduler.getIntervalMillis());
+    }
+
+    @Test
+    public void missingTarget_burstsUntilSeen() {
+        mScheduler.addTarget("00:11:22:33:44:55");
+        mScheduler.start();
+        mClock.advance(5 * 60 * 1000);
+        assertEquals(ScanScheduler.MAX_WINDOW_MILLIS, mScheduler.getWindowMillis());
+        assertEquals(ScanScheduler.MIN_INTERVAL_MILLIS, mScheduler.getIntervalMillis());
+        assertTrue(mScheduler.getBurstCount() > 0);
+
+        // Once seen, known devices no longer hold the scan at full duty.
+        while (!mScanner.scanning) {
+            mClock.advance(100);
+        }
+        mScheduler.onDeviceSeen("00:11:22:33:44:55", false);
+        mClock.advance(ScanScheduler.MAX_WINDOW_MILLIS);
+        final long bursts = mScheduler.getBurstCount();
+        mClock.advance(30 * 1000);
+        assertTrue(mScheduler.getIntervalMillis() > ScanScheduler.MIN_INTERVAL_MILLIS);
+        assertEquals(bursts, mScheduler.getBurstCount());
+    }
+
+    @Test
+    public void starts_neverExceedTheThrottle() {
+        // Stopping and starting by hand as fast as possible, then running for a while.
+        for (int i = 0; i < 20; i++) {
+            mScheduler.start();
+            mClock.advance(500);
+            mScheduler.stop();
+            mClock.advance(500);
+        }
+        mScheduler.addTarget("00:11:22:33:44:55");
+        mScheduler.start();
+        mClock.advance(10 * 60 * 1000);
+
+        assertTrue(mScheduler.getThrottledCount() > 0);
+        for (int i = ScanScheduler.MAX_STARTS; i < mScanner.starts.size(); i++) {
+            long span = mScanner.starts.get(i) - mScanner.starts.get(i - ScanScheduler.MAX_STARTS);
+            assertTrue("6 starts within " + span + " ms",
+                    span >= ScanScheduler.THROTTLE_WINDOW_MILLIS);
+        }
+    }
+
+    @Test
+    public void stop_endsTheWindowAndCancelsTheNext() {
+        mScheduler.start();
+        mClock.advance(1000);
+        mScheduler.stop();
+        assertFalse(mScanner.scanning);
+        assertFalse(mScheduler.isRunning());
+        mClock.advance(60 * 60 * 1000);
+        assertEquals(1, mScanner.starts.size());
+    }
+
+    @Test
+    public void withoutDutyCycling_scansUntilStopped() {
+        mScheduler.setDutyCycled(false);
+        mScheduler.start();
+        mClock.advance(60 * 60 * 1000);
+        assertTrue(mScanner.scanning);
+        assertEquals(1, mScanner.starts.size());
+
+        // Switching back ends the running window after its length.
+        mScheduler.setDutyCycled(true);
+        mClock.advance(ScanScheduler.MAX_WINDOW_MILLIS);
+        assertFalse(mScanner.scanning);
+        mScheduler.setDutyCycled(false);
+        mClock.advance(mScheduler.getIntervalMillis());
+        assertTrue(mScanner.scanning);
+        mClock.advance(60 * 60 * 1000);
+        assertEquals(2, mScanner.starts.size());
+        mScheduler.stop();
+        assertFalse(mScanner.scanning);
+    }
+
+    @Test
+    public void refusedStart_isRetried() {
+        mScanner.accept = false;
+        mScheduler.start();
+        assertFalse(mScheduler.isScanning());
+        assertEquals(1, mScheduler.getFailedStartCount());
+        mScanner.accept = true;
+        mClock.advance(ScanScheduler.MIN_INTERVAL_MILLIS);
+        assertTrue(mScheduler.isScanning());
+    }
+}
@@ -0,0 +1,357 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link SimulatedGattTransport}, and a load test of the
+ * {@link GattClient} the service runs, against many simulated devices.
+ */
+public class SimulatedGattTransportTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID HUMIDITY = SensirionSHT31UUIDS.UUID_HUMIDITY_CHARACTERISTIC;
+    private static final UUID TEMPERATURE = SensirionSHT31UUIDS.UUID_TEMPERATURE_CHARACTERISTIC;
+    private static final long T0 = 1476700000000L;
+
+    // Records what the transport reports.
+    private static class RecordingCallback implements GattTransport.Callback {
+        final List<String> events = new ArrayList<String>();
+        final List<byte[]> values = new ArrayList<byte[]>();
+
+        @Override
+        public void onConnectionStateChange(String address, int status, boolean connected) {
+            events.add((connected ? "connected " : "disconnected ") + status);
+        }
+
+        @Override
+        public void onServicesDiscovered(String address, int status) {
+            events.add("discovered " + status);
+        }
+
+        @Override
+        public void onCharacteristicRead(String address, UUID characteristic, byte[] value,
+                                         int status) {
+            events.add("read " + status);
+            values.add(value);
+        }
+
+        @Override
+        public void onCharacteristicWrite(String address, UUID characteristic, int status) {
+            events.add("write " + status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(String address, UUID characteristic,
+                                            int instanceId, long timestampNanos, byte[] value) {
+            events.add("changed");
+            values.add(value);
+        }
+
+        @Override
+        public void onDescriptorWrite(String address, UUID characteristic, int status) {
+            events.add("descriptor " + status);
+        }
+
+        @Override
+        public void onMtuChanged(String address, int mtu, int status) {
+            events.add("mtu " + mtu + " " + status);
+        }
+    }
+
+    // Subscribes both readings of a device once its services are first known, like the device
+    // screen, and counts what the client delivers. After a reconnect the client restores the
+    // subscriptions on its own.
+    private static final class LoadListener implements GattClient.Listener, SampleListener {
+        GattClient client;
+        final HashMap<String, long[]> sampleCounts = new HashMap<String, long[]>();
+        final HashSet<String> subscribed = new HashSet<String>();
+        final List<String> logSyncsFinished = new ArrayList<String>();
+        final List<String> errors = new ArrayList<String>();
+
+        long getSampleCount(String address) {
+            final long[] counts = sampleCounts.get(address);
+            return counts[0] + counts[1];
+        }
+
+        @Override
+        public void onSample(String deviceAddress, int characteristicId, long timestampNanos,
+                             float value) {
+            assertFalse(Float.isNaN(value));
+            sampleCounts.get(deviceAddress)[characteristicId]++;
+        }
+
+        @Override
+        public void onConnected(String address) {
+        }
+
+        @Override
+        public void onDisconnected(String address) {
+        }
+
+        @Override
+        public void onServicesDiscovered(String address) {
+            if (subscribed.add(address)) {
+                assertTrue(client.setCharacteristicNotification(address, HUMIDITY, true));
+                assertTrue(client.setCharacteristicNotification(address, TEMPERATURE, true));
+            }
+        }
+
+        @Override
+        public void onLogSyncFinished(String address) {
+            logSyncsFinished.add(address);
+        }
+
+        @Override
+        public void onLog(int priority, String message, Throwable error) {
+            if (priority >= GattClient.LOG_ERROR) {
+                errors.add(message);
+            }
+        }
+
+        @Override
+        public void onAlert(int ruleId, String deviceAddress, int characteristicId,
+                            boolean active, long timestampMillis, float value) {
+        }
+    }
+
+    private FakeScheduler mScheduler;
+    private SimulatedGattTransport mTransport;
+    private RecordingCallback mCallback;
+
+    @Before
+    public void setUp() {
+        mScheduler = new FakeScheduler();
+        mTransport = new SimulatedGattTransport(mScheduler, new Random(7));
+        mCallback = new RecordingCallback();
+        mTransport.setCallback(mCallback);
+    }
+
+    @Test
+    public void session_connectsDiscoversAndNotifies() {
+        mTransport.addPeripheral(ADDRESS, new SimulatedPeripheral()
+                .setNotificationRate(10f).setLatencyMillis(20));
+        assertFalse(mTransport.connect("FF:FF:FF:FF:FF:FF"));
+        assertTrue(mTransport.connect(ADDRESS));
+        assertFalse(mTransport.discoverServices(ADDRESS));
+        mScheduler.advance(20);
+        assertTrue(mTransport.getServices(ADDRESS).isEmpty());
+        assertFalse(mTransport.setCharacteristicNotification(ADDRESS, HUMIDITY, true));
+        assertTrue(mTransport.discoverServices(ADDRESS));
+        // One operation at a time, like the stack.
+        assertFalse(mTransport.requestMtu(ADDRESS, 100));
+        mScheduler.advance(20);
+        assertEquals(3, mTransport.getServices(ADDRESS).size());
+        assertTrue(mTransport.requestMtu(ADDRESS, 512));
+        mScheduler.advance(20);
+        assertTrue(mTransport.setCharacteristicNotification(ADDRESS, HUMIDITY, true));
+        mScheduler.advance(20);
+        mScheduler.advance(1000);
+        assertEquals("connected 0", mCallback.events.get(0));
+        assertEquals("discovered 0", mCallback.events.get(1));
+        assertEquals("mtu 247 0", mCallback.events.get(2));
+        assertEquals("descriptor 0", mCallback.events.get(3));
+        assertEquals(14, mCallback.events.size());
+        assertEquals(10, mTransport.getNotificationCount());
+        final float humidity = LittleEndian.getFloat(mCallback.values.get(9), 0);
+        assertEquals(45f, humidity, 5f);
+
+        assertTrue(mTransport.readCharacteristic(ADDRESS, TEMPERATURE));
+        mScheduler.advance(20);
+        assertTrue(mCallback.events.contains("read 0"));
+
+        mTransport.disconnect(ADDRESS);
+        mScheduler.advance(1000);
+        assertEquals("disconnected 0", mCallback.events.get(mCallback.events.size() - 1));
+        // No notifications once the link is down.
+        assertEquals(10, mTransport.getNotificationCount());
+    }
+
+    @Test
+    public void failures_reportConfiguredStatuses() {
+        final SimulatedPeripheral peripheral = new SimulatedPeripheral()
+                .setOperationStatus(GattOperationQueue.OP_DISCOVER_SERVICES,
+                        SimulatedPeripheral.STATUS_GATT_ERROR, 1)
+                .setOperationStatus(GattOperationQueue.OP_READ_CHARACTERISTIC,
+                        SimulatedPeripheral.STATUS_NO_RESPONSE, 1);
+        mTransport.addPeripheral(ADDRESS, peripheral);
+        mTransport.connect(ADDRESS);
+        mScheduler.advance(100);
+        mTransport.discoverServices(ADDRESS);
+        mScheduler.advance(100);
+        assertTrue(mTransport.getServices(ADDRESS).isEmpty());
+        mTransport.discoverServices(ADDRESS);
+        mScheduler.advance(100);
+        assertEquals("discovered " + SimulatedPeripheral.STATUS_GATT_ERROR,
+                mCallback.events.get(1));
+        assertEquals("discovered 0", mCallback.events.get(2));
+
+        // An unanswered read keeps the link busy until it drops.
+        assertTrue(mTransport.readCharacteristic(ADDRESS, HUMIDITY));
+        mScheduler.advance(10000);
+        assertEquals(3, mCallback.events.size());
+        assertFalse(mTransport.readCharacteristic(ADDRESS, HUMIDITY));
+        mTransport.dropLink(ADDRESS);
+        assertEquals("disconnected " + SimulatedPeripheral.STATUS_CONNECTION_TIMEOUT,
+                mCallback.events.get(3));
+
+        peripheral.setConnectStatus(SimulatedPeripheral.STATUS_GATT_ERROR);
+        mTransport.connect(ADDRESS);
+        mScheduler.advance(100);
+        assertEquals("disconnected " + SimulatedPeripheral.STATUS_GATT_ERROR,
+                mCallback.events.get(4));
+        peripheral.setConnectStatus(GattOperationQueue.STATUS_SUCCESS);
+        mTransport.connect(ADDRESS);
+        mScheduler.advance(100);
+        // The services are still known on the link, the read goes through now.
+        assertTrue(mTransport.readCharacteristic(ADDRESS, HUMIDITY));
+        mScheduler.advance(100);
+        assertEquals("read 0", mCallback.events.get(6));
+    }
+
+    @Test
+    public void close_silencesTheLink() {
+        mTransport.addPeripheral(ADDRESS, new SimulatedPeripheral().setNotificationRate(50f));
+        mTransport.connect(ADDRESS);
+        mScheduler.advance(100);
+        mTransport.discoverServices(ADDRESS);
+        mScheduler.advance(100);
+        mTransport.setCharacteristicNotification(ADDRESS, TEMPERATURE, true);
+        mScheduler.advance(100);
+        mTransport.disconnect(ADDRESS);
+        mTransport.close(ADDRESS);
+        final int events = mCallback.events.size();
+        mScheduler.advance(1000);
+        assertEquals(events, mCallback.events.size());
+    }
+
+    // Runs the simulation, and on the same thread what the client's processing thread does.
+    private void run(GattClient client, long millis) {
+        for (long elapsed = 0; elapsed < millis; elapsed += 10) {
+            mScheduler.advance(10);
+            client.processNotifications();
+        }
+        // Delivers the samples of the last step.
+        mScheduler.advance(0);
+    }
+
+    @Test
+    public void load_fiftyDevicesAtFiftyHertz() throws Exception {
+        final int devices = 50;
+        final float hertz = 50f;
+        final long durationMillis = 60000;
+        final File root = File.createTempFile("samples", "");
+        assertTrue(root.delete());
+        assertTrue(root.mkdirs());
+        final SampleStore store = new SampleStore(root);
+        final LoadListener listener = new LoadListener();
+        final GattClient client = new GattClient(mTransport, mScheduler, store, T0, listener,
+                new Random(1));
+        listener.client = client;
+        client.addSampleListener(listener);
+        client.setMaxConnections(devices);
+        client.getPipelineStats().setEnabled(true);
+        try {
+            final List<String> addresses = new ArrayList<String>();
+            for (int i = 0; i < devices; i++) {
+                final String address = String.format("00:11:22:33:44:%02X", i);
+                final SimulatedPeripheral peripheral = new SimulatedPeripheral()
+                        .setNotificationRate(hertz)
+                        .setJitterMillis(5)
+                        .setLatencyMillis(15)
+                        .setDisconnectProbability(2e-5);
+                if (i == 0) {
+                    peripheral.setOperationStatus(GattOperationQueue.OP_DISCOVER_SERVICES,
+                            SimulatedPeripheral.STATUS_GATT_ERROR, 2);
+                } else if (i == 1) {
+                    peripheral.setOperationStatus(GattOperationQueue.OP_WRITE_DESCRIPTOR,
+                            SimulatedPeripheral.STATUS_GATT_ERROR, 3);
+                }
+                mTransport.addPeripheral(address, peripheral);
+                addresses.add(address);
+                listener.sampleCounts.put(address, new long[2]);
+                assertTrue(client.connect(address));
+            }
+            // One link drops halfway through for sure, and one device downloads its log while
+            // it streams.
+            run(client, durationMillis / 2);
+            mTransport.dropLink(addresses.get(2));
+            assertTrue(client.startLogSync(addresses.get(3)));
+            run(client, durationMillis / 2);
+
+            final long expected = (long) (durationMillis / 1000 * hertz * 2);
+            long total = 0;
+            long gattErrors = 0;
+            for (String address : addresses) {
+                final long count = listener.getSampleCount(address);
+                assertTrue(address + " delivered " + count, count > expected * 9 / 10);
+                assertTrue(address + " delivered " + count, count < expected * 11 / 10);
+                total += count;
+                gattErrors += client.getPipelineStats().getCount(address,
+                        PipelineStats.COUNTER_GATT_ERRORS);
+            }
+            assertEquals(mTransport.getNotificationCount(), total);
+            assertEquals(0, client.getNotificationRing().getDroppedCount());
+            assertEquals(0, client.getSampleRing().getDroppedCount());
+            assertEquals(listener.errors.toString(), 0, listener.errors.size());
+            // The failed discoveries and descriptor writes, and the drops.
+            assertEquals(5 + mTransport.getDropCount(), gattErrors);
+
+            // Every live sample is stored at its wall-clock time.
+            final String address = addresses.get(10);
+            final long[] stored = new long[1];
+            store.read(address, HUMIDITY, 0, Long.MAX_VALUE, new SampleStore.Visitor() {
+                @Override
+                public void onSample(long timestampMillis, float value) {
+                    stored[0]++;
+                }
+            });
+            assertEquals(listener.sampleCounts.get(address)[0], stored[0]);
+            assertTrue(store.getLastTimestamp(address, TEMPERATURE)
+                    > T0 + durationMillis - 1000);
+
+            // The dropped link came back without a second discovery, with its subscriptions.
+            assertEquals(1, client.getPipelineStats().getHistogram(addresses.get(2),
+                    PipelineStats.STAGE_DISCOVERY).getCount());
+            assertEquals(Collections.singletonList(addresses.get(3)), listener.logSyncsFinished);
+            assertNull(client.getLogSync(addresses.get(3)));
+
+            final ReconnectSupervisor reconnects = client.getReconnectSupervisor();
+            assertTrue(mTransport.getDropCount() >= 1);
+            assertEquals(mTransport.getDropCount(), reconnects.getDropoutCount());
+            // Every drop but maybe one in the last moments came back.
+            assertTrue(reconnects.getRecoveredCount() >= mTransport.getDropCount() - 1);
+            assertTrue(client.getConnections().getActiveCount() >= devices - 1);
+            // The first attempt of a reconnect comes back, within its delay and the setup of
+            // the link.
+            assertTrue(reconnects.getMeanTimeToFirstSampleNanos() > 0);
+            assertTrue(reconnects.getMeanTimeToFirstSampleNanos()
+                    < 2 * ReconnectSupervisor.MIN_DELAY_MILLIS * 1000000);
+        } finally {
+            client.close();
+            store.close();
+            delete(root);
+        }
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,124 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link TraceRing}.
+ */
+public class TraceRingTest {
+
+    private static final String DEVICE = "C0:FF:EE:00:00:01";
+    private static final long MS = 1000000L;
+
+    @Test
+    public void dump_listsTheRecordsOldestFirst() {
+        final TraceRing ring = new TraceRing(8);
+        ring.record(1 * MS, TraceRing.EVENT_CONNECTION_STATE, DEVICE, 0, 1);
+        ring.record(2 * MS, TraceRing.EVENT_NOTIFICATION, DEVICE,
+                SensirionSHT31UUIDS.CHARACTERISTIC_HUMIDITY, 4);
+        ring.record(3 * MS + 500000, TraceRing.EVENT_SAMPLE, DEVICE,
+                SensirionSHT31UUIDS.CHARACTERISTIC_HUMIDITY, Float.floatToRawIntBits(47.5f));
+
+        final String[] lines = ring.dump(new StringBuilder()).toString().split("\n");
+        assertEquals(3, lines.length);
+        assertEquals(String.format("%.3f", 1.0) + " connection_state " + DEVICE + " 0 1",
+                lines[0]);
+        assertTrue(lines[1], lines[1].endsWith(" notification " + DEVICE + " "
+                + SensirionSHT31UUIDS.CHARACTERISTIC_HUMIDITY + " 4"));
+        assertTrue(lines[2], lines[2].startsWith(String.format("%.3f", 3.5)));
+        assertTrue(lines[2], lines[2].endsWith(" 47.5"));
+        assertEquals(3, ring.getRecordCount());
+    }
+
+    @Test
+    public void full_overwritesTheOldestRecords() {
+        final TraceRing ring = new TraceRing(5);
+        assertEquals(8, ring.capacity());
+        for (int i = 0; i < 20; i++) {
+            ring.record(i * MS, TraceRing.EVENT_OPERATION, DEVICE, i, 0);
+        }
+
+        final String[] lines = ring.dump(new StringBuilder()).toString().split("\n");
+        assertEquals(8, lines.length);
+        assertTrue(lines[0], lines[0].endsWith(" 12 0"));
+        assertTrue(lines[7], lines[7].endsWith(" 19 0"));
+        assertEquals(20, ring.getRecordCount());
+    }
+
+    @Test
+    public void dumpWhileWriting_showsWholeRecords() throws Exception {
+        final TraceRing ring = new TraceRing(256);
+        final int count = 500000;
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    // Both arguments carry the same number, a torn record would mix them.
+                    ring.record(i, TraceRing.EVENT_OPERATION, "W" + (i & 7), i & 7, i & 7);
+                }
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            assertWhole(ring.dump(new StringBuilder()).toString());
+        }
+        writer.join();
+
+        final String dump = ring.dump(new StringBuilder()).toString();
+        assertEquals(256, dump.split("\n").length);
+        assertWhole(dump);
+    }
+
+    @Test
+    public void concurrentWriters_claimEveryIndexOnce() throws Exception {
+        final TraceRing ring = new TraceRing(1024);
+        final int threads = 4;
+        final int perThread = 100000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        ring.record(i, TraceRing.EVENT_OPERATION, "W", i, i);
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertEquals(threads * perThread, ring.getRecordCount());
+        assertTrue(ring.dump(new StringBuilder()).toString().split("\n").length <= 1024);
+    }
+
+    private static void assertWhole(String dump) {
+        if (dump.isEmpty()) {
+            return;
+        }
+        for (String line : dump.split("\n")) {
+            final String[] fields = line.split(" ");
+            assertEquals(line, 5, fields.length);
+            assertEquals(line, "W" + fields[3], fields[2]);
+            assertEquals(line, fields[3], fields[4]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroCapacity_isRejected() {
+        new TraceRing(0);
+    }
+}
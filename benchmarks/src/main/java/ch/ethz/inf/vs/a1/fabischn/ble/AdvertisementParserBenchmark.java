@@ -0,0 +1,79 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the samples out of one advertisement with {@link AdvertisementParser}, on payloads
+ * laid out like those a Smart Gadget sends: flags and the name, then the Sensirion manufacturer
+ * data in the scan response, padded to 62 bytes as Android reports them. The payloads are
+ * parsed as the scan record arrays {@code ScanSession} hands over.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdvertisementParserBenchmark {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final int PAYLOADS = 1024;
+
+    private byte[][] mPayloads;
+    private AdvertisementParser mParser;
+    private Blackhole mBlackhole;
+    private long mTimestamp;
+
+    private final SampleListener mListener = new SampleListener() {
+        @Override
+        public void onSample(String deviceAddress, int characteristicId, long timestampNanos,
+                             float value) {
+            mBlackhole.consume(value);
+        }
+    };
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        mParser = new AdvertisementParser(mListener);
+        final Random random = new Random(3);
+        final byte[] name = {0x11, 0x09, 'S', 'm', 'a', 'r', 't', ' ', 'H', 'u', 'm', 'i', 'g',
+                'a', 'd', 'g', 'e', 't'};
+        mPayloads = new byte[PAYLOADS][];
+        for (int i = 0; i < PAYLOADS; i++) {
+            final int temperatureTicks = 0x6000 + random.nextInt(0x1000);
+            final int humidityTicks = 0x7000 + random.nextInt(0x2000);
+            final byte[] manufacturer = {0x0b, (byte) 0xff, (byte) 0xd5, 0x06, 0x00,
+                    AdvertisementParser.SAMPLE_TYPE_TEMPERATURE_HUMIDITY, 0x3c, (byte) 0xa1,
+                    (byte) temperatureTicks, (byte) (temperatureTicks >>> 8),
+                    (byte) humidityTicks, (byte) (humidityTicks >>> 8)};
+            final byte[] record = new byte[62];
+            record[0] = 0x02;
+            record[1] = 0x01;
+            record[2] = 0x06;
+            System.arraycopy(name, 0, record, 3, name.length);
+            // The readings are in the scan response, after the padded advertisement.
+            System.arraycopy(manufacturer, 0, record, 31, manufacturer.length);
+            mPayloads[i] = record;
+        }
+    }
+
+    @Benchmark
+    public int parse() {
+        final long timestamp = mTimestamp++;
+        return mParser.parse(ADDRESS, timestamp, mPayloads[(int) timestamp & (PAYLOADS - 1)]);
+    }
+}
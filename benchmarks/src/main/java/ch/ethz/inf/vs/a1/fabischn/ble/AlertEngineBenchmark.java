@@ -0,0 +1,98 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluating one sample with {@link AlertEngine} for growing rule sets, spread over 50 devices
+ * with a mix of threshold, rate and silence rules. A sample only visits the rules of its own
+ * device and characteristic, so the time per rule it visits should stay flat as the rule count
+ * grows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AlertEngineBenchmark {
+
+    private static final int DEVICES = 50;
+    private static final int SAMPLES = 1024;
+
+    @Param({"100", "1000", "10000"})
+    public int rules;
+
+    private final String[] mAddresses = new String[DEVICES];
+    private final int[] mDevices = new int[SAMPLES];
+    private final int[] mCharacteristics = new int[SAMPLES];
+    private final float[] mValues = new float[SAMPLES];
+    private AlertEngine mEngine;
+    private Blackhole mBlackhole;
+    private int mNext;
+    private long mNow;
+
+    private final AlertEngine.Listener mListener = new AlertEngine.Listener() {
+        @Override
+        public void onAlert(int ruleId, String deviceAddress, int characteristicId,
+                            boolean active, long timestampMillis, float value) {
+            mBlackhole.consume(ruleId);
+        }
+    };
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        for (int d = 0; d < DEVICES; d++) {
+            mAddresses[d] = String.format("00:11:22:33:44:%02X", d);
+        }
+        final Random random = new Random(9);
+        for (int i = 0; i < SAMPLES; i++) {
+            mDevices[i] = random.nextInt(DEVICES);
+            mCharacteristics[i] = random.nextInt(2);
+            mValues[i] = 20f + (float) random.nextGaussian() * 20f;
+        }
+        final AlertEngine.Builder builder = new AlertEngine.Builder();
+        for (int r = 0; r < rules; r++) {
+            final String address = mAddresses[r % DEVICES];
+            final int characteristic = (r / DEVICES) & 1;
+            switch (r % 4) {
+                case 0:
+                    builder.addAbove(address, characteristic, 30f + r % 20, 1f);
+                    break;
+                case 1:
+                    builder.addBelow(address, characteristic, 10f - r % 20, 1f);
+                    break;
+                case 2:
+                    builder.addRateOfChange(address, characteristic, 2f, 0.5f, 10000);
+                    break;
+                default:
+                    builder.addSilence(address, characteristic, 60000);
+                    break;
+            }
+        }
+        mEngine = builder.build(mListener);
+    }
+
+    @Benchmark
+    public long onSample() {
+        final int s = mNext++ & (SAMPLES - 1);
+        // 100 Hz over all devices.
+        mNow += 10;
+        mEngine.onSample(mAddresses[mDevices[s]], mCharacteristics[s], mNow, mValues[s]);
+        return mNow;
+    }
+}
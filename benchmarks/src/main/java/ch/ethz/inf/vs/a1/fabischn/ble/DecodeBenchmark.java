@@ -0,0 +1,69 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding one characteristic value: the {@code ByteBuffer} wrapper the service used to convert
+ * raw values with, the allocation-free {@link LittleEndian} read, and the
+ * {@link DecoderRegistry} binding every notification goes through now.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+    private static final int VALUES = 1024;
+
+    private byte[][] mValues;
+    private DecoderRegistry.Binding mBinding;
+    private final float[] mOut = new float[1];
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(1);
+        mValues = new byte[VALUES][];
+        for (int i = 0; i < VALUES; i++) {
+            mValues[i] = LittleEndian.fromFloat(30f + random.nextFloat() * 40f);
+        }
+        mBinding = DecoderRegistry.createDefault()
+                .resolve(SensirionSHT31UUIDS.UUID_HUMIDITY_CHARACTERISTIC);
+    }
+
+    private byte[] next() {
+        return mValues[mNext++ & (VALUES - 1)];
+    }
+
+    @Benchmark
+    public float byteBufferWrap() {
+        return ByteBuffer.wrap(next()).order(ByteOrder.LITTLE_ENDIAN).getFloat();
+    }
+
+    @Benchmark
+    public float littleEndian() {
+        return LittleEndian.getFloat(next(), 0);
+    }
+
+    @Benchmark
+    public float binding() {
+        mBinding.decode(next(), mOut);
+        return mOut[0];
+    }
+}
@@ -0,0 +1,99 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording one scan result with a growing number of advertisers around: the list-with-contains
+ * the device list adapter deduplicated with, against {@link DeviceRegistry}. What the results
+ * cost the list view is printed with every trial: the list adapter refreshed fully on each, the
+ * registry only when a device is added, and redraws the row of a device that changed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceListBenchmark {
+
+    private static final int RESULTS = 4096;
+
+    @Param({"10", "100", "1000"})
+    public int advertisers;
+
+    private String[] mResults;
+    private int[] mRssi;
+    private final ArrayList<String> mList = new ArrayList<String>();
+    private final DeviceRegistry<String> mRegistry = new DeviceRegistry<String>();
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        final String[] addresses = new String[advertisers];
+        for (int i = 0; i < advertisers; i++) {
+            addresses[i] = String.format("C0:FF:EE:%02X:%02X:%02X", i >> 16, (i >> 8) & 0xff,
+                    i & 0xff);
+        }
+        final Random random = new Random(7);
+        mResults = new String[RESULTS];
+        mRssi = new int[RESULTS];
+        for (int i = 0; i < RESULTS; i++) {
+            // New String objects, as every scan result brings its own.
+            mResults[i] = new String(addresses[random.nextInt(advertisers)]);
+            mRssi[i] = -70 + (random.nextInt(8) == 0 ? 1 : 0);
+        }
+        printRedraws();
+        for (String address : addresses) {
+            mList.add(address);
+            mRegistry.update(address, address, null, -70, 0);
+        }
+    }
+
+    // Feeds the results to an empty registry once and counts what the list view redraws.
+    private void printRedraws() {
+        final DeviceRegistry<String> registry = new DeviceRegistry<String>();
+        int refreshes = 0;
+        int redraws = 0;
+        for (int i = 0; i < RESULTS; i++) {
+            final int changes = registry.update(mResults[i], mResults[i], null, mRssi[i], i);
+            if ((changes & DeviceRegistry.CHANGE_ADDED) != 0) {
+                refreshes++;
+            } else if (changes != DeviceRegistry.CHANGE_NONE) {
+                redraws++;
+            }
+        }
+        System.out.println(advertisers + " advertisers, " + RESULTS + " results: list "
+                + RESULTS + " full refreshes, registry " + refreshes + " full refreshes and "
+                + redraws + " row redraws");
+    }
+
+    @Benchmark
+    public boolean listContains() {
+        final String address = mResults[mNext++ & (RESULTS - 1)];
+        if (!mList.contains(address)) {
+            mList.add(address);
+            return true;
+        }
+        return false;
+    }
+
+    @Benchmark
+    public int registryUpdate() {
+        final int i = mNext++ & (RESULTS - 1);
+        return mRegistry.update(mResults[i], mResults[i], null, mRssi[i], mNext);
+    }
+}
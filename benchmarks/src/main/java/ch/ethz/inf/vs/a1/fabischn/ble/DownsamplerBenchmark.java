@@ -0,0 +1,82 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The graph's render input for growing histories: keeping the {@link MinMaxDownsampler} levels
+ * up to date for a frame of samples, and reducing the whole history to two points per pixel.
+ * Both should stay flat as the history grows. The number of points the reduction renders is
+ * printed with every trial and must not exceed two per pixel, whatever the history.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DownsamplerBenchmark {
+
+    private static final int WIDTH_PX = 1080;
+    // Samples arriving between two frames.
+    private static final int FRAME_SAMPLES = 16;
+
+    @Param({"10000", "1000000", "10000000"})
+    public int history;
+
+    private SampleSeriesBuffer mBuffer;
+    private MinMaxDownsampler mDownsampler;
+    private final float[] mValues = new float[1];
+    private final double[] mX = new double[2 * WIDTH_PX];
+    private final float[] mY = new float[2 * WIDTH_PX];
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mBuffer = new SampleSeriesBuffer(1, history);
+        mDownsampler = new MinMaxDownsampler(mBuffer, 0);
+        for (int i = 0; i < history; i++) {
+            append();
+            if ((i & (FRAME_SAMPLES - 1)) == FRAME_SAMPLES - 1) {
+                mDownsampler.update();
+            }
+        }
+        mDownsampler.update();
+        final int points = downsampleAll();
+        System.out.println(history + " samples: " + points + " points for " + WIDTH_PX + " px");
+        if (points <= 0 || points > 2 * WIDTH_PX) {
+            throw new IllegalStateException(points + " points for " + WIDTH_PX + " px");
+        }
+    }
+
+    private void append() {
+        mValues[0] = 20f + (float) Math.sin(mNext / 600.0) + (mNext % 7) * 0.01f;
+        mBuffer.addValues(mNext++, mValues);
+    }
+
+    @Benchmark
+    public int appendFrame() {
+        for (int i = 0; i < FRAME_SAMPLES; i++) {
+            append();
+        }
+        mDownsampler.update();
+        return mNext;
+    }
+
+    @Benchmark
+    public int downsampleAll() {
+        return mDownsampler.downsample(mBuffer.getX(0), mBuffer.getX(mBuffer.size() - 1),
+                mX.length, mX, mY);
+    }
+}
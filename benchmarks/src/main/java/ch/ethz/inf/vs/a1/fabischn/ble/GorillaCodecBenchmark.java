@@ -0,0 +1,100 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding a day of simulated SHT31 readings at 1 Hz with {@link GorillaCodec},
+ * against raw 12 byte records (long timestamp, float value). Scores are per sample. The size
+ * per sample is printed with every trial, JMH has no score for it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GorillaCodecBenchmark {
+
+    private static final int SAMPLES = 24 * 60 * 60;
+    private static final int RAW_RECORD_SIZE = 12;
+
+    private final long[] mTimestamps = new long[SAMPLES];
+    private final float[] mValues = new float[SAMPLES];
+    private final GorillaCodec.Encoder mEncoder = new GorillaCodec.Encoder(SAMPLES);
+    private final GorillaCodec.Encoder mEncoded = new GorillaCodec.Encoder(SAMPLES);
+    private final GorillaCodec.Decoder mDecoder = new GorillaCodec.Decoder();
+    private final ByteBuffer mRaw = ByteBuffer.allocate(SAMPLES * RAW_RECORD_SIZE);
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(1);
+        long t = 1476700000000L;
+        for (int i = 0; i < SAMPLES; i++) {
+            // Notifications arrive every second with a few milliseconds of jitter.
+            t += 1000 + random.nextInt(5) - 2;
+            mTimestamps[i] = t;
+            // Humidity drifts slowly and the sensor reports it with 0.01 %RH resolution.
+            mValues[i] = Math.round((45f + 5f * (float) Math.sin(i / 3600.0)) * 100f) / 100f;
+            mEncoded.append(mTimestamps[i], mValues[i]);
+            mRaw.putLong(mTimestamps[i]).putFloat(mValues[i]);
+        }
+        System.out.println(String.format("gorilla %.2f bytes/sample, raw %d bytes/sample",
+                (double) mEncoded.getByteLength() / SAMPLES, RAW_RECORD_SIZE));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public int gorillaEncode() {
+        mEncoder.reset();
+        for (int i = 0; i < SAMPLES; i++) {
+            mEncoder.append(mTimestamps[i], mValues[i]);
+        }
+        return mEncoder.getByteLength();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long gorillaDecode() {
+        long checksum = 0;
+        mDecoder.reset(mEncoded.getBuffer(), 0, mEncoded.getCount());
+        while (mDecoder.next()) {
+            checksum += mDecoder.timestamp() + Float.floatToRawIntBits(mDecoder.value());
+        }
+        return checksum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public int rawEncode() {
+        mRaw.clear();
+        for (int i = 0; i < SAMPLES; i++) {
+            mRaw.putLong(mTimestamps[i]).putFloat(mValues[i]);
+        }
+        return mRaw.position();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long rawDecode() {
+        long checksum = 0;
+        mRaw.position(0).limit(SAMPLES * RAW_RECORD_SIZE);
+        while (mRaw.hasRemaining()) {
+            checksum += mRaw.getLong() + Float.floatToRawIntBits(mRaw.getFloat());
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,84 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the instrumentation of the sample path costs per record, switched on and off: a
+ * timestamped record and a counter increment on the device the sample path looked up once, a
+ * decode record from times already read, and the lookup by address the other stages pay.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineStatsBenchmark {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    @Param({"true", "false"})
+    public boolean enabled;
+
+    private PipelineStats mStats;
+    private PipelineStats.Device mDevice;
+
+    @Setup
+    public void setUp() {
+        mStats = new PipelineStats(new GattOperationQueue.Scheduler() {
+            @Override
+            public long nowNanos() {
+                return System.nanoTime();
+            }
+
+            @Override
+            public void postDelayed(Runnable runnable, long delayMillis) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void cancel(Runnable runnable) {
+            }
+        });
+        mStats.setEnabled(true);
+        mDevice = mStats.getDevice(ADDRESS);
+        mStats.setEnabled(enabled);
+    }
+
+    @Benchmark
+    public long recordSince() {
+        return mDevice.recordSince(PipelineStats.STAGE_DISPATCH, 1);
+    }
+
+    @Benchmark
+    public void recordDecode() {
+        mDevice.record(PipelineStats.STAGE_DECODE, 250);
+    }
+
+    @Benchmark
+    public void mark() {
+        mDevice.mark(PipelineStats.STAGE_INTER_ARRIVAL);
+    }
+
+    @Benchmark
+    public void increment() {
+        mDevice.increment(PipelineStats.COUNTER_NOTIFICATIONS);
+    }
+
+    @Benchmark
+    public void recordSinceByAddress() {
+        mStats.recordSince(ADDRESS, PipelineStats.STAGE_DISPATCH, 1);
+    }
+}
@@ -0,0 +1,70 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Getting one notification to the UI. The service used to broadcast every value as an Intent
+ * whose extra was built from the raw bytes and the converted value; an Intent cannot be created
+ * off a device, so {@link #stringExtra} measures the string it carried, a lower bound of that
+ * path. Samples now go through a {@link SampleRing} to the listeners, measured from the offer
+ * to the delivery in {@link #sampleRing}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampleDeliveryBenchmark {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    private final byte[] mValue = LittleEndian.fromFloat(47.25f);
+    private SampleRing mRing;
+    private Blackhole mBlackhole;
+    private long mTimestamp;
+
+    private final SampleListener mListener = new SampleListener() {
+        @Override
+        public void onSample(String deviceAddress, int characteristicId, long timestampNanos,
+                             float value) {
+            mBlackhole.consume(value);
+        }
+    };
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        mRing = new SampleRing(256);
+    }
+
+    @Benchmark
+    public String stringExtra() {
+        final float converted =
+                ByteBuffer.wrap(mValue).order(ByteOrder.LITTLE_ENDIAN).getFloat();
+        final StringBuilder builder = new StringBuilder(mValue.length);
+        builder.append(converted);
+        return new String(mValue) + "\n" + builder.toString();
+    }
+
+    @Benchmark
+    public int sampleRing() {
+        mRing.offer(ADDRESS, SensirionSHT31UUIDS.CHARACTERISTIC_HUMIDITY, mTimestamp++,
+                LittleEndian.getFloat(mValue, 0));
+        return mRing.drain(mListener);
+    }
+}
@@ -0,0 +1,83 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appending to and reading from the graph's series through {@link GraphContainer}, and the
+ * windowed and downsampled reads a frame needs instead of copying everything.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SeriesBenchmark {
+
+    private static final int SERIES = 2;
+    private static final int POINTS = 512;
+
+    @Param({"1000", "100000"})
+    public int capacity;
+
+    private SampleSeriesBuffer mBuffer;
+    private GraphContainer mContainer;
+    private MinMaxDownsampler mDownsampler;
+    private SampleSeriesBuffer.Window mWindow;
+    private final float[] mValues = new float[SERIES];
+    private final double[] mX = new double[POINTS * 2];
+    private final float[] mY = new float[POINTS * 2];
+    private double mNextX;
+
+    @Setup
+    public void setUp() {
+        mBuffer = new SampleSeriesBuffer(SERIES, capacity);
+        mContainer = mBuffer;
+        mDownsampler = new MinMaxDownsampler(mBuffer, 0);
+        final Random random = new Random(3);
+        for (int i = 0; i < capacity; i++) {
+            mValues[0] = 40f + random.nextFloat();
+            mValues[1] = 20f + random.nextFloat();
+            mContainer.addValues(mNextX++, mValues);
+        }
+        mDownsampler.update();
+    }
+
+    @Benchmark
+    public double append() {
+        mValues[0] = (float) (mNextX % 7);
+        mContainer.addValues(mNextX, mValues);
+        return mNextX++;
+    }
+
+    @Benchmark
+    public float[][] readAll() {
+        return mContainer.getValues();
+    }
+
+    @Benchmark
+    public int readLatestWindow() {
+        mWindow = mBuffer.latest(POINTS, mWindow);
+        return mWindow.size();
+    }
+
+    @Benchmark
+    public int downsampleAll() {
+        mDownsampler.update();
+        return mDownsampler.downsample(mBuffer.getX(0), mBuffer.getX(mBuffer.size() - 1),
+                POINTS, mX, mY);
+    }
+}
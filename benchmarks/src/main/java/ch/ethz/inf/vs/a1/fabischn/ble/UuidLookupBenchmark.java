@@ -0,0 +1,62 @@
+package ch.ethz.inf.vs.a1.fabischn.ble;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolving an attribute UUID: by its string form as the service list does, formatting the
+ * string each time or not, by the UUID itself, and to the small characteristic id the sample
+ * path uses. Alternates between a known and an unknown UUID.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UuidLookupBenchmark {
+
+    private static final String UNKNOWN = "Unknown";
+
+    private UUID[] mUuids;
+    private String[] mStrings;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mUuids = new UUID[]{SensirionSHT31UUIDS.UUID_TEMPERATURE_CHARACTERISTIC,
+                UUID.fromString("00002a00-0000-1000-8000-00805f9b34fb")};
+        mStrings = new String[]{mUuids[0].toString(), mUuids[1].toString()};
+    }
+
+    @Benchmark
+    public String lookupFormattedString() {
+        return SensirionSHT31UUIDS.lookup(mUuids[mNext++ & 1].toString(), UNKNOWN);
+    }
+
+    @Benchmark
+    public String lookupString() {
+        return SensirionSHT31UUIDS.lookup(mStrings[mNext++ & 1], UNKNOWN);
+    }
+
+    @Benchmark
+    public String lookupUuid() {
+        return SensirionSHT31UUIDS.lookup(mUuids[mNext++ & 1], UNKNOWN);
+    }
+
+    @Benchmark
+    public int characteristicId() {
+        return SensirionSHT31UUIDS.characteristicId(mUuids[mNext++ & 1]);
+    }
+}